@@ -2,9 +2,14 @@ package nl.chrishofstede.bulktransform;
 
 import java.io.File;
 import java.io.FileFilter;
-import java.io.FileOutputStream;
-import java.io.OutputStream;
+import java.io.IOException;
 import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import javax.xml.transform.TransformerException;
 
@@ -18,9 +23,17 @@ import org.apache.commons.cli.ParseException;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOCase;
 import org.apache.commons.io.filefilter.WildcardFileFilter;
-import org.w3c.dom.Document;
 import org.xml.sax.SAXParseException;
 
+import nl.chrishofstede.bulktransform.output.AsyncOutputWriter;
+import nl.chrishofstede.bulktransform.output.Output;
+import nl.chrishofstede.bulktransform.output.OutputLayout;
+import nl.chrishofstede.bulktransform.output.OutputWriter;
+import nl.chrishofstede.bulktransform.output.PackedOutput;
+import nl.chrishofstede.bulktransform.output.PackedReader;
+import nl.chrishofstede.bulktransform.output.ResultSplitter;
+import nl.chrishofstede.bulktransform.output.TableWriter;
+import nl.chrishofstede.bulktransform.utils.EntityCatalog;
 import nl.chrishofstede.bulktransform.utils.Parameters;
 
 /**
@@ -36,45 +49,379 @@ public class App {
             Option inOption = new Option("in", "input", true, "input file name (wildcards allowed): -in in\\*.xml");
             inOption.setArgs(Option.UNLIMITED_VALUES);
             options.addOption(inOption);
-            Option xslOption = new Option("xsl", "xslt", true, "XSLT stylesheet input file name: -xsl html.xsl");
+            Option xslOption = new Option("xsl", "xslt", true,
+                    "XSLT stylesheet input file name(s), applied in order: -xsl html.xsl or -xsl a.xsl,b.xsl");
+            xslOption.setArgs(Option.UNLIMITED_VALUES);
+            xslOption.setValueSeparator(',');
             options.addOption(xslOption);
-            Option outOption = new Option("out", "output", true, "output folder: -out out");
+            Option routeOption = new Option("route", "route", true,
+                    "routing table choosing the stylesheet of each input file by its root element or file name, -xsl for the files no rule matches: -route routes.txt");
+            options.addOption(routeOption);
+            Option routeCacheOption = new Option("rc", "route-cache", true,
+                    "maximum estimated size in MB of the compiled routed stylesheets kept in memory, a stylesheet counting for "
+                            + StylesheetRegistry.EXPANSION + " times the size of its files (default "
+                            + StylesheetRegistry.DEFAULT_MAXIMUM_SIZE / (1024 * 1024) + "): -rc 512");
+            options.addOption(routeCacheOption);
+            Option whereOption = new Option("where", "where", true,
+                    "only process the input files matching a root element or a streaming path, read with StAX up to the answer: -where \"/order/@status='open'\"");
+            options.addOption(whereOption);
+            Option extractOption = new Option("extract", "extract", true,
+                    "instead of -xsl, evaluate the XPath expressions of a column file (name expression per line, xmlns:p uri to declare a prefix) on every input file and write one row per file to "
+                            + Extractor.FILE_NAME + ".csv in the output folder: -extract columns.txt");
+            options.addOption(extractOption);
+            Option extractFormatOption = new Option("ef", "extract-format", true,
+                    "format of the table of -extract: csv (default) or tsv: -ef tsv");
+            options.addOption(extractFormatOption);
+            Option outOption = new Option("out", "output", true,
+                    "output folder, which also holds the durations history and the run summary; without it these are only kept, in the current folder, with -sched history, -shard or -wd: -out out");
             options.addOption(outOption);
+            Option documentCacheOption = new Option("dc", "document-cache", true,
+                    "maximum size in MB of the document() lookup files kept parsed in memory: -dc 256");
+            options.addOption(documentCacheOption);
+            Option catalogOption = new Option("cat", "catalog", true,
+                    "XML catalog file(s) resolving DTDs and entities offline: -cat catalog.xml");
+            catalogOption.setArgs(Option.UNLIMITED_VALUES);
+            catalogOption.setValueSeparator(',');
+            options.addOption(catalogOption);
+            Option validateOption = new Option("val", "validate", true,
+                    "XSD schema all input files are validated against, without -xsl they are only validated: -val schema.xsd");
+            options.addOption(validateOption);
+            Option failureManifestOption = new Option("fm", "failure-manifest", true,
+                    "failure manifest file, default " + FailureManifest.FILE_NAME + " in the output folder: -fm failures.tsv");
+            options.addOption(failureManifestOption);
+            Option retryFailedOption = new Option("retry", "retry-failed", false,
+                    "only process the input files in the failure manifest of the previous run: -retry");
+            options.addOption(retryFailedOption);
+            Option resumeOption = new Option("resume", "resume", false,
+                    "skip the input files completed according to the journal of an interrupted run: -resume");
+            options.addOption(resumeOption);
+            Option shardOption = new Option("shard", "shard", true,
+                    "only process shard i of n of the input files, selected by a stable hash of the relative path: -shard 3/8");
+            options.addOption(shardOption);
+            Option workDirOption = new Option("wd", "work-dir", true,
+                    "shared work folder through which several workers claim the input files: -wd work");
+            options.addOption(workDirOption);
+            Option workerOption = new Option("worker", "worker", true,
+                    "name of this worker with -wd, which its journal, failure manifest and summary are named after so a restarted worker finds them again, default the host name; workers on one host each need their own: -worker node1-a");
+            options.addOption(workerOption);
+            Option threadsOption = new Option("t", "threads", true,
+                    "number of input files processed at the same time, default 1: -t 8");
+            options.addOption(threadsOption);
+            Option documentModelOption = new Option("model", "document-model", true,
+                    "tree the input files are parsed into: dom (default) or compact, an array-backed tree taking a fraction of the heap: -model compact");
+            options.addOption(documentModelOption);
+            Option scheduleOption = new Option("sched", "schedule", true,
+                    "order of the input files: listing, size (largest first, default) or history (longest duration of previous runs first): -sched history");
+            options.addOption(scheduleOption);
+            Option memoryBudgetOption = new Option("mem", "memory-budget", true,
+                    "fraction of the maximum heap the parsed documents may take together, default 0.5, 0 for no limit: -mem 0.6");
+            options.addOption(memoryBudgetOption);
+            Option streamingThresholdOption = new Option("st", "streaming-threshold", true,
+                    "size in MB above which input files are transformed from a stream instead of a DOM, default "
+                            + StreamingThreshold.DEFAULT / (1024 * 1024) + ", or auto to calibrate it with a quick benchmark: -st auto");
+            options.addOption(streamingThresholdOption);
+            Option durabilityOption = new Option("dur", "durability", true,
+                    "when the output files are synced to disk: none (default), file, or group every n files: -dur group:256");
+            options.addOption(durabilityOption);
+            Option skipUnchangedOption = new Option("su", "skip-unchanged", false,
+                    "leave output files untouched when the new output is identical: -su");
+            options.addOption(skipUnchangedOption);
+            Option deduplicateOption = new Option("dedup", "deduplicate", false,
+                    "transform only the first of byte-identical input files and hard-link or copy its output for the others: -dedup");
+            options.addOption(deduplicateOption);
+            Option eventCacheOption = new Option("ec", "event-cache", true,
+                    "keep the parser events of the input files in a cache folder and replay them in later runs instead of parsing the input files again, unless they are validated: -ec cache");
+            options.addOption(eventCacheOption);
+            Option layoutOption = new Option("layout", "output-layout", true,
+                    "layout of the output folder: flat (default), hash:f[:l] for l levels of f hashed subfolders, or prefix:n[:l] for l levels of subfolders named after the next n characters: -layout hash:256:2");
+            options.addOption(layoutOption);
+            Option packedOutputOption = new Option("pack", "packed-output", true,
+                    "pack the outputs into segment files of at most the given size in MB (default 1024) with an index, instead of one file per output: -pack 512");
+            packedOutputOption.setOptionalArg(true);
+            options.addOption(packedOutputOption);
+            Option unpackOption = new Option("unpack", "unpack", true,
+                    "unpack the outputs of a packed index into separate files in the output folder, honouring -layout: -unpack out\\bulktransform-packed.idx");
+            options.addOption(unpackOption);
+            Option aggregateOption = new Option("agg", "aggregate", true,
+                    "transform batches of at most n input files (default " + CollectionReader.DEFAULT_BATCH_SIZE
+                            + ") together as one <collection> document, with one output per batch: -agg 5000");
+            aggregateOption.setOptionalArg(true);
+            options.addOption(aggregateOption);
+            Option reduceOption = new Option("reduce", "reduce", true,
+                    "map every input file to a partial result with -xsl and merge the partial results with this stylesheet, which reads a <collection> of them, into one result "
+                            + MapReduce.FILE_NAME + " in the output folder: -reduce merge.xsl");
+            options.addOption(reduceOption);
+            Option multiOutputOption = new Option("mo", "multi-output", true,
+                    "write the <r:result href=\"path\"> elements (xmlns:r=\"" + ResultSplitter.NAMESPACE
+                            + "\") and the Xalan redirect:write elements of the stylesheet output as separate files in the output folder, on a pool of n writer threads (default "
+                            + AsyncOutputWriter.DEFAULT_THREADS + "): -mo 8");
+            multiOutputOption.setOptionalArg(true);
+            options.addOption(multiOutputOption);
+            Option mergeSummariesOption = new Option("merge", "merge-summaries", true,
+                    "merge the run summaries of the shards into one report (wildcards allowed): -merge out\\bulktransform-summary-*.properties");
+            mergeSummariesOption.setArgs(Option.UNLIMITED_VALUES);
+            options.addOption(mergeSummariesOption);
 
             // Option values
-            String[] in = null;
-            String xsl = null;
-            String out = null;
+            Settings settings = new Settings();
 
             // Create the parser
             CommandLineParser parser = new DefaultParser();
             try {
                 // Parse the command line arguments
                 CommandLine line = parser.parse(options, args);
-                if (line.hasOption(inOption)) {
-                    in = line.getOptionValues(inOption);
-                    boolean bFirst = true;
-                    for (String inFile : in) {
-                        if (bFirst) {
-                            System.out.println("in : " + inFile);
-                            bFirst = false;
-                        } else {
-                            System.out.println("   : " + inFile);
+                if (line.hasOption(mergeSummariesOption)) {
+
+                    // Merge the summaries of the shards, nothing is transformed
+                    mergeSummaries(line.getOptionValues(mergeSummariesOption), line.getOptionValue(outOption));
+                    return;
+                }
+                if (line.hasOption(unpackOption)) {
+
+                    // Unpack the outputs of a packed run, nothing is transformed
+                    if (!line.hasOption(outOption)) {
+                        throw new ParseException("unpack requires an output folder");
+                    }
+                    unpack(line.getOptionValue(unpackOption), line.getOptionValue(outOption),
+                            line.hasOption(layoutOption) ? OutputLayout.parse(line.getOptionValue(layoutOption))
+                                    : OutputLayout.FLAT);
+                    return;
+                }
+                if (line.hasOption(retryFailedOption)) {
+                    settings.setRetryFailed(true);
+                    System.out.println("retry failed");
+                }
+                if (line.hasOption(resumeOption)) {
+                    settings.setResume(true);
+                    System.out.println("resume");
+                }
+                if (line.hasOption(inOption) || settings.isRetryFailed()) {
+                    if (line.hasOption(inOption)) {
+                        String[] in = line.getOptionValues(inOption);
+                        settings.setIn(in);
+                        boolean bFirst = true;
+                        for (String inFile : in) {
+                            if (bFirst) {
+                                System.out.println("in : " + inFile);
+                                bFirst = false;
+                            } else {
+                                System.out.println("   : " + inFile);
+                            }
                         }
                     }
                     if (line.hasOption(xslOption)) {
-                        xsl = line.getOptionValue(xslOption);
-                        System.out.println("xsl: " + xsl);
+                        String[] xsl = line.getOptionValues(xslOption);
+                        settings.setXsl(xsl);
+                        boolean bFirstXsl = true;
+                        for (String xslFile : xsl) {
+                            if (bFirstXsl) {
+                                System.out.println("xsl: " + xslFile);
+                                bFirstXsl = false;
+                            } else {
+                                System.out.println("   : " + xslFile);
+                            }
+                        }
+                    }
+                    if (line.hasOption(routeOption)) {
+                        String route = line.getOptionValue(routeOption);
+                        settings.setRoute(route);
+                        System.out.println("route: " + route);
+                    }
+                    if (line.hasOption(routeCacheOption)) {
+                        String routeCache = line.getOptionValue(routeCacheOption);
+                        settings.setRouteCacheSize(Long.parseLong(routeCache) * 1024 * 1024);
+                        if (settings.getRouteCacheSize() <= 0) {
+                            throw new ParseException("route cache must be at least 1 MB");
+                        }
+                        System.out.println("rc : " + routeCache + " MB");
+                    }
+                    if (line.hasOption(whereOption)) {
+                        String where = line.getOptionValue(whereOption);
+                        try {
+                            new WhereFilter(where);
+                        } catch (IllegalArgumentException e) {
+                            throw new ParseException(e.getMessage());
+                        }
+                        settings.setWhere(where);
+                        System.out.println("where: " + where);
+                    }
+                    if (line.hasOption(extractOption)) {
+                        if (line.hasOption(xslOption)) {
+                            throw new ParseException("-extract replaces -xsl, use one of them");
+                        }
+                        String extract = line.getOptionValue(extractOption);
+                        settings.setExtract(extract);
+                        System.out.println("extract: " + extract);
+                    }
+                    if (line.hasOption(extractFormatOption)) {
+                        String extractFormat = line.getOptionValue(extractFormatOption);
+                        try {
+                            settings.setExtractFormat(TableWriter.Format.parse(extractFormat));
+                        } catch (IllegalArgumentException e) {
+                            throw new ParseException(e.getMessage());
+                        }
+                        System.out.println("ef : " + settings.getExtractFormat().name().toLowerCase());
                     }
                     if (line.hasOption(outOption)) {
-                        out = line.getOptionValue(outOption);
+                        String out = line.getOptionValue(outOption);
+                        settings.setOut(out);
                         System.out.println("out: " + out);
                     }
+                    if (line.hasOption(documentCacheOption)) {
+                        String documentCache = line.getOptionValue(documentCacheOption);
+                        settings.setDocumentCacheSize(Long.parseLong(documentCache) * 1024 * 1024);
+                        System.out.println("dc : " + documentCache + " MB");
+                    }
+                    if (line.hasOption(validateOption)) {
+                        String validate = line.getOptionValue(validateOption);
+                        settings.setValidate(validate);
+                        System.out.println("val: " + validate);
+                    }
+                    if (line.hasOption(failureManifestOption)) {
+                        String failureManifest = line.getOptionValue(failureManifestOption);
+                        settings.setFailureManifest(failureManifest);
+                        System.out.println("fm : " + failureManifest);
+                    }
+                    if (line.hasOption(shardOption)) {
+                        Shard shard;
+                        try {
+                            shard = Shard.parse(line.getOptionValue(shardOption));
+                        } catch (IllegalArgumentException e) {
+                            throw new ParseException(e.getMessage());
+                        }
+                        settings.setShard(shard);
+                        System.out.println("shard: " + shard);
+                    }
+                    if (line.hasOption(workDirOption)) {
+                        String workDir = line.getOptionValue(workDirOption);
+                        settings.setWorkDir(workDir);
+                        System.out.println("wd : " + workDir);
+                    }
+                    if (line.hasOption(workerOption)) {
+                        String worker = line.getOptionValue(workerOption);
+                        if (!WorkClaims.isValidName(worker)) {
+                            throw new ParseException("worker name may only have letters, digits, dots, dashes and underscores");
+                        }
+                        settings.setWorker(worker);
+                        System.out.println("worker: " + worker);
+                    }
+                    if (line.hasOption(threadsOption)) {
+                        int threads = Integer.parseInt(line.getOptionValue(threadsOption));
+                        if (threads < 1) {
+                            throw new ParseException("threads must be at least 1");
+                        }
+                        settings.setThreads(threads);
+                        System.out.println("t  : " + threads);
+                    }
+                    if (line.hasOption(documentModelOption)) {
+                        FileProcessor.DocumentModel documentModel = FileProcessor.DocumentModel
+                                .parse(line.getOptionValue(documentModelOption));
+                        settings.setDocumentModel(documentModel);
+                        System.out.println("model: " + documentModel.toString().toLowerCase());
+                    }
+                    if (line.hasOption(scheduleOption)) {
+                        Scheduler.Order schedule = Scheduler.Order.parse(line.getOptionValue(scheduleOption));
+                        settings.setSchedule(schedule);
+                        System.out.println("sched: " + schedule.toString().toLowerCase());
+                    }
+                    if (line.hasOption(memoryBudgetOption)) {
+                        double memoryBudget = Double.parseDouble(line.getOptionValue(memoryBudgetOption));
+                        if (memoryBudget < 0 || memoryBudget > 1) {
+                            throw new ParseException("memory budget must be between 0 and 1");
+                        }
+                        settings.setMemoryBudget(memoryBudget);
+                        System.out.println("mem: " + memoryBudget);
+                    }
+                    if (line.hasOption(streamingThresholdOption)) {
+                        String streamingThreshold = line.getOptionValue(streamingThresholdOption);
+                        if ("auto".equalsIgnoreCase(streamingThreshold)) {
+                            settings.setStreamingThreshold(-1);
+                        } else {
+                            settings.setStreamingThreshold(Long.parseLong(streamingThreshold) * 1024 * 1024);
+                        }
+                        System.out.println("st : " + streamingThreshold);
+                    }
+                    if (line.hasOption(durabilityOption)) {
+                        String durability = line.getOptionValue(durabilityOption);
+                        int colon = durability.indexOf(':');
+                        settings.setDurability(OutputWriter.Durability.parse(colon < 0 ? durability
+                                : durability.substring(0, colon)));
+                        if (colon >= 0) {
+                            settings.setGroupSize(Integer.parseInt(durability.substring(colon + 1).trim()));
+                        }
+                        System.out.println("dur: " + durability);
+                    }
+                    if (line.hasOption(layoutOption)) {
+                        String layout = line.getOptionValue(layoutOption);
+                        settings.setOutputLayout(OutputLayout.parse(layout));
+                        System.out.println("layout: " + layout);
+                    }
+                    if (line.hasOption(packedOutputOption)) {
+                        String segmentSize = line.getOptionValue(packedOutputOption);
+                        settings.setPackedSegmentSize(segmentSize == null ? PackedOutput.DEFAULT_SEGMENT_SIZE
+                                : Long.parseLong(segmentSize.trim()) * 1024 * 1024);
+                        if (settings.getPackedSegmentSize() < 1) {
+                            throw new ParseException("segment size must be at least 1 MB");
+                        }
+                        System.out.println("pack: " + settings.getPackedSegmentSize() / (1024 * 1024) + " MB");
+                    }
+                    if (line.hasOption(deduplicateOption)) {
+                        if (line.hasOption(reduceOption) || line.hasOption(routeOption)) {
+                            throw new ParseException("-dedup doesn't apply to -reduce or -route, use one of them");
+                        }
+                        settings.setDeduplicate(true);
+                        System.out.println("deduplicate");
+                    }
+                    if (line.hasOption(reduceOption)) {
+                        String reduce = line.getOptionValue(reduceOption);
+                        settings.setReduce(reduce);
+                        System.out.println("reduce: " + reduce);
+                    }
+                    if (line.hasOption(aggregateOption)) {
+                        if (line.hasOption(reduceOption) || line.hasOption(routeOption)) {
+                            throw new ParseException("-agg doesn't apply to -reduce or -route, use one of them");
+                        }
+                        String batchSize = line.getOptionValue(aggregateOption);
+                        settings.setAggregateBatchSize(batchSize == null ? CollectionReader.DEFAULT_BATCH_SIZE
+                                : Integer.parseInt(batchSize.trim()));
+                        if (settings.getAggregateBatchSize() < 1) {
+                            throw new ParseException("batch size must be at least 1");
+                        }
+                        System.out.println("agg: " + settings.getAggregateBatchSize() + " files");
+                    }
+                    if (line.hasOption(multiOutputOption)) {
+                        String threads = line.getOptionValue(multiOutputOption);
+                        settings.setMultiOutputThreads(threads == null ? AsyncOutputWriter.DEFAULT_THREADS
+                                : Integer.parseInt(threads.trim()));
+                        if (settings.getMultiOutputThreads() < 1) {
+                            throw new ParseException("number of writer threads must be at least 1");
+                        }
+                        System.out.println("mo : " + settings.getMultiOutputThreads() + " writer threads");
+                    }
+                    if (line.hasOption(eventCacheOption)) {
+                        String eventCache = line.getOptionValue(eventCacheOption);
+                        settings.setEventCache(eventCache);
+                        System.out.println("ec : " + eventCache);
+                    }
+                    if (line.hasOption(skipUnchangedOption)) {
+                        settings.setSkipUnchanged(true);
+                        System.out.println("skip unchanged");
+                    }
+                    if (line.hasOption(catalogOption)) {
+                        String[] catalog = line.getOptionValues(catalogOption);
+                        settings.setCatalog(catalog);
+                        for (String catalogFile : catalog) {
+                            System.out.println("cat: " + catalogFile);
+                        }
+                    }
                 }
-                if (in == null || xsl == null || out == null) {
+                boolean validateOnly = settings.getValidate() != null && settings.getXsl() == null
+                        && settings.getExtract() == null;
+                if (settings.getIn() == null && !settings.isRetryFailed() || !validateOnly
+                        && (settings.getXsl() == null && settings.getExtract() == null || settings.getOut() == null)) {
                     showHelp(options);
                 } else {
-                    transform(in, xsl, out);
+                    transform(settings);
                 }
             } catch (ParseException exp) {
                 // oops, something went wrong
@@ -115,67 +462,528 @@ public class App {
         return msg.toString();
     }
 
-    static void transform(String[] in, String xsl, String out) throws Exception {
+    static void transform(Settings settings) throws Exception {
+        long start = System.currentTimeMillis();
+        String[] in = settings.getIn();
+        String[] xsl = settings.getXsl();
+        String out = settings.getOut();
+
+        // Without stylesheets or columns the input files are only validated
+        File outDirectory = null;
+        File[] xslFiles = null;
+        if (xsl != null || settings.getExtract() != null) {
+
+            // Check output directory and create one if it doesn't exist
+            System.out.println("Checking: " + out);
+            outDirectory = new File(out);
+            if (outDirectory.exists()) {
+                if (outDirectory.isFile()) {
+                    System.out.println("out directory is a file");
+                    return;
+                }
+            } else {
+                if (!outDirectory.mkdirs()) {
+                    System.out.println("Couldn't create out directory");
+                    return;
+                }
+            }
+        }
+        if (xsl != null) {
+
+            // Check the stylesheets
+            xslFiles = new File[xsl.length];
+            for (int i = 0; i < xsl.length; i++) {
+                System.out.println("Checking: " + xsl[i]);
+                xslFiles[i] = new File(xsl[i]);
+                if (!xslFiles[i].exists()) {
+                    System.out.println("xsl doesn't exist");
+                    return;
+                }
+                if (xslFiles[i].isDirectory()) {
+                    System.out.println("xsl is a directory");
+                    return;
+                }
+            }
+        }
+
+        // Resolve the external DTDs and entities through the catalogs
+        EntityCatalog entityCatalog = null;
+        if (settings.getCatalog() != null) {
+            File[] catalogFiles = new File[settings.getCatalog().length];
+            for (int i = 0; i < catalogFiles.length; i++) {
+                System.out.println("Checking: " + settings.getCatalog()[i]);
+                catalogFiles[i] = new File(settings.getCatalog()[i]);
+                if (!catalogFiles[i].isFile()) {
+                    System.out.println("catalog doesn't exist");
+                    return;
+                }
+            }
+            entityCatalog = new EntityCatalog(catalogFiles);
+            DOMBuilder.setEntityResolver(entityCatalog);
+        }
 
-        // Check output directory and create one if it doesn't exist
-        System.out.println("Checking: " + out);
-        File outDirectory = new File(out);
-        if (outDirectory.exists()) {
-            if (outDirectory.isFile()) {
-                System.out.println("out directory is a file");
+        // Compile the schema once and validate all input files while parsing
+        boolean validate = false;
+        if (settings.getValidate() != null) {
+            System.out.println("Checking: " + settings.getValidate());
+            File schemaFile = new File(settings.getValidate());
+            if (!schemaFile.isFile()) {
+                System.out.println("schema doesn't exist");
                 return;
             }
-        } else {
-            if (!outDirectory.mkdirs()) {
-                System.out.println("Couldn't create out directory");
+            DOMBuilder.setSchema(DOMBuilder.compileSchema(schemaFile));
+            validate = true;
+        }
+
+        // Create translets from the stylesheets, chained if more than one
+        Stylesheet stylesheet = null;
+        Parameters parameters = new Parameters(); // Future expansion
+        DocumentCache documentCache = null;
+        Stylesheet reducer = null;
+        StylesheetRegistry registry = null;
+        Router router = null;
+        if (xslFiles != null) {
+            // With -mo the redirect extension elements become secondary results
+            boolean splitResults = settings.getMultiOutputThreads() > 0;
+            stylesheet = new Stylesheet(xslFiles, splitResults);
+            if (settings.getReduce() != null) {
+                System.out.println("Checking: " + settings.getReduce());
+                File reduceFile = new File(settings.getReduce());
+                if (!reduceFile.isFile()) {
+                    System.out.println("reduce stylesheet doesn't exist");
+                    return;
+                }
+                if (settings.isResume()) {
+                    System.out.println("a reduced run can't be resumed, its partial results are gone");
+                    return;
+                }
+                reducer = new Stylesheet(reduceFile);
+            }
+
+            // Share the parsed document() lookup files between all transformations
+            if (settings.getDocumentCacheSize() > 0) {
+                documentCache = new DocumentCache(settings.getDocumentCacheSize());
+                stylesheet.setURIResolver(documentCache);
+                if (reducer != null) {
+                    reducer.setURIResolver(documentCache);
+                }
+            }
+
+            // Choose the stylesheet of each input file, compiled once when first needed
+            if (settings.getRoute() != null) {
+                System.out.println("Checking: " + settings.getRoute());
+                File routeFile = new File(settings.getRoute());
+                if (!routeFile.isFile()) {
+                    System.out.println("routing table doesn't exist");
+                    return;
+                }
+                registry = new StylesheetRegistry(settings.getRouteCacheSize(), documentCache);
+                registry.setSplitResults(splitResults);
+                router = new Router(routeFile, registry);
+            }
+        }
+
+        // Compile the expressions pulling the values out of the input files instead of a stylesheet
+        Extractor extractor = null;
+        if (settings.getExtract() != null) {
+            System.out.println("Checking: " + settings.getExtract());
+            File extractFile = new File(settings.getExtract());
+            if (!extractFile.isFile()) {
+                System.out.println("extract column file doesn't exist");
                 return;
             }
+            if (settings.isResume()) {
+                System.out.println("an extracting run can't be resumed, its table is written anew");
+                return;
+            }
+            extractor = new Extractor(extractFile);
         }
 
-        // Check the stylesheet
-        System.out.println("Checking: " + xsl);
-        File xslFile = new File(xsl);
-        if (xslFile.exists()) {
-            if (xslFile.isDirectory()) {
-                System.out.println("xsl is a directory");
+        // Find the input files, or take the failed ones of the previous run
+        File manifestFile = settings.getFailureManifest() != null ? new File(settings.getFailureManifest())
+                : getRunFile(settings, FailureManifest.FILE_NAME);
+        List<File> inFiles;
+        if (settings.isRetryFailed()) {
+            System.out.println("Retrying failures of: " + manifestFile.getAbsolutePath());
+            if (!manifestFile.isFile()) {
+                System.out.println("No failure manifest, nothing to retry");
                 return;
             }
+            inFiles = FailureManifest.read(manifestFile);
+        } else {
+            inFiles = findInputFiles(in);
+        }
+        RunSummary summary = new RunSummary();
+        summary.add(RunSummary.MATCHED, inFiles.size());
 
-            // Create translet from the stylesheet
-            Stylesheet stylesheet = new Stylesheet(xslFile);
-            Parameters parameters = new Parameters(); // Future expansion
+        // Only keep the slice of this node if the input files are sharded
+        if (settings.getShard() != null) {
+            summary.setShard(settings.getShard().toString());
+            inFiles = settings.getShard().select(inFiles, FileUtils.current());
+            System.out.println("Shard " + settings.getShard() + ": " + inFiles.size() + " files");
+        }
 
-            // Find the input files
-            WildcardFileFilter.Builder wildcardBuilder = WildcardFileFilter.builder();
-            wildcardBuilder.setIoCase(IOCase.SYSTEM);
-            System.out.println("Processing input files...");
-            for (String inPathString : in) {
-                System.out.println("In: " + inPathString);
-                File inPath = new File(FileUtils.current(), inPathString);
-                File inDirectory = inPath.getParentFile();
-                if (inDirectory != null) {
+        // Skip the files completed by the run being resumed
+        File journalFile = getRunFile(settings, ProgressJournal.FILE_NAME);
+        if (settings.isResume()) {
+            System.out.println("Resuming: " + journalFile.getAbsolutePath());
+            Map<String, Character> completed = ProgressJournal.read(journalFile);
+            List<File> remaining = new ArrayList<>();
+            for (File inFile : inFiles) {
+                if (!completed.containsKey(inFile.getAbsolutePath())) {
+                    remaining.add(inFile);
+                }
+            }
+            summary.add(RunSummary.SKIPPED, inFiles.size() - remaining.size());
+            inFiles = remaining;
+        }
 
-                    // Process the wildcard matches if used
-                    FileFilter fileFilter = wildcardBuilder.setWildcards(inPath.getName()).get();
-                    File[] inFiles = inDirectory.listFiles(fileFilter);
-                    for (File inFile : inFiles) {
-                        if (inFile.isFile()) {
+        // Start the longest jobs first, so the threads and workers finish at about the same time
+        boolean keepRunFiles = isKeepingRunFiles(settings);
+        File historyFile = getRunFile(settings, DurationHistory.FILE_NAME);
+        DurationHistory history = keepRunFiles ? DurationHistory.read(historyFile) : new DurationHistory();
+        inFiles = Scheduler.order(inFiles, settings.getSchedule(), history);
+        if (settings.getWorkDir() != null) {
+            System.out.println("Worker: " + settings.getWorker() + " (" + WorkClaims.getWorkerId() + ")");
+        }
+
+        // Finish the files in flight and sync the journal on SIGTERM
+        ShutdownHandler shutdownHandler = new ShutdownHandler();
+        shutdownHandler.install();
+        try {
+
+            // Process the input files, a failing file doesn't stop the run
+            System.out.println("Processing input files with " + settings.getThreads() + " thread(s)...");
+            FileProcessor processor = new FileProcessor(stylesheet, parameters, outDirectory, validate, summary);
+            processor.setHistory(history);
+            processor.setDocumentModel(settings.getDocumentModel());
+
+            // Transform large files from a stream, at the size measured to be faster if asked for
+            if (stylesheet != null) {
+                long streamingThreshold = settings.getStreamingThreshold();
+                if (streamingThreshold < 0) {
+                    System.out.println("Calibrating the streaming threshold...");
+                    streamingThreshold = StreamingThreshold.calibrate(inFiles, stylesheet, parameters);
+                }
+                System.out.println("Streaming threshold: " + streamingThreshold / 1024 + " KB");
+                processor.setStreamingThreshold(streamingThreshold);
+            }
+
+            // Map the input files to partial results merged into one result
+            MapReduce mapReduce = null;
+            if (reducer != null) {
+                mapReduce = new MapReduce(reducer, parameters, MapReduce.DEFAULT_FAN_IN);
+                processor.setMapReduce(mapReduce);
+            }
+
+            // Route the input files to their stylesheets, -xsl for the files no rule matches
+            processor.setRouter(router);
+
+            // Skip the input files the prefilter doesn't match before parsing them
+            if (settings.getWhere() != null) {
+                processor.setWhere(new WhereFilter(settings.getWhere()));
+            }
 
-                            // Parse the input file
-                            Document document = DOMBuilder.parseDocumentAtPath(inFile);
+            // Transform identical input files once, a reduction needs the partial result of every file
+            // and a routing rule may match the file name
+            Deduplicator deduplicator = null;
+            if (settings.isDeduplicate() && stylesheet != null) {
+                deduplicator = new Deduplicator(xslFiles, parameters);
+                processor.setDeduplicator(deduplicator);
+            }
+
+            // Replay the parser events of the input files parsed in earlier runs
+            EventCache eventCache = null;
+            if (settings.getEventCache() != null && (stylesheet != null || extractor != null)) {
+                eventCache = new EventCache(new File(settings.getEventCache()));
+                processor.setEventCache(eventCache);
+            }
 
-                            // Set the transformed output file
-                            File outFile = new File(outDirectory, inFile.getName());
-                            System.out.println("Transforming to: " + outFile.getAbsolutePath());
-                            try (OutputStream outputXML = new FileOutputStream(outFile)) {
+            // Delay the documents that don't fit in the heap next to the ones in flight
+            MemoryBudget memoryBudget = null;
+            if (settings.getMemoryBudget() > 0) {
+                memoryBudget = MemoryBudget.ofMaxMemory(settings.getMemoryBudget());
+                processor.setMemoryBudget(memoryBudget);
+            }
+            ExecutorService executor = Executors.newFixedThreadPool(settings.getThreads());
+            // The claims are opened first, which fails if another running worker has the same name
+            try (WorkClaims claims = settings.getWorkDir() != null
+                    ? new WorkClaims(new File(settings.getWorkDir()), FileUtils.current(), settings.getWorker(),
+                            WorkClaims.DEFAULT_LEASE)
+                    : null;
+                    FailureManifest failureManifest = new FailureManifest(manifestFile, settings.isResume());
+                    ProgressJournal journal = new ProgressJournal(journalFile, settings.isResume());
+                    OutputIndex outputIndex = !settings.getOutputLayout().isFlat() && outDirectory != null
+                            && settings.getPackedSegmentSize() == 0
+                            ? new OutputIndex(getRunFile(settings, OutputIndex.FILE_NAME), settings.isResume())
+                            : null;
+                    PackedOutput packedOutput = settings.getPackedSegmentSize() > 0 && stylesheet != null
+                            ? new PackedOutput(getRunFile(settings, PackedOutput.FILE_NAME),
+                                    settings.getPackedSegmentSize(), settings.isResume())
+                            : null;
+                    // Closed first, so the last output files are synced before the journal
+                    OutputWriter outputWriter = new OutputWriter(settings.getDurability(), settings.getGroupSize());
+                    // Closed before the output writer, so the queued secondary results are written first
+                    AsyncOutputWriter resultWriter = settings.getMultiOutputThreads() > 0 && stylesheet != null
+                            && outDirectory != null
+                            ? new AsyncOutputWriter(outputWriter, settings.getMultiOutputThreads(),
+                                    AsyncOutputWriter.DEFAULT_MAX_PENDING)
+                            : null;
+                    Output tableOutput = extractor != null
+                            ? outputWriter.create(getRunFile(settings,
+                                    Extractor.FILE_NAME + settings.getExtractFormat().getExtension()))
+                            : null) {
+                outputWriter.setSkipUnchanged(settings.isSkipUnchanged());
+                if (settings.getDurability() == OutputWriter.Durability.GROUP) {
+                    journal.setOutputWriter(outputWriter);
+                }
+                processor.setOutputWriter(outputWriter);
+                processor.setResultWriter(resultWriter);
 
-                                // Transform the input document
-                                stylesheet.transformNodeToStream(document, parameters, outputXML, null);
+                // One row per input file in a table with the file path as the first column
+                TableWriter table = null;
+                if (extractor != null) {
+                    String[] header = new String[extractor.getNames().length + 1];
+                    header[0] = "file";
+                    System.arraycopy(extractor.getNames(), 0, header, 1, header.length - 1);
+                    table = new TableWriter(tableOutput, settings.getExtractFormat(), header);
+                    processor.setExtractor(extractor, table);
+                }
+                processor.setOutputLayout(settings.getOutputLayout());
+                processor.setOutputIndex(outputIndex);
+                processor.setPackedOutput(packedOutput);
+                if (packedOutput != null) {
+                    packedOutput.setAliasing(deduplicator != null);
+                }
+                processor.setFailureManifest(failureManifest);
+                processor.setJournal(journal);
+                processor.setClaims(claims);
+                if (claims != null) {
+                    claims.setRetryFailed(settings.isRetryFailed());
+                }
+
+                // Batches of input files transformed as one collection each, in the order of the schedule
+                int batchSize = settings.getAggregateBatchSize();
+                if (batchSize > 0 && stylesheet != null) {
+                    for (int first = 0; first < inFiles.size(); first += batchSize) {
+                        List<File> batch = inFiles.subList(first, Math.min(first + batchSize, inFiles.size()));
+                        executor.execute(() -> {
+                            if (!shutdownHandler.isStopRequested()) {
+                                try {
+                                    processor.processCollection(batch);
+                                } catch (Exception e) {
+                                    System.err.println("Error: batch of " + batch.get(0).getAbsolutePath() + " "
+                                            + getExceptionMessage(e));
+                                }
                             }
+                        });
+                    }
+                } else {
+
+                    // The queue of the pool keeps the order of the schedule
+                    for (File inFile : inFiles) {
+                        executor.execute(() -> {
+                            if (!shutdownHandler.isStopRequested()) {
+                                try {
+                                    processor.process(inFile);
+                                } catch (Exception e) {
+                                    System.err.println("Error: " + inFile.getAbsolutePath() + " " + getExceptionMessage(e));
+                                }
+                            }
+                        });
+                    }
+                }
+                executor.shutdown();
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+                // The writers record the input files whose secondary results they complete
+                if (resultWriter != null) {
+                    resultWriter.awaitWritten();
+                    System.out.println("Secondary results written: " + resultWriter.getWritten() + " failed: "
+                            + resultWriter.getFailed());
+                }
+                if (shutdownHandler.isStopRequested()) {
+                    System.out.println(mapReduce != null ? "Stopped, a reduced run can't be resumed, start it again"
+                            : "Stopped, continue the run with -resume");
+                }
+
+                // Merge the last partial results into the one result of the run
+                if (mapReduce != null && !shutdownHandler.isStopRequested()) {
+                    // Each shard and worker has its own result, since they may share the output folder
+                    File resultFile = getRunFile(settings, MapReduce.FILE_NAME);
+                    try (Output output = outputWriter.create(resultFile)) {
+                        if (mapReduce.finish(output)) {
+                            output.commit();
+                            System.out.println("Reduced: " + mapReduce.getReduced() + " partial results in "
+                                    + mapReduce.getReductions() + " reductions, result: " + resultFile.getAbsolutePath());
+                        } else {
+                            System.out.println("Nothing to reduce");
+                        }
+                    } catch (Exception e) {
+                        System.err.println("Failed: " + resultFile.getAbsolutePath() + " " + getExceptionMessage(e));
+                    }
+                }
+                if (table != null) {
+                    table.flush();
+                    tableOutput.commit();
+                    System.out.println("Extracted: " + table.getRows() + " rows to " + getRunFile(settings,
+                            Extractor.FILE_NAME + settings.getExtractFormat().getExtension()).getAbsolutePath());
+                }
+                if (failureManifest.getCount() > 0) {
+                    System.out.println("Failure manifest: " + manifestFile.getAbsolutePath());
+                }
+                outputWriter.syncRemaining();
+                if (settings.getDurability() != OutputWriter.Durability.NONE) {
+                    System.out.println("Output files synced: " + outputWriter.getSynced());
+                }
+                if (packedOutput != null) {
+                    System.out.println("Outputs packed: " + packedOutput.getCount() + " index: "
+                            + getRunFile(settings, PackedOutput.FILE_NAME).getAbsolutePath());
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+            if (keepRunFiles) {
+                history.write(historyFile);
+            }
+
+            // Report the run, the summaries of the shards can be merged afterwards
+            summary.add(RunSummary.ELAPSED, System.currentTimeMillis() - start);
+            summary.print(System.out);
+            if (keepRunFiles) {
+                File summaryFile = getRunFile(settings, RunSummary.FILE_NAME);
+                summary.write(summaryFile);
+                System.out.println("Summary: " + summaryFile.getAbsolutePath());
+            }
+            if (documentCache != null) {
+                System.out.println("Document cache hits: " + documentCache.getHits() + " misses: "
+                        + documentCache.getMisses());
+            }
+            if (registry != null) {
+                System.out.println("Routed stylesheets compiled: " + registry.getCompilations() + " hits: "
+                        + registry.getHits() + " evicted: " + registry.getEvictions());
+            }
+            if (eventCache != null) {
+                System.out.println("Event cache hits: " + eventCache.getHits() + " misses: "
+                        + eventCache.getMisses());
+            }
+            if (memoryBudget != null) {
+                System.out.println("Memory budget: " + memoryBudget.getBudget() / (1024 * 1024) + " MB peak: "
+                        + memoryBudget.getPeak() / (1024 * 1024) + " MB delayed files: " + memoryBudget.getDelayed()
+                        + " inflation: " + String.format("%.1f", memoryBudget.getInflation()));
+            }
+            if (deduplicator != null) {
+                System.out.println("Distinct inputs: " + deduplicator.size() + " duplicates: "
+                        + summary.get(RunSummary.DEDUPLICATED) + " saved: "
+                        + summary.get(RunSummary.DEDUPLICATED_BYTES) / 1024 + " KB parsed, about "
+                        + summary.get(RunSummary.DEDUPLICATED_SAVED) / 1000 + " s transforming");
+            }
+            if (entityCatalog != null) {
+                System.out.println("Entities loaded: " + entityCatalog.getLoadedCount() + " remote entities ignored: "
+                        + entityCatalog.getRefusedCount());
+            }
+        } finally {
+
+            // Only now may a stopping JVM exit, the durations and the summary are complete
+            shutdownHandler.drained();
+        }
+    }
+
+    /**
+     * Tells whether the durations history and the run summary are kept. They are
+     * written to the output folder; without one only if the run asks for them,
+     * so a one-off run doesn't leave files in the current folder.
+     */
+    static boolean isKeepingRunFiles(Settings settings) {
+        return settings.getOut() != null || settings.getSchedule() == Scheduler.Order.HISTORY
+                || settings.getShard() != null || settings.getWorkDir() != null;
+    }
+
+    /**
+     * Gets the location of a file kept for the run, such as the failure manifest.
+     * By default it is placed in the output folder, or in the current folder if
+     * there is no output folder.
+     */
+    static File getRunFile(Settings settings, String name) {
+
+        // Each shard has its own files, since shards may share the output folder
+        Shard shard = settings.getShard();
+        if (shard != null) {
+            int dot = name.lastIndexOf('.');
+            name = name.substring(0, dot) + "-" + shard.getIndex() + "-of-" + shard.getCount() + name.substring(dot);
+        }
+
+        // Likewise each worker sharing a work folder, by a name that survives a restart
+        if (settings.getWorkDir() != null) {
+            int dot = name.lastIndexOf('.');
+            name = name.substring(0, dot) + "-" + settings.getWorker() + name.substring(dot);
+        }
+        if (settings.getOut() != null) {
+            return new File(settings.getOut(), name);
+        }
+        return new File(name);
+    }
+
+    /**
+     * Merges the run summaries of the shards into one report, which is written to
+     * the output folder if one is given.
+     */
+    static void mergeSummaries(String[] summaries, String out) throws Exception {
+        RunSummary merged = new RunSummary();
+        for (File summaryFile : findInputFiles(summaries)) {
+            merged.merge(RunSummary.read(summaryFile));
+        }
+        merged.print(System.out);
+        if (out != null) {
+            File summaryFile = new File(out, RunSummary.FILE_NAME);
+            merged.write(summaryFile);
+            System.out.println("Summary: " + summaryFile.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Unpacks the outputs of a packed index into separate files in the output
+     * folder.
+     */
+    static void unpack(String index, String out, OutputLayout layout) throws Exception {
+        try (PackedReader reader = new PackedReader(new File(index));
+                OutputWriter outputWriter = new OutputWriter(OutputWriter.Durability.NONE,
+                        OutputWriter.DEFAULT_GROUP_SIZE)) {
+            File outDirectory = new File(out);
+            if (!outDirectory.isDirectory() && !outDirectory.mkdirs()) {
+                throw new IOException("Couldn't create output folder: " + outDirectory.getAbsolutePath());
+            }
+            System.out.println("Unpacked: " + reader.export(outDirectory, layout, outputWriter) + " files to "
+                    + outDirectory.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Finds the input files matching the input file names, which may contain
+     * wildcards in the file name part.
+     */
+    static List<File> findInputFiles(String[] in) {
+        List<File> files = new ArrayList<>();
+        WildcardFileFilter.Builder wildcardBuilder = WildcardFileFilter.builder();
+        wildcardBuilder.setIoCase(IOCase.SYSTEM);
+        for (String inPathString : in) {
+            System.out.println("In: " + inPathString);
+            File inPath = new File(FileUtils.current(), inPathString);
+            File inDirectory = inPath.getParentFile();
+            if (inDirectory != null) {
+
+                // Process the wildcard matches if used
+                FileFilter fileFilter = wildcardBuilder.setWildcards(inPath.getName()).get();
+                File[] inFiles = inDirectory.listFiles(fileFilter);
+                if (inFiles != null) {
+                    for (File inFile : inFiles) {
+                        if (inFile.isFile()) {
+                            files.add(inFile);
                         }
                     }
                 }
             }
         }
+        return files;
     }
 }
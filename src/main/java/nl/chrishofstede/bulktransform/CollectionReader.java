@@ -0,0 +1,397 @@
+package nl.chrishofstede.bulktransform;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.transform.sax.SAXSource;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.DTDHandler;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXNotRecognizedException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.LocatorImpl;
+
+import nl.chrishofstede.bulktransform.compact.CompactBuilder;
+import nl.chrishofstede.bulktransform.compact.EventStreamReader;
+import nl.chrishofstede.bulktransform.utils.SAXErrorLogger;
+
+/**
+ * Reads a batch of input files as one synthetic document, a
+ * <code>&lt;collection&gt;</code> element with the document elements of the
+ * input files as its children, so they can be transformed together. The input
+ * files are concatenated as SAX events; no tree is built or copied on the way.
+ *
+ * <p>
+ * Each input file is parsed into an event stream in memory before its events
+ * are passed on, or replayed from the event cache, so a malformed or invalid
+ * input file is left out of the collection instead of breaking it. The input
+ * files left out are available after parsing. A collection can also be made
+ * of event streams recorded before, such as partial results.
+ * </p>
+ */
+public class CollectionReader implements XMLReader {
+
+	/** Name of the document element of a collection. */
+	public static final String ROOT = "collection";
+
+	/** Default number of input files in a collection. */
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+
+	/** Feature of the namespace processing, always on. */
+	private static final String NAMESPACES = "http://xml.org/sax/features/namespaces";
+
+	/** Feature of the namespace declarations reported as attributes. */
+	private static final String NAMESPACE_PREFIXES = "http://xml.org/sax/features/namespace-prefixes";
+
+	/** Input files of the collection, null if it is made of event streams. */
+	private final List<File> inFiles;
+
+	/** Event streams of the collection, null if it is made of input files. */
+	private final List<byte[]> eventStreams;
+
+	/** Validate the input files while parsing. */
+	private final boolean validate;
+
+	/** Cache of the parser events, null if the input files are parsed. */
+	private final EventCache eventCache;
+
+	/** Receiver of the content. */
+	private ContentHandler contentHandler = null;
+
+	/** Receiver of the comments, may be null. */
+	private LexicalHandler lexicalHandler = null;
+
+	/** Receiver of the DTD events, which never occur. */
+	private DTDHandler dtdHandler = null;
+
+	/** Resolver of the entities, which are resolved by the parser of each file. */
+	private EntityResolver entityResolver = null;
+
+	/** Receiver of the errors, which are collected per input file instead. */
+	private ErrorHandler errorHandler = null;
+
+	/** Report the namespace declarations as attributes too. */
+	private boolean namespacePrefixes = false;
+
+	/** Malformed input files, with their error. */
+	private final Map<File, String> failed = new LinkedHashMap<File, String>();
+
+	/** Invalid input files, with their first validation error. */
+	private final Map<File, String> invalid = new LinkedHashMap<File, String>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param inFiles
+	 *                   Input files of the collection, in order.
+	 * @param validate
+	 *                   True to validate the input files while parsing.
+	 * @param eventCache
+	 *                   Cache of the parser events, used when the input files
+	 *                   aren't validated, or null.
+	 */
+	public CollectionReader(List<File> inFiles, boolean validate, EventCache eventCache) {
+		this.inFiles = inFiles;
+		this.eventStreams = null;
+		this.validate = validate;
+		this.eventCache = validate ? null : eventCache;
+	}
+
+	/**
+	 * Constructor of a collection of event streams.
+	 */
+	private CollectionReader(List<byte[]> eventStreams) {
+		this.inFiles = null;
+		this.eventStreams = eventStreams;
+		this.validate = false;
+		this.eventCache = null;
+	}
+
+	/**
+	 * Creates a collection of the documents in event streams recorded by
+	 * {@link nl.chrishofstede.bulktransform.compact.EventStreamWriter}.
+	 *
+	 * @param eventStreams
+	 *                     Event streams of the collection, in order.
+	 * @return The reader of the collection.
+	 */
+	public static CollectionReader ofEventStreams(List<byte[]> eventStreams) {
+		return new CollectionReader(eventStreams);
+	}
+
+	/**
+	 * Gets the name of the output of a collection, after its first input file.
+	 * An input file is processed once, so the name is never reused, not even by
+	 * a resumed run, another shard or another worker.
+	 *
+	 * @param first
+	 *              First input file of the collection.
+	 * @return The name, collection-a.xml for a collection starting with a.xml.
+	 */
+	public static String getName(File first) {
+		final String name = first.getName();
+		final int dot = name.lastIndexOf('.');
+		return ROOT + "-" + (dot > 0 ? name.substring(0, dot) : name) + ".xml";
+	}
+
+	/**
+	 * Gets the input files left out because they couldn't be parsed.
+	 *
+	 * @return Error messages by input file.
+	 */
+	public Map<File, String> getFailed() {
+		return failed;
+	}
+
+	/**
+	 * Gets the input files left out because they are invalid.
+	 *
+	 * @return First validation errors by input file.
+	 */
+	public Map<File, String> getInvalid() {
+		return invalid;
+	}
+
+	@Override
+	public boolean getFeature(String name) throws SAXNotRecognizedException {
+		if (NAMESPACES.equals(name)) {
+			return true;
+		}
+		if (NAMESPACE_PREFIXES.equals(name)) {
+			return namespacePrefixes;
+		}
+		throw new SAXNotRecognizedException(name);
+	}
+
+	@Override
+	public void setFeature(String name, boolean value) throws SAXNotRecognizedException {
+		if (NAMESPACE_PREFIXES.equals(name)) {
+			namespacePrefixes = value;
+		} else if (!NAMESPACES.equals(name) || !value) {
+			throw new SAXNotRecognizedException(name);
+		}
+	}
+
+	@Override
+	public Object getProperty(String name) throws SAXNotRecognizedException {
+		if (CompactBuilder.LEXICAL_HANDLER.equals(name)) {
+			return lexicalHandler;
+		}
+		throw new SAXNotRecognizedException(name);
+	}
+
+	@Override
+	public void setProperty(String name, Object value) throws SAXNotRecognizedException {
+		if (CompactBuilder.LEXICAL_HANDLER.equals(name)) {
+			lexicalHandler = (LexicalHandler) value;
+		} else {
+			throw new SAXNotRecognizedException(name);
+		}
+	}
+
+	@Override
+	public void setEntityResolver(EntityResolver resolver) {
+		entityResolver = resolver;
+	}
+
+	@Override
+	public EntityResolver getEntityResolver() {
+		return entityResolver;
+	}
+
+	@Override
+	public void setDTDHandler(DTDHandler handler) {
+		dtdHandler = handler;
+	}
+
+	@Override
+	public DTDHandler getDTDHandler() {
+		return dtdHandler;
+	}
+
+	@Override
+	public void setContentHandler(ContentHandler handler) {
+		contentHandler = handler;
+	}
+
+	@Override
+	public ContentHandler getContentHandler() {
+		return contentHandler;
+	}
+
+	@Override
+	public void setErrorHandler(ErrorHandler handler) {
+		errorHandler = handler;
+	}
+
+	@Override
+	public ErrorHandler getErrorHandler() {
+		return errorHandler;
+	}
+
+	@Override
+	public void parse(String systemId) throws SAXException, IOException {
+		parse(new InputSource(systemId));
+	}
+
+	/**
+	 * Reports the collection to the handlers.
+	 *
+	 * @param input
+	 *              Input source of which only the system identifier is used.
+	 * @throws SAXException
+	 *                      Signals that a handler failed.
+	 * @throws IOException
+	 *                      Signals that a cached event stream can't be read.
+	 */
+	@Override
+	public void parse(InputSource input) throws SAXException, IOException {
+		if (contentHandler == null) {
+			return;
+		}
+		final LocatorImpl locator = new LocatorImpl();
+		locator.setSystemId(input.getSystemId());
+		contentHandler.setDocumentLocator(locator);
+		contentHandler.startDocument();
+		contentHandler.startElement("", ROOT, ROOT, new AttributesImpl());
+		if (eventStreams != null) {
+			for (final byte[] eventStream : eventStreams) {
+				final InputSource member = new InputSource(input.getSystemId());
+				member.setByteStream(new ByteArrayInputStream(eventStream));
+				replay(new SAXSource(new EventStreamReader(), member));
+			}
+		} else {
+			for (final File inFile : inFiles) {
+				final SAXSource source = open(inFile);
+				if (source != null) {
+					replay(source);
+				}
+			}
+		}
+		contentHandler.endElement("", ROOT, ROOT);
+		contentHandler.endDocument();
+	}
+
+	/**
+	 * Passes the events of a member of the collection on.
+	 */
+	private void replay(SAXSource source) throws SAXException, IOException {
+		final XMLReader reader = source.getXMLReader();
+		reader.setContentHandler(new MemberHandler());
+		reader.setFeature(NAMESPACE_PREFIXES, namespacePrefixes);
+		reader.setProperty(CompactBuilder.LEXICAL_HANDLER, lexicalHandler);
+		reader.parse(source.getInputSource());
+	}
+
+	/**
+	 * Parses an input file into events, or takes them from the event cache.
+	 *
+	 * @return Source replaying the events, or null if the input file is left
+	 *         out.
+	 */
+	private SAXSource open(File inFile) {
+		try {
+			if (eventCache != null) {
+				return eventCache.newSource(inFile);
+			}
+			final StringWriter log = new StringWriter();
+			final SAXErrorLogger errorLogger = validate ? new SAXErrorLogger(log) : null;
+			final ByteArrayOutputStream events = new ByteArrayOutputStream(8192);
+			try {
+				DOMBuilder.recordEventsAtPath(inFile, events, errorLogger);
+			} catch (final SAXException e) {
+				if (errorLogger == null) {
+					throw e;
+				}
+
+				// Not well-formed, already logged by the error logger
+			}
+			if (errorLogger != null && !errorLogger.isValid()) {
+				System.out.println("Invalid: " + inFile.getAbsolutePath() + SAXErrorLogger.LF + log);
+				invalid.put(inFile, errorLogger.getFirstError());
+				return null;
+			}
+			final InputSource input = new InputSource(inFile.toURI().toString());
+			input.setByteStream(new ByteArrayInputStream(events.toByteArray()));
+			return new SAXSource(new EventStreamReader(), input);
+		} catch (final Exception e) {
+			final String message = App.getExceptionMessage(e);
+			System.err.println("Failed: " + inFile.getAbsolutePath() + " " + message);
+			failed.put(inFile, message);
+			return null;
+		}
+	}
+
+	/**
+	 * Passes the events of an input file on, except the start and the end of the
+	 * document.
+	 */
+	private class MemberHandler implements ContentHandler {
+
+		@Override
+		public void setDocumentLocator(Locator locator) {
+		}
+
+		@Override
+		public void startDocument() {
+		}
+
+		@Override
+		public void endDocument() {
+		}
+
+		@Override
+		public void startPrefixMapping(String prefix, String uri) throws SAXException {
+			contentHandler.startPrefixMapping(prefix, uri);
+		}
+
+		@Override
+		public void endPrefixMapping(String prefix) throws SAXException {
+			contentHandler.endPrefixMapping(prefix);
+		}
+
+		@Override
+		public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+			contentHandler.startElement(uri, localName, qName, atts);
+		}
+
+		@Override
+		public void endElement(String uri, String localName, String qName) throws SAXException {
+			contentHandler.endElement(uri, localName, qName);
+		}
+
+		@Override
+		public void characters(char[] ch, int start, int length) throws SAXException {
+			contentHandler.characters(ch, start, length);
+		}
+
+		@Override
+		public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+			contentHandler.ignorableWhitespace(ch, start, length);
+		}
+
+		@Override
+		public void processingInstruction(String target, String data) throws SAXException {
+			contentHandler.processingInstruction(target, data);
+		}
+
+		@Override
+		public void skippedEntity(String name) throws SAXException {
+			contentHandler.skippedEntity(name);
+		}
+	}
+}
@@ -2,6 +2,7 @@ package nl.chrishofstede.bulktransform;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
@@ -12,6 +13,12 @@ import java.util.Properties;
 import javax.xml.XMLConstants;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
 
 import org.apache.xml.serializer.Method;
 import org.apache.xml.serializer.OutputPropertiesFactory;
@@ -21,8 +28,16 @@ import org.w3c.dom.DOMConfiguration;
 import org.w3c.dom.DOMException;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.ErrorHandler;
 import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.EntityResolver2;
 
+import nl.chrishofstede.bulktransform.compact.CompactBuilder;
+import nl.chrishofstede.bulktransform.compact.CompactDocument;
+import nl.chrishofstede.bulktransform.compact.EventStreamWriter;
 import nl.chrishofstede.bulktransform.utils.DOMErrorLogger;
 
 public class DOMBuilder implements Serializable {
@@ -37,13 +52,167 @@ public class DOMBuilder implements Serializable {
 		documentBuilderFactory.setNamespaceAware(true);
 	}
 
-	private static DocumentBuilder getDocumentBuilder() throws Exception {
+	/** DOM builder factory variable for documents which are fully expanded while parsing. */
+	private static DocumentBuilderFactory expandedDocumentBuilderFactory;
+	static {
 
-		// Set up the document builder
+		// Make sure Xerces is chosen
+		expandedDocumentBuilderFactory = DocumentBuilderFactory.newInstance(
+				"org.apache.xerces.jaxp.DocumentBuilderFactoryImpl", null);
+		expandedDocumentBuilderFactory.setNamespaceAware(true);
+		try {
+
+			// Deferred nodes are expanded when they are read, which is not thread safe
+			expandedDocumentBuilderFactory.setFeature("http://apache.org/xml/features/dom/defer-node-expansion",
+					false);
+		} catch (final ParserConfigurationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/** SAX parser factory variable for documents which aren't built in a DOM. */
+	private static SAXParserFactory saxParserFactory;
+	static {
+
+		// Make sure Xerces is chosen
+		saxParserFactory = SAXParserFactory.newInstance("org.apache.xerces.jaxp.SAXParserFactoryImpl", null);
+		saxParserFactory.setNamespaceAware(true);
+	}
+
+	/** Document builders pooled per thread, since a builder isn't thread safe. */
+	private static volatile ThreadLocal<DocumentBuilder> documentBuilders = new ThreadLocal<DocumentBuilder>();
+
+	/** SAX parsers pooled per thread. */
+	private static volatile ThreadLocal<SAXParser> saxParsers = new ThreadLocal<SAXParser>();
+
+	/** Expanding document builders pooled per thread. */
+	private static final ThreadLocal<DocumentBuilder> expandedDocumentBuilders = new ThreadLocal<DocumentBuilder>();
+
+	/** Resolver of the external entities, null for the default resolution. */
+	private static volatile EntityResolver entityResolver = null;
+
+	/**
+	 * Sets the resolver of the external DTDs and entities for all documents parsed
+	 * from now on.
+	 * 
+	 * @param resolver
+	 *                 Entity resolver shared by all document builders or null to
+	 *                 use the default resolution.
+	 */
+	public final static void setEntityResolver(EntityResolver resolver) {
+		entityResolver = resolver;
+	}
+
+	/**
+	 * Sets the precompiled schema against which all documents parsed from now on
+	 * are validated while they are parsed. The schema is thread safe and shared by
+	 * all document builders and SAX parsers. Lookup documents parsed fully
+	 * expanded are not validated.
+	 * 
+	 * @param schema
+	 *               Precompiled schema or null to stop validating.
+	 */
+	public final static void setSchema(Schema schema) {
 		synchronized (documentBuilderFactory) {
-			return documentBuilderFactory.newDocumentBuilder();
+			documentBuilderFactory.setSchema(schema);
+		}
+		synchronized (saxParserFactory) {
+			saxParserFactory.setSchema(schema);
 		}
 
+		// Drop the pooled parsers created with the previous schema
+		documentBuilders = new ThreadLocal<DocumentBuilder>();
+		saxParsers = new ThreadLocal<SAXParser>();
+	}
+
+	/**
+	 * Compiles a W3C XML schema once, so it can be shared by all parsers.
+	 * 
+	 * @param schema
+	 *               XSD file.
+	 * @return The precompiled schema.
+	 * @throws Exception
+	 *                   Signals that a non user recoverable error has occurred.
+	 */
+	public final static Schema compileSchema(final File schema) throws Exception {
+		if (schema == null) {
+			throw new IllegalArgumentException("schema is null");
+		}
+
+		// Make sure Xerces is chosen, so the schema is kept in a grammar pool
+		final SchemaFactory schemaFactory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI,
+				"org.apache.xerces.jaxp.validation.XMLSchemaFactory", null);
+		return schemaFactory.newSchema(schema);
+	}
+
+	private static DocumentBuilder getDocumentBuilder() throws Exception {
+		return getPooledDocumentBuilder(documentBuilderFactory, documentBuilders);
+	}
+
+	/**
+	 * Gets the SAX parser of the current thread and resets it for the next
+	 * document.
+	 * 
+	 * @return The SAX parser set up for parsing.
+	 * @throws Exception
+	 *                   Signals that a non user recoverable error has occurred.
+	 */
+	private static SAXParser getSAXParser() throws Exception {
+		final ThreadLocal<SAXParser> pool = saxParsers;
+		SAXParser parser = pool.get();
+		if (parser == null) {
+
+			// Set up the SAX parser
+			synchronized (saxParserFactory) {
+				parser = saxParserFactory.newSAXParser();
+			}
+			pool.set(parser);
+		} else {
+
+			// Restore the parser to the state in which it was created
+			parser.reset();
+		}
+		if (entityResolver != null) {
+			parser.getXMLReader().setEntityResolver(entityResolver);
+		}
+		return parser;
+	}
+
+	private static DocumentBuilder getExpandedDocumentBuilder() throws Exception {
+		return getPooledDocumentBuilder(expandedDocumentBuilderFactory, expandedDocumentBuilders);
+	}
+
+	/**
+	 * Gets the document builder of the current thread and resets it for the next
+	 * document.
+	 * 
+	 * @param factory
+	 *                Factory of new document builders.
+	 * @param pool
+	 *                Document builders per thread.
+	 * @return The document builder set up for parsing.
+	 * @throws Exception
+	 *                   Signals that a non user recoverable error has occurred.
+	 */
+	private static DocumentBuilder getPooledDocumentBuilder(DocumentBuilderFactory factory,
+			ThreadLocal<DocumentBuilder> pool) throws Exception {
+		DocumentBuilder builder = pool.get();
+		if (builder == null) {
+
+			// Set up the document builder
+			synchronized (factory) {
+				builder = factory.newDocumentBuilder();
+			}
+			pool.set(builder);
+		} else {
+
+			// Restore the builder to the state in which it was created
+			builder.reset();
+		}
+		if (entityResolver != null) {
+			builder.setEntityResolver(entityResolver);
+		}
+		return builder;
 	}
 
 	/**
@@ -131,6 +300,219 @@ public class DOMBuilder implements Serializable {
 		return builder.parse(path);
 	}
 
+	/**
+	 * Parses an XML document and creates a <code>Document</code> interface
+	 * representation of the XML content. Errors, including validity errors
+	 * against the schema, are reported to the error handler.
+	 * 
+	 * @param path
+	 *                     Path to document to be parsed.
+	 * @param errorHandler
+	 *                     Handler receiving the warnings and errors.
+	 * @return Document interface representing the entire XML document.
+	 *         Conceptually, it is the root of the document
+	 *         tree, and provides the primary access to the document's data.
+	 * @throws Exception
+	 *                   Signals that a non user recoverable error has occurred.
+	 */
+	public final static Document parseDocumentAtPath(final File path, final ErrorHandler errorHandler)
+			throws Exception {
+
+		// Set up the document builder
+		final DocumentBuilder builder = getDocumentBuilder();
+		builder.setErrorHandler(errorHandler);
+
+		// Load the XML file in DOM
+		return builder.parse(path);
+	}
+
+	/**
+	 * Parses an XML document without building a DOM, only to validate it against
+	 * the schema. Errors are reported to the error handler.
+	 * 
+	 * @param path
+	 *                     Path to document to be validated.
+	 * @param errorHandler
+	 *                     Handler receiving the warnings and errors.
+	 * @throws Exception
+	 *                   Signals that a non user recoverable error has occurred.
+	 */
+	public final static void validateDocumentAtPath(final File path, final ErrorHandler errorHandler)
+			throws Exception {
+
+		// Set up the SAX parser
+		final XMLReader reader = getSAXParser().getXMLReader();
+		reader.setErrorHandler(errorHandler);
+
+		// Only the validation events are of interest
+		reader.setContentHandler(null);
+		reader.parse(new InputSource(path.toURI().toString()));
+	}
+
+	/**
+	 * Creates a SAX source which parses an XML document while it is read, so no
+	 * DOM is built. The parser of the current thread is used, so the source must
+	 * be read before the next document is parsed on this thread. Validation
+	 * errors are reported to the error handler.
+	 * 
+	 * @param path
+	 *                     Path to document to be parsed.
+	 * @param errorHandler
+	 *                     Handler receiving the warnings and errors, may be null.
+	 * @return Source reading the document.
+	 * @throws Exception
+	 *                   Signals that a non user recoverable error has occurred.
+	 */
+	public final static SAXSource newSAXSourceAtPath(final File path, final ErrorHandler errorHandler)
+			throws Exception {
+
+		// Set up the SAX parser
+		final XMLReader reader = getSAXParser().getXMLReader();
+		reader.setErrorHandler(errorHandler);
+		return new SAXSource(reader, new InputSource(path.toURI().toString()));
+	}
+
+	/**
+	 * Parses an XML document into a compact, read-only tree, which takes a
+	 * fraction of the heap of a DOM. Errors, including validity errors against
+	 * the schema, are reported to the error handler.
+	 * 
+	 * @param path
+	 *                     Path to document to be parsed.
+	 * @param errorHandler
+	 *                     Handler receiving the warnings and errors, may be null.
+	 * @return The compact document.
+	 * @throws Exception
+	 *                   Signals that a non user recoverable error has occurred.
+	 */
+	public final static CompactDocument parseCompactDocumentAtPath(final File path, final ErrorHandler errorHandler)
+			throws Exception {
+
+		// Set up the SAX parser
+		final XMLReader reader = getSAXParser().getXMLReader();
+		final String systemId = path.toURI().toString();
+		final CompactBuilder builder = new CompactBuilder(systemId);
+		reader.setErrorHandler(errorHandler);
+		reader.setContentHandler(builder);
+		reader.setProperty(CompactBuilder.LEXICAL_HANDLER, builder);
+		try {
+			reader.parse(new InputSource(systemId));
+		} finally {
+
+			// The pooled parser doesn't hold on to the document
+			reader.setContentHandler(null);
+			reader.setProperty(CompactBuilder.LEXICAL_HANDLER, null);
+		}
+		return builder.getDocument();
+	}
+
+	/**
+	 * Parses an XML document and records its SAX events in the binary encoding
+	 * of {@link EventStreamWriter}, to be replayed instead of parsing it again.
+	 * Errors, including validity errors against the schema, are reported to the
+	 * error handler. The events depend on the document alone unless an external
+	 * DTD or entity is read while parsing it, which is reported.
+	 * 
+	 * @param path
+	 *                     Path to document to be parsed.
+	 * @param out
+	 *                     Stream the events are written to, it is not closed.
+	 * @param errorHandler
+	 *                     Handler receiving the warnings and errors, may be null.
+	 * @return True if no external DTD or entity was read, so the events only
+	 *         depend on the content of the document.
+	 * @throws Exception
+	 *                   Signals that a non user recoverable error has occurred.
+	 */
+	public final static boolean recordEventsAtPath(final File path, final OutputStream out,
+			final ErrorHandler errorHandler) throws Exception {
+
+		// Set up the SAX parser
+		final XMLReader reader = getSAXParser().getXMLReader();
+		final EventStreamWriter writer = new EventStreamWriter(out);
+		final EntityResolver resolver = reader.getEntityResolver();
+		final ExternalEntityTracker tracker = new ExternalEntityTracker(resolver);
+		reader.setErrorHandler(errorHandler);
+		reader.setContentHandler(writer);
+		reader.setProperty(CompactBuilder.LEXICAL_HANDLER, writer);
+		reader.setEntityResolver(tracker);
+		try {
+			reader.parse(new InputSource(path.toURI().toString()));
+		} finally {
+
+			// The pooled parser doesn't hold on to the stream
+			reader.setContentHandler(null);
+			reader.setProperty(CompactBuilder.LEXICAL_HANDLER, null);
+			reader.setEntityResolver(resolver);
+		}
+		return !tracker.external;
+	}
+
+	/**
+	 * Entity resolver noting whether an external DTD or entity is read, which
+	 * leaves the resolving to the resolver it wraps, or to the parser.
+	 */
+	private static class ExternalEntityTracker implements EntityResolver2 {
+
+		/** Resolver of the parser, null if the parser resolves the entities. */
+		private final EntityResolver resolver;
+
+		/** True once an external DTD or entity is read. */
+		boolean external = false;
+
+		ExternalEntityTracker(EntityResolver resolver) {
+			this.resolver = resolver;
+		}
+
+		@Override
+		public InputSource getExternalSubset(String name, String baseURI) throws SAXException, IOException {
+			final InputSource subset = (resolver instanceof EntityResolver2)
+					? ((EntityResolver2) resolver).getExternalSubset(name, baseURI)
+					: null;
+			external |= subset != null;
+			return subset;
+		}
+
+		@Override
+		public InputSource resolveEntity(String name, String publicId, String baseURI, String systemId)
+				throws SAXException, IOException {
+			external = true;
+			if (resolver instanceof EntityResolver2) {
+				return ((EntityResolver2) resolver).resolveEntity(name, publicId, baseURI, systemId);
+			}
+			return (resolver != null) ? resolver.resolveEntity(publicId, systemId) : null;
+		}
+
+		@Override
+		public InputSource resolveEntity(String publicId, String systemId) throws SAXException, IOException {
+			external = true;
+			return (resolver != null) ? resolver.resolveEntity(publicId, systemId) : null;
+		}
+	}
+
+	/**
+	 * Parses an XML document and creates a fully expanded <code>Document</code>
+	 * interface representation of the XML content. Unlike a document with
+	 * deferred nodes, it is not modified while it is read, so several threads can
+	 * read it at the same time as long as nobody changes it.
+	 * 
+	 * @param path
+	 *             Path to document to be parsed.
+	 * @return Document interface representing the entire XML document.
+	 *         Conceptually, it is the root of the document
+	 *         tree, and provides the primary access to the document's data.
+	 * @throws Exception
+	 *                   Signals that a non user recoverable error has occurred.
+	 */
+	public final static Document parseExpandedDocumentAtPath(final File path) throws Exception {
+
+		// Set up the document builder
+		final DocumentBuilder builder = getExpandedDocumentBuilder();
+
+		// Load the XML file in DOM
+		return builder.parse(path);
+	}
+
 	/**
 	 * Parses an XML string and creates a <code>Document</code> interface
 	 * representation of the XML content.
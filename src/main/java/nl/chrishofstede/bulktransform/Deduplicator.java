@@ -0,0 +1,223 @@
+package nl.chrishofstede.bulktransform;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import nl.chrishofstede.bulktransform.utils.Parameters;
+
+/**
+ * Finds the input files of a run which are byte-identical to an input file
+ * transformed before, so their output can be reused instead of transforming
+ * them again. An input file is identified by the SHA-256 hash of its content,
+ * together with the content of the stylesheets and the parameters.
+ *
+ * <p>
+ * The first input file with a hash is the original; a duplicate that comes
+ * along while the original is still being transformed waits for it. When the
+ * original fails, the next duplicate becomes the original.
+ * </p>
+ */
+public class Deduplicator {
+
+	/** Hash function of the input files. */
+	private static final String DIGEST = "SHA-256";
+
+	/** Size of the read buffer of each thread. */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/** Read buffer of each thread. */
+	private static final ThreadLocal<ByteBuffer> buffers = ThreadLocal
+			.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+	/** Transformed input file of which the output can be reused. */
+	public static class Original {
+		private final File inFile;
+		private final long duration;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param inFile
+		 *                 Input file which has been transformed.
+		 * @param duration
+		 *                 Processing time in milliseconds.
+		 */
+		public Original(File inFile, long duration) {
+			this.inFile = inFile;
+			this.duration = duration;
+		}
+
+		/**
+		 * Gets the input file which has been transformed.
+		 *
+		 * @return The input file.
+		 */
+		public File getInFile() {
+			return inFile;
+		}
+
+		/**
+		 * Gets the time it took to process the original.
+		 *
+		 * @return Processing time in milliseconds.
+		 */
+		public long getDuration() {
+			return duration;
+		}
+	}
+
+	/** Hash of the stylesheets and the parameters. */
+	private final byte[] context;
+
+	/** Originals by hash; a future is completed once its original is done. */
+	private final ConcurrentHashMap<String, CompletableFuture<Original>> originals = new ConcurrentHashMap<String, CompletableFuture<Original>>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param stylesheets
+	 *                    Stylesheet files in the order they are applied.
+	 * @param parameters
+	 *                    Parameters of the stylesheets.
+	 * @throws IOException
+	 *                     Signals that a stylesheet can't be read.
+	 */
+	public Deduplicator(File[] stylesheets, Parameters parameters) throws IOException {
+		final MessageDigest digest = newDigest();
+		for (final File stylesheet : stylesheets) {
+			update(digest, stylesheet);
+		}
+
+		// In a stable order, the parameters are a hash table
+		for (final String key : new TreeSet<String>(parameters.stringPropertyNames())) {
+			digest.update((key + '=' + parameters.getParameter(key) + '\n').getBytes(StandardCharsets.UTF_8));
+		}
+		context = digest.digest();
+	}
+
+	/**
+	 * Creates the hash function.
+	 */
+	static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(DIGEST);
+		} catch (final NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Adds the length and the content of a file to a hash.
+	 */
+	static void update(MessageDigest digest, File file) throws IOException {
+		final ByteBuffer buffer = buffers.get();
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			digest.update(ByteBuffer.allocate(Long.BYTES).putLong(channel.size()).array());
+			buffer.clear();
+			while (channel.read(buffer) >= 0) {
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
+		}
+	}
+
+	/**
+	 * Computes the hash of an input file.
+	 *
+	 * @param inFile
+	 *               Input file.
+	 * @return The hash in hexadecimal notation.
+	 * @throws IOException
+	 *                     Signals that the input file can't be read.
+	 */
+	public String hash(File inFile) throws IOException {
+		final MessageDigest digest = newDigest();
+		digest.update(context);
+		update(digest, inFile);
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Formats a hash in hexadecimal notation.
+	 */
+	static String toHex(byte[] hash) {
+		final StringBuilder hex = new StringBuilder(hash.length * 2);
+		for (final byte b : hash) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Claims a hash for an input file, or gets the original with the same hash,
+	 * waiting until it is done.
+	 *
+	 * @param hash
+	 *             Hash of the input file.
+	 * @return Null if the input file is the original and has to be transformed,
+	 *         after which {@link #done(String, Original)} must be called, or the
+	 *         original of which the output can be reused.
+	 * @throws InterruptedException
+	 *                              Signals that the thread was interrupted while
+	 *                              waiting.
+	 */
+	public Original claim(String hash) throws InterruptedException {
+		while (true) {
+			final CompletableFuture<Original> original = originals.putIfAbsent(hash,
+					new CompletableFuture<Original>());
+			if (original == null) {
+				return null;
+			}
+			try {
+				final Original done = original.get();
+				if (done != null) {
+					return done;
+				}
+			} catch (final ExecutionException e) {
+
+				// Never completed exceptionally
+			}
+
+			// The original failed, try to become the original
+		}
+	}
+
+	/**
+	 * Reports that the original of a hash is done.
+	 *
+	 * @param hash
+	 *                 Hash claimed with {@link #claim(String)}.
+	 * @param original
+	 *                 The original, or null if it failed, so a duplicate has to
+	 *                 be transformed instead.
+	 */
+	public void done(String hash, Original original) {
+		final CompletableFuture<Original> future = originals.get(hash);
+		if (original == null) {
+			originals.remove(hash);
+		}
+		if (future != null) {
+			future.complete(original);
+		}
+	}
+
+	/**
+	 * Gets the number of distinct input files.
+	 *
+	 * @return Number of originals.
+	 */
+	public int size() {
+		return originals.size();
+	}
+}
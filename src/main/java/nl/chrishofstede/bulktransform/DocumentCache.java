@@ -0,0 +1,221 @@
+package nl.chrishofstede.bulktransform;
+
+import java.io.File;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.URIResolver;
+import javax.xml.transform.dom.DOMSource;
+
+import org.w3c.dom.Document;
+
+/**
+ * URI resolver which keeps the parsed lookup documents of the
+ * <code>document()</code> function in memory, so they are parsed once for all
+ * transformations instead of once per transformation. The cache is shared by
+ * all files and threads of a run. The documents are read-only and fully
+ * expanded, so they can be read by several transformations at the same time.
+ *
+ * <p>
+ * The least recently used documents are evicted when the total size of the
+ * cached files exceeds the maximum size. A document is parsed again when its
+ * file has been modified since it was cached.
+ * </p>
+ */
+public class DocumentCache implements URIResolver {
+
+	/** Maximum total size in bytes of the files of the cached documents. */
+	private final long maximumSize;
+
+	/** Total size in bytes of the files of the cached documents. */
+	private long size = 0;
+
+	/** Cached documents by absolute file path in least recently used order. */
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	// Statistics
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param maximumSize
+	 *                    Maximum total size in bytes of the files of the cached
+	 *                    documents.
+	 */
+	public DocumentCache(long maximumSize) {
+		if (maximumSize <= 0) {
+			throw new IllegalArgumentException("maximumSize must be positive");
+		}
+		this.maximumSize = maximumSize;
+	}
+
+	/**
+	 * Called by the processor when it encounters an xsl:include, xsl:import, or
+	 * document() function.
+	 *
+	 * @param href
+	 *             An href attribute, which may be relative or absolute.
+	 * @param base
+	 *             The base URI against which the first argument will be made
+	 *             absolute if the absolute URI is required.
+	 * @return A Source object with the cached document, or null if the href cannot
+	 *         be resolved to a local file, and the processor should try to resolve
+	 *         the URI itself.
+	 * @throws TransformerException
+	 *                              If an error occurs when trying to resolve the
+	 *                              URI.
+	 */
+	@Override
+	public Source resolve(String href, String base) throws TransformerException {
+
+		// Only local files without a fragment identifier are cached
+		final File file = toFile(href, base);
+		if (file == null || !file.isFile()) {
+			return null;
+		}
+		final String key = file.getAbsolutePath();
+		final String systemId = file.toURI().toString();
+		final long modified = file.lastModified();
+		final long length = file.length();
+
+		// Return the cached document if the file hasn't changed since
+		synchronized (this) {
+			final Entry entry = entries.get(key);
+			if (entry != null) {
+				if (entry.modified == modified && entry.length == length) {
+					hits++;
+					return new DOMSource(entry.document, systemId);
+				}
+
+				// Invalidate the outdated document
+				remove(key);
+			}
+			misses++;
+		}
+
+		// Parse the document outside the lock, so other lookups don't have to wait
+		final Document document;
+		try {
+			document = DOMBuilder.parseExpandedDocumentAtPath(file);
+		} catch (final Exception e) {
+			throw new TransformerException(e);
+		}
+
+		// Cache the document if it fits
+		if (length <= maximumSize) {
+			synchronized (this) {
+				remove(key);
+				entries.put(key, new Entry(document, modified, length));
+				size += length;
+				evict();
+			}
+		}
+		return new DOMSource(document, systemId);
+	}
+
+	/**
+	 * Converts an href to a local file.
+	 *
+	 * @param href
+	 *             An href attribute, which may be relative or absolute.
+	 * @param base
+	 *             The base URI against which the href is resolved.
+	 * @return The local file or null if the href doesn't refer to a local file.
+	 */
+	private static File toFile(String href, String base) {
+		if (href == null) {
+			return null;
+		}
+		try {
+			URI uri = new URI(href);
+			if (!uri.isAbsolute()) {
+				if (base != null && base.length() > 0) {
+					uri = new URI(base).resolve(uri);
+				} else {
+					uri = new File(href).toURI();
+				}
+			}
+			if ("file".equals(uri.getScheme()) && uri.getFragment() == null && !uri.isOpaque()) {
+				return new File(uri.normalize());
+			}
+		} catch (final URISyntaxException | IllegalArgumentException e) {
+
+			// Leave hrefs which aren't proper URIs to the processor
+		}
+		return null;
+	}
+
+	/**
+	 * Removes a document from the cache.
+	 *
+	 * @param key
+	 *            Absolute file path of the document.
+	 */
+	private void remove(String key) {
+		final Entry entry = entries.remove(key);
+		if (entry != null) {
+			size -= entry.length;
+		}
+	}
+
+	/**
+	 * Evicts the least recently used documents until the cache fits its maximum
+	 * size.
+	 */
+	private void evict() {
+		final Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+		while (size > maximumSize && iterator.hasNext()) {
+			size -= iterator.next().getValue().length;
+			iterator.remove();
+		}
+	}
+
+	/**
+	 * Gets the number of lookups served from the cache.
+	 *
+	 * @return Number of cache hits.
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Gets the number of lookups that required parsing.
+	 *
+	 * @return Number of cache misses.
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Gets the total size of the files of the cached documents.
+	 *
+	 * @return Size in bytes.
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * Cached document with the file state it was parsed from.
+	 */
+	private static class Entry {
+		final Document document;
+		final long modified;
+		final long length;
+
+		Entry(Document document, long modified, long length) {
+			this.document = document;
+			this.modified = modified;
+			this.length = length;
+		}
+	}
+}
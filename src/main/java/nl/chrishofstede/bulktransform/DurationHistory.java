@@ -0,0 +1,161 @@
+package nl.chrishofstede.bulktransform;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Processing times of the input files recorded by previous runs, so the
+ * longest jobs of a run can be started first. Each line of the history file
+ * holds the duration in milliseconds, the size in bytes and the absolute path
+ * of an input file, separated by tabs. The path is escaped like in the failure
+ * manifest. A recorded duration is only used as long as the size of the file
+ * hasn't changed.
+ */
+public class DurationHistory {
+
+	/** Default file name of the history in the output folder. */
+	public static final String FILE_NAME = "bulktransform-durations.tsv";
+
+	/** Duration and size of a processed file. */
+	private static class Entry {
+		final long duration;
+		final long length;
+
+		Entry(long duration, long length) {
+			this.duration = duration;
+			this.length = length;
+		}
+	}
+
+	/** Recorded durations by absolute path. */
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+	/** Total duration of the recorded files. */
+	private long totalDuration = 0;
+
+	/** Total size of the recorded files. */
+	private long totalLength = 0;
+
+	/**
+	 * Records the processing time of an input file.
+	 *
+	 * @param input
+	 *                 Input file which has been processed.
+	 * @param duration
+	 *                 Processing time in milliseconds.
+	 */
+	public synchronized void record(File input, long duration) {
+		put(input.getAbsolutePath(), duration, input.length());
+	}
+
+	/**
+	 * Adds a duration to the history, replacing a previous one.
+	 */
+	private void put(String path, long duration, long length) {
+		final Entry previous = entries.put(path, new Entry(duration, length));
+		if (previous != null) {
+			totalDuration -= previous.duration;
+			totalLength -= previous.length;
+		}
+		totalDuration += duration;
+		totalLength += length;
+	}
+
+	/**
+	 * Estimates the processing time of an input file. A file without a recorded
+	 * duration, or which has changed size since, is estimated from its size and
+	 * the average throughput of the recorded files.
+	 *
+	 * @param input
+	 *                 Input file.
+	 * @param length
+	 *                 Current size of the input file.
+	 * @return Estimated processing time in milliseconds, or the size in bytes if
+	 *         nothing has been recorded yet.
+	 */
+	public synchronized double estimate(File input, long length) {
+		final Entry entry = entries.get(input.getAbsolutePath());
+		if (entry != null && entry.length == length) {
+			return entry.duration;
+		}
+		if (totalLength == 0) {
+			return length;
+		}
+		return (double) length * totalDuration / totalLength;
+	}
+
+	/**
+	 * Gets the number of recorded files.
+	 *
+	 * @return Number of files in the history.
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Reads a history file.
+	 *
+	 * @param file
+	 *             History file, which may not exist yet.
+	 * @return The history, empty if the file doesn't exist.
+	 * @throws IOException
+	 *                     Signals that the history can't be read.
+	 */
+	public static DurationHistory read(File file) throws IOException {
+		final DurationHistory history = new DurationHistory();
+		if (!file.isFile()) {
+			return history;
+		}
+		try (BufferedReader reader = new BufferedReader(
+				new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				final String[] fields = line.split("\t", 3);
+				if (fields.length == 3) {
+					try {
+						history.put(FailureManifest.unescape(fields[2]), Long.parseLong(fields[0]),
+								Long.parseLong(fields[1]));
+					} catch (final NumberFormatException e) {
+
+						// Not a record
+					}
+				}
+			}
+		}
+		return history;
+	}
+
+	/**
+	 * Writes the history to a file. The file is replaced at once, so a crash
+	 * doesn't leave a partial history.
+	 *
+	 * @param file
+	 *             History file.
+	 * @throws IOException
+	 *                     Signals that the history can't be written.
+	 */
+	public synchronized void write(File file) throws IOException {
+		final File temporary = new File(file.getPath() + ".tmp");
+		try (Writer writer = new OutputStreamWriter(new FileOutputStream(temporary), StandardCharsets.UTF_8)) {
+			for (final Map.Entry<String, Entry> entry : new TreeMap<String, Entry>(entries).entrySet()) {
+				writer.write(entry.getValue().duration + "\t" + entry.getValue().length + "\t"
+						+ FailureManifest.escape(entry.getKey()) + "\n");
+			}
+		}
+		Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+}
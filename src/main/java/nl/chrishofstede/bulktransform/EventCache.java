@@ -0,0 +1,174 @@
+package nl.chrishofstede.bulktransform;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.transform.sax.SAXSource;
+
+import org.xml.sax.InputSource;
+
+import nl.chrishofstede.bulktransform.compact.EventStreamReader;
+
+/**
+ * Persistent cache of the parsed input files, as binary SAX event streams in a
+ * cache folder, so runs with other stylesheets over the same input files replay
+ * the events instead of parsing the XML again. An entry is identified by the
+ * SHA-256 hash of the content of the input file, so a modified input file is
+ * parsed again and a copy of an input file replays the same entry, wherever
+ * it is.
+ *
+ * <p>
+ * The entries are spread over 256 subfolders named after the first two
+ * characters of the hash. An entry is written under a temporary name and moved
+ * into place when complete, so runs and threads can share the cache folder.
+ * Entries are never removed; the cache folder can be deleted at any time.
+ * </p>
+ *
+ * <p>
+ * The hash only covers the input file itself, so a file reading an external
+ * DTD or entity, which may change without the input file changing, isn't
+ * recorded. An empty marker named after its hash takes the place of its entry,
+ * and the file is parsed every time it is transformed.
+ * </p>
+ */
+public class EventCache {
+
+	/** Extension of the entries. */
+	public static final String EXTENSION = ".events";
+
+	/** Extension of the markers of the input files which aren't recorded. */
+	public static final String EXTERNAL = ".external";
+
+	/** Version of the entries, part of their hash. */
+	private static final byte[] VERSION = { 'e', 'v', 'e', 'n', 't', 's', '1' };
+
+	/** Folder of the entries. */
+	private final File directory;
+
+	// Statistics
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param directory
+	 *                  Folder of the entries, created if it doesn't exist.
+	 * @throws IOException
+	 *                     Signals that the folder can't be created.
+	 */
+	public EventCache(File directory) throws IOException {
+		Files.createDirectories(directory.toPath());
+		this.directory = directory;
+	}
+
+	/**
+	 * Gets the entry of an input file, whether or not it exists.
+	 *
+	 * @param inFile
+	 *               Input file.
+	 * @return The entry.
+	 * @throws IOException
+	 *                     Signals that the input file can't be read.
+	 */
+	public File getEntry(File inFile) throws IOException {
+		final MessageDigest digest = Deduplicator.newDigest();
+		digest.update(VERSION);
+		Deduplicator.update(digest, inFile);
+		final String hash = Deduplicator.toHex(digest.digest());
+		return new File(new File(directory, hash.substring(0, 2)), hash + EXTENSION);
+	}
+
+	/**
+	 * Creates a source replaying the events of an input file, which are recorded
+	 * first if they aren't in the cache yet. The source must be read once; the
+	 * entry is closed at the end. An input file reading an external DTD or
+	 * entity is parsed by the source instead.
+	 *
+	 * @param inFile
+	 *               Input file.
+	 * @return The source, with the URI of the input file as its system
+	 *         identifier.
+	 * @throws Exception
+	 *                   Signals that the input file can't be parsed or the entry
+	 *                   can't be written.
+	 */
+	public SAXSource newSource(File inFile) throws Exception {
+		final File entry = getEntry(inFile);
+		final File marker = getMarker(entry);
+		if (entry.isFile()) {
+			hits.incrementAndGet();
+		} else if (marker.isFile() || !record(inFile, entry)) {
+			misses.incrementAndGet();
+			return DOMBuilder.newSAXSourceAtPath(inFile, null);
+		} else {
+			misses.incrementAndGet();
+		}
+		final InputSource input = new InputSource(inFile.toURI().toString());
+		input.setByteStream(new FileInputStream(entry));
+		return new SAXSource(new EventStreamReader(), input);
+	}
+
+	/**
+	 * Gets the marker of an input file which isn't recorded.
+	 *
+	 * @param entry
+	 *              Entry of the input file.
+	 * @return The marker, whether or not it exists.
+	 */
+	static File getMarker(File entry) {
+		final String name = entry.getName();
+		return new File(entry.getParentFile(), name.substring(0, name.length() - EXTENSION.length()) + EXTERNAL);
+	}
+
+	/**
+	 * Parses an input file and records its events in an entry, or leaves a
+	 * marker if the file reads an external DTD or entity.
+	 *
+	 * @return True if the entry is recorded.
+	 */
+	private static boolean record(File inFile, File entry) throws Exception {
+		Files.createDirectories(entry.getParentFile().toPath());
+		final File temporary = File.createTempFile(entry.getName(), ".tmp", entry.getParentFile());
+		try {
+			final boolean selfContained;
+			try (OutputStream out = new FileOutputStream(temporary)) {
+				selfContained = DOMBuilder.recordEventsAtPath(inFile, out, null);
+			}
+			if (!selfContained) {
+				getMarker(entry).createNewFile();
+				return false;
+			}
+			Files.move(temporary.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			return true;
+		} finally {
+			temporary.delete();
+		}
+	}
+
+	/**
+	 * Gets the number of input files replayed from the cache.
+	 *
+	 * @return Number of cache hits.
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Gets the number of input files parsed and recorded in the cache.
+	 *
+	 * @return Number of cache misses.
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+}
@@ -0,0 +1,166 @@
+package nl.chrishofstede.bulktransform;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerException;
+
+import org.apache.xml.dtm.DTM;
+import org.apache.xml.dtm.DTMManager;
+import org.apache.xml.utils.PrefixResolver;
+import org.apache.xpath.XPath;
+import org.apache.xpath.XPathContext;
+import org.w3c.dom.Node;
+
+import nl.chrishofstede.bulktransform.utils.TransformerErrorListener;
+
+/**
+ * Pulls values out of the input files with XPath expressions instead of a
+ * stylesheet. The expressions are compiled once and shared by all threads.
+ * Each input file is read from its SAX events into the array-backed tree
+ * Xalan also builds for a transformation, without a DOM, a stylesheet or a
+ * serializer, and every expression gives the XPath string value of its result,
+ * like <code>xsl:value-of</code>, for one column.
+ *
+ * <p>
+ * The columns are read from a text file with one column per line: a name and
+ * an expression, separated by white space. A line
+ * <code>xmlns:prefix uri</code> declares a prefix for the expressions. Empty
+ * lines and lines starting with # are skipped.
+ * </p>
+ */
+public class Extractor {
+
+	/** File name of the table in the output folder, without the extension. */
+	public static final String FILE_NAME = "extracted";
+
+	/** Prefix of the namespace declaration lines. */
+	private static final String XMLNS = "xmlns:";
+
+	/** Names of the columns. */
+	private final String[] names;
+
+	/** Compiled expressions of the columns. */
+	private final XPath[] expressions;
+
+	/** Namespaces of the prefixes in the expressions. */
+	private final NamespaceResolver namespaces;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param columns
+	 *                Column file.
+	 * @throws IOException
+	 *                     Signals that the column file can't be read or has no
+	 *                     columns.
+	 * @throws TransformerException
+	 *                              Signals that an expression can't be
+	 *                              compiled.
+	 */
+	public Extractor(File columns) throws IOException, TransformerException {
+		final List<String> columnNames = new ArrayList<String>();
+		final List<String> columnExpressions = new ArrayList<String>();
+		final Map<String, String> prefixes = new HashMap<String, String>();
+		int number = 0;
+		for (final String line : Files.readAllLines(columns.toPath(), StandardCharsets.UTF_8)) {
+			number++;
+			final String trimmed = line.trim();
+			if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+				continue;
+			}
+			final String[] fields = trimmed.split("\\s+", 2);
+			if (fields.length < 2) {
+				throw new IOException("No expression on line " + number + " of " + columns + ": " + trimmed);
+			}
+			if (fields[0].startsWith(XMLNS)) {
+				prefixes.put(fields[0].substring(XMLNS.length()), fields[1].trim());
+			} else {
+				columnNames.add(fields[0]);
+				columnExpressions.add(fields[1].trim());
+			}
+		}
+		if (columnNames.isEmpty()) {
+			throw new IOException("No columns in " + columns);
+		}
+		namespaces = new NamespaceResolver(prefixes);
+		names = columnNames.toArray(new String[columnNames.size()]);
+		expressions = new XPath[names.length];
+		for (int i = 0; i < names.length; i++) {
+			expressions[i] = new XPath(columnExpressions.get(i), null, namespaces, XPath.SELECT,
+					new TransformerErrorListener());
+		}
+	}
+
+	/**
+	 * Gets the names of the columns.
+	 *
+	 * @return Column names in the order of the values.
+	 */
+	public String[] getNames() {
+		return names.clone();
+	}
+
+	/**
+	 * Evaluates the expressions on a document.
+	 *
+	 * @param source
+	 *               Source of the document.
+	 * @return String values of the expressions in the order of the columns.
+	 * @throws TransformerException
+	 *                              Signals that the document can't be read or
+	 *                              an expression fails.
+	 */
+	public String[] extract(Source source) throws TransformerException {
+		final XPathContext context = new XPathContext(false);
+		final DTMManager manager = context.getDTMManager();
+		final DTM dtm = manager.getDTM(source, false, null, false, false);
+		try {
+			final String[] values = new String[expressions.length];
+			for (int i = 0; i < expressions.length; i++) {
+				values[i] = expressions[i].execute(context, dtm.getDocument(), namespaces).str();
+			}
+			return values;
+		} finally {
+			manager.release(dtm, true);
+		}
+	}
+
+	/**
+	 * Resolver of the prefixes declared in the column file.
+	 */
+	private static class NamespaceResolver implements PrefixResolver {
+		private final Map<String, String> prefixes;
+
+		NamespaceResolver(Map<String, String> prefixes) {
+			this.prefixes = prefixes;
+		}
+
+		@Override
+		public String getNamespaceForPrefix(String prefix) {
+			return prefixes.get(prefix);
+		}
+
+		@Override
+		public String getNamespaceForPrefix(String prefix, Node context) {
+			return prefixes.get(prefix);
+		}
+
+		@Override
+		public String getBaseIdentifier() {
+			return null;
+		}
+
+		@Override
+		public boolean handlesNullPrefixes() {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,215 @@
+package nl.chrishofstede.bulktransform;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Machine-readable manifest of the input files which failed during a run. Each
+ * line holds the absolute path of an input file and the error message,
+ * separated by a tab. Tabs, line breaks and backslashes in the fields are
+ * escaped with a backslash. The manifest is written while the run progresses,
+ * so it survives a crash, and it is removed when a run has no failures.
+ */
+public class FailureManifest implements Closeable {
+
+	/** Default file name of the manifest in the output folder. */
+	public static final String FILE_NAME = "bulktransform-failures.tsv";
+
+	/** Comment prefix of the header line. */
+	private static final String COMMENT = "#";
+
+	/** Manifest file. */
+	private final File file;
+
+	/** Writer of the manifest, created on the first failure. */
+	private Writer writer = null;
+
+	/** Number of failures recorded. */
+	private int count = 0;
+
+	/** Continue the manifest of a previous run. */
+	private final boolean resume;
+
+	/**
+	 * Constructor. A manifest of a previous run is removed.
+	 *
+	 * @param file
+	 *             Manifest file.
+	 * @throws IOException
+	 *                     Signals that the previous manifest can't be removed.
+	 */
+	public FailureManifest(File file) throws IOException {
+		this(file, false);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param file
+	 *               Manifest file.
+	 * @param resume
+	 *               True to append to the manifest of the previous run, which is
+	 *               being resumed, false to remove it.
+	 * @throws IOException
+	 *                     Signals that the previous manifest can't be removed.
+	 */
+	public FailureManifest(File file, boolean resume) throws IOException {
+		if (file == null) {
+			throw new IllegalArgumentException("file is null");
+		}
+		this.file = file;
+		this.resume = resume;
+		if (!resume && file.exists() && !file.delete()) {
+			throw new IOException("Couldn't remove failure manifest: " + file.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Records a failed input file.
+	 *
+	 * @param input
+	 *                Input file which failed.
+	 * @param message
+	 *                Error message of the failure.
+	 * @throws IOException
+	 *                     Signals that the manifest can't be written.
+	 */
+	public synchronized void add(File input, String message) throws IOException {
+		if (writer == null) {
+			final boolean append = resume && file.exists();
+			writer = new OutputStreamWriter(new FileOutputStream(file, append), StandardCharsets.UTF_8);
+			if (!append) {
+				writer.write(COMMENT + " input\tmessage\n");
+			}
+		}
+		writer.write(escape(input.getAbsolutePath()));
+		writer.write('\t');
+		writer.write(escape(message));
+		writer.write('\n');
+
+		// Keep the manifest up to date in case the run is killed
+		writer.flush();
+		count++;
+	}
+
+	/**
+	 * Gets the number of failures recorded.
+	 *
+	 * @return Number of failed input files.
+	 */
+	public synchronized int getCount() {
+		return count;
+	}
+
+	/**
+	 * Closes the manifest.
+	 *
+	 * @throws IOException
+	 *                     Signals that the manifest can't be written.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (writer != null) {
+			writer.close();
+			writer = null;
+		}
+	}
+
+	/**
+	 * Reads the input files of a manifest.
+	 *
+	 * @param file
+	 *             Manifest file.
+	 * @return The failed input files in the order they were recorded.
+	 * @throws IOException
+	 *                     Signals that the manifest can't be read.
+	 */
+	public static List<File> read(File file) throws IOException {
+		final List<File> inputs = new ArrayList<File>();
+		try (BufferedReader reader = new BufferedReader(
+				new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.length() > 0 && !line.startsWith(COMMENT)) {
+					final int tab = line.indexOf('\t');
+					inputs.add(new File(unescape((tab < 0) ? line : line.substring(0, tab))));
+				}
+			}
+		}
+		return inputs;
+	}
+
+	/**
+	 * Escapes the field separators of a value.
+	 *
+	 * @param value
+	 *              Value to be escaped.
+	 * @return The escaped value.
+	 */
+	static String escape(String value) {
+		if (value == null) {
+			return "";
+		}
+		final StringBuilder builder = new StringBuilder(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			final char c = value.charAt(i);
+			switch (c) {
+				case '\\':
+					builder.append("\\\\");
+					break;
+				case '\t':
+					builder.append("\\t");
+					break;
+				case '\n':
+					builder.append("\\n");
+					break;
+				case '\r':
+					builder.append("\\r");
+					break;
+				default:
+					builder.append(c);
+			}
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Unescapes an escaped value.
+	 *
+	 * @param value
+	 *              Escaped value.
+	 * @return The original value.
+	 */
+	static String unescape(String value) {
+		final StringBuilder builder = new StringBuilder(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\\' && i + 1 < value.length()) {
+				c = value.charAt(++i);
+				switch (c) {
+					case 't':
+						c = '\t';
+						break;
+					case 'n':
+						c = '\n';
+						break;
+					case 'r':
+						c = '\r';
+						break;
+				}
+			}
+			builder.append(c);
+		}
+		return builder.toString();
+	}
+}
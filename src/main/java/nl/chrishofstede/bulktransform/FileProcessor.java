@@ -0,0 +1,945 @@
+package nl.chrishofstede.bulktransform;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXSource;
+
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import nl.chrishofstede.bulktransform.compact.CompactDocument;
+import nl.chrishofstede.bulktransform.output.AsyncOutputWriter;
+import nl.chrishofstede.bulktransform.output.Output;
+import nl.chrishofstede.bulktransform.output.OutputLayout;
+import nl.chrishofstede.bulktransform.output.OutputWriter;
+import nl.chrishofstede.bulktransform.output.PackedOutput;
+import nl.chrishofstede.bulktransform.output.ResultSplitter;
+import nl.chrishofstede.bulktransform.output.TableWriter;
+import nl.chrishofstede.bulktransform.utils.Parameters;
+import nl.chrishofstede.bulktransform.utils.SAXErrorLogger;
+
+/**
+ * Processes the input files of a run: each file is parsed, validated and
+ * transformed, and the outcome is recorded in the failure manifest, the journal
+ * and the summary. A failing file doesn't stop the run. One processor is shared
+ * by all worker threads, so everything it records to is thread-safe.
+ */
+public class FileProcessor {
+
+	/** Tree the input files are parsed into before they are transformed. */
+	public enum DocumentModel {
+
+		/** Xerces DOM. */
+		DOM,
+
+		/** Compact, array-backed, read-only tree, read by the stylesheet as SAX events. */
+		COMPACT;
+
+		/**
+		 * Parses a document model name, ignoring case.
+		 *
+		 * @param name
+		 *             dom or compact.
+		 * @return The document model.
+		 */
+		public static DocumentModel parse(String name) {
+			try {
+				return valueOf(name.trim().toUpperCase());
+			} catch (final IllegalArgumentException e) {
+				throw new IllegalArgumentException("document model must be dom or compact: " + name);
+			}
+		}
+	}
+
+	/** Stylesheet the input files are transformed with, null to only validate. */
+	private final Stylesheet stylesheet;
+
+	/** Parameters of the stylesheet. */
+	private final Parameters parameters;
+
+	/** Folder the output files are written to. */
+	private final File outDirectory;
+
+	/** Validate the input files while parsing. */
+	private final boolean validate;
+
+	/** Summary of the run. */
+	private final RunSummary summary;
+
+	/** Failed input files, null if not recorded. */
+	private FailureManifest failureManifest = null;
+
+	/** Completed input files, null if not recorded. */
+	private ProgressJournal journal = null;
+
+	/** Claims in a shared work folder, null if the input files aren't shared. */
+	private WorkClaims claims = null;
+
+	/** Processing times of the input files, null if not recorded. */
+	private DurationHistory history = null;
+
+	/** Heap budget of the parsed documents, null if unlimited. */
+	private MemoryBudget memoryBudget = null;
+
+	/** Size in bytes above which a file is transformed from a stream. */
+	private long streamingThreshold = Long.MAX_VALUE;
+
+	/** Layout of the output files in the output folder. */
+	private OutputLayout outputLayout = OutputLayout.FLAT;
+
+	/** Index of the output files, null if not recorded. */
+	private OutputIndex outputIndex = null;
+
+	/** Writer of the output files. */
+	private OutputWriter outputWriter = new OutputWriter(OutputWriter.Durability.NONE,
+			OutputWriter.DEFAULT_GROUP_SIZE);
+
+	/** Packed outputs, null if the outputs are written to separate files. */
+	private PackedOutput packedOutput = null;
+
+	/** Tree the input files are parsed into. */
+	private DocumentModel documentModel = DocumentModel.DOM;
+
+	/** Finder of identical input files, null if every file is transformed. */
+	private Deduplicator deduplicator = null;
+
+	/** Cache of the parser events of the input files, null if they are parsed. */
+	private EventCache eventCache = null;
+
+	/** Reduction of the outputs into one result, null if every input file has its own output. */
+	private MapReduce mapReduce = null;
+
+	/** Writers of the secondary results, null if the stylesheet has only its main result. */
+	private AsyncOutputWriter resultWriter = null;
+
+	/** Routing table of the stylesheets by input file, null to transform all files with the stylesheet. */
+	private Router router = null;
+
+	/** Prefilter of the input files, null to process all files. */
+	private WhereFilter where = null;
+
+	/** Extractor of the values of the input files, null to transform them. */
+	private Extractor extractor = null;
+
+	/** Table the extracted values are written to. */
+	private TableWriter table = null;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param stylesheet
+	 *                     Stylesheet the input files are transformed with, null to
+	 *                     only validate them.
+	 * @param parameters
+	 *                     Parameters of the stylesheet.
+	 * @param outDirectory
+	 *                     Folder the output files are written to.
+	 * @param validate
+	 *                     True to validate the input files while parsing.
+	 * @param summary
+	 *                     Summary of the run.
+	 */
+	public FileProcessor(Stylesheet stylesheet, Parameters parameters, File outDirectory, boolean validate,
+			RunSummary summary) {
+		this.stylesheet = stylesheet;
+		this.parameters = parameters;
+		this.outDirectory = outDirectory;
+		this.validate = validate;
+		this.summary = summary;
+	}
+
+	/**
+	 * Sets the manifest the failed input files are recorded in.
+	 *
+	 * @param failureManifest
+	 *                        Failure manifest or null.
+	 */
+	public void setFailureManifest(FailureManifest failureManifest) {
+		this.failureManifest = failureManifest;
+	}
+
+	/**
+	 * Sets the journal the completed input files are recorded in.
+	 *
+	 * @param journal
+	 *                Progress journal or null.
+	 */
+	public void setJournal(ProgressJournal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * Sets the claims through which the input files are shared with other
+	 * workers.
+	 *
+	 * @param claims
+	 *               Work claims or null.
+	 */
+	public void setClaims(WorkClaims claims) {
+		this.claims = claims;
+	}
+
+	/**
+	 * Sets the history the processing times are recorded in.
+	 *
+	 * @param history
+	 *                Duration history or null.
+	 */
+	public void setHistory(DurationHistory history) {
+		this.history = history;
+	}
+
+	/**
+	 * Sets the heap budget of the documents parsed at the same time.
+	 *
+	 * @param memoryBudget
+	 *                     Memory budget or null if unlimited.
+	 */
+	public void setMemoryBudget(MemoryBudget memoryBudget) {
+		this.memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * Sets the size above which a file is transformed from a SAX stream instead of
+	 * a DOM.
+	 *
+	 * @param streamingThreshold
+	 *                           Size in bytes.
+	 */
+	public void setStreamingThreshold(long streamingThreshold) {
+		this.streamingThreshold = streamingThreshold;
+	}
+
+	/**
+	 * Sets the writer of the output files.
+	 *
+	 * @param outputWriter
+	 *                     Output writer.
+	 */
+	public void setOutputWriter(OutputWriter outputWriter) {
+		this.outputWriter = outputWriter;
+	}
+
+	/**
+	 * Sets the layout of the output files in the output folder.
+	 *
+	 * @param outputLayout
+	 *                     Output layout.
+	 */
+	public void setOutputLayout(OutputLayout outputLayout) {
+		this.outputLayout = outputLayout;
+	}
+
+	/**
+	 * Sets the index the output paths of the input files are recorded in.
+	 *
+	 * @param outputIndex
+	 *                    Output index or null.
+	 */
+	public void setOutputIndex(OutputIndex outputIndex) {
+		this.outputIndex = outputIndex;
+	}
+
+	/**
+	 * Sets the packed outputs the outputs are added to instead of separate output
+	 * files.
+	 *
+	 * @param packedOutput
+	 *                     Packed outputs or null.
+	 */
+	public void setPackedOutput(PackedOutput packedOutput) {
+		this.packedOutput = packedOutput;
+	}
+
+	/**
+	 * Sets the tree the input files are parsed into, when they aren't streamed.
+	 *
+	 * @param documentModel
+	 *                      Document model.
+	 */
+	public void setDocumentModel(DocumentModel documentModel) {
+		this.documentModel = documentModel;
+	}
+
+	/**
+	 * Sets the finder of identical input files, of which only the first is
+	 * transformed and the output reused for the others.
+	 *
+	 * @param deduplicator
+	 *                     Deduplicator or null.
+	 */
+	public void setDeduplicator(Deduplicator deduplicator) {
+		this.deduplicator = deduplicator;
+	}
+
+	/**
+	 * Sets the cache of the parser events of the input files, which are replayed
+	 * instead of parsing the input files when they aren't validated.
+	 *
+	 * @param eventCache
+	 *                   Event cache or null.
+	 */
+	public void setEventCache(EventCache eventCache) {
+		this.eventCache = eventCache;
+	}
+
+	/**
+	 * Sets the reduction the outputs are added to as partial results, instead of
+	 * writing an output per input file.
+	 *
+	 * @param mapReduce
+	 *                  Map-reduce or null.
+	 */
+	public void setMapReduce(MapReduce mapReduce) {
+		this.mapReduce = mapReduce;
+	}
+
+	/**
+	 * Sets the writers the secondary results of the stylesheet are handed to,
+	 * split off the main result by their result elements.
+	 *
+	 * @param resultWriter
+	 *                     Asynchronous output writer or null.
+	 */
+	public void setResultWriter(AsyncOutputWriter resultWriter) {
+		this.resultWriter = resultWriter;
+	}
+
+	/**
+	 * Sets the routing table choosing the stylesheet of each input file; the
+	 * files no rule matches are transformed with the stylesheet of the
+	 * processor.
+	 *
+	 * @param router
+	 *               Router or null.
+	 */
+	public void setRouter(Router router) {
+		this.router = router;
+	}
+
+	/**
+	 * Sets the prefilter skipping the input files it doesn't match, before they
+	 * are parsed.
+	 *
+	 * @param where
+	 *              Prefilter or null.
+	 */
+	public void setWhere(WhereFilter where) {
+		this.where = where;
+	}
+
+	/**
+	 * Sets the extractor pulling values out of the input files instead of
+	 * transforming them, with the table a row per input file is written to.
+	 * The processor has no stylesheet then.
+	 *
+	 * @param extractor
+	 *                  Extractor or null.
+	 * @param table
+	 *                  Table the input file path and its values are written to.
+	 */
+	public void setExtractor(Extractor extractor, TableWriter table) {
+		this.extractor = extractor;
+		this.table = table;
+	}
+
+	/**
+	 * Processes one input file and records the outcome.
+	 *
+	 * @param inFile
+	 *               Input file.
+	 * @throws IOException
+	 *                     Signals that the outcome can't be recorded.
+	 */
+	public void process(File inFile) throws IOException {
+
+		// Leave the files done or claimed by other workers
+		if (claims != null && !claims.claim(inFile)) {
+			return;
+		}
+		if (isFilteredOut(inFile)) {
+			return;
+		}
+		final long start = System.currentTimeMillis();
+		final List<CompletableFuture<Void>> writes = new ArrayList<CompletableFuture<Void>>();
+		String failure = null;
+		String status = null;
+		try {
+			failure = deduplicateAndTransform(inFile, start, writes);
+			status = RunSummary.INVALID;
+		} catch (final Exception e) {
+			failure = App.getExceptionMessage(e);
+			System.err.println("Failed: " + inFile.getAbsolutePath() + " " + failure);
+			status = RunSummary.FAILED;
+		} catch (final OutOfMemoryError e) {
+
+			// The document is unreachable now, so the other threads can carry on
+			System.err.println("Failed: " + inFile.getAbsolutePath() + " out of memory");
+			failure = "java.lang.OutOfMemoryError: " + e.getLocalizedMessage();
+			status = RunSummary.FAILED;
+		}
+		if (failure != null || writes.isEmpty()) {
+			record(inFile, start, failure, status, 0);
+		} else {
+
+			// This thread goes on with the next file, the writers record this one once its results are written
+			afterWrites(writes, inFile.getAbsolutePath(),
+					writeFailure -> record(inFile, start, writeFailure, RunSummary.FAILED, writes.size()));
+		}
+	}
+
+	/**
+	 * Records the outcome of an input file.
+	 *
+	 * @param failure
+	 *                  Message of the failure, null if the file is done.
+	 * @param status
+	 *                  Summary counter of the failure.
+	 * @param secondary
+	 *                  Number of secondary results written.
+	 */
+	private void record(File inFile, long start, String failure, String status, int secondary) throws IOException {
+		if (failure != null) {
+			recordFailure(inFile, failure);
+			summary.add(status, 1);
+		} else {
+			if (journal != null) {
+				journal.add(inFile, ProgressJournal.DONE);
+			}
+			if (history != null) {
+				history.record(inFile, System.currentTimeMillis() - start);
+			}
+			summary.add(RunSummary.SECONDARY, secondary);
+		}
+
+		// A failed file is left to the retry of this worker, it is in its failure manifest
+		if (claims != null) {
+			if (failure == null) {
+				claims.complete(inFile);
+			} else {
+				claims.fail(inFile);
+			}
+		}
+		summary.add(RunSummary.PROCESSED, 1);
+		summary.add(RunSummary.INPUT_BYTES, inFile.length());
+	}
+
+	/**
+	 * Outcome of input files recorded once their secondary results are written.
+	 */
+	private interface Outcome {
+
+		/**
+		 * Records the outcome.
+		 *
+		 * @param failure
+		 *                Message of the failed write, null if all results are
+		 *                written.
+		 */
+		void record(String failure) throws IOException;
+	}
+
+	/**
+	 * Records an outcome once the secondary results are written, on the writer
+	 * completing the last of them, so the thread processing the input files
+	 * doesn't wait for the writers.
+	 */
+	private void afterWrites(List<CompletableFuture<Void>> writes, String name, Outcome outcome) {
+		CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[writes.size()]))
+				.whenComplete((result, error) -> {
+					String failure = null;
+					if (error != null) {
+						final Throwable cause = (error instanceof CompletionException && error.getCause() != null)
+								? error.getCause()
+								: error;
+						failure = (cause instanceof Exception) ? App.getExceptionMessage((Exception) cause)
+								: cause.toString();
+						System.err.println("Failed: " + name + " " + failure);
+					}
+					try {
+						outcome.record(failure);
+					} catch (final IOException e) {
+						System.err.println("Error: " + name + " " + App.getExceptionMessage(e));
+					}
+				});
+	}
+
+	/**
+	 * Transforms a batch of input files as one collection document into one
+	 * output and records the outcome of each input file. Input files which can't
+	 * be parsed or are invalid are left out of the collection; when the
+	 * transformation fails, all input files fail. The output is named after
+	 * the first input file processed, which no other collection of this run, a
+	 * resumed run, another shard or another worker starts with.
+	 *
+	 * @param inFiles
+	 *                Input files of the collection.
+	 * @throws IOException
+	 *                     Signals that the outcome can't be recorded.
+	 */
+	public void processCollection(List<File> inFiles) throws IOException {
+
+		// Leave the files done or claimed by other workers
+		List<File> members = inFiles;
+		if (claims != null) {
+			members = new ArrayList<File>();
+			for (final File inFile : inFiles) {
+				if (claims.claim(inFile)) {
+					members.add(inFile);
+				}
+			}
+		}
+
+		// Leave the files the prefilter doesn't match
+		if (where != null) {
+			final List<File> matching = new ArrayList<File>();
+			for (final File inFile : members) {
+				if (!isFilteredOut(inFile)) {
+					matching.add(inFile);
+				}
+			}
+			members = matching;
+		}
+		if (members.isEmpty()) {
+			return;
+		}
+		final String name = CollectionReader.getName(members.get(0));
+		final CollectionReader reader = new CollectionReader(members, validate, eventCache);
+		final File outFile = (packedOutput == null) ? outputLayout.resolve(outDirectory, name) : null;
+		final List<CompletableFuture<Void>> writes = new ArrayList<CompletableFuture<Void>>();
+		String error = null;
+		boolean transformed = false;
+		try {
+			try (Output output = createOutput(name, outFile)) {
+				final String systemId = (outFile != null) ? outFile.toURI().toString() : name;
+				commit(output, transformToOutput(stylesheet, new SAXSource(reader, new InputSource(systemId)), output),
+						writes);
+				transformed = true;
+			}
+		} catch (final Exception e) {
+			error = App.getExceptionMessage(e);
+			System.err.println("Failed: " + name + " " + error);
+		} finally {
+			if (outFile != null && !transformed) {
+				outFile.delete();
+			}
+		}
+		if (!transformed || writes.isEmpty()) {
+			recordCollection(members, reader, name, error, 0);
+		} else {
+			final List<File> written = members;
+			afterWrites(writes, name,
+					writeFailure -> recordCollection(written, reader, name, writeFailure, writes.size()));
+		}
+	}
+
+	/**
+	 * Records each input file of a collection, those left out of the collection
+	 * fail on their own.
+	 *
+	 * @param error
+	 *                  Message of the failure of the collection, null if its
+	 *                  output is written.
+	 * @param secondary
+	 *                  Number of secondary results written.
+	 */
+	private void recordCollection(List<File> members, CollectionReader reader, String name, String error,
+			int secondary) throws IOException {
+		final boolean transformed = (error == null);
+		for (final File inFile : members) {
+			boolean done = false;
+			if (reader.getInvalid().containsKey(inFile)) {
+				recordFailure(inFile, reader.getInvalid().get(inFile));
+				summary.add(RunSummary.INVALID, 1);
+			} else if (reader.getFailed().containsKey(inFile)) {
+				recordFailure(inFile, reader.getFailed().get(inFile));
+				summary.add(RunSummary.FAILED, 1);
+			} else if (!transformed) {
+				recordFailure(inFile, error);
+				summary.add(RunSummary.FAILED, 1);
+			} else {
+				done = true;
+				if (journal != null) {
+					journal.add(inFile, ProgressJournal.DONE);
+				}
+				if (outputIndex != null && packedOutput == null) {
+					outputIndex.add(inFile, outputLayout.getRelativePath(name));
+				}
+				summary.add(RunSummary.AGGREGATED, 1);
+			}
+			if (claims != null) {
+				if (done) {
+					claims.complete(inFile);
+				} else {
+					claims.fail(inFile);
+				}
+			}
+			summary.add(RunSummary.PROCESSED, 1);
+			summary.add(RunSummary.INPUT_BYTES, inFile.length());
+		}
+		if (transformed) {
+			summary.add(RunSummary.COLLECTIONS, 1);
+			summary.add(RunSummary.SECONDARY, secondary);
+		}
+	}
+
+	/**
+	 * Records a failed input file in the failure manifest and the journal.
+	 */
+	private void recordFailure(File inFile, String message) throws IOException {
+		if (failureManifest != null) {
+			failureManifest.add(inFile, message);
+		}
+		if (journal != null) {
+			journal.add(inFile, ProgressJournal.FAILED);
+		}
+	}
+
+	/**
+	 * Skips an input file the prefilter doesn't match, which is done then.
+	 */
+	private boolean isFilteredOut(File inFile) throws IOException {
+		if (where == null || where.matches(inFile)) {
+			return false;
+		}
+		System.out.println("Filtered out: " + inFile.getAbsolutePath());
+		if (journal != null) {
+			journal.add(inFile, ProgressJournal.DONE);
+		}
+		if (claims != null) {
+			claims.complete(inFile);
+		}
+		summary.add(RunSummary.FILTERED, 1);
+		return true;
+	}
+
+	/**
+	 * Reuses the output of an identical input file transformed before, or else
+	 * transforms the input file.
+	 */
+	private String deduplicateAndTransform(File inFile, long start, List<CompletableFuture<Void>> writes)
+			throws Exception {
+		if (deduplicator == null || stylesheet == null) {
+			return admitAndTransform(inFile, writes);
+		}
+		final String hash = deduplicator.hash(inFile);
+		final Deduplicator.Original original = deduplicator.claim(hash);
+		if (original != null) {
+			reuse(original, inFile);
+			return null;
+		}
+		String invalid = null;
+		boolean transformed = false;
+		try {
+			invalid = admitAndTransform(inFile, writes);
+			transformed = (invalid == null);
+		} finally {
+			deduplicator.done(hash,
+					transformed ? new Deduplicator.Original(inFile, System.currentTimeMillis() - start) : null);
+		}
+		return invalid;
+	}
+
+	/**
+	 * Places the output of the original for a duplicate input file.
+	 */
+	private void reuse(Deduplicator.Original original, File inFile) throws IOException {
+		final String name = inFile.getName();
+		System.out.println("Duplicate of: " + original.getInFile().getAbsolutePath() + " " + inFile.getAbsolutePath());
+		if (packedOutput != null) {
+			if (!name.equals(original.getInFile().getName())
+					&& !packedOutput.alias(name, original.getInFile().getName())) {
+				throw new IOException("Packed output not found: " + original.getInFile().getName());
+			}
+		} else {
+			final File outFile = outputLayout.resolve(outDirectory, name);
+			final File source = outputLayout.resolve(outDirectory, original.getInFile().getName());
+			if (!outFile.equals(source)) {
+				outputWriter.link(source, outFile);
+			}
+			if (outputIndex != null) {
+				outputIndex.add(inFile, outputLayout.getRelativePath(name));
+			}
+		}
+		summary.add(RunSummary.DEDUPLICATED, 1);
+		summary.add(RunSummary.DEDUPLICATED_BYTES, inFile.length());
+		summary.add(RunSummary.DEDUPLICATED_SAVED, original.getDuration());
+	}
+
+	/**
+	 * Chooses between the DOM and the stream by the size of an input file, waits
+	 * until its document fits in the memory budget and transforms it. A file too
+	 * large for the budget is always streamed, once no other document is held.
+	 */
+	private String admitAndTransform(File inFile, List<CompletableFuture<Void>> writes) throws Exception {
+		if (stylesheet == null) {
+			return transform(inFile, false, inFile.length(), 0, writes);
+		}
+		final long length = inFile.length();
+		boolean streaming = length > streamingThreshold;
+		long cost = 0;
+		if (memoryBudget != null) {
+			cost = memoryBudget.estimate(length);
+			if (!memoryBudget.fits(cost)) {
+				System.out.println("Streaming, too large for the memory budget: " + inFile.getAbsolutePath());
+				streaming = true;
+				cost = memoryBudget.getBudget();
+			}
+		}
+		if (streaming) {
+			summary.add(RunSummary.STREAMED, 1);
+		}
+		if (memoryBudget == null) {
+			return transform(inFile, streaming, length, cost, writes);
+		}
+		memoryBudget.acquire(cost);
+		try {
+			return transform(inFile, streaming, length, cost, writes);
+		} finally {
+			memoryBudget.release(cost);
+		}
+	}
+
+	/**
+	 * Parses, validates and transforms one input file. The output file is only
+	 * replaced when it is complete; when an error occurs the previous output
+	 * file is removed.
+	 *
+	 * @param inFile
+	 *                  Input file.
+	 * @param streaming
+	 *                  True to transform the file from a stream instead of a DOM.
+	 * @return Null if the file has been processed, or the first validation error
+	 *         if the file is invalid.
+	 * @throws Exception
+	 *                   Signals that the file can't be parsed or transformed.
+	 */
+	public String transform(File inFile, boolean streaming) throws Exception {
+		final List<CompletableFuture<Void>> writes = new ArrayList<CompletableFuture<Void>>();
+		final String invalid = transform(inFile, streaming, inFile.length(), 0, writes);
+		try {
+			CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[writes.size()])).get();
+		} catch (final ExecutionException e) {
+			final Throwable cause = (e.getCause() instanceof CompletionException) ? e.getCause().getCause()
+					: e.getCause();
+			throw (cause instanceof Exception) ? (Exception) cause : e;
+		}
+		return invalid;
+	}
+
+	/**
+	 * Parses, validates and transforms one input file, observing the heap growth
+	 * of the DOM for the memory budget. The commits of the secondary results are
+	 * added to the writes.
+	 */
+	private String transform(File inFile, boolean streaming, long length, long cost,
+			List<CompletableFuture<Void>> writes) throws Exception {
+		final Stylesheet stylesheet = route(inFile);
+		final StringWriter log = new StringWriter();
+		final SAXErrorLogger errorLogger = validate ? new SAXErrorLogger(log) : null;
+		final File outFile = (stylesheet != null && packedOutput == null && mapReduce == null)
+				? outputLayout.resolve(outDirectory, inFile.getName())
+				: null;
+		boolean transformed = false;
+		try {
+			if (extractor != null) {
+
+				// Evaluate the expressions on the tree of the parser events, the row is kept if the file is valid
+				final String[] values = extractor.extract(
+						(eventCache != null && !validate) ? eventCache.newSource(inFile)
+								: DOMBuilder.newSAXSourceAtPath(inFile, errorLogger));
+				if (errorLogger == null || errorLogger.isValid()) {
+					final String[] row = new String[values.length + 1];
+					row[0] = inFile.getAbsolutePath();
+					System.arraycopy(values, 0, row, 1, values.length);
+					table.writeRow(row);
+					transformed = true;
+				}
+			} else if (stylesheet == null) {
+
+				// Only validate, no document is built
+				try {
+					DOMBuilder.validateDocumentAtPath(inFile, errorLogger);
+				} catch (final SAXException e) {
+
+					// Not well-formed, already logged by the error logger
+				}
+			} else if (mapReduce != null) {
+
+				// Map the input file to a partial result, which is kept if the file is valid
+				final byte[] partial = mapReduce.map(stylesheet,
+						(eventCache != null && !validate) ? eventCache.newSource(inFile)
+								: DOMBuilder.newSAXSourceAtPath(inFile, errorLogger));
+				if (errorLogger == null || errorLogger.isValid()) {
+					System.out.println("Mapped: " + inFile.getAbsolutePath());
+					mapReduce.add(partial);
+					transformed = true;
+				}
+			} else if (eventCache != null && !validate) {
+
+				// Replay the parser events recorded by this or an earlier run
+				try (Output output = createOutput(inFile.getName(), outFile)) {
+					commit(output, transformToOutput(stylesheet, eventCache.newSource(inFile), output), writes);
+					transformed = true;
+				}
+			} else if (streaming) {
+
+				// The stylesheet reads the parser events, validation errors are collected on the way
+				try (Output output = createOutput(inFile.getName(), outFile)) {
+					final ResultSplitter splitter = transformToOutput(stylesheet,
+							DOMBuilder.newSAXSourceAtPath(inFile, errorLogger), output);
+					if (errorLogger == null || errorLogger.isValid()) {
+						commit(output, splitter, writes);
+						transformed = true;
+					} else if (splitter != null) {
+						splitter.discard();
+					}
+				}
+			} else {
+
+				// Parse the input file, validating it if required
+				final long before = (memoryBudget != null) ? MemoryBudget.usedMemory() : 0;
+				Document document = null;
+				CompactDocument compactDocument = null;
+				try {
+					if (documentModel == DocumentModel.COMPACT) {
+						compactDocument = DOMBuilder.parseCompactDocumentAtPath(inFile, errorLogger);
+					} else if (validate) {
+						document = DOMBuilder.parseDocumentAtPath(inFile, errorLogger);
+					} else {
+						document = DOMBuilder.parseDocumentAtPath(inFile);
+					}
+				} catch (final SAXException e) {
+					if (errorLogger == null) {
+						throw e;
+					}
+
+					// Not well-formed, already logged by the error logger
+				}
+				if (memoryBudget != null && compactDocument == null) {
+					memoryBudget.observe(length, cost, MemoryBudget.usedMemory() - before);
+				}
+
+				if (errorLogger == null || errorLogger.isValid()) {
+
+					// Transform the input document
+					try (Output output = createOutput(inFile.getName(), outFile)) {
+						commit(output, transformToOutput(stylesheet,
+								(compactDocument != null) ? compactDocument.newSource() : new DOMSource(document),
+								output), writes);
+					}
+					transformed = true;
+
+					// Xalan reads the compact tree through a node numbering of its own, which
+					// holds the heap next to it until the transformation ends
+					if (memoryBudget != null && compactDocument != null) {
+						memoryBudget.observe(length, cost, MemoryBudget.usedMemory() - before);
+					}
+				}
+			}
+		} finally {
+			if (outFile != null && !transformed) {
+				outFile.delete();
+			}
+		}
+		if (transformed && outputIndex != null && outFile != null) {
+			outputIndex.add(inFile, outputLayout.getRelativePath(inFile.getName()));
+		}
+		if (errorLogger != null && !errorLogger.isValid()) {
+
+			// Report the invalid file
+			System.out.println("Invalid: " + inFile.getAbsolutePath() + SAXErrorLogger.LF + log);
+			return errorLogger.getFirstError();
+		}
+		return null;
+	}
+
+	/**
+	 * Chooses the stylesheet of an input file.
+	 */
+	private Stylesheet route(File inFile) throws Exception {
+		if (router == null || stylesheet == null) {
+			return stylesheet;
+		}
+		final Stylesheet routed = router.route(inFile);
+		if (routed == null) {
+			return stylesheet;
+		}
+		summary.add(RunSummary.ROUTED, 1);
+		return routed;
+	}
+
+	/**
+	 * Transforms a source to an output, splitting the secondary results off if
+	 * there are writers for them.
+	 *
+	 * @return The splitter of the secondary results, which are committed with
+	 *         the output, or null.
+	 */
+	private ResultSplitter transformToOutput(Stylesheet stylesheet, Source source, Output output) throws Exception {
+		if (resultWriter == null) {
+			stylesheet.transformSourceToStream(source, parameters, output, null);
+			return null;
+		}
+		final ResultSplitter splitter = new ResultSplitter(stylesheet.newSerializer(output), outDirectory,
+				stylesheet::newSerializer, resultWriter);
+		try {
+			stylesheet.transformSourceToHandler(source, parameters, splitter, null);
+		} catch (final Exception e) {
+			splitter.discard();
+			throw e;
+		}
+		return splitter;
+	}
+
+	/**
+	 * Creates an output, packed or as a separate file.
+	 */
+	private Output createOutput(String name, File outFile) throws IOException {
+		if (packedOutput != null) {
+			System.out.println("Transforming to pack: " + name);
+			return packedOutput.create(name);
+		}
+		System.out.println("Transforming to: " + outFile.getAbsolutePath());
+		return outputWriter.create(outFile);
+	}
+
+	/**
+	 * Commits an output and counts it if it was unchanged.
+	 */
+	private void commit(Output output) throws IOException {
+		if (!output.commit()) {
+			summary.add(RunSummary.UNCHANGED, 1);
+		}
+	}
+
+	/**
+	 * Commits an output, then commits its secondary results without waiting for
+	 * them. The input file is only recorded as done once the writes have
+	 * succeeded.
+	 */
+	private void commit(Output output, ResultSplitter splitter, List<CompletableFuture<Void>> writes)
+			throws IOException {
+		if (splitter == null) {
+			commit(output);
+			return;
+		}
+		try {
+			commit(output);
+		} catch (final IOException e) {
+			splitter.discard();
+			throw e;
+		}
+		writes.addAll(splitter.commit());
+	}
+}
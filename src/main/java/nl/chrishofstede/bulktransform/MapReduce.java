@@ -0,0 +1,203 @@
+package nl.chrishofstede.bulktransform;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.sax.SAXSource;
+
+import org.xml.sax.InputSource;
+
+import nl.chrishofstede.bulktransform.compact.EventStreamWriter;
+import nl.chrishofstede.bulktransform.utils.Parameters;
+
+/**
+ * Builds one result from all input files of a run: the stylesheet of the run
+ * maps each input file to a partial result, and a reducing stylesheet merges
+ * the partial results until one is left, which is the only result written.
+ *
+ * <p>
+ * The partial results are kept in memory as event streams. The reducer reads a
+ * <code>&lt;collection&gt;</code> of up to the fan-in partial results and
+ * writes one partial result of the same form, so the reduction is a tree: the
+ * worker thread that adds the partial result completing a group reduces it
+ * and adds the outcome in turn, while the other threads carry on mapping. The
+ * last group is reduced when all input files are done. The order in which the
+ * partial results are merged isn't defined, so the reducer has to give the
+ * same result in any order.
+ * </p>
+ */
+public class MapReduce {
+
+	/** File name of the result in the output folder. */
+	public static final String FILE_NAME = "reduced.xml";
+
+	/** Default number of partial results merged at once. */
+	public static final int DEFAULT_FAN_IN = 16;
+
+	/** Stylesheet merging a collection of partial results into one. */
+	private final Stylesheet reducer;
+
+	/** Parameters of the stylesheets. */
+	private final Parameters parameters;
+
+	/** Number of partial results merged at once. */
+	private final int fanIn;
+
+	/** Partial results waiting to be merged. */
+	private final List<byte[]> pending = new ArrayList<byte[]>();
+
+	/** Number of partial results merged by the reducer. */
+	private final AtomicInteger reduced = new AtomicInteger();
+
+	/** Number of times the reducer ran. */
+	private final AtomicInteger reductions = new AtomicInteger();
+
+	/** First failure of the reducer, after which the result would be incomplete. */
+	private volatile Exception failure = null;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param reducer
+	 *                   Stylesheet merging a collection of partial results into
+	 *                   one.
+	 * @param parameters
+	 *                   Parameters of the stylesheets.
+	 * @param fanIn
+	 *                   Number of partial results merged at once, at least 2.
+	 */
+	public MapReduce(Stylesheet reducer, Parameters parameters, int fanIn) {
+		if (fanIn < 2) {
+			throw new IllegalArgumentException("fan-in must be at least 2");
+		}
+		this.reducer = reducer;
+		this.parameters = parameters;
+		this.fanIn = fanIn;
+	}
+
+	/**
+	 * Maps an input document to a partial result.
+	 *
+	 * @param mapper
+	 *                   Stylesheet of the run.
+	 * @param source
+	 *                   Source of the input document.
+	 * @return The partial result as an event stream.
+	 * @throws Exception
+	 *                   Signals that the document can't be parsed or
+	 *                   transformed.
+	 */
+	public byte[] map(Stylesheet mapper, Source source) throws Exception {
+		final ByteArrayOutputStream partial = new ByteArrayOutputStream(1024);
+		mapper.transformSourceToHandler(source, parameters, new EventStreamWriter(partial), null);
+		return partial.toByteArray();
+	}
+
+	/**
+	 * Adds a partial result, and merges a group of partial results on the
+	 * calling thread whenever one is complete.
+	 *
+	 * @param partial
+	 *                Partial result as an event stream.
+	 * @throws Exception
+	 *                   Signals that the reducer failed.
+	 */
+	public void add(byte[] partial) throws Exception {
+		while (true) {
+			final List<byte[]> group;
+			synchronized (pending) {
+				pending.add(partial);
+				if (pending.size() < fanIn) {
+					return;
+				}
+				group = new ArrayList<byte[]>(pending);
+				pending.clear();
+			}
+			try {
+				partial = reduce(group);
+			} catch (final Exception e) {
+				if (failure == null) {
+					failure = e;
+				}
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Merges the partial results left into the result. Call it once, after all
+	 * partial results have been added.
+	 *
+	 * @param result
+	 *               Stream the result is written to.
+	 * @return False if there are no partial results, so nothing has been
+	 *         written.
+	 * @throws Exception
+	 *                   Signals that the reducer failed, now or before.
+	 */
+	public boolean finish(OutputStream result) throws Exception {
+		if (failure != null) {
+			throw new Exception("Partial results lost by a failed reduction: " + App.getExceptionMessage(failure),
+					failure);
+		}
+		final List<byte[]> group;
+		synchronized (pending) {
+			group = new ArrayList<byte[]>(pending);
+			pending.clear();
+		}
+		if (group.isEmpty()) {
+			return false;
+		}
+		reducer.transformSourceToStream(collectionOf(group), parameters, result, null);
+		count(group);
+		return true;
+	}
+
+	/**
+	 * Merges a group of partial results into one.
+	 */
+	private byte[] reduce(List<byte[]> group) throws Exception {
+		final ByteArrayOutputStream partial = new ByteArrayOutputStream(1024);
+		reducer.transformSourceToHandler(collectionOf(group), parameters, new EventStreamWriter(partial), null);
+		count(group);
+		return partial.toByteArray();
+	}
+
+	/**
+	 * Creates a collection document of partial results.
+	 */
+	private static SAXSource collectionOf(List<byte[]> group) {
+		return new SAXSource(CollectionReader.ofEventStreams(group), new InputSource(FILE_NAME));
+	}
+
+	/**
+	 * Counts a run of the reducer.
+	 */
+	private void count(List<byte[]> group) {
+		reduced.addAndGet(group.size());
+		reductions.incrementAndGet();
+	}
+
+	/**
+	 * Gets the number of partial results merged by the reducer, including the
+	 * intermediate ones.
+	 *
+	 * @return Number of partial results.
+	 */
+	public int getReduced() {
+		return reduced.get();
+	}
+
+	/**
+	 * Gets the number of times the reducer ran.
+	 *
+	 * @return Number of reductions.
+	 */
+	public int getReductions() {
+		return reductions.get();
+	}
+}
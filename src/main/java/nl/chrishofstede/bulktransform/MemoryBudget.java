@@ -0,0 +1,232 @@
+package nl.chrishofstede.bulktransform;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Admission control for the documents held in memory at the same time. The
+ * heap cost of a document is estimated from the size of its file and an
+ * inflation factor, which is refined by observing the heap while a document is
+ * parsed. A file is admitted when its cost fits in what is left of the budget,
+ * otherwise its thread waits until enough documents have been released. Files
+ * are admitted in the order they ask, so large files aren't starved by a stream
+ * of small ones. A file that would never fit isn't parsed into a DOM at all.
+ */
+public class MemoryBudget {
+
+	/** Initial number of heap bytes per file byte of a parsed DOM. */
+	public static final double DEFAULT_INFLATION = 8;
+
+	/** Lowest inflation factor accepted from an observation. */
+	private static final double MIN_INFLATION = 2;
+
+	/** Highest inflation factor accepted from an observation. */
+	private static final double MAX_INFLATION = 32;
+
+	/** Weight of a new observation in the inflation factor. */
+	private static final double OBSERVATION_WEIGHT = 0.2;
+
+	/** Smallest file in bytes of which the heap is observed. */
+	private static final long MIN_OBSERVED_LENGTH = 1024 * 1024;
+
+	/** Maximum heap in bytes held by the admitted documents. */
+	private final long budget;
+
+	/** Heap bytes per file byte. */
+	private double inflation = DEFAULT_INFLATION;
+
+	/** Estimated heap held by the admitted documents. */
+	private long inFlight = 0;
+
+	/** Highest estimated heap held at the same time. */
+	private long peak = 0;
+
+	/** Number of admissions that had to wait. */
+	private long delayed = 0;
+
+	/** Ticket of the next thread asking for admission. */
+	private long nextTicket = 0;
+
+	/** Ticket of the thread which is admitted next. */
+	private long servedTicket = 0;
+
+	/** Tickets of threads which were interrupted while waiting. */
+	private final Set<Long> abandoned = new HashSet<Long>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param budget
+	 *               Maximum heap in bytes held by the admitted documents.
+	 */
+	public MemoryBudget(long budget) {
+		if (budget <= 0) {
+			throw new IllegalArgumentException("budget must be positive");
+		}
+		this.budget = budget;
+	}
+
+	/**
+	 * Creates a budget as a fraction of the maximum heap, -Xmx.
+	 *
+	 * @param fraction
+	 *                 Fraction of the maximum heap, between 0 and 1.
+	 * @return The budget.
+	 */
+	public static MemoryBudget ofMaxMemory(double fraction) {
+		if (fraction <= 0 || fraction > 1) {
+			throw new IllegalArgumentException("fraction must be between 0 and 1");
+		}
+		return new MemoryBudget((long) (Runtime.getRuntime().maxMemory() * fraction));
+	}
+
+	/**
+	 * Estimates the heap cost of the DOM of a file.
+	 *
+	 * @param length
+	 *               Size of the file in bytes.
+	 * @return Estimated heap bytes.
+	 */
+	public synchronized long estimate(long length) {
+		return (long) (length * inflation);
+	}
+
+	/**
+	 * Indicates if a cost can ever be admitted.
+	 *
+	 * @param cost
+	 *             Estimated heap bytes.
+	 * @return True if the cost fits in the budget.
+	 */
+	public boolean fits(long cost) {
+		return cost <= budget;
+	}
+
+	/**
+	 * Waits until a cost fits in what is left of the budget and admits it. A cost
+	 * larger than the budget is admitted once nothing else is held.
+	 *
+	 * @param cost
+	 *             Estimated heap bytes.
+	 * @throws InterruptedException
+	 *                              Signals that the thread was interrupted while
+	 *                              waiting.
+	 */
+	public synchronized void acquire(long cost) throws InterruptedException {
+		final long ticket = nextTicket++;
+		boolean waited = false;
+		try {
+			while (ticket != servedTicket || (inFlight > 0 && inFlight + cost > budget)) {
+				waited = true;
+				wait();
+			}
+		} catch (final InterruptedException e) {
+
+			// Give up the turn, so the threads behind don't wait forever
+			if (ticket == servedTicket) {
+				advance();
+			} else {
+				abandoned.add(ticket);
+			}
+			notifyAll();
+			throw e;
+		}
+		advance();
+		inFlight += cost;
+		peak = Math.max(peak, inFlight);
+		if (waited) {
+			delayed++;
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Serves the next ticket which hasn't been given up.
+	 */
+	private void advance() {
+		servedTicket++;
+		while (abandoned.remove(servedTicket)) {
+			servedTicket++;
+		}
+	}
+
+	/**
+	 * Releases an admitted cost.
+	 *
+	 * @param cost
+	 *             Estimated heap bytes, as admitted.
+	 */
+	public synchronized void release(long cost) {
+		inFlight -= cost;
+		notifyAll();
+	}
+
+	/**
+	 * Refines the inflation factor with the heap growth observed while a file was
+	 * parsed, or parsed and transformed when the transformation builds a tree
+	 * of its own. The observation is only used when the document was the only one
+	 * admitted, since the heap is shared with the other threads, and when the
+	 * file is large enough to stand out from the noise.
+	 *
+	 * @param length
+	 *               Size of the file in bytes.
+	 * @param cost
+	 *               Estimated heap bytes, as admitted.
+	 * @param growth
+	 *               Growth of the used heap in bytes while parsing, or parsing
+	 *               and transforming.
+	 */
+	public synchronized void observe(long length, long cost, long growth) {
+		if (inFlight != cost || length < MIN_OBSERVED_LENGTH || growth <= 0) {
+			return;
+		}
+		final double observed = Math.min(MAX_INFLATION, Math.max(MIN_INFLATION, (double) growth / length));
+		inflation = (1 - OBSERVATION_WEIGHT) * inflation + OBSERVATION_WEIGHT * observed;
+	}
+
+	/**
+	 * Gets the used heap, for observing the growth while a file is parsed.
+	 *
+	 * @return Used heap in bytes.
+	 */
+	public static long usedMemory() {
+		final Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * Gets the budget.
+	 *
+	 * @return Maximum heap in bytes held by the admitted documents.
+	 */
+	public long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Gets the current inflation factor.
+	 *
+	 * @return Heap bytes per file byte.
+	 */
+	public synchronized double getInflation() {
+		return inflation;
+	}
+
+	/**
+	 * Gets the highest estimated heap held at the same time.
+	 *
+	 * @return Heap bytes.
+	 */
+	public synchronized long getPeak() {
+		return peak;
+	}
+
+	/**
+	 * Gets the number of admissions that had to wait.
+	 *
+	 * @return Number of delayed files.
+	 */
+	public synchronized long getDelayed() {
+		return delayed;
+	}
+}
@@ -0,0 +1,116 @@
+package nl.chrishofstede.bulktransform;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Index of the output files of a run, mapping each input file to the path of
+ * its output file relative to the output folder. Each line holds the absolute
+ * path of the input file and the relative output path, separated by a tab, and
+ * escaped like in the failure manifest. Like the manifest, every line is
+ * flushed when it is recorded, so the index of a killed run is complete up to
+ * the last output file and can be resumed.
+ */
+public class OutputIndex implements Closeable {
+
+	/** Default file name of the index in the output folder. */
+	public static final String FILE_NAME = "bulktransform-index.tsv";
+
+	/** Comment prefix of the header line. */
+	private static final String COMMENT = "#";
+
+	/** Writer of the index. */
+	private final Writer writer;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param file
+	 *               Index file.
+	 * @param resume
+	 *               True to append to the index of the previous run, which is
+	 *               being resumed, false to start a new index.
+	 * @throws IOException
+	 *                     Signals that the index can't be created.
+	 */
+	public OutputIndex(File file, boolean resume) throws IOException {
+		if (file == null) {
+			throw new IllegalArgumentException("file is null");
+		}
+		final boolean append = resume && file.exists();
+		writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, append), StandardCharsets.UTF_8));
+		if (!append) {
+			writer.write(COMMENT + " input\toutput\n");
+			writer.flush();
+		}
+	}
+
+	/**
+	 * Records the output file of an input file.
+	 *
+	 * @param input
+	 *               Input file.
+	 * @param output
+	 *               Path of the output file relative to the output folder.
+	 * @throws IOException
+	 *                     Signals that the index can't be written.
+	 */
+	public synchronized void add(File input, String output) throws IOException {
+		writer.write(FailureManifest.escape(input.getAbsolutePath()));
+		writer.write('\t');
+		writer.write(FailureManifest.escape(output));
+		writer.write('\n');
+
+		// Keep the index up to date in case the run is killed
+		writer.flush();
+	}
+
+	/**
+	 * Closes the index.
+	 *
+	 * @throws IOException
+	 *                     Signals that the index can't be written.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		writer.close();
+	}
+
+	/**
+	 * Reads an index. When an input file occurs more than once, the last output
+	 * path counts.
+	 *
+	 * @param file
+	 *             Index file.
+	 * @return The relative output paths by absolute input path, in the order
+	 *         they were recorded.
+	 * @throws IOException
+	 *                     Signals that the index can't be read.
+	 */
+	public static Map<String, String> read(File file) throws IOException {
+		final Map<String, String> outputs = new LinkedHashMap<String, String>();
+		try (BufferedReader reader = new BufferedReader(
+				new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				final int tab = line.indexOf('\t');
+				if (tab > 0 && !line.startsWith(COMMENT)) {
+					outputs.put(FailureManifest.unescape(line.substring(0, tab)),
+							FailureManifest.unescape(line.substring(tab + 1)));
+				}
+			}
+		}
+		return outputs;
+	}
+}
@@ -0,0 +1,223 @@
+package nl.chrishofstede.bulktransform;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import nl.chrishofstede.bulktransform.output.OutputWriter;
+
+/**
+ * Append-only journal of the input files which have been completed in a run,
+ * so a run that has been killed can be resumed where it stopped.
+ *
+ * <p>
+ * Each record is one line with a CRC-32 checksum, a status and the absolute
+ * path of the input file, separated by tabs. A record is appended with a single
+ * write, and a record which was torn by a crash fails its checksum and is
+ * ignored when the journal is read. The journal is synced to disk in batches:
+ * after a number of records or after an interval, whichever comes first, and
+ * when it is closed.
+ * </p>
+ *
+ * <p>
+ * When the output files are synced in groups, the records are held back until
+ * the next sync of the journal, which first syncs the pending group of output
+ * files, so the journal never has a file whose output isn't durable yet.
+ * </p>
+ */
+public class ProgressJournal implements Closeable {
+
+	/** Default file name of the journal in the output folder. */
+	public static final String FILE_NAME = "bulktransform-journal.log";
+
+	/** Status of a file which has been processed. */
+	public static final char DONE = 'D';
+
+	/** Status of a file which has failed, it is in the failure manifest. */
+	public static final char FAILED = 'F';
+
+	/** Number of records after which the journal is synced. */
+	private static final int SYNC_RECORDS = 256;
+
+	/** Interval in milliseconds after which the journal is synced. */
+	private static final long SYNC_INTERVAL = 1000;
+
+	/** Channel appending to the journal. */
+	private final FileChannel channel;
+
+	/** Number of records written since the last sync. */
+	private int unsynced = 0;
+
+	/** Time of the last sync. */
+	private long lastSync = System.currentTimeMillis();
+
+	/** Writer of the output files synced before the records, or null. */
+	private OutputWriter outputWriter = null;
+
+	/** Records held back until the output files are synced. */
+	private final ByteArrayOutputStream held = new ByteArrayOutputStream();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param file
+	 *               Journal file.
+	 * @param resume
+	 *               True to continue the journal of a previous run, false to
+	 *               start a new one.
+	 * @throws IOException
+	 *                     Signals that the journal can't be opened.
+	 */
+	public ProgressJournal(File file, boolean resume) throws IOException {
+		if (file == null) {
+			throw new IllegalArgumentException("file is null");
+		}
+		if (resume) {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+
+			// Append to the end, terminating a torn last record, so it doesn't swallow the next record
+			final long size = channel.size();
+			channel.position(size);
+			if (size > 0) {
+				final ByteBuffer last = ByteBuffer.allocate(1);
+				channel.read(last, size - 1);
+				if (last.get(0) != '\n') {
+					channel.write(ByteBuffer.wrap(new byte[] { '\n' }));
+				}
+			}
+		} else {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+		}
+	}
+
+	/**
+	 * Sets the writer of output files which are synced in groups, so the records
+	 * are held back until their output files are synced.
+	 *
+	 * @param outputWriter
+	 *                     Writer of the output files, or null to write the
+	 *                     records at once.
+	 */
+	public synchronized void setOutputWriter(OutputWriter outputWriter) {
+		this.outputWriter = outputWriter;
+	}
+
+	/**
+	 * Records a completed input file.
+	 *
+	 * @param input
+	 *               Input file which has been completed.
+	 * @param status
+	 *               {@link #DONE} or {@link #FAILED}.
+	 * @throws IOException
+	 *                     Signals that the journal can't be written.
+	 */
+	public synchronized void add(File input, char status) throws IOException {
+		final String path = FailureManifest.escape(input.getAbsolutePath());
+		final String payload = status + "\t" + path;
+		final CRC32 crc = new CRC32();
+		crc.update(payload.getBytes(StandardCharsets.UTF_8));
+		final String record = String.format("%08x\t%s\n", crc.getValue(), payload);
+
+		// Write the whole record at once, unless its output file isn't synced yet
+		final byte[] bytes = record.getBytes(StandardCharsets.UTF_8);
+		if (outputWriter != null) {
+			held.write(bytes, 0, bytes.length);
+		} else {
+			write(bytes);
+		}
+
+		// Sync in batches to limit the cost of the durability
+		unsynced++;
+		if (unsynced >= SYNC_RECORDS || System.currentTimeMillis() - lastSync >= SYNC_INTERVAL) {
+			sync();
+		}
+	}
+
+	/**
+	 * Writes bytes to the journal in a single write.
+	 */
+	private void write(byte[] bytes) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Syncs the records written so far to disk. The records held back are
+	 * written after their output files have been synced.
+	 *
+	 * @throws IOException
+	 *                     Signals that the output files or the journal can't be
+	 *                     synced.
+	 */
+	public synchronized void sync() throws IOException {
+		if (unsynced > 0) {
+			if (held.size() > 0) {
+				outputWriter.syncRemaining();
+				write(held.toByteArray());
+				held.reset();
+			}
+			channel.force(false);
+			unsynced = 0;
+		}
+		lastSync = System.currentTimeMillis();
+	}
+
+	/**
+	 * Syncs and closes the journal.
+	 *
+	 * @throws IOException
+	 *                     Signals that the journal can't be synced.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (channel.isOpen()) {
+			sync();
+			channel.close();
+		}
+	}
+
+	/**
+	 * Reads the completed input files of a journal. Torn or corrupted records are
+	 * ignored.
+	 *
+	 * @param file
+	 *             Journal file.
+	 * @return The status of the completed input files by absolute path.
+	 * @throws IOException
+	 *                     Signals that the journal can't be read.
+	 */
+	public static Map<String, Character> read(File file) throws IOException {
+		final Map<String, Character> completed = new HashMap<String, Character>();
+		if (file.isFile()) {
+			// A torn record may end in the middle of a character, so decode leniently
+			final String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+			for (final String line : content.split("\n")) {
+				final int tab = line.indexOf('\t');
+				if (tab != 8 || line.length() < tab + 3 || line.charAt(tab + 2) != '\t') {
+					continue;
+				}
+				final String payload = line.substring(tab + 1);
+				final CRC32 crc = new CRC32();
+				crc.update(payload.getBytes(StandardCharsets.UTF_8));
+				if (String.format("%08x", crc.getValue()).equals(line.substring(0, tab))) {
+					completed.put(FailureManifest.unescape(payload.substring(2)), payload.charAt(0));
+				}
+			}
+		}
+		return completed;
+	}
+}
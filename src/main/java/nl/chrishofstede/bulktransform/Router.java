@@ -0,0 +1,212 @@
+package nl.chrishofstede.bulktransform;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Routing table choosing the stylesheet of each input file by its root
+ * element or its file name. The table is a text file with one rule per line:
+ * a pattern and the stylesheet files, separated by white space. The
+ * stylesheet files are separated by commas, applied in order, and relative to
+ * the folder of the table. Empty lines and lines starting with # are skipped.
+ * The first rule that matches wins. The patterns are:
+ * <ul>
+ * <li><code>file:glob</code> the file name, like <code>file:inv-*.xml</code>;</li>
+ * <li><code>{uri}name</code> the root element in a namespace;</li>
+ * <li><code>{uri}*</code> any root element in a namespace;</li>
+ * <li><code>{}name</code> the root element without a namespace;</li>
+ * <li><code>name</code> the local name of the root element in any
+ * namespace.</li>
+ * </ul>
+ * The root element is read with StAX up to its start tag, the rest of the file
+ * isn't read, and only when a rule needs it.
+ */
+public class Router {
+
+	/** Prefix of the file name patterns. */
+	public static final String FILE_PREFIX = "file:";
+
+	/** Wildcard of the local name. */
+	public static final String ANY_NAME = "*";
+
+	/** Reader factory, for the root elements only, so the DTDs aren't read. */
+	private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+	static {
+		INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+	}
+
+	/** A line of the routing table. */
+	private static class Rule {
+
+		/** File name matcher, null for a root element rule. */
+		PathMatcher fileName = null;
+
+		/** Namespace URI of the root element, null for any. */
+		String namespace = null;
+
+		/** Local name of the root element, null for any. */
+		String localName = null;
+
+		/** Stylesheet files in the order they are applied. */
+		File[] stylesheets;
+	}
+
+	/** Rules in the order they are tried. */
+	private final List<Rule> rules = new ArrayList<Rule>();
+
+	/** Compiled stylesheets. */
+	private final StylesheetRegistry registry;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param table
+	 *                 Routing table file.
+	 * @param registry
+	 *                 Registry the routed stylesheets are compiled in.
+	 * @throws IOException
+	 *                     Signals that the table can't be read, has an invalid
+	 *                     rule or refers to a stylesheet that doesn't exist.
+	 */
+	public Router(File table, StylesheetRegistry registry) throws IOException {
+		this.registry = registry;
+		final File folder = table.getAbsoluteFile().getParentFile();
+		int number = 0;
+		for (final String line : Files.readAllLines(table.toPath(), StandardCharsets.UTF_8)) {
+			number++;
+			final String trimmed = line.trim();
+			if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+				continue;
+			}
+			final String[] columns = trimmed.split("\\s+", 2);
+			if (columns.length < 2) {
+				throw new IOException("No stylesheet on line " + number + " of " + table + ": " + trimmed);
+			}
+			final Rule rule = parsePattern(columns[0]);
+			final String[] names = columns[1].trim().split("\\s*,\\s*");
+			rule.stylesheets = new File[names.length];
+			for (int i = 0; i < names.length; i++) {
+				final File stylesheet = new File(names[i]).isAbsolute() ? new File(names[i])
+						: new File(folder, names[i]);
+				if (!stylesheet.isFile()) {
+					throw new IOException("Stylesheet on line " + number + " of " + table + " doesn't exist: "
+							+ stylesheet);
+				}
+				rule.stylesheets[i] = stylesheet;
+			}
+			rules.add(rule);
+		}
+	}
+
+	/**
+	 * Parses the pattern of a rule.
+	 */
+	private static Rule parsePattern(String pattern) throws IOException {
+		final Rule rule = new Rule();
+		if (pattern.startsWith(FILE_PREFIX)) {
+			rule.fileName = FileSystems.getDefault().getPathMatcher("glob:" + pattern.substring(FILE_PREFIX.length()));
+		} else if (pattern.startsWith("{")) {
+			final int end = pattern.indexOf('}');
+			if (end < 0) {
+				throw new IOException("Namespace not closed: " + pattern);
+			}
+			rule.namespace = pattern.substring(1, end);
+			final String localName = pattern.substring(end + 1);
+			rule.localName = (localName.isEmpty() || ANY_NAME.equals(localName)) ? null : localName;
+		} else {
+			rule.localName = pattern;
+		}
+		return rule;
+	}
+
+	/**
+	 * Chooses the stylesheet of an input file.
+	 *
+	 * @param inFile
+	 *               Input file.
+	 * @return The compiled stylesheet of the first rule that matches, or null if
+	 *         no rule matches.
+	 * @throws Exception
+	 *                   Signals that the root element can't be read or the
+	 *                   stylesheet can't be compiled.
+	 */
+	public Stylesheet route(File inFile) throws Exception {
+		final File[] stylesheets = match(inFile);
+		return (stylesheets != null) ? registry.get(stylesheets) : null;
+	}
+
+	/**
+	 * Finds the stylesheet files of the first rule that matches an input file.
+	 *
+	 * @param inFile
+	 *               Input file.
+	 * @return Stylesheet files or null if no rule matches.
+	 * @throws IOException
+	 *                     Signals that the root element can't be read.
+	 */
+	File[] match(File inFile) throws IOException {
+		QName root = null;
+		for (final Rule rule : rules) {
+			if (rule.fileName != null) {
+				if (rule.fileName.matches(inFile.toPath().getFileName())) {
+					return rule.stylesheets;
+				}
+				continue;
+			}
+			if (root == null) {
+				root = peekRoot(inFile);
+			}
+			if ((rule.namespace == null || rule.namespace.equals(root.getNamespaceURI()))
+					&& (rule.localName == null || rule.localName.equals(root.getLocalPart()))) {
+				return rule.stylesheets;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Reads the name of the root element of a file, without reading the rest of
+	 * the file.
+	 *
+	 * @param file
+	 *             XML file.
+	 * @return Namespace URI, empty if none, and local name of the root element.
+	 * @throws IOException
+	 *                     Signals that the file can't be read or has no root
+	 *                     element.
+	 */
+	public static QName peekRoot(File file) throws IOException {
+		try (InputStream in = new BufferedInputStream(new FileInputStream(file), 8192)) {
+			final XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(in);
+			try {
+				while (reader.hasNext()) {
+					if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+						final String namespace = reader.getNamespaceURI();
+						return new QName(namespace == null ? "" : namespace, reader.getLocalName());
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (final XMLStreamException e) {
+			throw new IOException("Root element not readable: " + file + " " + e.getMessage(), e);
+		}
+		throw new IOException("No root element: " + file);
+	}
+}
@@ -0,0 +1,171 @@
+package nl.chrishofstede.bulktransform;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+
+/**
+ * Summary of a run: counters of the processed input files and the elapsed time.
+ * A run that processes one shard of the input files writes its own summary,
+ * and the summaries of all shards can be merged into one report.
+ */
+public class RunSummary {
+
+	/** Default file name of the summary in the output folder. */
+	public static final String FILE_NAME = "bulktransform-summary.properties";
+
+	// Counter names
+	public static final String MATCHED = "files.matched";
+	public static final String PROCESSED = "files.processed";
+	public static final String FAILED = "files.failed";
+	public static final String INVALID = "files.invalid";
+	public static final String SKIPPED = "files.skipped";
+	public static final String STREAMED = "files.streamed";
+	public static final String UNCHANGED = "files.unchanged";
+	public static final String DEDUPLICATED = "files.deduplicated";
+	public static final String DEDUPLICATED_BYTES = "bytes.deduplicated";
+	public static final String DEDUPLICATED_SAVED = "deduplicated.saved.ms";
+	public static final String AGGREGATED = "files.aggregated";
+	public static final String COLLECTIONS = "collections";
+	public static final String SECONDARY = "files.secondary";
+	public static final String ROUTED = "files.routed";
+	public static final String FILTERED = "files.filtered";
+	public static final String INPUT_BYTES = "bytes.input";
+	public static final String ELAPSED = "elapsed.ms";
+
+	/** Property listing the shards which have been merged in the summary. */
+	public static final String SHARDS = "shards";
+
+	/** Counters in the order they were first used. */
+	private final Map<String, Long> counters = new LinkedHashMap<String, Long>();
+
+	/** Shards in the summary, null if the input files weren't sharded. */
+	private String shards = null;
+
+	/**
+	 * Adds a value to a counter.
+	 *
+	 * @param name
+	 *              Name of the counter.
+	 * @param delta
+	 *              Value to be added.
+	 */
+	public synchronized void add(String name, long delta) {
+		final Long value = counters.get(name);
+		counters.put(name, (value == null) ? delta : value + delta);
+	}
+
+	/**
+	 * Gets the value of a counter.
+	 *
+	 * @param name
+	 *             Name of the counter.
+	 * @return The value of the counter, 0 if it hasn't been used.
+	 */
+	public synchronized long get(String name) {
+		final Long value = counters.get(name);
+		return (value == null) ? 0 : value;
+	}
+
+	/**
+	 * Sets the shard of the run.
+	 *
+	 * @param shard
+	 *              Shard in the notation i/n.
+	 */
+	public synchronized void setShard(String shard) {
+		this.shards = shard;
+	}
+
+	/**
+	 * Merges another summary into this one. Counters are summed, except the
+	 * elapsed time, which is the longest of the two since the shards run at the
+	 * same time, and the matched files, which every shard sees in full.
+	 *
+	 * @param other
+	 *              Summary to be merged.
+	 */
+	public synchronized void merge(RunSummary other) {
+		synchronized (other) {
+			for (final Map.Entry<String, Long> counter : other.counters.entrySet()) {
+				if (ELAPSED.equals(counter.getKey()) || MATCHED.equals(counter.getKey())) {
+					counters.put(counter.getKey(), Math.max(get(counter.getKey()), counter.getValue()));
+				} else {
+					add(counter.getKey(), counter.getValue());
+				}
+			}
+			if (other.shards != null) {
+				shards = (shards == null) ? other.shards : shards + "," + other.shards;
+			}
+		}
+	}
+
+	/**
+	 * Writes the summary to a properties file.
+	 *
+	 * @param file
+	 *             Summary file.
+	 * @throws IOException
+	 *                     Signals that the summary can't be written.
+	 */
+	public synchronized void write(File file) throws IOException {
+		final Properties properties = new Properties();
+		for (final Map.Entry<String, Long> counter : counters.entrySet()) {
+			properties.setProperty(counter.getKey(), counter.getValue().toString());
+		}
+		if (shards != null) {
+			properties.setProperty(SHARDS, shards);
+		}
+		try (OutputStream out = new FileOutputStream(file)) {
+			properties.store(out, "bulktransform run summary");
+		}
+	}
+
+	/**
+	 * Reads a summary from a properties file.
+	 *
+	 * @param file
+	 *             Summary file.
+	 * @return The summary.
+	 * @throws IOException
+	 *                     Signals that the summary can't be read.
+	 */
+	public static RunSummary read(File file) throws IOException {
+		final Properties properties = new Properties();
+		try (InputStream in = new FileInputStream(file)) {
+			properties.load(in);
+		}
+		final RunSummary summary = new RunSummary();
+		for (final String name : new TreeSet<String>(properties.stringPropertyNames())) {
+			if (SHARDS.equals(name)) {
+				summary.shards = properties.getProperty(name);
+			} else {
+				summary.counters.put(name, Long.parseLong(properties.getProperty(name).trim()));
+			}
+		}
+		return summary;
+	}
+
+	/**
+	 * Prints the summary in a human readable form.
+	 *
+	 * @param out
+	 *            Stream to print to.
+	 */
+	public synchronized void print(PrintStream out) {
+		if (shards != null) {
+			out.println("Shards: " + shards);
+		}
+		for (final Map.Entry<String, Long> counter : counters.entrySet()) {
+			out.println(counter.getKey() + ": " + counter.getValue());
+		}
+	}
+}
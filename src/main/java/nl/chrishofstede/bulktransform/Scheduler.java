@@ -0,0 +1,89 @@
+package nl.chrishofstede.bulktransform;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Orders the input files of a parallel run, longest processing time first, so
+ * one large file that would come last in the listing doesn't keep the run going
+ * long after the other workers have finished.
+ */
+public class Scheduler {
+
+	/** Order in which the input files are processed. */
+	public enum Order {
+
+		/** Order of the file listing. */
+		LISTING,
+
+		/** Largest files first. */
+		SIZE,
+
+		/** Longest durations of previous runs first, unknown files by size. */
+		HISTORY;
+
+		/**
+		 * Parses an order name, ignoring case.
+		 *
+		 * @param name
+		 *             listing, size or history.
+		 * @return The order.
+		 */
+		public static Order parse(String name) {
+			try {
+				return valueOf(name.trim().toUpperCase());
+			} catch (final IllegalArgumentException e) {
+				throw new IllegalArgumentException("schedule must be listing, size or history: " + name);
+			}
+		}
+	}
+
+	/**
+	 * Prevents instantiation.
+	 */
+	private Scheduler() {
+	}
+
+	/**
+	 * Orders the input files.
+	 *
+	 * @param files
+	 *                Input files in the order of the listing.
+	 * @param order
+	 *                Order in which the files are processed.
+	 * @param history
+	 *                Durations of previous runs, only used for
+	 *                {@link Order#HISTORY}, may be null.
+	 * @return The files in the order they are to be started.
+	 */
+	public static List<File> order(List<File> files, Order order, DurationHistory history) {
+		if (order == Order.LISTING) {
+			return files;
+		}
+
+		// Determine the sizes once, files with the same weight keep the order of the listing
+		final int count = files.size();
+		final double[] weights = new double[count];
+		final Integer[] indices = new Integer[count];
+		for (int i = 0; i < count; i++) {
+			final File file = files.get(i);
+			final long length = file.length();
+			weights[i] = (order == Order.HISTORY && history != null) ? history.estimate(file, length) : length;
+			indices[i] = i;
+		}
+		Arrays.sort(indices, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Double.compare(weights[b], weights[a]);
+			}
+		});
+		final List<File> ordered = new ArrayList<File>(count);
+		for (final Integer index : indices) {
+			ordered.add(files.get(index));
+		}
+		return ordered;
+	}
+}
@@ -0,0 +1,744 @@
+package nl.chrishofstede.bulktransform;
+
+import nl.chrishofstede.bulktransform.output.OutputLayout;
+import nl.chrishofstede.bulktransform.output.OutputWriter;
+import nl.chrishofstede.bulktransform.output.TableWriter;
+
+/**
+ * Settings of a bulk transform run as given on the command line.
+ */
+public class Settings {
+
+	/** Input file names, wildcards allowed. */
+	private String[] in = null;
+
+	/** XSLT stylesheet file names in the order they are applied. */
+	private String[] xsl = null;
+
+	/** Output folder. */
+	private String out = null;
+
+	/** Maximum size in bytes of the document() lookup cache, 0 if disabled. */
+	private long documentCacheSize = 0;
+
+	/** XML catalog files resolving the external DTDs and entities. */
+	private String[] catalog = null;
+
+	/** XSD schema the input files are validated against. */
+	private String validate = null;
+
+	/** Failure manifest file, null for the default location. */
+	private String failureManifest = null;
+
+	/** Only process the input files in the failure manifest. */
+	private boolean retryFailed = false;
+
+	/** Skip the input files completed according to the journal. */
+	private boolean resume = false;
+
+	/** Slice of the input files processed by this node, null for all files. */
+	private Shard shard = null;
+
+	/** Shared work folder the input files are claimed through, null if not shared. */
+	private String workDir = null;
+
+	/** Name of this worker in the names of its run files, null for the host name. */
+	private String worker = null;
+
+	/** Number of input files processed at the same time. */
+	private int threads = 1;
+
+	/** Order in which the input files are processed. */
+	private Scheduler.Order schedule = Scheduler.Order.SIZE;
+
+	/** Fraction of the maximum heap the parsed documents may take, 0 for no limit. */
+	private double memoryBudget = 0.5;
+
+	/** Size in bytes above which a file is streamed, -1 to calibrate it. */
+	private long streamingThreshold = StreamingThreshold.DEFAULT;
+
+	/** When the output files are synced to disk. */
+	private OutputWriter.Durability durability = OutputWriter.Durability.NONE;
+
+	/** Number of output files synced at once with a group sync. */
+	private int groupSize = OutputWriter.DEFAULT_GROUP_SIZE;
+
+	/** Leave output files untouched when the new output is identical. */
+	private boolean skipUnchanged = false;
+
+	/** Layout of the output files in the output folder. */
+	private OutputLayout outputLayout = OutputLayout.FLAT;
+
+	/** Maximum size of a segment of the packed outputs, 0 to write separate files. */
+	private long packedSegmentSize = 0;
+
+	/** Tree the input files are parsed into. */
+	private FileProcessor.DocumentModel documentModel = FileProcessor.DocumentModel.DOM;
+
+	/** Transform only the first of identical input files. */
+	private boolean deduplicate = false;
+
+	/** Folder of the cached parser events of the input files, null if not cached. */
+	private String eventCache = null;
+
+	/** Number of input files transformed together as one collection, 0 to transform them one by one. */
+	private int aggregateBatchSize = 0;
+
+	/** Stylesheet merging the partial results into one result, null if not reduced. */
+	private String reduce = null;
+
+	/** Number of threads writing the secondary results of the stylesheet, 0 if it has only its main result. */
+	private int multiOutputThreads = 0;
+
+	/** Routing table of the stylesheets by input file, null to transform all files with -xsl. */
+	private String route = null;
+
+	/** Maximum estimated heap in bytes of the compiled routed stylesheets. */
+	private long routeCacheSize = StylesheetRegistry.DEFAULT_MAXIMUM_SIZE;
+
+	/** Prefilter expression of the input files, null to process all files. */
+	private String where = null;
+
+	/** Column file of the values extracted instead of a transformation, null to transform. */
+	private String extract = null;
+
+	/** Format of the table of extracted values. */
+	private TableWriter.Format extractFormat = TableWriter.Format.CSV;
+
+	/**
+	 * Gets the input file names.
+	 *
+	 * @return Input file names, wildcards allowed.
+	 */
+	public String[] getIn() {
+		return in;
+	}
+
+	/**
+	 * Sets the input file names.
+	 *
+	 * @param in
+	 *           Input file names, wildcards allowed.
+	 */
+	public void setIn(String[] in) {
+		this.in = in;
+	}
+
+	/**
+	 * Gets the XSLT stylesheet file names.
+	 *
+	 * @return XSLT stylesheet file names in the order they are applied.
+	 */
+	public String[] getXsl() {
+		return xsl;
+	}
+
+	/**
+	 * Sets the XSLT stylesheet file names.
+	 *
+	 * @param xsl
+	 *            XSLT stylesheet file names in the order they are applied.
+	 */
+	public void setXsl(String[] xsl) {
+		this.xsl = xsl;
+	}
+
+	/**
+	 * Gets the output folder.
+	 *
+	 * @return Output folder.
+	 */
+	public String getOut() {
+		return out;
+	}
+
+	/**
+	 * Sets the output folder.
+	 *
+	 * @param out
+	 *            Output folder.
+	 */
+	public void setOut(String out) {
+		this.out = out;
+	}
+
+	/**
+	 * Gets the maximum size of the document() lookup cache.
+	 *
+	 * @return Maximum size in bytes, 0 if the cache is disabled.
+	 */
+	public long getDocumentCacheSize() {
+		return documentCacheSize;
+	}
+
+	/**
+	 * Sets the maximum size of the document() lookup cache.
+	 *
+	 * @param documentCacheSize
+	 *                          Maximum size in bytes, 0 to disable the cache.
+	 */
+	public void setDocumentCacheSize(long documentCacheSize) {
+		this.documentCacheSize = documentCacheSize;
+	}
+
+	/**
+	 * Gets the XML catalog files.
+	 *
+	 * @return XML catalog files or null if no catalog is used.
+	 */
+	public String[] getCatalog() {
+		return catalog;
+	}
+
+	/**
+	 * Sets the XML catalog files resolving the external DTDs and entities.
+	 *
+	 * @param catalog
+	 *                XML catalog files or null if no catalog is used.
+	 */
+	public void setCatalog(String[] catalog) {
+		this.catalog = catalog;
+	}
+
+	/**
+	 * Gets the XSD schema the input files are validated against.
+	 *
+	 * @return XSD schema file or null if the input files aren't validated.
+	 */
+	public String getValidate() {
+		return validate;
+	}
+
+	/**
+	 * Sets the XSD schema the input files are validated against.
+	 *
+	 * @param validate
+	 *                 XSD schema file or null if the input files aren't
+	 *                 validated.
+	 */
+	public void setValidate(String validate) {
+		this.validate = validate;
+	}
+
+	/**
+	 * Gets the failure manifest file.
+	 *
+	 * @return Failure manifest file or null for the default location.
+	 */
+	public String getFailureManifest() {
+		return failureManifest;
+	}
+
+	/**
+	 * Sets the failure manifest file.
+	 *
+	 * @param failureManifest
+	 *                        Failure manifest file or null for the default
+	 *                        location.
+	 */
+	public void setFailureManifest(String failureManifest) {
+		this.failureManifest = failureManifest;
+	}
+
+	/**
+	 * Indicates if only the input files in the failure manifest are processed.
+	 *
+	 * @return True if the failures of the previous run are retried.
+	 */
+	public boolean isRetryFailed() {
+		return retryFailed;
+	}
+
+	/**
+	 * Sets if only the input files in the failure manifest are processed.
+	 *
+	 * @param retryFailed
+	 *                    True to retry the failures of the previous run.
+	 */
+	public void setRetryFailed(boolean retryFailed) {
+		this.retryFailed = retryFailed;
+	}
+
+	/**
+	 * Indicates if the input files completed according to the journal are
+	 * skipped.
+	 *
+	 * @return True if an interrupted run is resumed.
+	 */
+	public boolean isResume() {
+		return resume;
+	}
+
+	/**
+	 * Sets if the input files completed according to the journal are skipped.
+	 *
+	 * @param resume
+	 *               True to resume an interrupted run.
+	 */
+	public void setResume(boolean resume) {
+		this.resume = resume;
+	}
+
+	/**
+	 * Gets the slice of the input files processed by this node.
+	 *
+	 * @return The shard or null if all input files are processed.
+	 */
+	public Shard getShard() {
+		return shard;
+	}
+
+	/**
+	 * Sets the slice of the input files processed by this node.
+	 *
+	 * @param shard
+	 *              The shard or null to process all input files.
+	 */
+	public void setShard(Shard shard) {
+		this.shard = shard;
+	}
+
+	/**
+	 * Gets the shared work folder the input files are claimed through.
+	 *
+	 * @return The work folder or null if the input files aren't shared with
+	 *         other workers.
+	 */
+	public String getWorkDir() {
+		return workDir;
+	}
+
+	/**
+	 * Sets the shared work folder the input files are claimed through.
+	 *
+	 * @param workDir
+	 *                The work folder or null if the input files aren't shared
+	 *                with other workers.
+	 */
+	public void setWorkDir(String workDir) {
+		this.workDir = workDir;
+	}
+
+	/**
+	 * Gets the name of this worker, which its run files are named after when
+	 * the input files are claimed through a work folder.
+	 *
+	 * @return The name given, or else the host name.
+	 */
+	public String getWorker() {
+		return worker != null ? worker : WorkClaims.getHostName();
+	}
+
+	/**
+	 * Sets the name of this worker, which its run files are named after when
+	 * the input files are claimed through a work folder.
+	 *
+	 * @param worker
+	 *               The name, or null for the host name.
+	 */
+	public void setWorker(String worker) {
+		this.worker = worker;
+	}
+
+	/**
+	 * Gets the number of input files processed at the same time.
+	 *
+	 * @return Number of worker threads.
+	 */
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Sets the number of input files processed at the same time.
+	 *
+	 * @param threads
+	 *                Number of worker threads.
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * Gets the order in which the input files are processed.
+	 *
+	 * @return The order.
+	 */
+	public Scheduler.Order getSchedule() {
+		return schedule;
+	}
+
+	/**
+	 * Sets the order in which the input files are processed.
+	 *
+	 * @param schedule
+	 *                 The order.
+	 */
+	public void setSchedule(Scheduler.Order schedule) {
+		this.schedule = schedule;
+	}
+
+	/**
+	 * Gets the fraction of the maximum heap the parsed documents may take
+	 * together.
+	 *
+	 * @return Fraction between 0 and 1, 0 for no limit.
+	 */
+	public double getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	/**
+	 * Sets the fraction of the maximum heap the parsed documents may take
+	 * together.
+	 *
+	 * @param memoryBudget
+	 *                     Fraction between 0 and 1, 0 for no limit.
+	 */
+	public void setMemoryBudget(double memoryBudget) {
+		this.memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * Gets the size above which input files are transformed from a stream
+	 * instead of a DOM.
+	 *
+	 * @return Size in bytes, -1 to calibrate it with a benchmark.
+	 */
+	public long getStreamingThreshold() {
+		return streamingThreshold;
+	}
+
+	/**
+	 * Sets the size above which input files are transformed from a stream
+	 * instead of a DOM.
+	 *
+	 * @param streamingThreshold
+	 *                           Size in bytes, -1 to calibrate it with a
+	 *                           benchmark.
+	 */
+	public void setStreamingThreshold(long streamingThreshold) {
+		this.streamingThreshold = streamingThreshold;
+	}
+
+	/**
+	 * Gets when the output files are synced to disk.
+	 *
+	 * @return The durability.
+	 */
+	public OutputWriter.Durability getDurability() {
+		return durability;
+	}
+
+	/**
+	 * Sets when the output files are synced to disk.
+	 *
+	 * @param durability
+	 *                   The durability.
+	 */
+	public void setDurability(OutputWriter.Durability durability) {
+		this.durability = durability;
+	}
+
+	/**
+	 * Gets the number of output files synced at once with a group sync.
+	 *
+	 * @return Number of files.
+	 */
+	public int getGroupSize() {
+		return groupSize;
+	}
+
+	/**
+	 * Sets the number of output files synced at once with a group sync.
+	 *
+	 * @param groupSize
+	 *                  Number of files.
+	 */
+	public void setGroupSize(int groupSize) {
+		this.groupSize = groupSize;
+	}
+
+	/**
+	 * Indicates if output files are left untouched when the new output is
+	 * identical.
+	 *
+	 * @return True if unchanged output files are skipped.
+	 */
+	public boolean isSkipUnchanged() {
+		return skipUnchanged;
+	}
+
+	/**
+	 * Sets if output files are left untouched when the new output is identical.
+	 *
+	 * @param skipUnchanged
+	 *                      True to skip unchanged output files.
+	 */
+	public void setSkipUnchanged(boolean skipUnchanged) {
+		this.skipUnchanged = skipUnchanged;
+	}
+
+	/**
+	 * Gets the layout of the output files in the output folder.
+	 *
+	 * @return The output layout.
+	 */
+	public OutputLayout getOutputLayout() {
+		return outputLayout;
+	}
+
+	/**
+	 * Sets the layout of the output files in the output folder.
+	 *
+	 * @param outputLayout
+	 *                     The output layout.
+	 */
+	public void setOutputLayout(OutputLayout outputLayout) {
+		this.outputLayout = outputLayout;
+	}
+
+	/**
+	 * Gets the maximum size of a segment of the packed outputs.
+	 *
+	 * @return Size in bytes, 0 if the outputs are written to separate files.
+	 */
+	public long getPackedSegmentSize() {
+		return packedSegmentSize;
+	}
+
+	/**
+	 * Sets the maximum size of a segment of the packed outputs.
+	 *
+	 * @param packedSegmentSize
+	 *                          Size in bytes, 0 to write separate files.
+	 */
+	public void setPackedSegmentSize(long packedSegmentSize) {
+		this.packedSegmentSize = packedSegmentSize;
+	}
+
+	/**
+	 * Indicates if only the first of identical input files is transformed.
+	 *
+	 * @return True if identical input files are deduplicated.
+	 */
+	public boolean isDeduplicate() {
+		return deduplicate;
+	}
+
+	/**
+	 * Sets if only the first of identical input files is transformed, and its
+	 * output reused for the others.
+	 *
+	 * @param deduplicate
+	 *                    True to deduplicate identical input files.
+	 */
+	public void setDeduplicate(boolean deduplicate) {
+		this.deduplicate = deduplicate;
+	}
+
+	/**
+	 * Gets the tree the input files are parsed into.
+	 *
+	 * @return The document model.
+	 */
+	public FileProcessor.DocumentModel getDocumentModel() {
+		return documentModel;
+	}
+
+	/**
+	 * Sets the tree the input files are parsed into.
+	 *
+	 * @param documentModel
+	 *                      The document model.
+	 */
+	public void setDocumentModel(FileProcessor.DocumentModel documentModel) {
+		this.documentModel = documentModel;
+	}
+
+	/**
+	 * Gets the folder of the cached parser events of the input files.
+	 *
+	 * @return Cache folder or null if the events aren't cached.
+	 */
+	public String getEventCache() {
+		return eventCache;
+	}
+
+	/**
+	 * Sets the folder of the cached parser events of the input files.
+	 *
+	 * @param eventCache
+	 *                   Cache folder or null if the events aren't cached.
+	 */
+	public void setEventCache(String eventCache) {
+		this.eventCache = eventCache;
+	}
+
+	/**
+	 * Gets the number of input files transformed together as one collection
+	 * document.
+	 *
+	 * @return Batch size, 0 if the input files are transformed one by one.
+	 */
+	public int getAggregateBatchSize() {
+		return aggregateBatchSize;
+	}
+
+	/**
+	 * Sets the number of input files transformed together as one collection
+	 * document.
+	 *
+	 * @param aggregateBatchSize
+	 *                           Batch size, 0 to transform the input files one by
+	 *                           one.
+	 */
+	public void setAggregateBatchSize(int aggregateBatchSize) {
+		this.aggregateBatchSize = aggregateBatchSize;
+	}
+
+	/**
+	 * Gets the stylesheet merging the partial results of the input files into
+	 * one result.
+	 *
+	 * @return Stylesheet file name or null if the outputs aren't reduced.
+	 */
+	public String getReduce() {
+		return reduce;
+	}
+
+	/**
+	 * Sets the stylesheet merging the partial results of the input files into
+	 * one result.
+	 *
+	 * @param reduce
+	 *               Stylesheet file name or null if the outputs aren't reduced.
+	 */
+	public void setReduce(String reduce) {
+		this.reduce = reduce;
+	}
+
+	/**
+	 * Gets the number of threads writing the secondary results of the
+	 * stylesheet.
+	 *
+	 * @return Number of threads, 0 if the stylesheet has only its main result.
+	 */
+	public int getMultiOutputThreads() {
+		return multiOutputThreads;
+	}
+
+	/**
+	 * Sets the number of threads writing the secondary results of the
+	 * stylesheet.
+	 *
+	 * @param multiOutputThreads
+	 *                           Number of threads, 0 if the stylesheet has only
+	 *                           its main result.
+	 */
+	public void setMultiOutputThreads(int multiOutputThreads) {
+		this.multiOutputThreads = multiOutputThreads;
+	}
+
+	/**
+	 * Gets the routing table choosing the stylesheet of each input file.
+	 *
+	 * @return Routing table file name or null if all input files are
+	 *         transformed with the same stylesheet.
+	 */
+	public String getRoute() {
+		return route;
+	}
+
+	/**
+	 * Sets the routing table choosing the stylesheet of each input file.
+	 *
+	 * @param route
+	 *              Routing table file name or null if all input files are
+	 *              transformed with the same stylesheet.
+	 */
+	public void setRoute(String route) {
+		this.route = route;
+	}
+
+	/**
+	 * Gets the maximum estimated heap of the compiled routed stylesheets.
+	 *
+	 * @return Size in bytes.
+	 */
+	public long getRouteCacheSize() {
+		return routeCacheSize;
+	}
+
+	/**
+	 * Sets the maximum estimated heap of the compiled routed stylesheets.
+	 *
+	 * @param routeCacheSize
+	 *                       Size in bytes.
+	 */
+	public void setRouteCacheSize(long routeCacheSize) {
+		this.routeCacheSize = routeCacheSize;
+	}
+
+	/**
+	 * Gets the prefilter expression the input files have to match to be
+	 * processed.
+	 *
+	 * @return Expression or null if all input files are processed.
+	 */
+	public String getWhere() {
+		return where;
+	}
+
+	/**
+	 * Sets the prefilter expression the input files have to match to be
+	 * processed.
+	 *
+	 * @param where
+	 *              Expression or null if all input files are processed.
+	 */
+	public void setWhere(String where) {
+		this.where = where;
+	}
+
+	/**
+	 * Gets the column file of the values extracted from the input files instead
+	 * of transforming them.
+	 *
+	 * @return Column file name or null if the input files are transformed.
+	 */
+	public String getExtract() {
+		return extract;
+	}
+
+	/**
+	 * Sets the column file of the values extracted from the input files instead
+	 * of transforming them.
+	 *
+	 * @param extract
+	 *                Column file name or null if the input files are
+	 *                transformed.
+	 */
+	public void setExtract(String extract) {
+		this.extract = extract;
+	}
+
+	/**
+	 * Gets the format of the table of extracted values.
+	 *
+	 * @return Table format.
+	 */
+	public TableWriter.Format getExtractFormat() {
+		return extractFormat;
+	}
+
+	/**
+	 * Sets the format of the table of extracted values.
+	 *
+	 * @param extractFormat
+	 *                      Table format.
+	 */
+	public void setExtractFormat(TableWriter.Format extractFormat) {
+		this.extractFormat = extractFormat;
+	}
+}
@@ -0,0 +1,146 @@
+package nl.chrishofstede.bulktransform;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Deterministic slice of the input files, so one batch can be spread over
+ * several machines. A file belongs to the shard selected by a stable hash of
+ * its path relative to the current folder. Every node that runs with the same
+ * input file names from the same relative location gets a disjoint slice, and
+ * together the slices cover all input files.
+ */
+public class Shard {
+
+	/** Index of this shard, from 1 to count. */
+	private final int index;
+
+	/** Number of shards. */
+	private final int count;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param index
+	 *              Index of this shard, from 1 to count.
+	 * @param count
+	 *              Number of shards.
+	 */
+	public Shard(int index, int count) {
+		if (count < 1 || index < 1 || index > count) {
+			throw new IllegalArgumentException("shard must be i/n with 1 <= i <= n");
+		}
+		this.index = index;
+		this.count = count;
+	}
+
+	/**
+	 * Parses a shard in the notation i/n.
+	 *
+	 * @param shard
+	 *              Shard in the notation i/n, for example 3/8.
+	 * @return The shard.
+	 * @throws IllegalArgumentException
+	 *                                  Signals that the shard isn't in the
+	 *                                  notation i/n or out of range.
+	 */
+	public static Shard parse(String shard) {
+		final int slash = (shard != null) ? shard.indexOf('/') : -1;
+		if (slash < 0) {
+			throw new IllegalArgumentException("shard must be i/n: " + shard);
+		}
+		try {
+			return new Shard(Integer.parseInt(shard.substring(0, slash).trim()),
+					Integer.parseInt(shard.substring(slash + 1).trim()));
+		} catch (final NumberFormatException e) {
+			throw new IllegalArgumentException("shard must be i/n: " + shard, e);
+		}
+	}
+
+	/**
+	 * Indicates if a file belongs to this shard.
+	 *
+	 * @param file
+	 *             Input file.
+	 * @param base
+	 *             Folder the path of the file is made relative to.
+	 * @return True if the file belongs to this shard.
+	 */
+	public boolean contains(File file, File base) {
+		return slice(file, base, count) == index - 1;
+	}
+
+	/**
+	 * Selects the files which belong to this shard.
+	 *
+	 * @param files
+	 *              All input files.
+	 * @param base
+	 *              Folder the paths of the files are made relative to.
+	 * @return The files of this shard, in the original order.
+	 */
+	public List<File> select(List<File> files, File base) {
+		final List<File> selected = new ArrayList<File>();
+		for (final File file : files) {
+			if (contains(file, base)) {
+				selected.add(file);
+			}
+		}
+		return selected;
+	}
+
+	/**
+	 * Computes the slice of a file from a stable hash of its relative path.
+	 *
+	 * @param file
+	 *              Input file.
+	 * @param base
+	 *              Folder the path of the file is made relative to.
+	 * @param count
+	 *              Number of slices.
+	 * @return Slice from 0 to count - 1.
+	 */
+	static int slice(File file, File base, int count) {
+		final Path basePath = base.getAbsoluteFile().toPath().normalize();
+		final Path path = file.getAbsoluteFile().toPath().normalize();
+		String relative = path.startsWith(basePath) ? basePath.relativize(path).toString() : path.toString();
+
+		// The same separator on every platform
+		relative = relative.replace(File.separatorChar, '/');
+		final CRC32 crc = new CRC32();
+		crc.update(relative.getBytes(StandardCharsets.UTF_8));
+		return (int) (crc.getValue() % count);
+	}
+
+	/**
+	 * Gets the index of this shard.
+	 *
+	 * @return Index from 1 to the number of shards.
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	/**
+	 * Gets the number of shards.
+	 *
+	 * @return Number of shards.
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns the shard in the notation i/n.
+	 *
+	 * @return A string representation of the shard.
+	 */
+	@Override
+	public String toString() {
+		return index + "/" + count;
+	}
+}
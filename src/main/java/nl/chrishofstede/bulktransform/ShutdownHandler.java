@@ -0,0 +1,65 @@
+package nl.chrishofstede.bulktransform;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Handles a graceful shutdown of a run on SIGTERM or Ctrl-C. When the JVM is
+ * asked to shut down, no new files are started, the files in flight are
+ * finished and the journal is synced before the JVM exits.
+ */
+public class ShutdownHandler {
+
+	/** Set when a shutdown has been requested. */
+	private volatile boolean stopRequested = false;
+
+	/** Released when the run has drained its files in flight. */
+	private final CountDownLatch drained = new CountDownLatch(1);
+
+	/** Hook run by the JVM when it shuts down. */
+	private final Thread hook = new Thread("bulktransform-shutdown") {
+		@Override
+		public void run() {
+			stopRequested = true;
+			System.out.println("Shutdown requested, finishing files in flight...");
+			try {
+				drained.await();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	};
+
+	/**
+	 * Installs the shutdown hook.
+	 */
+	public void install() {
+		Runtime.getRuntime().addShutdownHook(hook);
+	}
+
+	/**
+	 * Indicates if a shutdown has been requested, so no new files should be
+	 * started.
+	 *
+	 * @return True if the run should stop.
+	 */
+	public boolean isStopRequested() {
+		return stopRequested;
+	}
+
+	/**
+	 * Signals that the run has finished its files in flight, released its
+	 * resources and written its run files, such as the durations and the
+	 * summary. The shutdown hook is removed if the JVM isn't shutting down.
+	 */
+	public void drained() {
+		drained.countDown();
+		if (!stopRequested) {
+			try {
+				Runtime.getRuntime().removeShutdownHook(hook);
+			} catch (final IllegalStateException e) {
+
+				// The JVM is already shutting down
+			}
+		}
+	}
+}
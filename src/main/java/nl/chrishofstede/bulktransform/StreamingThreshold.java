@@ -0,0 +1,140 @@
+package nl.chrishofstede.bulktransform;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.commons.io.output.NullOutputStream;
+
+import nl.chrishofstede.bulktransform.utils.Parameters;
+
+/**
+ * Size above which input files are transformed from a SAX stream instead of a
+ * DOM. The threshold can be calibrated with a quick benchmark, which transforms
+ * a few input files of different sizes both ways and discards the output.
+ */
+public class StreamingThreshold {
+
+	/** Default threshold in bytes. */
+	public static final long DEFAULT = 64L * 1024 * 1024;
+
+	/** Number of input files sampled by the benchmark. */
+	private static final int SAMPLES = 5;
+
+	/** Largest input file sampled by the benchmark. */
+	private static final long MAX_SAMPLE_LENGTH = 32L * 1024 * 1024;
+
+	/** Number of times each sample is transformed each way, the fastest counts. */
+	private static final int ROUNDS = 2;
+
+	/**
+	 * Prevents instantiation.
+	 */
+	private StreamingThreshold() {
+	}
+
+	/**
+	 * Calibrates the threshold by transforming samples of the input files both
+	 * ways. The threshold is set below the smallest sample from which on the
+	 * stream is at least as fast as the DOM.
+	 *
+	 * @param files
+	 *                   Input files.
+	 * @param stylesheet
+	 *                   Stylesheet the input files are transformed with.
+	 * @param parameters
+	 *                   Parameters of the stylesheet.
+	 * @return The threshold in bytes.
+	 */
+	public static long calibrate(List<File> files, Stylesheet stylesheet, Parameters parameters) {
+
+		// Take samples evenly spread over the sizes of the input files
+		final List<File> candidates = new ArrayList<File>();
+		for (final File file : files) {
+			if (file.length() <= MAX_SAMPLE_LENGTH) {
+				candidates.add(file);
+			}
+		}
+		if (candidates.isEmpty()) {
+			return DEFAULT;
+		}
+		Collections.sort(candidates, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return Long.compare(a.length(), b.length());
+			}
+		});
+		final List<File> samples = new ArrayList<File>();
+		for (int i = 0; i < SAMPLES; i++) {
+			final File sample = candidates.get((int) ((long) (candidates.size() - 1) * i / Math.max(SAMPLES - 1, 1)));
+			if (!samples.contains(sample)) {
+				samples.add(sample);
+			}
+		}
+
+		// Warm up both ways on the smallest sample that can be transformed
+		boolean warm = false;
+		for (int i = 0; i < samples.size() && !warm; i++) {
+			warm = time(samples.get(i), false, stylesheet, parameters) >= 0
+					&& time(samples.get(i), true, stylesheet, parameters) >= 0;
+		}
+		if (!warm) {
+			return DEFAULT;
+		}
+
+		// From the largest sample down, find where the DOM starts to win
+		long threshold = 0;
+		for (int i = samples.size() - 1; i >= 0; i--) {
+			final File sample = samples.get(i);
+			long dom = Long.MAX_VALUE;
+			long stream = Long.MAX_VALUE;
+			for (int round = 0; round < ROUNDS; round++) {
+				dom = min(dom, time(sample, false, stylesheet, parameters));
+				stream = min(stream, time(sample, true, stylesheet, parameters));
+			}
+			if (dom < 0 || stream < 0) {
+				continue;
+			}
+			System.out.println("Calibration: " + sample.length() / 1024 + " KB dom: " + dom / 1000 + " us stream: "
+					+ stream / 1000 + " us");
+			if (dom < stream) {
+				threshold = (i == samples.size() - 1) ? Math.max(DEFAULT, sample.length()) : sample.length();
+				break;
+			}
+		}
+		return threshold;
+	}
+
+	/**
+	 * Gets the smallest of two times, ignoring failures.
+	 */
+	private static long min(long a, long b) {
+		if (a < 0 || b < 0) {
+			return -1;
+		}
+		return Math.min(a, b);
+	}
+
+	/**
+	 * Transforms a sample and discards the output.
+	 *
+	 * @return The time in nanoseconds, or -1 if the sample failed.
+	 */
+	private static long time(File sample, boolean streaming, Stylesheet stylesheet, Parameters parameters) {
+		final long start = System.nanoTime();
+		try {
+			if (streaming) {
+				stylesheet.transformSourceToStream(DOMBuilder.newSAXSourceAtPath(sample, null), parameters,
+						NullOutputStream.INSTANCE, null);
+			} else {
+				stylesheet.transformNodeToStream(DOMBuilder.parseDocumentAtPath(sample), parameters,
+						NullOutputStream.INSTANCE, null);
+			}
+		} catch (final Exception e) {
+			return -1;
+		}
+		return System.nanoTime() - start;
+	}
+}
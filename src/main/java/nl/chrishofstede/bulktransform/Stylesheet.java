@@ -7,29 +7,54 @@ import java.io.OutputStream;
 import java.io.Serializable;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.net.MalformedURLException;
+import java.net.URL;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
 
 import javax.xml.transform.Result;
 import javax.xml.transform.Source;
 import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.URIResolver;
 import javax.xml.transform.dom.DOMResult;
 import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 
 import org.w3c.dom.Node;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
 
+import nl.chrishofstede.bulktransform.compact.CompactDTM;
+import nl.chrishofstede.bulktransform.compact.CompactSource;
+import nl.chrishofstede.bulktransform.output.RedirectFilter;
 import nl.chrishofstede.bulktransform.utils.Parameters;
 import nl.chrishofstede.bulktransform.utils.TransformerErrorListener;
 import nl.chrishofstede.bulktransform.utils.TransformerLoggingErrorListener;
 
 public class Stylesheet implements Serializable {
 
-	private Templates translet = null;
+	/** Compiled stylesheets of the chain in the order they are applied. */
+	private Templates[] translets = null;
+
+	/** Factory which connects the chained stylesheets through SAX events. */
+	private transient SAXTransformerFactory tFactory = null;
+
+	/** Resolver of the URIs in the document() function, shared by all transformations. */
+	private transient URIResolver uriResolver = null;
 
 	/**
-	 * Gets a transformer instance of an specific XSLT stylesheet.
+	 * Gets a transformer instance of the first XSLT stylesheet in the chain.
 	 * 
 	 * @return An instance of the Transformer class can transform a source tree into
 	 *         a result tree.
@@ -37,39 +62,98 @@ public class Stylesheet implements Serializable {
 	 *                   Signals that a non user recoverable error has occurred.
 	 */
 	private Transformer getTransformer() throws Exception {
-		if (translet == null) {
+		if (translets == null || translets[0] == null) {
 			throw new Exception("No translet for returning a transformer");
 		}
 
 		// Retrieve the translet and return a transformer
-		return translet.newTransformer();
+		return translets[0].newTransformer();
 	}
 
 	/**
-	 * Sets an XSL stylesheet translet from a file.
+	 * Gets a SAX transformer handler of a chained XSLT stylesheet.
 	 * 
-	 * @param stylesheet Stylesheet file name.
-	 * @return Compiled stylesheet Templates.
+	 * @param step
+	 *             Index of the stylesheet in the chain.
+	 * @return A handler which transforms the SAX events it receives.
 	 * @throws Exception
 	 *                   Signals that a non user recoverable error has occurred.
 	 */
-	private void setTranslet(File stylesheet) throws Exception {
-		if (stylesheet == null) {
+	private TransformerHandler getTransformerHandler(int step) throws Exception {
+		if (translets[step] == null) {
+			throw new Exception("No translet for returning a transformer handler");
+		}
+
+		// Retrieve the translet and return a transformer handler
+		return tFactory.newTransformerHandler(translets[step]);
+	}
+
+	/**
+	 * Sets the XSL stylesheet translets of the chain from files.
+	 * 
+	 * @param stylesheets  Stylesheet file names in the order they are applied.
+	 * @param splitResults True to compile the Xalan redirect extension elements
+	 *                     into result elements split off the output.
+	 * @throws Exception
+	 *                   Signals that a non user recoverable error has occurred.
+	 */
+	private void setTranslets(File[] stylesheets, boolean splitResults) throws Exception {
+		if (stylesheets == null || stylesheets.length == 0) {
 			throw new IllegalArgumentException("stylesheet is null");
 		}
 
 		// Create a compiled stylesheet via a transformer factory
 		// Make sure Xalan is used
-		final TransformerFactory tFactory = TransformerFactory.newInstance(
+		tFactory = (SAXTransformerFactory) TransformerFactory.newInstance(
 				"org.apache.xalan.processor.TransformerFactoryImpl", null);
 
-		if (stylesheet.exists()) {
-			// Load the stylesheet from local file
-			try (InputStream fis = new FileInputStream(stylesheet)) {
-				final Source xslt = new StreamSource(fis);
-				xslt.setSystemId(stylesheet.toURI().toURL().toString());
-				translet = tFactory.newTemplates(xslt);
+		translets = new Templates[stylesheets.length];
+		if (splitResults) {
+
+			// The included and imported stylesheets are filtered as well
+			tFactory.setURIResolver((href, base) -> {
+				try {
+					return newRedirectSource(
+							new InputSource((base == null) ? href : new URL(new URL(base), href).toString()));
+				} catch (final MalformedURLException e) {
+					throw new TransformerException(e);
+				}
+			});
+		}
+		try {
+			for (int i = 0; i < stylesheets.length; i++) {
+				final File stylesheet = stylesheets[i];
+				if (stylesheet == null) {
+					throw new IllegalArgumentException("stylesheet is null");
+				}
+				if (stylesheet.exists()) {
+					// Load the stylesheet from local file
+					try (InputStream fis = new FileInputStream(stylesheet)) {
+						final InputSource input = new InputSource(fis);
+						input.setSystemId(stylesheet.toURI().toURL().toString());
+						final Source xslt = splitResults ? newRedirectSource(input) : new StreamSource(fis);
+						xslt.setSystemId(input.getSystemId());
+						translets[i] = tFactory.newTemplates(xslt);
+					}
+				}
 			}
+		} finally {
+			tFactory.setURIResolver(null);
+		}
+	}
+
+	/**
+	 * Creates a source of a stylesheet whose redirect extension elements are
+	 * turned into result elements.
+	 */
+	private static Source newRedirectSource(InputSource input) throws TransformerException {
+		try {
+			final SAXParserFactory factory = SAXParserFactory.newInstance("org.apache.xerces.jaxp.SAXParserFactoryImpl",
+					null);
+			factory.setNamespaceAware(true);
+			return new SAXSource(new RedirectFilter(factory.newSAXParser().getXMLReader()), input);
+		} catch (final ParserConfigurationException | SAXException e) {
+			throw new TransformerException(e);
 		}
 	}
 
@@ -80,7 +164,45 @@ public class Stylesheet implements Serializable {
 	 * @throws Exception Signals that a non user recoverable error has occurred.
 	 */
 	Stylesheet(File stylesheet) throws Exception {
-		setTranslet(stylesheet);
+		setTranslets(new File[] { stylesheet }, false);
+	}
+
+	/**
+	 * Constructor of a chain of stylesheets. The output of each stylesheet is
+	 * passed as SAX events to the next stylesheet, so the intermediate results
+	 * are never serialized or parsed again.
+	 * 
+	 * @param stylesheets Stylesheet file names in the order they are applied.
+	 * @throws Exception Signals that a non user recoverable error has occurred.
+	 */
+	Stylesheet(File[] stylesheets) throws Exception {
+		setTranslets(stylesheets, false);
+	}
+
+	/**
+	 * Constructor of a chain of stylesheets whose secondary results are split
+	 * off the output. The elements of the Xalan redirect extension are compiled
+	 * into result elements then, see {@link RedirectFilter}.
+	 * 
+	 * @param stylesheets  Stylesheet file names in the order they are applied.
+	 * @param splitResults True if the secondary results are split off the
+	 *                     output.
+	 * @throws Exception Signals that a non user recoverable error has occurred.
+	 */
+	Stylesheet(File[] stylesheets, boolean splitResults) throws Exception {
+		setTranslets(stylesheets, splitResults);
+	}
+
+	/**
+	 * Sets the resolver of the URIs in the document() function for all
+	 * transformations.
+	 * 
+	 * @param uriResolver
+	 *                    Resolver shared by all transformations or null to use
+	 *                    the default resolution of the processor.
+	 */
+	public void setURIResolver(URIResolver uriResolver) {
+		this.uriResolver = uriResolver;
 	}
 
 	/**
@@ -152,6 +274,79 @@ public class Stylesheet implements Serializable {
 		transformSourceToResult(new DOMSource(node), parameters, new StreamResult(result), log);
 	}
 
+	/**
+	 * Transforms the content of an XML source to an output stream by using an
+	 * XSLT stylesheet. Unlike a DOM node, a SAX source is read while it is
+	 * parsed.
+	 * 
+	 * @param source
+	 *                   Source to be transformed.
+	 * @param parameters
+	 *                   Properties object with transformation parameters.
+	 * @param result
+	 *                   Transformation result output stream.
+	 * @param log
+	 *                   Writer to receive the transformer log output.
+	 * @throws Exception
+	 *                   Signals that a non user recoverable error has occurred.
+	 */
+	public void transformSourceToStream(Source source, Parameters parameters, OutputStream result,
+			Writer log) throws Exception {
+		if (source == null || result == null) {
+			throw new IllegalArgumentException("source or result is null");
+		}
+		transformSourceToResult(source, parameters, new StreamResult(result), log);
+	}
+
+	/**
+	 * Transforms the content of an XML source to SAX events by using an XSLT
+	 * stylesheet, so the result can be consumed without serializing it.
+	 * 
+	 * @param source
+	 *                   Source to be transformed.
+	 * @param parameters
+	 *                   Properties object with transformation parameters.
+	 * @param handler
+	 *                   Receiver of the result events, which also receives the
+	 *                   comments if it is a lexical handler.
+	 * @param log
+	 *                   Writer to receive the transformer log output.
+	 * @throws Exception
+	 *                   Signals that a non user recoverable error has occurred.
+	 */
+	public void transformSourceToHandler(Source source, Parameters parameters, ContentHandler handler,
+			Writer log) throws Exception {
+		if (source == null || handler == null) {
+			throw new IllegalArgumentException("source or handler is null");
+		}
+		final SAXResult result = new SAXResult(handler);
+		if (handler instanceof LexicalHandler) {
+			result.setLexicalHandler((LexicalHandler) handler);
+		}
+		transformSourceToResult(source, parameters, result, log);
+	}
+
+	/**
+	 * Creates a handler serializing the SAX events it receives with the output
+	 * properties of the last stylesheet in the chain, as the result of a
+	 * transformation would be serialized.
+	 *
+	 * @param out
+	 *            Stream the serialized events are written to.
+	 * @return A handler which serializes the SAX events it receives.
+	 * @throws Exception
+	 *                   Signals that a non user recoverable error has occurred.
+	 */
+	public TransformerHandler newSerializer(OutputStream out) throws Exception {
+		if (out == null) {
+			throw new IllegalArgumentException("out is null");
+		}
+		final TransformerHandler serializer = tFactory.newTransformerHandler();
+		serializer.getTransformer().setOutputProperties(translets[translets.length - 1].getOutputProperties());
+		serializer.setResult(new StreamResult(out));
+		return serializer;
+	}
+
 	/**
 	 * Transforms the content of an XML source to a writer by using an XSLT
 	 * stylesheet.
@@ -205,6 +400,42 @@ public class Stylesheet implements Serializable {
 
 		// Obtain a transformer
 		final Transformer transformer = getTransformer();
+		setUpTransformer(transformer, parameters, log);
+
+		// Connect the chained stylesheets from the last one to the first one
+		Result stepResult = result;
+		for (int step = translets.length - 1; step > 0; step--) {
+			final TransformerHandler handler = getTransformerHandler(step);
+			setUpTransformer(handler.getTransformer(), parameters, log);
+			handler.setSystemId(source.getSystemId());
+			handler.setResult(stepResult);
+
+			// The output events of the previous step flow directly into this handler
+			final SAXResult saxResult = new SAXResult(handler);
+			saxResult.setLexicalHandler(handler);
+			stepResult = saxResult;
+		}
+
+		// Transform XML and place the result in a string, a compact tree is read in
+		// place
+		if (source instanceof CompactSource && CompactDTM.canTransform(transformer)) {
+			CompactDTM.transform(transformer, ((CompactSource) source).getDocument(), stepResult);
+		} else {
+			transformer.transform(source, stepResult);
+		}
+	}
+
+	/**
+	 * Sets the error listener and the parameters of a transformer.
+	 * 
+	 * @param transformer
+	 *                    Transformer to be set up.
+	 * @param parameters
+	 *                    Properties object with transformation parameters.
+	 * @param log
+	 *                    Writer to receive the transformer log output.
+	 */
+	private void setUpTransformer(Transformer transformer, Parameters parameters, Writer log) {
 
 		// Set an logging error listener if logging is required
 		if (log != null) {
@@ -213,15 +444,17 @@ public class Stylesheet implements Serializable {
 			transformer.setErrorListener(new TransformerErrorListener());
 		}
 
+		// Set the shared URI resolver if any
+		if (uriResolver != null) {
+			transformer.setURIResolver(uriResolver);
+		}
+
 		// Set transformer parameters if any
 		if (parameters != null) {
 			for (final String key : parameters) {
 				transformer.setParameter(key, parameters.getParameter(key));
 			}
 		}
-
-		// Transform XML and place the result in a string
-		transformer.transform(source, result);
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,222 @@
+package nl.chrishofstede.bulktransform;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import javax.xml.transform.URIResolver;
+
+/**
+ * Compiled stylesheets shared by all files and threads of a run, so every
+ * stylesheet is compiled once instead of once per file. When several threads
+ * ask for a stylesheet that isn't compiled yet, one of them compiles it and
+ * the others wait for it. A stylesheet that fails to compile fails the
+ * lookups waiting for it and is dropped, so it takes no room and is compiled
+ * again by the next lookup.
+ *
+ * <p>
+ * The least recently used stylesheets are evicted when the estimated heap
+ * taken by the compiled stylesheets exceeds the maximum size; an evicted
+ * stylesheet is compiled again when it is needed again. The heap of a compiled
+ * stylesheet isn't measured, it is estimated as {@link #EXPANSION} times the
+ * size of its files.
+ * </p>
+ */
+public class StylesheetRegistry {
+
+	/** Estimated heap taken by a compiled stylesheet per byte of its files. */
+	public static final int EXPANSION = 16;
+
+	/** Default maximum estimated heap of the compiled stylesheets. */
+	public static final long DEFAULT_MAXIMUM_SIZE = 256L * 1024 * 1024;
+
+	/** Maximum estimated heap in bytes of the compiled stylesheets. */
+	private final long maximumSize;
+
+	/** Resolver of the URIs in the document() function, null for none. */
+	private final URIResolver uriResolver;
+
+	/** Compile the redirect extension elements into secondary results. */
+	private volatile boolean splitResults = false;
+
+	/** Estimated heap in bytes of the compiled stylesheets. */
+	private long size = 0;
+
+	/** Stylesheets by their chain of absolute file paths in least recently used order. */
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	// Statistics
+	private long hits = 0;
+	private long compilations = 0;
+	private long evictions = 0;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param maximumSize
+	 *                    Maximum estimated heap in bytes of the compiled
+	 *                    stylesheets.
+	 * @param uriResolver
+	 *                    Resolver of the URIs in the document() function set on
+	 *                    every stylesheet, or null.
+	 */
+	public StylesheetRegistry(long maximumSize, URIResolver uriResolver) {
+		if (maximumSize <= 0) {
+			throw new IllegalArgumentException("maximumSize must be positive");
+		}
+		this.maximumSize = maximumSize;
+		this.uriResolver = uriResolver;
+	}
+
+	/**
+	 * Sets whether the stylesheets are compiled with their secondary results
+	 * split off the output, see {@link Stylesheet#Stylesheet(File[], boolean)}.
+	 *
+	 * @param splitResults
+	 *                     True if the secondary results are split off.
+	 */
+	public void setSplitResults(boolean splitResults) {
+		this.splitResults = splitResults;
+	}
+
+	/**
+	 * Gets a compiled chain of stylesheets, compiling it if it isn't in the
+	 * registry.
+	 *
+	 * @param stylesheets
+	 *                    Stylesheet files in the order they are applied.
+	 * @return The compiled stylesheet.
+	 * @throws Exception
+	 *                   Signals that the stylesheet can't be compiled, now or
+	 *                   before.
+	 */
+	public Stylesheet get(File[] stylesheets) throws Exception {
+		final StringBuilder key = new StringBuilder();
+		long length = 0;
+		for (final File stylesheet : stylesheets) {
+			key.append(stylesheet.getAbsolutePath()).append(File.pathSeparatorChar);
+			length += stylesheet.length();
+		}
+
+		// Claim the compilation of a new stylesheet, or wait for the one claimed
+		final Entry entry;
+		boolean compile = false;
+		synchronized (this) {
+			Entry cached = entries.get(key.toString());
+			if (cached == null) {
+				cached = new Entry(new FutureTask<Stylesheet>(() -> {
+					final Stylesheet compiled = new Stylesheet(stylesheets, splitResults);
+					if (uriResolver != null) {
+						compiled.setURIResolver(uriResolver);
+					}
+					return compiled;
+				}), length * EXPANSION);
+				entries.put(key.toString(), cached);
+				compilations++;
+				compile = true;
+			} else {
+				hits++;
+			}
+			entry = cached;
+		}
+
+		// Compile outside the lock, so other stylesheets can be looked up meanwhile
+		if (compile) {
+			entry.task.run();
+			boolean failed = false;
+			try {
+				entry.task.get();
+			} catch (final ExecutionException e) {
+				failed = true;
+			}
+			synchronized (this) {
+				if (entries.get(key.toString()) == entry) {
+					if (failed) {
+						entries.remove(key.toString());
+					} else {
+						entry.counted = true;
+						size += entry.size;
+						evict(entry);
+					}
+				}
+			}
+		}
+		try {
+			return entry.task.get();
+		} catch (final ExecutionException e) {
+			throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+		}
+	}
+
+	/**
+	 * Evicts the least recently used compiled stylesheets until the registry
+	 * fits its maximum size. The stylesheet just compiled stays, as do the ones
+	 * still being compiled.
+	 */
+	private void evict(Entry keep) {
+		final Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+		while (size > maximumSize && iterator.hasNext()) {
+			final Entry entry = iterator.next().getValue();
+			if (entry != keep && entry.counted) {
+				size -= entry.size;
+				iterator.remove();
+				evictions++;
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of lookups served by a stylesheet compiled before.
+	 *
+	 * @return Number of hits.
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Gets the number of stylesheets compiled.
+	 *
+	 * @return Number of compilations.
+	 */
+	public synchronized long getCompilations() {
+		return compilations;
+	}
+
+	/**
+	 * Gets the number of compiled stylesheets evicted.
+	 *
+	 * @return Number of evictions.
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * Gets the estimated heap taken by the compiled stylesheets.
+	 *
+	 * @return Size in bytes.
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * Compilation of a stylesheet with its estimated heap.
+	 */
+	private static class Entry {
+		final FutureTask<Stylesheet> task;
+		final long size;
+
+		/** True once the size is included in the size of the registry. */
+		boolean counted = false;
+
+		Entry(FutureTask<Stylesheet> task, long size) {
+			this.task = task;
+			this.size = size;
+		}
+	}
+}
@@ -0,0 +1,350 @@
+package nl.chrishofstede.bulktransform;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Prefilter deciding whether an input file is transformed at all, by reading
+ * it with StAX instead of building a document. The expression is a restricted
+ * XPath: an absolute path of element steps, separated by / for a child or //
+ * for a descendant, optionally ending in an attribute step @name, optionally
+ * compared with = or != to a quoted string. The names follow the routing
+ * table: <code>{uri}name</code>, <code>{uri}*</code>, <code>{}name</code>,
+ * a plain local name in any namespace or * for any element. A path without a
+ * leading / matches the root element, like <code>{urn:acme}order</code>.
+ *
+ * <p>
+ * A file matches if a node on the path exists, or if with a comparison the
+ * string value of one of them compares true, as in XPath. The file is read
+ * until the answer is known: up to the first match, or only up to the root
+ * element when it can't match. Entities declared in the internal subset are
+ * expanded, external DTDs aren't read. A file that can't be read to the
+ * answer, like a malformed one or one whose value depends on an external
+ * entity, passes the filter, so the transformation reports its failure.
+ * </p>
+ */
+public class WhereFilter {
+
+	/** Reader factory, which expands the internal entities without reading external DTDs. */
+	private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+	static {
+		INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+	}
+
+	/** Maximum number of element steps, the states are bits of a long. */
+	private static final int MAX_STEPS = 63;
+
+	/** A name test of the path. */
+	private static class Step {
+
+		/** True if the step is on the descendant axis. */
+		boolean descendant = false;
+
+		/** Namespace URI, null for any. */
+		String namespace = null;
+
+		/** Local name, null for any. */
+		String localName = null;
+
+		boolean matches(String uri, String local) {
+			return (namespace == null || namespace.equals(uri == null ? "" : uri))
+					&& (localName == null || localName.equals(local));
+		}
+	}
+
+	/** Expression as given. */
+	private final String expression;
+
+	/** Element steps of the path. */
+	private final Step[] steps;
+
+	/** Final attribute step, null if the path selects elements. */
+	private final Step attribute;
+
+	/** True if the comparison is !=, false if it is =. */
+	private final boolean notEqual;
+
+	/** String the nodes are compared to, null if they only have to exist. */
+	private final String literal;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param expression
+	 *                   Filter expression.
+	 * @throws IllegalArgumentException
+	 *                                  Signals that the expression isn't
+	 *                                  supported.
+	 */
+	public WhereFilter(String expression) {
+		this.expression = expression;
+		String path = expression.trim();
+
+		// Split off the comparison, outside the namespaces
+		final int operator = indexOfOperator(path);
+		if (operator >= 0) {
+			notEqual = path.charAt(operator) == '!';
+			literal = unquote(path.substring(operator + (notEqual ? 2 : 1)).trim());
+			path = path.substring(0, operator).trim();
+		} else {
+			notEqual = false;
+			literal = null;
+		}
+		if (!path.startsWith("/")) {
+			path = "/" + path;
+		}
+
+		// Parse the steps
+		final List<Step> elements = new ArrayList<Step>();
+		Step last = null;
+		int pos = 0;
+		while (pos < path.length()) {
+			if (last != null || path.charAt(pos) != '/') {
+				throw new IllegalArgumentException("Unsupported where expression: " + expression);
+			}
+			pos++;
+			final boolean descendant = pos < path.length() && path.charAt(pos) == '/';
+			if (descendant) {
+				pos++;
+			}
+			int end = pos;
+			boolean namespace = false;
+			while (end < path.length() && (namespace || path.charAt(end) != '/')) {
+				if (path.charAt(end) == '{') {
+					namespace = true;
+				} else if (path.charAt(end) == '}') {
+					namespace = false;
+				}
+				end++;
+			}
+			final String name = path.substring(pos, end).trim();
+			pos = end;
+			if (name.startsWith("@")) {
+				if (descendant || elements.isEmpty()) {
+					throw new IllegalArgumentException("Unsupported where expression: " + expression);
+				}
+				last = parseName(name.substring(1), expression);
+			} else {
+				final Step step = parseName(name, expression);
+				step.descendant = descendant;
+				elements.add(step);
+			}
+		}
+		if (elements.isEmpty() || elements.size() > MAX_STEPS) {
+			throw new IllegalArgumentException("Unsupported where expression: " + expression);
+		}
+		steps = elements.toArray(new Step[elements.size()]);
+		attribute = last;
+	}
+
+	/**
+	 * Finds the comparison operator outside the namespaces and the string.
+	 */
+	private static int indexOfOperator(String expression) {
+		boolean namespace = false;
+		for (int i = 0; i < expression.length(); i++) {
+			final char c = expression.charAt(i);
+			if (c == '{') {
+				namespace = true;
+			} else if (c == '}') {
+				namespace = false;
+			} else if (!namespace && (c == '\'' || c == '"')) {
+				break;
+			} else if (!namespace && c == '=') {
+				return (i > 0 && expression.charAt(i - 1) == '!') ? i - 1 : i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Removes the quotes of a string.
+	 */
+	private static String unquote(String quoted) {
+		if (quoted.length() < 2 || (quoted.charAt(0) != '\'' && quoted.charAt(0) != '"')
+				|| quoted.charAt(quoted.length() - 1) != quoted.charAt(0)) {
+			throw new IllegalArgumentException("Unquoted string in where expression: " + quoted);
+		}
+		return quoted.substring(1, quoted.length() - 1);
+	}
+
+	/**
+	 * Parses a name test.
+	 */
+	private static Step parseName(String name, String expression) {
+		final Step step = new Step();
+		String localName = name;
+		if (name.startsWith("{")) {
+			final int end = name.indexOf('}');
+			if (end < 0) {
+				throw new IllegalArgumentException("Namespace not closed: " + expression);
+			}
+			step.namespace = name.substring(1, end);
+			localName = name.substring(end + 1);
+		}
+		if (!"*".equals(localName) && !isLocalName(localName)) {
+			throw new IllegalArgumentException("Unsupported where expression: " + expression);
+		}
+		step.localName = "*".equals(localName) ? null : localName;
+		return step;
+	}
+
+	/**
+	 * Checks a local name, without a prefix since the expression has no
+	 * namespace declarations.
+	 */
+	private static boolean isLocalName(String name) {
+		if (name.isEmpty() || !(Character.isLetter(name.charAt(0)) || name.charAt(0) == '_')) {
+			return false;
+		}
+		for (int i = 1; i < name.length(); i++) {
+			final char c = name.charAt(i);
+			if (!(Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '.')) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Decides whether an input file passes the filter.
+	 *
+	 * @param file
+	 *             Input file.
+	 * @return True if the file matches the expression or can't be read to the
+	 *         answer.
+	 */
+	public boolean matches(File file) {
+		try (InputStream in = new BufferedInputStream(new FileInputStream(file), 8192)) {
+			final XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(file.toURI().toString(), in);
+			try {
+				return matches(reader);
+			} finally {
+				reader.close();
+			}
+		} catch (final XMLStreamException | IOException e) {
+			return true;
+		}
+	}
+
+	/**
+	 * Reads a document up to the answer. The states of the path at each open
+	 * element are bits: bit i means step i may match a child, bit
+	 * <code>steps.length</code> means the element is on the path.
+	 *
+	 * @param reader
+	 *               Reader at the start of the document.
+	 * @return True if the document matches the expression, or depends on an
+	 *         unresolved entity.
+	 * @throws XMLStreamException
+	 *                            Signals that the document can't be read.
+	 */
+	boolean matches(XMLStreamReader reader) throws XMLStreamException {
+		long[] states = new long[32];
+		states[0] = 1L;
+		int depth = 0;
+
+		// String values being collected, by the depth of their element
+		final Deque<Integer> depths = new ArrayDeque<Integer>();
+		final Deque<StringBuilder> values = new ArrayDeque<StringBuilder>();
+		while (reader.hasNext()) {
+			switch (reader.next()) {
+			case XMLStreamConstants.START_ELEMENT:
+				final long current = states[depth];
+				long next = 0;
+				if (current != 0) {
+					for (int i = 0; i < steps.length; i++) {
+						if ((current & (1L << i)) != 0) {
+							if (steps[i].descendant) {
+								next |= 1L << i;
+							}
+							if (steps[i].matches(reader.getNamespaceURI(), reader.getLocalName())) {
+								next |= 1L << (i + 1);
+							}
+						}
+					}
+				}
+				depth++;
+				if (depth == states.length) {
+					states = Arrays.copyOf(states, depth * 2);
+				}
+				states[depth] = next;
+				if ((next & (1L << steps.length)) != 0) {
+					if (attribute != null) {
+						for (int i = 0; i < reader.getAttributeCount(); i++) {
+							if (attribute.matches(reader.getAttributeNamespace(i), reader.getAttributeLocalName(i))
+									&& compare(reader.getAttributeValue(i))) {
+								return true;
+							}
+						}
+					} else if (literal == null) {
+						return true;
+					} else {
+						depths.push(depth);
+						values.push(new StringBuilder());
+					}
+				}
+
+				// Nothing below a root element off the path can match
+				if (depth == 1 && next == 0) {
+					return false;
+				}
+				break;
+			case XMLStreamConstants.CHARACTERS:
+			case XMLStreamConstants.CDATA:
+			case XMLStreamConstants.SPACE:
+				for (final StringBuilder value : values) {
+					value.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+				}
+				break;
+			case XMLStreamConstants.ENTITY_REFERENCE:
+				if (!values.isEmpty()) {
+
+					// Declared in an external DTD, so the value isn't known here
+					return true;
+				}
+				break;
+			case XMLStreamConstants.END_ELEMENT:
+				if (!depths.isEmpty() && depths.peek() == depth) {
+					depths.pop();
+					if (compare(values.pop().toString())) {
+						return true;
+					}
+				}
+				depth--;
+				if (depth == 0) {
+					return false;
+				}
+				break;
+			default:
+				break;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Compares the string value of a node.
+	 */
+	private boolean compare(String value) {
+		return literal == null || literal.equals(value) != notEqual;
+	}
+
+	@Override
+	public String toString() {
+		return expression;
+	}
+}
@@ -0,0 +1,450 @@
+package nl.chrishofstede.bulktransform;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cooperative claiming of input files through a shared work folder, so several
+ * processes, on one host or on several hosts sharing a file system, drain one
+ * queue of input files together.
+ *
+ * <p>
+ * A worker claims an input file by creating a claim file exclusively, which
+ * only one worker can do. When the file has been processed, a done marker is
+ * created and the claim is removed; when it has failed, a failed marker, so the
+ * other workers don't try it again, but a worker retrying its failures does. A worker keeps its claims alive by
+ * touching them. A claim that hasn't been touched for longer than the lease
+ * time belongs to a dead worker; it is reclaimed by atomically renaming it
+ * away, which only one worker can do, before claiming the file again. The
+ * renamed claim is checked again and put back if it has been renewed meanwhile.
+ * A claim holds the name and process of its worker; a worker releases a claim
+ * by renaming it away likewise and only deletes it if it is its own, since the
+ * claim may have been reclaimed and created again by another worker.
+ * </p>
+ *
+ * <p>
+ * The claim and done files are named after a hash of the path of the input
+ * file relative to the current folder, and spread over 256 subfolders.
+ * </p>
+ *
+ * <p>
+ * Each worker has a name that stays the same when it is restarted, so it finds
+ * its own journal and failure manifest again. A running worker holds a lock on
+ * a file named after it in the work folder, so no other worker can take the
+ * same name.
+ * </p>
+ */
+public class WorkClaims implements Closeable {
+
+	/** Extension of a claim file. */
+	private static final String CLAIM = ".claim";
+
+	/** Extension of a done marker. */
+	private static final String DONE = ".done";
+
+	/** Extension of a failed marker. */
+	private static final String FAILED = ".failed";
+
+	/** Extension of the lock file of a worker name. */
+	private static final String WORKER = ".worker";
+
+	/** Default time in milliseconds after which a claim that isn't touched is stale. */
+	public static final long DEFAULT_LEASE = 10 * 60 * 1000;
+
+	/** Shared work folder. */
+	private final File directory;
+
+	/** Folder the input paths are made relative to. */
+	private final File base;
+
+	/** Identification of this worker process. */
+	private final String workerId;
+
+	/** Content of the claims of this worker: its name and process. */
+	private final byte[] owner;
+
+	/** Lock on the name of this worker. */
+	private final FileChannel workerChannel;
+	private final FileLock workerLock;
+
+	/** Time in milliseconds after which a claim that isn't touched is stale. */
+	private final long lease;
+
+	/** Claims held by this worker. */
+	private final Set<Path> held = ConcurrentHashMap.newKeySet();
+
+	/** True if the failed input files may be claimed again. */
+	private volatile boolean retryFailed = false;
+
+	/** Keeps the claims held by this worker alive. */
+	private final ScheduledExecutorService heartbeat;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param directory
+	 *                  Shared work folder.
+	 * @param base
+	 *                  Folder the input paths are made relative to.
+	 * @param worker
+	 *                  Name of this worker, see {@link #isValidName(String)}.
+	 * @param lease
+	 *                  Time in milliseconds after which a claim that isn't
+	 *                  touched is stale.
+	 * @throws IOException
+	 *                     Signals that the work folder can't be created or
+	 *                     another running worker has the same name.
+	 */
+	public WorkClaims(File directory, File base, String worker, long lease) throws IOException {
+		if (directory == null || base == null || worker == null) {
+			throw new IllegalArgumentException("directory, base or worker is null");
+		}
+		if (!isValidName(worker)) {
+			throw new IllegalArgumentException("Invalid worker name: " + worker);
+		}
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Couldn't create work directory: " + directory.getAbsolutePath());
+		}
+		this.directory = directory;
+		this.base = base;
+		this.lease = lease;
+		this.workerId = getWorkerId();
+		this.owner = (worker + " " + workerId).getBytes(StandardCharsets.UTF_8);
+
+		// Only one running worker can hold the lock on a name
+		workerChannel = FileChannel.open(new File(directory, worker + WORKER).toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE);
+		FileLock lock = null;
+		try {
+			lock = workerChannel.tryLock();
+		} catch (final OverlappingFileLockException e) {
+
+			// Held by this process
+		}
+		if (lock == null) {
+			workerChannel.close();
+			throw new IOException("Worker " + worker + " is already running, give each worker its own name");
+		}
+		workerLock = lock;
+
+		// Touch the claims three times per lease
+		heartbeat = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				final Thread thread = new Thread(runnable, "bulktransform-heartbeat");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		final long period = Math.max(lease / 3, 1);
+		heartbeat.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				touch();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Gets the name of this host, the default name of a worker.
+	 *
+	 * @return Host name usable in a file name.
+	 */
+	public static String getHostName() {
+
+		// The name of the runtime is pid@host
+		final String name = ManagementFactory.getRuntimeMXBean().getName();
+		final int at = name.indexOf('@');
+		return ((at < 0) ? name : name.substring(at + 1)).replaceAll("[^A-Za-z0-9._-]", "_");
+	}
+
+	/**
+	 * Checks the name of a worker, which is used in file names.
+	 *
+	 * @param worker
+	 *               Name of a worker.
+	 * @return True if the name only has letters, digits, dots, dashes and
+	 *         underscores.
+	 */
+	public static boolean isValidName(String worker) {
+		return worker.matches("[A-Za-z0-9._-]+");
+	}
+
+	/**
+	 * Gets the identification of this worker process: the host name and process
+	 * id.
+	 *
+	 * @return Identification usable in a file name.
+	 */
+	public static String getWorkerId() {
+
+		// The name of the runtime is pid@host
+		final String name = ManagementFactory.getRuntimeMXBean().getName();
+		final int at = name.indexOf('@');
+		final String id = (at < 0) ? name : name.substring(at + 1) + "-" + name.substring(0, at);
+		return id.replaceAll("[^A-Za-z0-9._-]", "_");
+	}
+
+	/**
+	 * Sets whether failed input files may be claimed again, when a worker
+	 * retries the failures in its failure manifest.
+	 *
+	 * @param retryFailed
+	 *                    True to claim failed input files.
+	 */
+	public void setRetryFailed(boolean retryFailed) {
+		this.retryFailed = retryFailed;
+	}
+
+	/**
+	 * Tries to claim an input file.
+	 *
+	 * @param input
+	 *              Input file.
+	 * @return True if this worker has claimed the file and should process it,
+	 *         false if it is done, failed or claimed by another worker.
+	 * @throws IOException
+	 *                     Signals that the work folder can't be accessed.
+	 */
+	public boolean claim(File input) throws IOException {
+		final Path claim = getPath(input, CLAIM);
+		if (Files.exists(getPath(input, DONE)) || !retryFailed && Files.exists(getPath(input, FAILED))) {
+			return false;
+		}
+		Files.createDirectories(claim.getParent());
+		for (int attempt = 0; attempt < 2; attempt++) {
+			try {
+
+				// Only one worker can create the claim
+				Files.write(Files.createFile(claim), owner);
+				held.add(claim);
+
+				// The file may have been completed between the check and the claim
+				if (Files.exists(getPath(input, DONE))) {
+					release(input);
+					return false;
+				}
+				return true;
+			} catch (final FileAlreadyExistsException e) {
+				if (!reclaim(claim)) {
+					return false;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Removes a claim that is stale, because its worker has died.
+	 *
+	 * @param claim
+	 *              Claim file of another worker.
+	 * @return True if the stale claim has been removed by this worker.
+	 * @throws IOException
+	 *                     Signals that the work folder can't be accessed.
+	 */
+	private boolean reclaim(Path claim) throws IOException {
+		try {
+			if (System.currentTimeMillis() - Files.getLastModifiedTime(claim).toMillis() <= lease) {
+				return false;
+			}
+
+			// Only one worker can rename the claim away, which may have been renewed meanwhile
+			final Path stale = claim.resolveSibling(claim.getFileName() + "." + workerId + ".stale");
+			try {
+				Files.move(claim, stale, StandardCopyOption.ATOMIC_MOVE);
+			} catch (final AtomicMoveNotSupportedException e) {
+				return false;
+			}
+
+			// Check what has been renamed, and put a fresh claim back without replacing a new one
+			if (System.currentTimeMillis() - Files.getLastModifiedTime(stale).toMillis() <= lease) {
+				try {
+					Files.createLink(claim, stale);
+				} catch (final FileAlreadyExistsException e) {
+					System.err.println("Claim renewed while it was put back: " + claim);
+				}
+				Files.deleteIfExists(stale);
+				return false;
+			}
+			Files.deleteIfExists(stale);
+			System.out.println("Reclaimed stale claim: " + claim);
+			return true;
+		} catch (final NoSuchFileException e) {
+
+			// The claim has been released or reclaimed by another worker
+			return true;
+		}
+	}
+
+	/**
+	 * Marks a claimed input file as done, so no worker processes it again.
+	 *
+	 * @param input
+	 *              Input file.
+	 * @throws IOException
+	 *                     Signals that the work folder can't be accessed.
+	 */
+	public void complete(File input) throws IOException {
+		try {
+			Files.createFile(getPath(input, DONE));
+		} catch (final FileAlreadyExistsException e) {
+
+			// Already completed
+		}
+		Files.deleteIfExists(getPath(input, FAILED));
+		release(input);
+	}
+
+	/**
+	 * Marks a claimed input file as failed, so no worker processes it again
+	 * unless it retries its failures.
+	 *
+	 * @param input
+	 *              Input file.
+	 * @throws IOException
+	 *                     Signals that the work folder can't be accessed.
+	 */
+	public void fail(File input) throws IOException {
+		try {
+			Files.createFile(getPath(input, FAILED));
+		} catch (final FileAlreadyExistsException e) {
+
+			// Failed before
+		}
+		release(input);
+	}
+
+	/**
+	 * Releases a claim without completing it, so another worker can process the
+	 * file.
+	 *
+	 * @param input
+	 *              Input file.
+	 * @throws IOException
+	 *                     Signals that the work folder can't be accessed.
+	 */
+	public void release(File input) throws IOException {
+		final Path claim = getPath(input, CLAIM);
+		held.remove(claim);
+		remove(claim);
+	}
+
+	/**
+	 * Removes a claim of this worker. The claim is renamed away first and
+	 * checked, so a claim another worker has created after reclaiming it is
+	 * put back instead of deleted.
+	 *
+	 * @param claim
+	 *              Claim file held by this worker.
+	 * @throws IOException
+	 *                     Signals that the work folder can't be accessed.
+	 */
+	private void remove(Path claim) throws IOException {
+		final Path released = claim.resolveSibling(claim.getFileName() + "." + workerId + ".released");
+		try {
+			Files.move(claim, released, StandardCopyOption.ATOMIC_MOVE);
+		} catch (final NoSuchFileException e) {
+
+			// Reclaimed by another worker, which has released it as well
+			return;
+		} catch (final AtomicMoveNotSupportedException e) {
+			System.err.println("Claim left behind, it can't be renamed atomically: " + claim);
+			return;
+		}
+		if (!Arrays.equals(owner, Files.readAllBytes(released))) {
+			try {
+				Files.createLink(claim, released);
+			} catch (final FileAlreadyExistsException e) {
+				System.err.println("Claim of another worker taken over while it was put back: " + claim);
+			}
+		}
+		Files.deleteIfExists(released);
+	}
+
+	/**
+	 * Touches the claims held by this worker to keep them alive.
+	 */
+	private void touch() {
+		final FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+		for (final Path claim : held) {
+			try {
+				Files.setLastModifiedTime(claim, now);
+			} catch (final IOException e) {
+				System.err.println("Couldn't touch claim: " + claim + " " + e.getLocalizedMessage());
+			}
+		}
+	}
+
+	/**
+	 * Stops keeping the claims alive and releases the claims still held.
+	 *
+	 * @throws IOException
+	 *                     Signals that the work folder can't be accessed.
+	 */
+	@Override
+	public void close() throws IOException {
+		heartbeat.shutdownNow();
+		for (final Path claim : held) {
+			remove(claim);
+		}
+		held.clear();
+		workerLock.release();
+		workerChannel.close();
+	}
+
+	/**
+	 * Gets the path of the claim, done or failed file of an input file.
+	 *
+	 * @param input
+	 *                  Input file.
+	 * @param extension
+	 *                  Extension of the claim, done or failed file.
+	 * @return The path in the work folder.
+	 */
+	private Path getPath(File input, String extension) {
+		final Path basePath = base.getAbsoluteFile().toPath().normalize();
+		final Path path = input.getAbsoluteFile().toPath().normalize();
+		final String relative = (path.startsWith(basePath) ? basePath.relativize(path) : path).toString()
+				.replace(File.separatorChar, '/');
+		final String hash = sha1(relative);
+		return new File(new File(directory, hash.substring(0, 2)), hash + extension).toPath();
+	}
+
+	/**
+	 * Computes the SHA-1 hash of a string.
+	 *
+	 * @param value
+	 *              String to be hashed.
+	 * @return The hash in hexadecimal notation.
+	 */
+	private static String sha1(String value) {
+		try {
+			return Deduplicator.toHex(MessageDigest.getInstance("SHA-1").digest(value.getBytes(StandardCharsets.UTF_8)));
+		} catch (final Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
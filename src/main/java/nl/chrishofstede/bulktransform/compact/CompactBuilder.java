@@ -0,0 +1,196 @@
+package nl.chrishofstede.bulktransform.compact;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Builds a {@link CompactDocument} from the SAX events of a parser. It is both
+ * the content handler and the lexical handler of the parser, the latter for
+ * the comments. Adjacent text, including CDATA sections, becomes one text
+ * node. A builder builds one document.
+ */
+public class CompactBuilder extends DefaultHandler implements LexicalHandler {
+
+	/** Property of the lexical handler of a SAX parser. */
+	public static final String LEXICAL_HANDLER = "http://xml.org/sax/properties/lexical-handler";
+
+	/** Document being built. */
+	private final CompactDocument document;
+
+	/** Open elements, the document at the bottom. */
+	private int[] open = new int[32];
+
+	/** Last child of each open element, or {@link CompactDocument#NONE}. */
+	private int[] lastChildren = new int[32];
+
+	/** Number of open elements, including the document. */
+	private int depth = 1;
+
+	/** Namespace prefixes declared for the next element. */
+	private final List<String> declaredPrefixes = new ArrayList<String>();
+
+	/** Namespace URIs declared for the next element. */
+	private final List<String> declaredUris = new ArrayList<String>();
+
+	/** Inside the DTD, of which the comments aren't kept. */
+	private boolean inDTD = false;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param systemId
+	 *                 System identifier of the document, may be null.
+	 */
+	public CompactBuilder(String systemId) {
+		document = new CompactDocument(systemId);
+		open[0] = 0;
+		lastChildren[0] = CompactDocument.NONE;
+	}
+
+	/**
+	 * Gets the document which has been built.
+	 *
+	 * @return The document.
+	 */
+	public CompactDocument getDocument() {
+		return document;
+	}
+
+	/**
+	 * Adds a node as the last child of the current element.
+	 */
+	private int addChild(byte type, int name, int offset, int length) {
+		final int parent = open[depth - 1];
+		final int node = document.addNode(type, parent, name, offset, length);
+		final int previous = lastChildren[depth - 1];
+		if (previous != CompactDocument.NONE) {
+			document.nextSiblings[previous] = node;
+		}
+		lastChildren[depth - 1] = node;
+		return node;
+	}
+
+	@Override
+	public void startPrefixMapping(String prefix, String uri) {
+		declaredPrefixes.add(prefix);
+		declaredUris.add(uri);
+	}
+
+	@Override
+	public void startElement(String uri, String localName, String qName, Attributes attributes) {
+		final int first = document.attributeCount;
+
+		// Namespace declarations first, as attributes in the xmlns namespace
+		for (int i = 0; i < declaredPrefixes.size(); i++) {
+			final String prefix = declaredPrefixes.get(i);
+			final int name = prefix.isEmpty()
+					? document.addName(CompactDocument.XMLNS_NAMESPACE, "xmlns", "xmlns")
+					: document.addName(CompactDocument.XMLNS_NAMESPACE, prefix, "xmlns:" + prefix);
+			final String value = declaredUris.get(i);
+			document.addAttribute(name, document.addChars(value), value.length());
+		}
+		declaredPrefixes.clear();
+		declaredUris.clear();
+		final int count = attributes.getLength();
+		for (int i = 0; i < count; i++) {
+			final String qualifiedName = attributes.getQName(i);
+
+			// Reported as attributes too when the parser is asked for the prefixes
+			if ("xmlns".equals(qualifiedName) || qualifiedName.startsWith("xmlns:")) {
+				continue;
+			}
+			final String value = attributes.getValue(i);
+			document.addAttribute(document.addName(attributes.getURI(i), attributes.getLocalName(i), qualifiedName),
+					document.addChars(value), value.length());
+		}
+		final int element = addChild(CompactDocument.ELEMENT, document.addName(uri, localName, qName), first,
+				document.attributeCount - first);
+
+		// Open the element
+		if (depth == open.length) {
+			open = Arrays.copyOf(open, depth * 2);
+			lastChildren = Arrays.copyOf(lastChildren, depth * 2);
+		}
+		open[depth] = element;
+		lastChildren[depth] = CompactDocument.NONE;
+		depth++;
+	}
+
+	@Override
+	public void endElement(String uri, String localName, String qName) {
+		depth--;
+	}
+
+	@Override
+	public void characters(char[] ch, int start, int length) {
+		if (length == 0) {
+			return;
+		}
+
+		// Text right after text extends it, the characters are adjacent in the pool
+		final int last = lastChildren[depth - 1];
+		if (last != CompactDocument.NONE && last == document.nodeCount - 1
+				&& document.types[last] == CompactDocument.TEXT
+				&& document.offsets[last] + document.lengths[last] == document.charCount) {
+			document.addChars(ch, start, length);
+			document.lengths[last] += length;
+		} else {
+			addChild(CompactDocument.TEXT, CompactDocument.NONE, document.addChars(ch, start, length), length);
+		}
+	}
+
+	@Override
+	public void ignorableWhitespace(char[] ch, int start, int length) {
+		characters(ch, start, length);
+	}
+
+	@Override
+	public void processingInstruction(String target, String data) {
+		final String value = (data != null) ? data : "";
+		addChild(CompactDocument.PROCESSING_INSTRUCTION, document.addName(null, target, target),
+				document.addChars(value), value.length());
+	}
+
+	@Override
+	public void comment(char[] ch, int start, int length) {
+		if (!inDTD) {
+			addChild(CompactDocument.COMMENT, CompactDocument.NONE, document.addChars(ch, start, length), length);
+		}
+	}
+
+	@Override
+	public void endDocument() {
+		document.trim();
+	}
+
+	@Override
+	public void startDTD(String name, String publicId, String systemId) {
+		inDTD = true;
+	}
+
+	@Override
+	public void endDTD() {
+		inDTD = false;
+	}
+
+	@Override
+	public void startEntity(String name) {
+	}
+
+	@Override
+	public void endEntity(String name) {
+	}
+
+	@Override
+	public void startCDATA() {
+	}
+
+	@Override
+	public void endCDATA() {
+	}
+}
@@ -0,0 +1,855 @@
+package nl.chrishofstede.bulktransform.compact;
+
+import java.util.Arrays;
+
+import javax.xml.transform.Result;
+import javax.xml.transform.SourceLocator;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+
+import org.apache.xalan.transformer.TransformerImpl;
+import org.apache.xml.dtm.Axis;
+import org.apache.xml.dtm.DTM;
+import org.apache.xml.dtm.DTMAxisTraverser;
+import org.apache.xml.dtm.DTMManager;
+import org.apache.xml.dtm.ref.DTMDefaultBaseIterators;
+import org.apache.xml.dtm.ref.DTMManagerDefault;
+import org.apache.xml.dtm.ref.DTMTreeWalker;
+import org.apache.xml.utils.PrefixResolver;
+import org.apache.xml.utils.XMLString;
+import org.apache.xml.utils.XMLStringFactory;
+import org.apache.xpath.XPathContext;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.DTDHandler;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.DeclHandler;
+import org.xml.sax.ext.LexicalHandler;
+
+/**
+ * Document table model of Xalan over a {@link CompactDocument}, so a
+ * stylesheet reads the compact tree in place instead of a tree of its own
+ * built from its SAX events. The arrays of the document aren't copied: the
+ * model only adds the node numbering of Xalan, in which the attributes and
+ * namespace declarations of an element follow it in document order, an int
+ * per node and attribute both ways. Like in the models of Xalan, the document
+ * element declares the xml prefix. Text, comments and attribute values are
+ * handed out straight from the character pool.
+ *
+ * <p>
+ * The model doesn't strip whitespace, so a stylesheet with
+ * <code>xsl:strip-space</code> reads the document as SAX events instead. The
+ * axes walk the tree the way they do in the models of Xalan, some of which
+ * read its node vectors directly and are replaced here.
+ * </p>
+ */
+public class CompactDTM extends DTMDefaultBaseIterators {
+
+	/** Node types of Xalan by node type of the document. */
+	private static final short[] NODE_TYPES = { DTM.DOCUMENT_NODE, DTM.ELEMENT_NODE, DTM.TEXT_NODE,
+			DTM.COMMENT_NODE, DTM.PROCESSING_INSTRUCTION_NODE };
+
+	/** Number of nodes numbered by each document identifier of Xalan. */
+	private static final int BLOCK_SIZE = 1 << DTMManager.IDENT_DTM_NODE_BITS;
+
+	/** Row of the namespace node of the xml prefix. */
+	private static final int XML_NAMESPACE = Integer.MIN_VALUE;
+
+	/** Prefix declared by every document. */
+	private static final String XML_PREFIX = "xml";
+
+	/** Namespace of the xml prefix. */
+	private static final String XML_URI = "http://www.w3.org/XML/1998/namespace";
+
+	/** No in-scope namespaces. */
+	private static final int[] NO_NAMESPACES = new int[0];
+
+	/** Document being read. */
+	private final CompactDocument document;
+
+	/** Document element. */
+	private final int documentElement;
+
+	/** Number of nodes, attributes included. */
+	private final int size;
+
+	/** Node of each row of the document. */
+	private final int[] identities;
+
+	/**
+	 * Row of each node, the complement of its row for an attribute, and
+	 * {@link #XML_NAMESPACE} for the namespace node of the xml prefix.
+	 */
+	private final int[] rows;
+
+	// Expanded types of Xalan by name, 0 until they are looked up
+	private final int[] elementTypes;
+	private final int[] attributeTypes;
+	private final int[] instructionTypes;
+
+	/** Previous sibling of each row, built when it is first asked for. */
+	private int[] previousSiblings = null;
+
+	// In-scope namespaces of the last element asked for
+	private int namespaceElement = NULL;
+	private int[] namespaces = NO_NAMESPACES;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param manager
+	 *                       Manager of the document table models of the
+	 *                       transformation.
+	 * @param document
+	 *                       Document to be read.
+	 * @param dtmIdentity
+	 *                       First document identifier, shifted into a node
+	 *                       handle.
+	 * @param stringFactory
+	 *                       Factory of the strings of the transformation.
+	 */
+	CompactDTM(DTMManager manager, CompactDocument document, int dtmIdentity, XMLStringFactory stringFactory) {
+		super(manager, null, dtmIdentity, null, stringFactory, false, 32, false, false);
+		this.document = document;
+		documentElement = document.getDocumentElement();
+		size = document.nodeCount + document.attributeCount + ((documentElement != CompactDocument.NONE) ? 1 : 0);
+		m_size = size;
+		identities = new int[document.nodeCount];
+		rows = new int[size];
+		int identity = 0;
+		for (int row = 0; row < document.nodeCount; row++) {
+			identities[row] = identity;
+			rows[identity++] = row;
+			if (row == documentElement) {
+				rows[identity++] = XML_NAMESPACE;
+			}
+			if (document.types[row] == CompactDocument.ELEMENT) {
+				final int end = document.offsets[row] + document.lengths[row];
+				for (int attribute = document.offsets[row]; attribute < end; attribute++) {
+					rows[identity++] = ~attribute;
+				}
+			}
+		}
+		elementTypes = new int[document.nameCount];
+		attributeTypes = new int[document.nameCount];
+		instructionTypes = new int[document.nameCount];
+		setDocumentBaseURI(document.getSystemId());
+	}
+
+	/**
+	 * Tells whether a transformer can read a compact document in place.
+	 *
+	 * @param transformer
+	 *                    Transformer of the first stylesheet.
+	 * @return True for a Xalan transformer of a stylesheet which doesn't strip
+	 *         whitespace.
+	 */
+	public static boolean canTransform(Transformer transformer) {
+		return transformer instanceof TransformerImpl
+				&& ((TransformerImpl) transformer).getXPathContext().getDTMManager() instanceof DTMManagerDefault
+				&& !((TransformerImpl) transformer).getStylesheet().canStripWhiteSpace();
+	}
+
+	/**
+	 * Transforms a compact document read in place, as the transformer would
+	 * transform a source. Check {@link #canTransform(Transformer)} first.
+	 *
+	 * @param transformer
+	 *                    Transformer of the first stylesheet.
+	 * @param document
+	 *                    Document to be transformed.
+	 * @param result
+	 *                    Result of the transformation.
+	 * @throws TransformerException
+	 *                              Signals that the transformation failed.
+	 */
+	public static void transform(Transformer transformer, CompactDocument document, Result result)
+			throws TransformerException {
+		final TransformerImpl xalan = (TransformerImpl) transformer;
+		final XPathContext context = xalan.getXPathContext();
+		final DTMManagerDefault manager = (DTMManagerDefault) context.getDTMManager();
+		final int id = manager.getFirstFreeDTMID();
+		final CompactDTM dtm = new CompactDTM(manager, document, id << DTMManager.IDENT_DTM_NODE_BITS,
+				manager.getXMLStringFactory());
+		manager.addDTM(dtm, id, 0);
+
+		// Every block of nodes has a document identifier of its own
+		for (int offset = BLOCK_SIZE; offset < dtm.size; offset += BLOCK_SIZE) {
+			final int next = manager.getFirstFreeDTMID();
+			manager.addDTM(dtm, next, offset);
+			dtm.m_dtmIdent.addElement(next << DTMManager.IDENT_DTM_NODE_BITS);
+		}
+		final PrefixResolver namespaceContext = context.getNamespaceContext();
+		context.setNamespaceContext(xalan.getStylesheet());
+		if (document.getSystemId() != null) {
+			xalan.setBaseURLOfSource(document.getSystemId());
+		}
+		try {
+			xalan.transformNode(dtm.getDocument(), result);
+		} finally {
+			manager.release(dtm, true);
+			context.setNamespaceContext(namespaceContext);
+		}
+	}
+
+	// Node numbering
+
+	@Override
+	protected int getNextNodeIdentity(int identity) {
+		return (identity + 1 < size) ? identity + 1 : NULL;
+	}
+
+	@Override
+	protected boolean nextNode() {
+		return false;
+	}
+
+	@Override
+	protected int getNumberOfNodes() {
+		return size;
+	}
+
+	/**
+	 * Gets the node of an attribute of an element.
+	 */
+	private int attributeIdentity(int element, int attribute) {
+		return identities[element] + ((element == documentElement) ? 2 : 1) + attribute - document.offsets[element];
+	}
+
+	// Tree
+
+	@Override
+	protected short _type(int identity) {
+		if (identity < 0 || identity >= size) {
+			return NULL;
+		}
+		final int row = rows[identity];
+		return (row >= 0) ? NODE_TYPES[document.types[row]] : (short) m_expandedNameTable.getType(attributeType(row));
+	}
+
+	@Override
+	protected int _exptype(int identity) {
+		if (identity < 0 || identity >= size) {
+			return NULL;
+		}
+		final int row = rows[identity];
+		if (row < 0) {
+			return attributeType(row);
+		}
+		switch (document.types[row]) {
+		case CompactDocument.ELEMENT:
+			return elementType(document.names[row]);
+		case CompactDocument.PROCESSING_INSTRUCTION:
+			return instructionType(document.names[row]);
+		default:
+			return NODE_TYPES[document.types[row]];
+		}
+	}
+
+	/**
+	 * Gets the expanded type of an element name.
+	 */
+	private int elementType(int name) {
+		if (elementTypes[name] == 0) {
+			elementTypes[name] = m_expandedNameTable.getExpandedTypeID(document.uris[name], document.localNames[name],
+					DTM.ELEMENT_NODE);
+		}
+		return elementTypes[name];
+	}
+
+	/**
+	 * Gets the expanded type of an attribute, or of a namespace declaration,
+	 * which is named after its prefix like in the models of Xalan.
+	 */
+	private int attributeType(int row) {
+		if (row == XML_NAMESPACE) {
+			return m_expandedNameTable.getExpandedTypeID(null, XML_PREFIX, DTM.NAMESPACE_NODE);
+		}
+		final int name = document.attributeNames[~row];
+		if (attributeTypes[name] == 0) {
+			if (CompactDocument.XMLNS_NAMESPACE.equals(document.uris[name])) {
+				final String prefix = "xmlns".equals(document.qNames[name]) ? "" : document.localNames[name];
+				attributeTypes[name] = m_expandedNameTable.getExpandedTypeID(null, prefix, DTM.NAMESPACE_NODE);
+			} else {
+				attributeTypes[name] = m_expandedNameTable.getExpandedTypeID(document.uris[name],
+						document.localNames[name], DTM.ATTRIBUTE_NODE);
+			}
+		}
+		return attributeTypes[name];
+	}
+
+	/**
+	 * Gets the expanded type of a processing instruction target.
+	 */
+	private int instructionType(int name) {
+		if (instructionTypes[name] == 0) {
+			instructionTypes[name] = m_expandedNameTable.getExpandedTypeID(null, document.localNames[name],
+					DTM.PROCESSING_INSTRUCTION_NODE);
+		}
+		return instructionTypes[name];
+	}
+
+	@Override
+	protected int _parent(int identity) {
+		if (identity < 0 || identity >= size) {
+			return NULL;
+		}
+		final int row = rows[identity];
+		if (row < 0) {
+
+			// The element precedes its attributes
+			int element = identity - 1;
+			while (rows[element] < 0) {
+				element--;
+			}
+			return element;
+		}
+		final int parent = document.parents[row];
+		return (parent == CompactDocument.NONE) ? NULL : identities[parent];
+	}
+
+	@Override
+	protected int _firstch(int identity) {
+		if (identity < 0 || identity >= size || rows[identity] < 0) {
+			return NULL;
+		}
+		final int child = document.getFirstChild(rows[identity]);
+		return (child == CompactDocument.NONE) ? NULL : identities[child];
+	}
+
+	@Override
+	protected int _nextsib(int identity) {
+		if (identity < 0 || identity >= size) {
+			return NULL;
+		}
+		final int row = rows[identity];
+		if (row < 0) {
+			final int next = identity + 1;
+			return (next < size && rows[next] < 0) ? next : NULL;
+		}
+		final int next = document.nextSiblings[row];
+		return (next == CompactDocument.NONE) ? NULL : identities[next];
+	}
+
+	@Override
+	protected int _prevsib(int identity) {
+		if (identity < 0 || identity >= size) {
+			return NULL;
+		}
+		final int row = rows[identity];
+		if (row < 0) {
+			final int previous = identity - 1;
+			return (rows[previous] < 0) ? previous : NULL;
+		}
+		if (previousSiblings == null) {
+			previousSiblings = new int[document.nodeCount];
+			Arrays.fill(previousSiblings, CompactDocument.NONE);
+			for (int node = 0; node < document.nodeCount; node++) {
+				if (document.nextSiblings[node] != CompactDocument.NONE) {
+					previousSiblings[document.nextSiblings[node]] = node;
+				}
+			}
+		}
+		final int previous = previousSiblings[row];
+		return (previous == CompactDocument.NONE) ? NULL : identities[previous];
+	}
+
+	@Override
+	public int getPreviousSibling(int nodeHandle) {
+		return (nodeHandle == NULL) ? NULL : makeNodeHandle(_prevsib(makeNodeIdentity(nodeHandle)));
+	}
+
+	@Override
+	public int getAttributeNode(int nodeHandle, String namespaceURI, String name) {
+		for (int attribute = getFirstAttribute(nodeHandle); attribute != NULL; attribute = getNextAttribute(
+				attribute)) {
+			final String uri = getNamespaceURI(attribute);
+			if ((namespaceURI == uri || (namespaceURI != null && namespaceURI.equals(uri)))
+					&& name.equals(getLocalName(attribute))) {
+				return attribute;
+			}
+		}
+		return NULL;
+	}
+
+	// Namespaces
+
+	@Override
+	public int getFirstNamespaceNode(int nodeHandle, boolean inScope) {
+		if (!inScope) {
+			return super.getFirstNamespaceNode(nodeHandle, inScope);
+		}
+		final int[] inScopeNamespaces = getNamespaces(makeNodeIdentity(nodeHandle));
+		return (inScopeNamespaces.length > 0) ? inScopeNamespaces[0] : NULL;
+	}
+
+	@Override
+	public int getNextNamespaceNode(int baseHandle, int namespaceHandle, boolean inScope) {
+		if (!inScope) {
+			return super.getNextNamespaceNode(baseHandle, namespaceHandle, inScope);
+		}
+		final int[] inScopeNamespaces = getNamespaces(makeNodeIdentity(baseHandle));
+		for (int i = 0; i < inScopeNamespaces.length - 1; i++) {
+			if (inScopeNamespaces[i] == namespaceHandle) {
+				return inScopeNamespaces[i + 1];
+			}
+		}
+		return NULL;
+	}
+
+	/**
+	 * Gets the in-scope namespace declarations of an element, in the order of
+	 * the models of Xalan: the outermost first, a redeclared prefix in the
+	 * place of the declaration it hides.
+	 */
+	private int[] getNamespaces(int identity) {
+		if (identity == namespaceElement) {
+			return namespaces;
+		}
+		if (_type(identity) != DTM.ELEMENT_NODE) {
+			return NO_NAMESPACES;
+		}
+		int[] ancestors = new int[16];
+		int depth = 0;
+		for (int row = rows[identity]; document.types[row] == CompactDocument.ELEMENT; row = document.parents[row]) {
+			if (depth == ancestors.length) {
+				ancestors = Arrays.copyOf(ancestors, depth * 2);
+			}
+			ancestors[depth++] = row;
+		}
+		int[] declarations = new int[] { makeNodeHandle(identities[documentElement] + 1) };
+		int count = 1;
+		while (depth > 0) {
+			final int element = ancestors[--depth];
+			final int end = document.offsets[element] + document.lengths[element];
+			for (int attribute = document.offsets[element]; attribute < end; attribute++) {
+				if (!CompactDocument.XMLNS_NAMESPACE.equals(document.uris[document.attributeNames[attribute]])) {
+					continue;
+				}
+				final int handle = makeNodeHandle(attributeIdentity(element, attribute));
+				final int type = attributeType(~attribute);
+				int i = count - 1;
+				while (i >= 0 && getExpandedTypeID(declarations[i]) != type) {
+					i--;
+				}
+				if (i >= 0) {
+					declarations[i] = handle;
+				} else {
+					if (count == declarations.length) {
+						declarations = Arrays.copyOf(declarations, Math.max(4, count * 2));
+					}
+					declarations[count++] = handle;
+				}
+			}
+		}
+		namespaceElement = identity;
+		namespaces = Arrays.copyOf(declarations, count);
+		return namespaces;
+	}
+
+	// Names and values
+
+	@Override
+	public String getNodeName(int nodeHandle) {
+		final int row = rows[makeNodeIdentity(nodeHandle)];
+		if (row == XML_NAMESPACE) {
+			return "xmlns:" + XML_PREFIX;
+		}
+		if (row < 0) {
+			return document.qNames[document.attributeNames[~row]];
+		}
+		switch (document.types[row]) {
+		case CompactDocument.ELEMENT:
+		case CompactDocument.PROCESSING_INSTRUCTION:
+			return document.qNames[document.names[row]];
+		case CompactDocument.TEXT:
+			return "#text";
+		case CompactDocument.COMMENT:
+			return "#comment";
+		default:
+			return "#document";
+		}
+	}
+
+	@Override
+	public String getNodeNameX(int nodeHandle) {
+		final int identity = makeNodeIdentity(nodeHandle);
+		final int row = rows[identity];
+		if (row < 0) {
+			return (_type(identity) == DTM.NAMESPACE_NODE) ? getLocalName(nodeHandle)
+					: document.qNames[document.attributeNames[~row]];
+		}
+		final byte type = document.types[row];
+		return (type == CompactDocument.ELEMENT || type == CompactDocument.PROCESSING_INSTRUCTION)
+				? document.qNames[document.names[row]]
+				: "";
+	}
+
+	@Override
+	public String getLocalName(int nodeHandle) {
+		return m_expandedNameTable.getLocalName(_exptype(makeNodeIdentity(nodeHandle)));
+	}
+
+	@Override
+	public String getNamespaceURI(int nodeHandle) {
+		return m_expandedNameTable.getNamespace(_exptype(makeNodeIdentity(nodeHandle)));
+	}
+
+	@Override
+	public String getPrefix(int nodeHandle) {
+		final int identity = makeNodeIdentity(nodeHandle);
+		final short type = _type(identity);
+		final String qName;
+		if (type == DTM.ELEMENT_NODE) {
+			qName = document.qNames[document.names[rows[identity]]];
+		} else if (type == DTM.ATTRIBUTE_NODE) {
+			qName = document.qNames[document.attributeNames[~rows[identity]]];
+		} else {
+			return "";
+		}
+		final int colon = qName.indexOf(':');
+		return (colon > 0) ? qName.substring(0, colon) : "";
+	}
+
+	@Override
+	public String getNodeValue(int nodeHandle) {
+		final int row = rows[makeNodeIdentity(nodeHandle)];
+		if (row == XML_NAMESPACE) {
+			return XML_URI;
+		}
+		if (row < 0) {
+			return new String(document.chars, document.valueOffsets[~row], document.valueLengths[~row]);
+		}
+		return document.getValue(row);
+	}
+
+	@Override
+	public XMLString getStringValue(int nodeHandle) {
+		final int row = rows[makeNodeIdentity(nodeHandle)];
+		if (row == XML_NAMESPACE) {
+			return m_xstrf.newstr(XML_URI);
+		}
+		if (row < 0) {
+			return m_xstrf.newstr(document.chars, document.valueOffsets[~row], document.valueLengths[~row]);
+		}
+		final byte type = document.types[row];
+		if (type != CompactDocument.ELEMENT && type != CompactDocument.DOCUMENT) {
+			return m_xstrf.newstr(document.chars, document.offsets[row], document.lengths[row]);
+		}
+
+		// Text in one stretch of the pool is handed out as it is
+		final int end = document.getSubtreeEnd(row);
+		int start = 0;
+		int length = 0;
+		for (int descendant = row + 1; descendant < end; descendant++) {
+			if (document.types[descendant] != CompactDocument.TEXT) {
+				continue;
+			}
+			if (length == 0) {
+				start = document.offsets[descendant];
+			} else if (start + length != document.offsets[descendant]) {
+				return m_xstrf.newstr(document.getStringValue(row));
+			}
+			length += document.lengths[descendant];
+		}
+		return (length == 0) ? m_xstrf.emptystr() : m_xstrf.newstr(document.chars, start, length);
+	}
+
+	@Override
+	public void dispatchCharactersEvents(int nodeHandle, ContentHandler ch, boolean normalize) throws SAXException {
+		if (normalize) {
+			getStringValue(nodeHandle).fixWhiteSpace(true, true, false).dispatchCharactersEvents(ch);
+			return;
+		}
+		final int row = rows[makeNodeIdentity(nodeHandle)];
+		if (row == XML_NAMESPACE) {
+			ch.characters(XML_URI.toCharArray(), 0, XML_URI.length());
+			return;
+		}
+		if (row < 0) {
+			ch.characters(document.chars, document.valueOffsets[~row], document.valueLengths[~row]);
+			return;
+		}
+		final byte type = document.types[row];
+		if (type != CompactDocument.ELEMENT && type != CompactDocument.DOCUMENT) {
+			ch.characters(document.chars, document.offsets[row], document.lengths[row]);
+			return;
+		}
+		final int end = document.getSubtreeEnd(row);
+		for (int descendant = row + 1; descendant < end; descendant++) {
+			if (document.types[descendant] == CompactDocument.TEXT) {
+				ch.characters(document.chars, document.offsets[descendant], document.lengths[descendant]);
+			}
+		}
+	}
+
+	@Override
+	public void dispatchToEvents(int nodeHandle, ContentHandler ch) throws SAXException {
+		new DTMTreeWalker(ch, this).traverse(nodeHandle);
+	}
+
+	// Unsupported parts of the model, as for a document parsed without a DTD
+
+	@Override
+	public int getElementById(String elementId) {
+		return NULL;
+	}
+
+	@Override
+	public String getUnparsedEntityURI(String name) {
+		return "";
+	}
+
+	@Override
+	public boolean isAttributeSpecified(int attributeHandle) {
+		return true;
+	}
+
+	@Override
+	public String getDocumentTypeDeclarationSystemIdentifier() {
+		return null;
+	}
+
+	@Override
+	public String getDocumentTypeDeclarationPublicIdentifier() {
+		return null;
+	}
+
+	@Override
+	public SourceLocator getSourceLocatorFor(int node) {
+		return null;
+	}
+
+	@Override
+	public void setProperty(String property, Object value) {
+	}
+
+	@Override
+	public boolean needsTwoThreads() {
+		return false;
+	}
+
+	@Override
+	public ContentHandler getContentHandler() {
+		return null;
+	}
+
+	@Override
+	public LexicalHandler getLexicalHandler() {
+		return null;
+	}
+
+	@Override
+	public EntityResolver getEntityResolver() {
+		return null;
+	}
+
+	@Override
+	public DTDHandler getDTDHandler() {
+		return null;
+	}
+
+	@Override
+	public ErrorHandler getErrorHandler() {
+		return null;
+	}
+
+	@Override
+	public DeclHandler getDeclHandler() {
+		return null;
+	}
+
+	// Axes of which the traversers of Xalan read its node vectors
+
+	@Override
+	public DTMAxisTraverser getAxisTraverser(int axis) {
+		if (m_traversers == null) {
+			m_traversers = new DTMAxisTraverser[Axis.getNamesLength()];
+		}
+		DTMAxisTraverser traverser = m_traversers[axis];
+		if (traverser == null) {
+			switch (axis) {
+			case Axis.ANCESTOR:
+				traverser = new AncestorTraverser();
+				break;
+			case Axis.ANCESTORORSELF:
+				traverser = new AncestorOrSelfTraverser();
+				break;
+			case Axis.CHILD:
+				traverser = new ChildTraverser();
+				break;
+			case Axis.PARENT:
+				traverser = new ParentTraverser();
+				break;
+			case Axis.PRECEDING:
+				traverser = new PrecedingTraverser(false);
+				break;
+			case Axis.PRECEDINGANDANCESTOR:
+				traverser = new PrecedingTraverser(true);
+				break;
+			default:
+				return super.getAxisTraverser(axis);
+			}
+			m_traversers[axis] = traverser;
+		}
+		return traverser;
+	}
+
+	/**
+	 * Ancestor axis.
+	 */
+	private class AncestorTraverser extends DTMAxisTraverser {
+
+		@Override
+		public int next(int context, int current) {
+			return getParent(current);
+		}
+
+		@Override
+		public int next(int context, int current, int expandedTypeID) {
+			for (int identity = _parent(makeNodeIdentity(current)); identity != NULL; identity = _parent(identity)) {
+				if (_exptype(identity) == expandedTypeID) {
+					return makeNodeHandle(identity);
+				}
+			}
+			return NULL;
+		}
+	}
+
+	/**
+	 * Ancestor-or-self axis.
+	 */
+	private class AncestorOrSelfTraverser extends AncestorTraverser {
+
+		@Override
+		public int first(int context) {
+			return context;
+		}
+
+		@Override
+		public int first(int context, int expandedTypeID) {
+			return (getExpandedTypeID(context) == expandedTypeID) ? context : next(context, context, expandedTypeID);
+		}
+	}
+
+	/**
+	 * Child axis.
+	 */
+	private class ChildTraverser extends DTMAxisTraverser {
+
+		@Override
+		public int first(int context) {
+			return getFirstChild(context);
+		}
+
+		@Override
+		public int first(int context, int expandedTypeID) {
+			return typedFrom(_firstch(makeNodeIdentity(context)), expandedTypeID);
+		}
+
+		@Override
+		public int next(int context, int current) {
+			return getNextSibling(current);
+		}
+
+		@Override
+		public int next(int context, int current, int expandedTypeID) {
+			return typedFrom(_nextsib(makeNodeIdentity(current)), expandedTypeID);
+		}
+
+		/**
+		 * Gets the first sibling of the given expanded type from a node on.
+		 */
+		private int typedFrom(int identity, int expandedTypeID) {
+			for (; identity != NULL; identity = _nextsib(identity)) {
+				if (_exptype(identity) == expandedTypeID) {
+					return makeNodeHandle(identity);
+				}
+			}
+			return NULL;
+		}
+	}
+
+	/**
+	 * Parent axis. Like in Xalan, the typed parent is the nearest ancestor of
+	 * the type.
+	 */
+	private class ParentTraverser extends DTMAxisTraverser {
+
+		@Override
+		public int first(int context) {
+			return getParent(context);
+		}
+
+		@Override
+		public int first(int context, int expandedTypeID) {
+			for (int identity = _parent(makeNodeIdentity(context)); identity != NULL; identity = _parent(identity)) {
+				if (_exptype(identity) == expandedTypeID) {
+					return makeNodeHandle(identity);
+				}
+			}
+			return NULL;
+		}
+
+		@Override
+		public int next(int context, int current) {
+			return NULL;
+		}
+
+		@Override
+		public int next(int context, int current, int expandedTypeID) {
+			return NULL;
+		}
+	}
+
+	/**
+	 * Preceding axis, in reverse document order, with or without the
+	 * ancestors.
+	 */
+	private class PrecedingTraverser extends DTMAxisTraverser {
+
+		/** Include the ancestors of the context. */
+		private final boolean ancestors;
+
+		PrecedingTraverser(boolean ancestors) {
+			this.ancestors = ancestors;
+		}
+
+		/**
+		 * Tells whether a node is an ancestor of the context.
+		 */
+		private boolean isAncestor(int context, int identity) {
+			for (int ancestor = _parent(context); ancestor != NULL; ancestor = _parent(ancestor)) {
+				if (ancestor == identity) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public int next(int context, int current) {
+			final int contextIdentity = makeNodeIdentity(context);
+			for (int identity = makeNodeIdentity(current) - 1; identity >= 0; identity--) {
+				final short type = _type(identity);
+				if (type != DTM.ATTRIBUTE_NODE && type != DTM.NAMESPACE_NODE
+						&& (ancestors || !isAncestor(contextIdentity, identity))) {
+					return makeNodeHandle(identity);
+				}
+			}
+			return NULL;
+		}
+
+		@Override
+		public int next(int context, int current, int expandedTypeID) {
+			final int contextIdentity = makeNodeIdentity(context);
+			for (int identity = makeNodeIdentity(current) - 1; identity >= 0; identity--) {
+				if (_exptype(identity) == expandedTypeID && (ancestors || !isAncestor(contextIdentity, identity))) {
+					return makeNodeHandle(identity);
+				}
+			}
+			return NULL;
+		}
+	}
+}
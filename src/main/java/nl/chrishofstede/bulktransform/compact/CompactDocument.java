@@ -0,0 +1,549 @@
+package nl.chrishofstede.bulktransform.compact;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compact, read-only document tree. Instead of an object per node, like a DOM,
+ * the nodes are rows in a few parallel arrays, in document order and addressed
+ * by their int index: the document is node 0 and the first child of a node, if
+ * it has one, is the next node. Names are kept once per document in a name
+ * table, and all text, comments and attribute values share one character pool.
+ *
+ * <p>
+ * The tree is built by {@link CompactBuilder} from SAX events, usually through
+ * {@code DOMBuilder.parseCompactDocumentAtPath}, and read back as SAX events
+ * by {@link CompactReader}, so it can be the source of a transformation. A
+ * stylesheet reads it in place through a {@link CompactDTM}.
+ * Namespace declarations are kept as attributes in the xmlns namespace, and
+ * CDATA sections as text. Attribute types aren't kept.
+ * </p>
+ */
+public class CompactDocument {
+
+	/** Node type of the document. */
+	public static final byte DOCUMENT = 0;
+
+	/** Node type of an element. */
+	public static final byte ELEMENT = 1;
+
+	/** Node type of text. */
+	public static final byte TEXT = 2;
+
+	/** Node type of a comment. */
+	public static final byte COMMENT = 3;
+
+	/** Node type of a processing instruction. */
+	public static final byte PROCESSING_INSTRUCTION = 4;
+
+	/** Namespace of the namespace declarations. */
+	public static final String XMLNS_NAMESPACE = "http://www.w3.org/2000/xmlns/";
+
+	/** No node. */
+	public static final int NONE = -1;
+
+	/** Initial number of rows and characters. */
+	private static final int INITIAL_SIZE = 64;
+
+	/** System identifier of the document, used as its base URI. */
+	private final String systemId;
+
+	// Nodes
+
+	/** Number of nodes. */
+	int nodeCount = 0;
+
+	/** Type of each node. */
+	byte[] types = new byte[INITIAL_SIZE];
+
+	/** Parent of each node. */
+	int[] parents = new int[INITIAL_SIZE];
+
+	/** Next sibling of each node. */
+	int[] nextSiblings = new int[INITIAL_SIZE];
+
+	/** Name of an element or target of a processing instruction. */
+	int[] names = new int[INITIAL_SIZE];
+
+	/** First attribute of an element, or start of the characters of another node. */
+	int[] offsets = new int[INITIAL_SIZE];
+
+	/** Number of attributes of an element, or number of characters of another node. */
+	int[] lengths = new int[INITIAL_SIZE];
+
+	// Attributes
+
+	/** Number of attributes. */
+	int attributeCount = 0;
+
+	/** Name of each attribute. */
+	int[] attributeNames = new int[INITIAL_SIZE];
+
+	/** Start of the value of each attribute. */
+	int[] valueOffsets = new int[INITIAL_SIZE];
+
+	/** Length of the value of each attribute. */
+	int[] valueLengths = new int[INITIAL_SIZE];
+
+	// Character pool
+
+	/** Number of characters used. */
+	int charCount = 0;
+
+	/** Characters of all text, comments and attribute values. */
+	char[] chars = new char[INITIAL_SIZE * 8];
+
+	// Name table
+
+	/** Number of names. */
+	int nameCount = 0;
+
+	/** Namespace URI of each name, empty if none. */
+	String[] uris = new String[INITIAL_SIZE];
+
+	/** Local name of each name. */
+	String[] localNames = new String[INITIAL_SIZE];
+
+	/** Qualified name of each name. */
+	String[] qNames = new String[INITIAL_SIZE];
+
+	/** Next name with the same qualified name in another namespace. */
+	private int[] sameQNames = new int[INITIAL_SIZE];
+
+	/** First name with a qualified name. */
+	private final Map<String, Integer> nameIndex = new HashMap<String, Integer>();
+
+	/**
+	 * Constructor of an empty document, which holds the document node only.
+	 *
+	 * @param systemId
+	 *                 System identifier of the document, may be null.
+	 */
+	public CompactDocument(String systemId) {
+		this.systemId = systemId;
+		addNode(DOCUMENT, NONE, NONE, 0, 0);
+	}
+
+	/**
+	 * Gets the system identifier of the document.
+	 *
+	 * @return The system identifier, may be null.
+	 */
+	public String getSystemId() {
+		return systemId;
+	}
+
+	/**
+	 * Creates a source reading the document, as SAX events or, by a stylesheet,
+	 * in place.
+	 *
+	 * @return Source of a transformation.
+	 */
+	public CompactSource newSource() {
+		return new CompactSource(this);
+	}
+
+	/**
+	 * Adds a node as the last node in document order.
+	 */
+	int addNode(byte type, int parent, int name, int offset, int length) {
+		if (nodeCount == types.length) {
+			final int size = nodeCount * 2;
+			types = Arrays.copyOf(types, size);
+			parents = Arrays.copyOf(parents, size);
+			nextSiblings = Arrays.copyOf(nextSiblings, size);
+			names = Arrays.copyOf(names, size);
+			offsets = Arrays.copyOf(offsets, size);
+			lengths = Arrays.copyOf(lengths, size);
+		}
+		final int node = nodeCount++;
+		types[node] = type;
+		parents[node] = parent;
+		nextSiblings[node] = NONE;
+		names[node] = name;
+		offsets[node] = offset;
+		lengths[node] = length;
+		return node;
+	}
+
+	/**
+	 * Adds an attribute as the last attribute.
+	 */
+	int addAttribute(int name, int offset, int length) {
+		if (attributeCount == attributeNames.length) {
+			final int size = attributeCount * 2;
+			attributeNames = Arrays.copyOf(attributeNames, size);
+			valueOffsets = Arrays.copyOf(valueOffsets, size);
+			valueLengths = Arrays.copyOf(valueLengths, size);
+		}
+		final int attribute = attributeCount++;
+		attributeNames[attribute] = name;
+		valueOffsets[attribute] = offset;
+		valueLengths[attribute] = length;
+		return attribute;
+	}
+
+	/**
+	 * Adds characters to the pool.
+	 *
+	 * @return Start of the characters in the pool.
+	 */
+	int addChars(char[] ch, int start, int length) {
+		ensureChars(length);
+		System.arraycopy(ch, start, chars, charCount, length);
+		final int offset = charCount;
+		charCount += length;
+		return offset;
+	}
+
+	/**
+	 * Adds a string to the pool.
+	 *
+	 * @return Start of the characters in the pool.
+	 */
+	int addChars(String value) {
+		ensureChars(value.length());
+		value.getChars(0, value.length(), chars, charCount);
+		final int offset = charCount;
+		charCount += value.length();
+		return offset;
+	}
+
+	/**
+	 * Makes room in the pool.
+	 */
+	private void ensureChars(int length) {
+		if (charCount + length > chars.length) {
+			chars = Arrays.copyOf(chars, Math.max(chars.length * 2, charCount + length));
+		}
+	}
+
+	/**
+	 * Gets the index of a name, adding it to the name table if it is new.
+	 */
+	int addName(String uri, String localName, String qName) {
+		final String namespace = (uri != null) ? uri : "";
+		final Integer first = nameIndex.get(qName);
+		for (int name = (first != null) ? first : NONE; name != NONE; name = sameQNames[name]) {
+			if (uris[name].equals(namespace)) {
+				return name;
+			}
+		}
+		if (nameCount == qNames.length) {
+			final int size = nameCount * 2;
+			uris = Arrays.copyOf(uris, size);
+			localNames = Arrays.copyOf(localNames, size);
+			qNames = Arrays.copyOf(qNames, size);
+			sameQNames = Arrays.copyOf(sameQNames, size);
+		}
+		final int name = nameCount++;
+		uris[name] = namespace;
+		localNames[name] = (localName != null && !localName.isEmpty()) ? localName : localNameOf(qName);
+		qNames[name] = qName;
+		sameQNames[name] = (first != null) ? first : NONE;
+		nameIndex.put(qName, name);
+		return name;
+	}
+
+	/**
+	 * Gets the local part of a qualified name.
+	 */
+	private static String localNameOf(String qName) {
+		final int colon = qName.indexOf(':');
+		return (colon < 0) ? qName : qName.substring(colon + 1);
+	}
+
+	/**
+	 * Trims the arrays to their used size once the document is complete.
+	 */
+	void trim() {
+		types = Arrays.copyOf(types, nodeCount);
+		parents = Arrays.copyOf(parents, nodeCount);
+		nextSiblings = Arrays.copyOf(nextSiblings, nodeCount);
+		names = Arrays.copyOf(names, nodeCount);
+		offsets = Arrays.copyOf(offsets, nodeCount);
+		lengths = Arrays.copyOf(lengths, nodeCount);
+		attributeNames = Arrays.copyOf(attributeNames, attributeCount);
+		valueOffsets = Arrays.copyOf(valueOffsets, attributeCount);
+		valueLengths = Arrays.copyOf(valueLengths, attributeCount);
+		chars = Arrays.copyOf(chars, charCount);
+	}
+
+	/**
+	 * Gets the number of nodes, including the document node.
+	 *
+	 * @return Number of nodes.
+	 */
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+	/**
+	 * Gets the type of a node.
+	 *
+	 * @param node
+	 *             Index of the node.
+	 * @return {@link #DOCUMENT}, {@link #ELEMENT}, {@link #TEXT},
+	 *         {@link #COMMENT} or {@link #PROCESSING_INSTRUCTION}.
+	 */
+	public byte getType(int node) {
+		return types[node];
+	}
+
+	/**
+	 * Gets the parent of a node.
+	 *
+	 * @param node
+	 *             Index of the node.
+	 * @return Index of the parent, or {@link #NONE} for the document.
+	 */
+	public int getParent(int node) {
+		return parents[node];
+	}
+
+	/**
+	 * Gets the first child of a node.
+	 *
+	 * @param node
+	 *             Index of the node.
+	 * @return Index of the first child, or {@link #NONE}.
+	 */
+	public int getFirstChild(int node) {
+		final int next = node + 1;
+		return (next < nodeCount && parents[next] == node) ? next : NONE;
+	}
+
+	/**
+	 * Gets the next sibling of a node.
+	 *
+	 * @param node
+	 *             Index of the node.
+	 * @return Index of the next sibling, or {@link #NONE}.
+	 */
+	public int getNextSibling(int node) {
+		return nextSiblings[node];
+	}
+
+	/**
+	 * Gets the document element.
+	 *
+	 * @return Index of the document element, or {@link #NONE} if there is none.
+	 */
+	public int getDocumentElement() {
+		for (int child = getFirstChild(0); child != NONE; child = nextSiblings[child]) {
+			if (types[child] == ELEMENT) {
+				return child;
+			}
+		}
+		return NONE;
+	}
+
+	/**
+	 * Gets the qualified name of an element, or the target of a processing
+	 * instruction.
+	 *
+	 * @param node
+	 *             Index of the node.
+	 * @return The name, null for other nodes.
+	 */
+	public String getName(int node) {
+		final byte type = types[node];
+		return (type == ELEMENT || type == PROCESSING_INSTRUCTION) ? qNames[names[node]] : null;
+	}
+
+	/**
+	 * Gets the namespace URI of an element.
+	 *
+	 * @param node
+	 *             Index of the node.
+	 * @return The namespace URI, empty if none.
+	 */
+	public String getNamespaceURI(int node) {
+		return (types[node] == ELEMENT) ? uris[names[node]] : "";
+	}
+
+	/**
+	 * Gets the local name of an element.
+	 *
+	 * @param node
+	 *             Index of the node.
+	 * @return The local name, null for other nodes.
+	 */
+	public String getLocalName(int node) {
+		return (types[node] == ELEMENT) ? localNames[names[node]] : null;
+	}
+
+	/**
+	 * Gets the text of a text node, comment or processing instruction.
+	 *
+	 * @param node
+	 *             Index of the node.
+	 * @return The text, null for elements and the document.
+	 */
+	public String getValue(int node) {
+		final byte type = types[node];
+		return (type == ELEMENT || type == DOCUMENT) ? null : new String(chars, offsets[node], lengths[node]);
+	}
+
+	/**
+	 * Gets the number of attributes of an element, including the namespace
+	 * declarations.
+	 *
+	 * @param node
+	 *             Index of the element.
+	 * @return Number of attributes, 0 for other nodes.
+	 */
+	public int getAttributeCount(int node) {
+		return (types[node] == ELEMENT) ? lengths[node] : 0;
+	}
+
+	/**
+	 * Gets the qualified name of an attribute.
+	 *
+	 * @param node
+	 *              Index of the element.
+	 * @param index
+	 *              Index of the attribute in the element.
+	 * @return The qualified name.
+	 */
+	public String getAttributeName(int node, int index) {
+		return qNames[attributeNames[offsets[node] + index]];
+	}
+
+	/**
+	 * Gets the namespace URI of an attribute.
+	 *
+	 * @param node
+	 *              Index of the element.
+	 * @param index
+	 *              Index of the attribute in the element.
+	 * @return The namespace URI, empty if none.
+	 */
+	public String getAttributeNamespaceURI(int node, int index) {
+		return uris[attributeNames[offsets[node] + index]];
+	}
+
+	/**
+	 * Gets the local name of an attribute.
+	 *
+	 * @param node
+	 *              Index of the element.
+	 * @param index
+	 *              Index of the attribute in the element.
+	 * @return The local name.
+	 */
+	public String getAttributeLocalName(int node, int index) {
+		return localNames[attributeNames[offsets[node] + index]];
+	}
+
+	/**
+	 * Gets the value of an attribute.
+	 *
+	 * @param node
+	 *              Index of the element.
+	 * @param index
+	 *              Index of the attribute in the element.
+	 * @return The value.
+	 */
+	public String getAttributeValue(int node, int index) {
+		final int attribute = offsets[node] + index;
+		return new String(chars, valueOffsets[attribute], valueLengths[attribute]);
+	}
+
+	/**
+	 * Gets the value of an attribute by name.
+	 *
+	 * @param node
+	 *                  Index of the element.
+	 * @param uri
+	 *                  Namespace URI of the attribute, empty if none.
+	 * @param localName
+	 *                  Local name of the attribute.
+	 * @return The value, or null if the element has no such attribute.
+	 */
+	public String getAttribute(int node, String uri, String localName) {
+		final int count = getAttributeCount(node);
+		for (int i = 0; i < count; i++) {
+			if (getAttributeLocalName(node, i).equals(localName) && getAttributeNamespaceURI(node, i).equals(uri)) {
+				return getAttributeValue(node, i);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the text of a node as a string value: the concatenated text of its
+	 * descendants for a document or element.
+	 *
+	 * @param node
+	 *             Index of the node.
+	 * @return The string value.
+	 */
+	public String getStringValue(int node) {
+		final byte type = types[node];
+		if (type != ELEMENT && type != DOCUMENT) {
+			return getValue(node);
+		}
+
+		// The descendants follow the node in document order
+		final StringBuilder value = new StringBuilder();
+		final int end = getSubtreeEnd(node);
+		for (int descendant = node + 1; descendant < end; descendant++) {
+			if (types[descendant] == TEXT) {
+				value.append(chars, offsets[descendant], lengths[descendant]);
+			}
+		}
+		return value.toString();
+	}
+
+	/**
+	 * Gets the end of the subtree of a node: the first node in document order
+	 * after its descendants.
+	 *
+	 * @param node
+	 *             Index of the node.
+	 * @return Index of the node after the subtree, or the number of nodes.
+	 */
+	public int getSubtreeEnd(int node) {
+		for (int ancestor = node; ancestor != NONE; ancestor = parents[ancestor]) {
+			if (nextSiblings[ancestor] != NONE) {
+				return nextSiblings[ancestor];
+			}
+		}
+		return nodeCount;
+	}
+
+	/**
+	 * Gets the character pool, so text can be passed on without a copy. It must
+	 * not be changed.
+	 */
+	char[] getChars() {
+		return chars;
+	}
+
+	/**
+	 * Gets the start of the characters of a node in the pool.
+	 */
+	int getCharOffset(int node) {
+		return offsets[node];
+	}
+
+	/**
+	 * Gets the number of characters of a node in the pool.
+	 */
+	int getCharLength(int node) {
+		return lengths[node];
+	}
+
+	/**
+	 * Estimates the heap taken by the document.
+	 *
+	 * @return Size in bytes, leaving out the shared strings of the name table.
+	 */
+	public long getMemoryFootprint() {
+		return types.length + 4L * (parents.length + nextSiblings.length + names.length + offsets.length
+				+ lengths.length + attributeNames.length + valueOffsets.length + valueLengths.length)
+				+ 2L * chars.length;
+	}
+}
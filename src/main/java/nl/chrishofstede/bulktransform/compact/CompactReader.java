@@ -0,0 +1,257 @@
+package nl.chrishofstede.bulktransform.compact;
+
+import org.xml.sax.ContentHandler;
+import org.xml.sax.DTDHandler;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXNotRecognizedException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.LocatorImpl;
+
+/**
+ * Reads a {@link CompactDocument} as SAX events, as if it was parsed again, so
+ * it can be the source of a transformation or of any other SAX consumer. The
+ * input source passed to parse is ignored. Text is passed straight from the
+ * character pool of the document. The tree is walked without recursion.
+ */
+public class CompactReader implements XMLReader {
+
+	/** Feature of the namespace processing, always on. */
+	private static final String NAMESPACES = "http://xml.org/sax/features/namespaces";
+
+	/** Feature of the namespace declarations reported as attributes. */
+	private static final String NAMESPACE_PREFIXES = "http://xml.org/sax/features/namespace-prefixes";
+
+	/** Document being read. */
+	private final CompactDocument document;
+
+	/** Receiver of the content. */
+	private ContentHandler contentHandler = null;
+
+	/** Receiver of the comments, may be null. */
+	private LexicalHandler lexicalHandler = null;
+
+	/** Receiver of the DTD events, which never occur. */
+	private DTDHandler dtdHandler = null;
+
+	/** Resolver of the entities, which are never resolved. */
+	private EntityResolver entityResolver = null;
+
+	/** Receiver of the errors, which never occur. */
+	private ErrorHandler errorHandler = null;
+
+	/** Report the namespace declarations as attributes too. */
+	private boolean namespacePrefixes = false;
+
+	/** Attributes of the current element, reused. */
+	private final AttributesImpl attributes = new AttributesImpl();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param document
+	 *                 Document to be read.
+	 */
+	public CompactReader(CompactDocument document) {
+		if (document == null) {
+			throw new IllegalArgumentException("document is null");
+		}
+		this.document = document;
+	}
+
+	@Override
+	public boolean getFeature(String name) throws SAXNotRecognizedException {
+		if (NAMESPACES.equals(name)) {
+			return true;
+		}
+		if (NAMESPACE_PREFIXES.equals(name)) {
+			return namespacePrefixes;
+		}
+		throw new SAXNotRecognizedException(name);
+	}
+
+	@Override
+	public void setFeature(String name, boolean value) throws SAXNotRecognizedException {
+		if (NAMESPACE_PREFIXES.equals(name)) {
+			namespacePrefixes = value;
+		} else if (!NAMESPACES.equals(name) || !value) {
+			throw new SAXNotRecognizedException(name);
+		}
+	}
+
+	@Override
+	public Object getProperty(String name) throws SAXNotRecognizedException {
+		if (CompactBuilder.LEXICAL_HANDLER.equals(name)) {
+			return lexicalHandler;
+		}
+		throw new SAXNotRecognizedException(name);
+	}
+
+	@Override
+	public void setProperty(String name, Object value) throws SAXNotRecognizedException {
+		if (CompactBuilder.LEXICAL_HANDLER.equals(name)) {
+			lexicalHandler = (LexicalHandler) value;
+		} else {
+			throw new SAXNotRecognizedException(name);
+		}
+	}
+
+	@Override
+	public void setEntityResolver(EntityResolver resolver) {
+		entityResolver = resolver;
+	}
+
+	@Override
+	public EntityResolver getEntityResolver() {
+		return entityResolver;
+	}
+
+	@Override
+	public void setDTDHandler(DTDHandler handler) {
+		dtdHandler = handler;
+	}
+
+	@Override
+	public DTDHandler getDTDHandler() {
+		return dtdHandler;
+	}
+
+	@Override
+	public void setContentHandler(ContentHandler handler) {
+		contentHandler = handler;
+	}
+
+	@Override
+	public ContentHandler getContentHandler() {
+		return contentHandler;
+	}
+
+	@Override
+	public void setErrorHandler(ErrorHandler handler) {
+		errorHandler = handler;
+	}
+
+	@Override
+	public ErrorHandler getErrorHandler() {
+		return errorHandler;
+	}
+
+	@Override
+	public void parse(String systemId) throws SAXException {
+		parse((InputSource) null);
+	}
+
+	/**
+	 * Reports the document to the handlers.
+	 *
+	 * @param input
+	 *              Ignored, the document is read.
+	 * @throws SAXException
+	 *                      Signals that a handler failed.
+	 */
+	@Override
+	public void parse(InputSource input) throws SAXException {
+		if (contentHandler == null) {
+			return;
+		}
+		final LocatorImpl locator = new LocatorImpl();
+		locator.setSystemId(document.getSystemId());
+		contentHandler.setDocumentLocator(locator);
+		contentHandler.startDocument();
+
+		// Walk the nodes in document order, the first child of a node is the next node
+		int node = document.getFirstChild(0);
+		while (node != CompactDocument.NONE) {
+			start(node);
+			final int child = document.getFirstChild(node);
+			if (child != CompactDocument.NONE) {
+				node = child;
+				continue;
+			}
+
+			// Close the node, and its ancestors as long as they have no next sibling
+			while (true) {
+				end(node);
+				final int next = document.getNextSibling(node);
+				if (next != CompactDocument.NONE) {
+					node = next;
+					break;
+				}
+				node = document.getParent(node);
+				if (node == 0) {
+					node = CompactDocument.NONE;
+					break;
+				}
+			}
+		}
+		contentHandler.endDocument();
+	}
+
+	/**
+	 * Reports the start of a node.
+	 */
+	private void start(int node) throws SAXException {
+		final char[] chars = document.getChars();
+		switch (document.getType(node)) {
+			case CompactDocument.ELEMENT:
+				attributes.clear();
+				final int count = document.getAttributeCount(node);
+				for (int i = 0; i < count; i++) {
+					final String qName = document.getAttributeName(node, i);
+					final String value = document.getAttributeValue(node, i);
+					if (CompactDocument.XMLNS_NAMESPACE.equals(document.getAttributeNamespaceURI(node, i))) {
+						contentHandler.startPrefixMapping(prefixOf(qName), value);
+						if (!namespacePrefixes) {
+							continue;
+						}
+						attributes.addAttribute("", document.getAttributeLocalName(node, i), qName, "CDATA", value);
+					} else {
+						attributes.addAttribute(document.getAttributeNamespaceURI(node, i),
+								document.getAttributeLocalName(node, i), qName, "CDATA", value);
+					}
+				}
+				contentHandler.startElement(document.getNamespaceURI(node), document.getLocalName(node),
+						document.getName(node), attributes);
+				break;
+			case CompactDocument.TEXT:
+				contentHandler.characters(chars, document.getCharOffset(node), document.getCharLength(node));
+				break;
+			case CompactDocument.COMMENT:
+				if (lexicalHandler != null) {
+					lexicalHandler.comment(chars, document.getCharOffset(node), document.getCharLength(node));
+				}
+				break;
+			case CompactDocument.PROCESSING_INSTRUCTION:
+				contentHandler.processingInstruction(document.getName(node), document.getValue(node));
+				break;
+		}
+	}
+
+	/**
+	 * Reports the end of a node.
+	 */
+	private void end(int node) throws SAXException {
+		if (document.getType(node) == CompactDocument.ELEMENT) {
+			contentHandler.endElement(document.getNamespaceURI(node), document.getLocalName(node),
+					document.getName(node));
+			final int count = document.getAttributeCount(node);
+			for (int i = 0; i < count; i++) {
+				if (CompactDocument.XMLNS_NAMESPACE.equals(document.getAttributeNamespaceURI(node, i))) {
+					contentHandler.endPrefixMapping(prefixOf(document.getAttributeName(node, i)));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets the prefix declared by a namespace declaration, empty for the default
+	 * namespace.
+	 */
+	private static String prefixOf(String qName) {
+		return "xmlns".equals(qName) ? "" : qName.substring("xmlns:".length());
+	}
+}
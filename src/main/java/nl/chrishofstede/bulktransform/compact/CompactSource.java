@@ -0,0 +1,37 @@
+package nl.chrishofstede.bulktransform.compact;
+
+import javax.xml.transform.sax.SAXSource;
+
+import org.xml.sax.InputSource;
+
+/**
+ * Source of a transformation reading a {@link CompactDocument}. Any consumer
+ * can read it as SAX events through its {@link CompactReader}; a stylesheet
+ * which knows the document can read the tree in place through a
+ * {@link CompactDTM} instead.
+ */
+public class CompactSource extends SAXSource {
+
+	/** Document being read. */
+	private final CompactDocument document;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param document
+	 *                 Document to be read.
+	 */
+	public CompactSource(CompactDocument document) {
+		super(new CompactReader(document), new InputSource(document.getSystemId()));
+		this.document = document;
+	}
+
+	/**
+	 * Gets the document being read.
+	 *
+	 * @return The document.
+	 */
+	public CompactDocument getDocument() {
+		return document;
+	}
+}
@@ -0,0 +1,391 @@
+package nl.chrishofstede.bulktransform.compact;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.xml.sax.ContentHandler;
+import org.xml.sax.DTDHandler;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXNotRecognizedException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.LocatorImpl;
+
+/**
+ * Replays an event stream recorded by {@link EventStreamWriter} as SAX events,
+ * as if the document was parsed again. The byte stream of the input source
+ * passed to parse is read and closed, its system identifier is reported by the
+ * locator. The events are replayed while the stream is read, so the document
+ * is never held in memory. Text is decoded into a reused buffer and passed
+ * from there.
+ */
+public class EventStreamReader implements XMLReader {
+
+	/** Feature of the namespace processing, always on. */
+	private static final String NAMESPACES = "http://xml.org/sax/features/namespaces";
+
+	/** Feature of the namespace declarations reported as attributes. */
+	private static final String NAMESPACE_PREFIXES = "http://xml.org/sax/features/namespace-prefixes";
+
+	/** Size of the input buffer. */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/** Receiver of the content. */
+	private ContentHandler contentHandler = null;
+
+	/** Receiver of the comments, may be null. */
+	private LexicalHandler lexicalHandler = null;
+
+	/** Receiver of the DTD events, which never occur. */
+	private DTDHandler dtdHandler = null;
+
+	/** Resolver of the entities, which are never resolved. */
+	private EntityResolver entityResolver = null;
+
+	/** Receiver of the errors, which never occur. */
+	private ErrorHandler errorHandler = null;
+
+	/** Report the namespace declarations as attributes too. */
+	private boolean namespacePrefixes = false;
+
+	/** Attributes of the current element, reused. */
+	private final AttributesImpl attributes = new AttributesImpl();
+
+	/** Stream being read. */
+	private InputStream in;
+
+	/** Input buffer. */
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+
+	/** Position in the input buffer. */
+	private int position;
+
+	/** Number of bytes in the input buffer. */
+	private int limit;
+
+	/** Decoded characters. */
+	private char[] chars = new char[1024];
+
+	/** Namespace URIs of the names, by number. */
+	private String[] uris = new String[64];
+
+	/** Local names of the names, by number. */
+	private String[] localNames = new String[64];
+
+	/** Qualified names of the names, by number. */
+	private String[] qNames = new String[64];
+
+	/** Namespace declarations of the next element, as prefix and URI pairs. */
+	private String[] declarations = new String[8];
+
+	@Override
+	public boolean getFeature(String name) throws SAXNotRecognizedException {
+		if (NAMESPACES.equals(name)) {
+			return true;
+		}
+		if (NAMESPACE_PREFIXES.equals(name)) {
+			return namespacePrefixes;
+		}
+		throw new SAXNotRecognizedException(name);
+	}
+
+	@Override
+	public void setFeature(String name, boolean value) throws SAXNotRecognizedException {
+		if (NAMESPACE_PREFIXES.equals(name)) {
+			namespacePrefixes = value;
+		} else if (!NAMESPACES.equals(name) || !value) {
+			throw new SAXNotRecognizedException(name);
+		}
+	}
+
+	@Override
+	public Object getProperty(String name) throws SAXNotRecognizedException {
+		if (CompactBuilder.LEXICAL_HANDLER.equals(name)) {
+			return lexicalHandler;
+		}
+		throw new SAXNotRecognizedException(name);
+	}
+
+	@Override
+	public void setProperty(String name, Object value) throws SAXNotRecognizedException {
+		if (CompactBuilder.LEXICAL_HANDLER.equals(name)) {
+			lexicalHandler = (LexicalHandler) value;
+		} else {
+			throw new SAXNotRecognizedException(name);
+		}
+	}
+
+	@Override
+	public void setEntityResolver(EntityResolver resolver) {
+		entityResolver = resolver;
+	}
+
+	@Override
+	public EntityResolver getEntityResolver() {
+		return entityResolver;
+	}
+
+	@Override
+	public void setDTDHandler(DTDHandler handler) {
+		dtdHandler = handler;
+	}
+
+	@Override
+	public DTDHandler getDTDHandler() {
+		return dtdHandler;
+	}
+
+	@Override
+	public void setContentHandler(ContentHandler handler) {
+		contentHandler = handler;
+	}
+
+	@Override
+	public ContentHandler getContentHandler() {
+		return contentHandler;
+	}
+
+	@Override
+	public void setErrorHandler(ErrorHandler handler) {
+		errorHandler = handler;
+	}
+
+	@Override
+	public ErrorHandler getErrorHandler() {
+		return errorHandler;
+	}
+
+	@Override
+	public void parse(String systemId) throws SAXException, IOException {
+		parse(new InputSource(systemId));
+	}
+
+	/**
+	 * Replays an event stream to the handlers.
+	 *
+	 * @param input
+	 *              Input source with the byte stream of the events, which is
+	 *              closed.
+	 * @throws SAXException
+	 *                      Signals that a handler failed or that the stream is
+	 *                      not an event stream.
+	 * @throws IOException
+	 *                      Signals that the stream can't be read or is truncated.
+	 */
+	@Override
+	public void parse(InputSource input) throws SAXException, IOException {
+		if (input.getByteStream() == null) {
+			throw new SAXException("No byte stream for " + input.getSystemId());
+		}
+		in = input.getByteStream();
+		position = 0;
+		limit = 0;
+		try {
+			if (readInt() != EventStreamWriter.MAGIC || readInt() != EventStreamWriter.VERSION) {
+				throw new SAXException("Not an event stream: " + input.getSystemId());
+			}
+			if (contentHandler == null) {
+				return;
+			}
+			final LocatorImpl locator = new LocatorImpl();
+			locator.setSystemId(input.getSystemId());
+			contentHandler.setDocumentLocator(locator);
+			contentHandler.startDocument();
+			replay();
+			contentHandler.endDocument();
+		} finally {
+			in.close();
+			in = null;
+		}
+	}
+
+	/**
+	 * Replays the events up to the end of the document.
+	 */
+	private void replay() throws SAXException, IOException {
+		int nameCount = 0;
+		int declarationCount = 0;
+		while (true) {
+			final int opcode = read();
+			switch (opcode) {
+				case EventStreamWriter.END_DOCUMENT:
+					return;
+				case EventStreamWriter.DEFINE_NAME:
+					if (nameCount == qNames.length) {
+						uris = Arrays.copyOf(uris, nameCount * 2);
+						localNames = Arrays.copyOf(localNames, nameCount * 2);
+						qNames = Arrays.copyOf(qNames, nameCount * 2);
+					}
+					uris[nameCount] = readString();
+					localNames[nameCount] = readString();
+					qNames[nameCount] = readString();
+					nameCount++;
+					break;
+				case EventStreamWriter.START_PREFIX_MAPPING:
+					final String prefix = readString();
+					final String uri = readString();
+					contentHandler.startPrefixMapping(prefix, uri);
+					if (namespacePrefixes) {
+						if (declarationCount * 2 == declarations.length) {
+							declarations = Arrays.copyOf(declarations, declarations.length * 2);
+						}
+						declarations[declarationCount * 2] = prefix;
+						declarations[declarationCount * 2 + 1] = uri;
+						declarationCount++;
+					}
+					break;
+				case EventStreamWriter.END_PREFIX_MAPPING:
+					contentHandler.endPrefixMapping(readString());
+					break;
+				case EventStreamWriter.START_ELEMENT:
+					final int element = readNumber();
+					attributes.clear();
+					for (int i = 0; i < declarationCount; i++) {
+						final String declared = declarations[i * 2];
+						attributes.addAttribute("", declared.isEmpty() ? "xmlns" : declared,
+								declared.isEmpty() ? "xmlns" : "xmlns:" + declared, "CDATA", declarations[i * 2 + 1]);
+					}
+					declarationCount = 0;
+					final int count = readNumber();
+					for (int i = 0; i < count; i++) {
+						final int name = readNumber();
+						final int type = read();
+						attributes.addAttribute(uris[name], localNames[name], qNames[name],
+								EventStreamWriter.ATTRIBUTE_TYPES[type], readString());
+					}
+					contentHandler.startElement(uris[element], localNames[element], qNames[element], attributes);
+					break;
+				case EventStreamWriter.END_ELEMENT:
+					final int name = readNumber();
+					contentHandler.endElement(uris[name], localNames[name], qNames[name]);
+					break;
+				case EventStreamWriter.CHARACTERS:
+					final int length = readChars();
+					contentHandler.characters(chars, 0, length);
+					break;
+				case EventStreamWriter.COMMENT:
+					final int commentLength = readChars();
+					if (lexicalHandler != null) {
+						lexicalHandler.comment(chars, 0, commentLength);
+					}
+					break;
+				case EventStreamWriter.PROCESSING_INSTRUCTION:
+					contentHandler.processingInstruction(readString(), readString());
+					break;
+				default:
+					throw new SAXException("Unknown event " + opcode + " in the event stream");
+			}
+		}
+	}
+
+	/**
+	 * Makes sure a number of bytes is in the buffer, at most its size.
+	 */
+	private void fill(int count) throws IOException {
+		if (limit - position >= count) {
+			return;
+		}
+		System.arraycopy(buffer, position, buffer, 0, limit - position);
+		limit -= position;
+		position = 0;
+		while (limit < count) {
+			final int read = in.read(buffer, limit, BUFFER_SIZE - limit);
+			if (read < 0) {
+				throw new IOException("Event stream is truncated");
+			}
+			limit += read;
+		}
+	}
+
+	/**
+	 * Reads a byte.
+	 */
+	private int read() throws IOException {
+		if (position == limit) {
+			fill(1);
+		}
+		return buffer[position++] & 0xff;
+	}
+
+	/**
+	 * Reads a fixed-length number.
+	 */
+	private int readInt() throws IOException {
+		return (read() << 24) | (read() << 16) | (read() << 8) | read();
+	}
+
+	/**
+	 * Reads a number written in 7-bit groups.
+	 */
+	private int readNumber() throws IOException {
+		int value = 0;
+		int shift = 0;
+		int b;
+		do {
+			b = read();
+			value |= (b & 0x7f) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+
+	/**
+	 * Reads a string.
+	 */
+	private String readString() throws IOException {
+		final int length = readChars();
+		return new String(chars, 0, length);
+	}
+
+	/**
+	 * Reads UTF-8 characters into the character buffer.
+	 *
+	 * @return The number of characters.
+	 */
+	private int readChars() throws IOException {
+		int remaining = readNumber();
+
+		// Never more characters than bytes
+		if (chars.length < remaining) {
+			chars = new char[Math.max(remaining, chars.length * 2)];
+		}
+		int length = 0;
+		while (remaining > 0) {
+			fill(Math.min(remaining, 4));
+			final int end = position + Math.min(remaining, limit - position);
+			int p = position;
+
+			// ASCII, as long as the bytes are
+			while (p < end && buffer[p] >= 0) {
+				chars[length++] = (char) buffer[p++];
+			}
+			remaining -= p - position;
+			position = p;
+			if (p < end) {
+				final int b = buffer[position] & 0xff;
+				final int size = (b >= 0xf0) ? 4 : (b >= 0xe0) ? 3 : 2;
+				fill(size);
+				final byte[] bytes = buffer;
+				position++;
+				if (size == 2) {
+					chars[length++] = (char) (((b & 0x1f) << 6) | (bytes[position++] & 0x3f));
+				} else if (size == 3) {
+					chars[length++] = (char) (((b & 0x0f) << 12) | ((bytes[position++] & 0x3f) << 6)
+							| (bytes[position++] & 0x3f));
+				} else {
+					final int codePoint = ((b & 0x07) << 18) | ((bytes[position++] & 0x3f) << 12)
+							| ((bytes[position++] & 0x3f) << 6) | (bytes[position++] & 0x3f);
+					chars[length++] = Character.highSurrogate(codePoint);
+					chars[length++] = Character.lowSurrogate(codePoint);
+				}
+				remaining -= size;
+			}
+		}
+		return length;
+	}
+}
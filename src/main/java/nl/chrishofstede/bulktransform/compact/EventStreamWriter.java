@@ -0,0 +1,321 @@
+package nl.chrishofstede.bulktransform.compact;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Records the SAX events of a parser in a compact binary event stream, which
+ * {@link EventStreamReader} replays far faster than the document can be parsed
+ * again. Each event is an opcode followed by its operands. A name is written
+ * once, the first time it occurs, and referred to by its number afterwards.
+ * Numbers are variable-length, strings are UTF-8 with their length in bytes
+ * in front.
+ */
+public class EventStreamWriter extends DefaultHandler implements LexicalHandler {
+
+	/** Magic number at the start of an event stream. */
+	static final int MAGIC = 0x42545345;
+
+	/** Version of the encoding. */
+	static final int VERSION = 1;
+
+	// Opcodes
+	static final int END_DOCUMENT = 0;
+	static final int START_ELEMENT = 1;
+	static final int END_ELEMENT = 2;
+	static final int CHARACTERS = 3;
+	static final int COMMENT = 4;
+	static final int PROCESSING_INSTRUCTION = 5;
+	static final int START_PREFIX_MAPPING = 6;
+	static final int END_PREFIX_MAPPING = 7;
+	static final int DEFINE_NAME = 8;
+
+	/** Attribute types by number; another type is written as CDATA. */
+	static final String[] ATTRIBUTE_TYPES = { "CDATA", "ID", "IDREF", "IDREFS", "NMTOKEN", "NMTOKENS", "ENTITY",
+			"ENTITIES", "NOTATION" };
+
+	/** Size of the output buffer. */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/** Stream the events are written to. */
+	private final OutputStream out;
+
+	/** Output buffer. */
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+
+	/** Number of bytes in the buffer. */
+	private int length = 0;
+
+	/** Numbers of the names written, by namespace URI and qualified name. */
+	private final Map<String, Map<String, Integer>> names = new HashMap<String, Map<String, Integer>>();
+
+	/** Number of names written. */
+	private int nameCount = 0;
+
+	/** Inside the DTD, of which the comments aren't recorded. */
+	private boolean inDTD = false;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param out
+	 *            Stream the events are written to; it is flushed but not closed
+	 *            at the end of the document.
+	 */
+	public EventStreamWriter(OutputStream out) {
+		this.out = out;
+	}
+
+	@Override
+	public void startDocument() throws SAXException {
+		writeInt(MAGIC);
+		writeInt(VERSION);
+	}
+
+	@Override
+	public void endDocument() throws SAXException {
+		write(END_DOCUMENT);
+		try {
+			flush();
+			out.flush();
+		} catch (final IOException e) {
+			throw new SAXException(e);
+		}
+	}
+
+	@Override
+	public void startPrefixMapping(String prefix, String uri) throws SAXException {
+		write(START_PREFIX_MAPPING);
+		writeString(prefix);
+		writeString(uri);
+	}
+
+	@Override
+	public void endPrefixMapping(String prefix) throws SAXException {
+		write(END_PREFIX_MAPPING);
+		writeString(prefix);
+	}
+
+	@Override
+	public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+		final int count = attributes.getLength();
+		int written = 0;
+		final int[] attributeNames = new int[count];
+		for (int i = 0; i < count; i++) {
+			final String attributeName = attributes.getQName(i);
+
+			// Reported as attributes too when the parser is asked for the prefixes
+			if ("xmlns".equals(attributeName) || attributeName.startsWith("xmlns:")) {
+				attributeNames[i] = -1;
+			} else {
+				attributeNames[i] = getName(attributes.getURI(i), attributes.getLocalName(i), attributeName);
+				written++;
+			}
+		}
+		final int name = getName(uri, localName, qName);
+		write(START_ELEMENT);
+		writeNumber(name);
+		writeNumber(written);
+		for (int i = 0; i < count; i++) {
+			if (attributeNames[i] >= 0) {
+				writeNumber(attributeNames[i]);
+				write(typeOf(attributes.getType(i)));
+				writeString(attributes.getValue(i));
+			}
+		}
+	}
+
+	@Override
+	public void endElement(String uri, String localName, String qName) throws SAXException {
+		write(END_ELEMENT);
+		writeNumber(getName(uri, localName, qName));
+	}
+
+	@Override
+	public void characters(char[] ch, int start, int len) throws SAXException {
+		if (len > 0) {
+			write(CHARACTERS);
+			writeChars(ch, start, len);
+		}
+	}
+
+	@Override
+	public void ignorableWhitespace(char[] ch, int start, int len) throws SAXException {
+		characters(ch, start, len);
+	}
+
+	@Override
+	public void processingInstruction(String target, String data) throws SAXException {
+		write(PROCESSING_INSTRUCTION);
+		writeString(target);
+		writeString((data != null) ? data : "");
+	}
+
+	@Override
+	public void comment(char[] ch, int start, int len) throws SAXException {
+		if (!inDTD) {
+			write(COMMENT);
+			writeChars(ch, start, len);
+		}
+	}
+
+	@Override
+	public void startDTD(String name, String publicId, String systemId) {
+		inDTD = true;
+	}
+
+	@Override
+	public void endDTD() {
+		inDTD = false;
+	}
+
+	@Override
+	public void startEntity(String name) {
+	}
+
+	@Override
+	public void endEntity(String name) {
+	}
+
+	@Override
+	public void startCDATA() {
+	}
+
+	@Override
+	public void endCDATA() {
+	}
+
+	/**
+	 * Gets the number of a name, writing its definition the first time.
+	 */
+	private int getName(String uri, String localName, String qName) throws SAXException {
+		final String namespace = (uri != null) ? uri : "";
+		Map<String, Integer> byQName = names.get(namespace);
+		if (byQName == null) {
+			byQName = new HashMap<String, Integer>();
+			names.put(namespace, byQName);
+		}
+		final Integer number = byQName.get(qName);
+		if (number != null) {
+			return number;
+		}
+		write(DEFINE_NAME);
+		writeString(namespace);
+		writeString((localName != null && !localName.isEmpty()) ? localName
+				: qName.substring(qName.indexOf(':') + 1));
+		writeString(qName);
+		byQName.put(qName, nameCount);
+		return nameCount++;
+	}
+
+	/**
+	 * Gets the number of an attribute type.
+	 */
+	private static int typeOf(String type) {
+		for (int i = 0; i < ATTRIBUTE_TYPES.length; i++) {
+			if (ATTRIBUTE_TYPES[i].equals(type)) {
+				return i;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Writes a byte.
+	 */
+	private void write(int b) throws SAXException {
+		if (length == BUFFER_SIZE) {
+			flush();
+		}
+		buffer[length++] = (byte) b;
+	}
+
+	/**
+	 * Writes a fixed-length number.
+	 */
+	private void writeInt(int value) throws SAXException {
+		write(value >>> 24);
+		write(value >>> 16);
+		write(value >>> 8);
+		write(value);
+	}
+
+	/**
+	 * Writes a non-negative number in 7-bit groups, the lowest first.
+	 */
+	private void writeNumber(int value) throws SAXException {
+		while ((value & ~0x7f) != 0) {
+			write((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		write(value);
+	}
+
+	/**
+	 * Writes a string.
+	 */
+	private void writeString(String value) throws SAXException {
+		final char[] chars = value.toCharArray();
+		writeChars(chars, 0, chars.length);
+	}
+
+	/**
+	 * Writes characters in UTF-8 with their length in bytes in front.
+	 */
+	private void writeChars(char[] ch, int start, int len) throws SAXException {
+		final int end = start + len;
+		int bytes = 0;
+		for (int i = start; i < end; i++) {
+			final char c = ch[i];
+			if (c < 0x80) {
+				bytes++;
+			} else if (c < 0x800) {
+				bytes += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(ch[i + 1])) {
+				bytes += 4;
+				i++;
+			} else {
+				bytes += 3;
+			}
+		}
+		writeNumber(bytes);
+		for (int i = start; i < end; i++) {
+			final char c = ch[i];
+			if (c < 0x80) {
+				write(c);
+			} else if (c < 0x800) {
+				write(0xc0 | (c >> 6));
+				write(0x80 | (c & 0x3f));
+			} else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(ch[i + 1])) {
+				final int codePoint = Character.toCodePoint(c, ch[++i]);
+				write(0xf0 | (codePoint >> 18));
+				write(0x80 | ((codePoint >> 12) & 0x3f));
+				write(0x80 | ((codePoint >> 6) & 0x3f));
+				write(0x80 | (codePoint & 0x3f));
+			} else {
+				write(0xe0 | (c >> 12));
+				write(0x80 | ((c >> 6) & 0x3f));
+				write(0x80 | (c & 0x3f));
+			}
+		}
+	}
+
+	/**
+	 * Writes the buffer to the stream.
+	 */
+	private void flush() throws SAXException {
+		try {
+			out.write(buffer, 0, length);
+			length = 0;
+		} catch (final IOException e) {
+			throw new SAXException(e);
+		}
+	}
+}
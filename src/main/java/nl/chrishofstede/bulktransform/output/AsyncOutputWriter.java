@@ -0,0 +1,337 @@
+package nl.chrishofstede.bulktransform.output;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes outputs on a pool of writer threads, so the thread producing them
+ * doesn't wait for the files to be created and written. An output is streamed
+ * to the writers in blocks while it is produced, and is only renamed into place
+ * when it is committed; the thread producing it doesn't wait for the commit
+ * either, it gets a future of it. The outputs are written by the output writer
+ * of the run, with its durability. The blocks waiting to be written are
+ * bounded; only when the writers fall that far behind does a producer wait. A
+ * failed write is reported, counted and fails its future; it doesn't stop the
+ * other writes.
+ */
+public class AsyncOutputWriter implements Closeable {
+
+	/** Default number of writer threads. */
+	public static final int DEFAULT_THREADS = 4;
+
+	/** Default maximum number of bytes waiting to be written. */
+	public static final int DEFAULT_MAX_PENDING = 64 * 1024 * 1024;
+
+	/** Size of the blocks an output is handed to the writers in. */
+	static final int BLOCK_SIZE = 64 * 1024;
+
+	/** Writer of the output files. */
+	private final OutputWriter outputWriter;
+
+	/** Writer threads. */
+	private final ExecutorService executor;
+
+	/** Maximum number of bytes waiting to be written. */
+	private final int maxPending;
+
+	/** Bytes which may still be queued. */
+	private final Semaphore pending;
+
+	// Statistics
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param outputWriter
+	 *                     Writer of the output files.
+	 * @param threads
+	 *                     Number of writer threads.
+	 * @param maxPending
+	 *                     Maximum number of bytes waiting to be written.
+	 */
+	public AsyncOutputWriter(OutputWriter outputWriter, int threads, int maxPending) {
+		if (threads < 1 || maxPending < 1) {
+			throw new IllegalArgumentException("threads and maxPending must be positive");
+		}
+		this.outputWriter = outputWriter;
+		this.maxPending = maxPending;
+		pending = new Semaphore(maxPending);
+		executor = Executors.newFixedThreadPool(threads, runnable -> {
+			final Thread thread = new Thread(runnable, "output-writer");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Opens an output file, which is written by the writers while it is
+	 * produced.
+	 *
+	 * @param target
+	 *               Output file, its folder is created if needed.
+	 * @return Stream handing the output file to the writers, which is committed
+	 *         or discarded when it is complete.
+	 */
+	public PendingOutput open(File target) {
+		return new PendingOutput(target);
+	}
+
+	/**
+	 * Stops accepting output files and waits until the queued ones are written.
+	 *
+	 * @throws IOException
+	 *                     Signals that the thread was interrupted while waiting.
+	 */
+	public void awaitWritten() throws IOException {
+		executor.shutdown();
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while writing the outputs", e);
+		}
+	}
+
+	/**
+	 * Waits until the queued output files are written.
+	 *
+	 * @throws IOException
+	 *                     Signals that the thread was interrupted while waiting.
+	 */
+	@Override
+	public void close() throws IOException {
+		awaitWritten();
+	}
+
+	/**
+	 * Gets the number of output files written.
+	 *
+	 * @return Number of output files.
+	 */
+	public long getWritten() {
+		return written.get();
+	}
+
+	/**
+	 * Gets the number of output files which couldn't be written.
+	 *
+	 * @return Number of failures.
+	 */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * Tasks of one output file, run in order by one writer thread at a time. Only
+	 * the producer of the output submits to the pool, so the writers never
+	 * submit after the pool has been shut down.
+	 */
+	private final class TaskQueue implements Runnable {
+		private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+		private boolean running = false;
+
+		synchronized void add(Runnable task) {
+			tasks.add(task);
+			if (!running) {
+				executor.execute(this);
+				running = true;
+			}
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				final Runnable task;
+				synchronized (this) {
+					task = tasks.poll();
+					if (task == null) {
+						running = false;
+						return;
+					}
+				}
+				task.run();
+			}
+		}
+	}
+
+	/**
+	 * Output file handed to the writers in blocks while it is produced. The
+	 * stream belongs to the thread producing the output.
+	 */
+	public final class PendingOutput extends OutputStream {
+
+		/** Output file. */
+		private final File target;
+
+		/** Tasks writing the output file. */
+		private final TaskQueue queue = new TaskQueue();
+
+		/** Block being filled, null when the stream is closed. */
+		private byte[] block = new byte[BLOCK_SIZE];
+
+		/** Number of bytes in the block. */
+		private int count = 0;
+
+		// Only used by the writer threads, one at a time
+		private AtomicOutput output;
+		private IOException failure;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param target
+		 *               Output file.
+		 */
+		private PendingOutput(File target) {
+			this.target = target;
+			queue.add(() -> {
+				try {
+					Files.createDirectories(target.getParentFile().toPath());
+					output = outputWriter.create(target, ByteBuffer.allocate(BLOCK_SIZE));
+				} catch (final IOException e) {
+					failure = e;
+				}
+			});
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (count == BLOCK_SIZE) {
+				send();
+			}
+			block[count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (count == BLOCK_SIZE) {
+					send();
+				}
+				final int chunk = Math.min(len, BLOCK_SIZE - count);
+				System.arraycopy(b, off, block, count, chunk);
+				count += chunk;
+				off += chunk;
+				len -= chunk;
+			}
+		}
+
+		/**
+		 * Hands the block to the writers, waiting if they are too far behind.
+		 */
+		private void send() throws IOException {
+			if (block == null) {
+				throw new IOException("Output is closed: " + target);
+			}
+			final byte[] full = block;
+			final int length = count;
+			final int permits = Math.max(1, Math.min(length, maxPending));
+			try {
+				pending.acquire(permits);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for the writers: " + target);
+			}
+			queue.add(() -> {
+				try {
+					if (failure == null) {
+						output.write(full, 0, length);
+					}
+				} catch (final IOException e) {
+					failure = e;
+				} finally {
+					pending.release(permits);
+				}
+			});
+			block = new byte[BLOCK_SIZE];
+			count = 0;
+		}
+
+		/**
+		 * Hands the rest of the output file to the writers. The output file is
+		 * complete then, it still has to be committed or discarded.
+		 *
+		 * @throws IOException
+		 *                     Signals that the thread was interrupted while
+		 *                     waiting for the writers.
+		 */
+		@Override
+		public void close() throws IOException {
+			if (block != null) {
+				if (count > 0) {
+					send();
+				}
+				block = null;
+			}
+		}
+
+		/**
+		 * Renames the output file into place once it is written.
+		 *
+		 * @return The commit, which fails with an {@link IOException} if the
+		 *         output file can't be written.
+		 * @throws IOException
+		 *                     Signals that the thread was interrupted while
+		 *                     waiting for the writers.
+		 */
+		public CompletableFuture<Void> commit() throws IOException {
+			close();
+			final CompletableFuture<Void> commit = new CompletableFuture<Void>();
+			queue.add(() -> {
+				try {
+					if (failure != null) {
+						throw failure;
+					}
+					output.commit();
+					written.incrementAndGet();
+					commit.complete(null);
+				} catch (final IOException e) {
+					System.err.println("Failed: " + target.getAbsolutePath() + " " + e.getMessage());
+					failed.incrementAndGet();
+					discardOutput();
+					commit.completeExceptionally(e);
+				}
+			});
+			return commit;
+		}
+
+		/**
+		 * Drops the output file, leaving the existing file as it was.
+		 *
+		 * @throws IOException
+		 *                     Signals that the thread was interrupted while
+		 *                     waiting for the writers.
+		 */
+		public void discard() throws IOException {
+			close();
+			queue.add(this::discardOutput);
+		}
+
+		/**
+		 * Removes the temporary file of the output.
+		 */
+		private void discardOutput() {
+			if (output != null) {
+				try {
+					output.close();
+				} catch (final IOException e) {
+					System.err.println("Couldn't discard: " + target.getAbsolutePath() + " " + e.getMessage());
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,291 @@
+package nl.chrishofstede.bulktransform.output;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Stream writing an output file to a temporary file through a buffer. The
+ * output file is only replaced when the stream is committed; a stream that is
+ * closed without a commit removes its temporary file and leaves the output file
+ * as it was. Flushing doesn't write the buffer, so the file is written in large
+ * blocks. The buffer belongs to the thread, so a thread writes one output at a
+ * time.
+ *
+ * <p>
+ * If unchanged outputs are skipped, each block is compared with the existing
+ * output file as it is written. The temporary file is only created at the
+ * first difference, starting with the part of the existing file that was the
+ * same, so an unchanged output never writes a temporary file.
+ * </p>
+ */
+public class AtomicOutput extends Output {
+
+	/** Size of the blocks of the existing output file compared at a time. */
+	private static final int COMPARE_SIZE = 8192;
+
+	/** Writer the output file is committed to. */
+	private final OutputWriter writer;
+
+	/** Output file. */
+	private final Path target;
+
+	/** Temporary file, hidden next to the output file, null until it is created. */
+	private Path temporary;
+
+	/** Channel writing the temporary file, null until it is created. */
+	private FileChannel channel;
+
+	/** Channel reading the existing output file while it is the same, else null. */
+	private FileChannel existing;
+
+	/** Number of bytes found to be the same as the existing output file. */
+	private long compared = 0;
+
+	/** Buffer reading the existing output file, null if it isn't compared. */
+	private ByteBuffer other;
+
+	/** Buffer of the thread. */
+	private final ByteBuffer buffer;
+
+	/** Number of bytes written. */
+	private long length = 0;
+
+	/** Committed or closed. */
+	private boolean closed = false;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param writer
+	 *               Writer the output file is committed to.
+	 * @param target
+	 *               Output file.
+	 * @param buffer
+	 *               Cleared buffer of the thread.
+	 * @throws IOException
+	 *                     Signals that the temporary file can't be created.
+	 */
+	AtomicOutput(OutputWriter writer, File target, ByteBuffer buffer) throws IOException {
+		this.writer = writer;
+		this.target = target.toPath();
+		this.buffer = buffer;
+
+		if (writer.isSkipUnchanged() && Files.isRegularFile(this.target)) {
+			existing = FileChannel.open(this.target, StandardOpenOption.READ);
+			other = ByteBuffer.allocate(COMPARE_SIZE);
+		} else {
+			spill();
+		}
+	}
+
+	/**
+	 * Gets a new temporary file, hidden next to an output file. Unlike a temporary
+	 * file of the platform, it gets the usual permissions.
+	 *
+	 * @param target
+	 *               Output file.
+	 * @return A temporary file name that isn't used yet.
+	 */
+	static Path getTemporary(Path target) {
+		return target.resolveSibling("." + target.getFileName() + "."
+				+ Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+	}
+
+	/**
+	 * Renames a complete temporary file into place, atomically where the file
+	 * system allows it.
+	 *
+	 * @param temporary
+	 *                  Temporary file.
+	 * @param target
+	 *                  Output file.
+	 * @throws IOException
+	 *                     Signals that the file can't be renamed.
+	 */
+	static void moveIntoPlace(Path temporary, Path target) throws IOException {
+		try {
+			Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (final AtomicMoveNotSupportedException e) {
+			Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Creates the temporary file, starting with the part of the existing output
+	 * file that was the same, and stops comparing.
+	 */
+	private void spill() throws IOException {
+		temporary = getTemporary(target);
+		channel = FileChannel.open(temporary, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+		if (existing != null) {
+			long position = 0;
+			while (position < compared) {
+				final long transferred = existing.transferTo(position, compared - position, channel);
+				if (transferred <= 0) {
+					throw new IOException("Output file changed while it was compared: " + target);
+				}
+				position += transferred;
+			}
+			existing.close();
+			existing = null;
+		}
+	}
+
+	/**
+	 * Compares a block written with the next block of the existing output file.
+	 */
+	private boolean isSame(ByteBuffer block) throws IOException {
+		long position = compared;
+		while (block.hasRemaining()) {
+			other.clear();
+			other.limit(Math.min(other.capacity(), block.remaining()));
+			while (other.hasRemaining()) {
+				if (existing.read(other, position + other.position()) < 0) {
+					return false;
+				}
+			}
+			other.flip();
+			final ByteBuffer part = block.duplicate();
+			part.limit(part.position() + other.remaining());
+			if (!part.equals(other)) {
+				return false;
+			}
+			block.position(part.limit());
+			position += other.remaining();
+		}
+		compared = position;
+		return true;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (!buffer.hasRemaining()) {
+			drain();
+		}
+		buffer.put((byte) b);
+		length++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (!buffer.hasRemaining()) {
+				drain();
+			}
+			final int chunk = Math.min(len, buffer.remaining());
+			buffer.put(b, off, chunk);
+			off += chunk;
+			len -= chunk;
+			length += chunk;
+		}
+	}
+
+	/**
+	 * Writes the buffer to the temporary file, or compares it with the existing
+	 * output file while that is the same.
+	 */
+	private void drain() throws IOException {
+		if (closed) {
+			throw new IOException("Output is closed: " + target);
+		}
+		buffer.flip();
+		if (existing != null && !isSame(buffer.duplicate())) {
+			spill();
+		}
+		while (channel != null && buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Gets the number of bytes written.
+	 *
+	 * @return Length of the output file.
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * Gets the output file.
+	 *
+	 * @return The path the output file is committed to.
+	 */
+	public Path getTarget() {
+		return target;
+	}
+
+	/**
+	 * Writes the rest of the output file, syncs it if required, and renames it
+	 * into place. If unchanged outputs are skipped and the existing file has the
+	 * same content, the existing file is left untouched, keeping its
+	 * modification time.
+	 *
+	 * @return True if the output file has been replaced, false if it was
+	 *         unchanged.
+	 * @throws IOException
+	 *                     Signals that the output file can't be written.
+	 */
+	@Override
+	public boolean commit() throws IOException {
+		drain();
+		closed = true;
+		try {
+			if (existing != null) {
+				if (existing.size() == length) {
+					existing.close();
+					return false;
+				}
+
+				// The existing file is longer
+				spill();
+			}
+			if (writer.isSyncEachFile()) {
+				channel.force(true);
+			}
+			channel.close();
+			moveIntoPlace(temporary, target);
+		} catch (final IOException e) {
+			discard();
+			throw e;
+		}
+		writer.committed(target);
+		return true;
+	}
+
+	/**
+	 * Closes the stream. Without a commit the temporary file is removed.
+	 *
+	 * @throws IOException
+	 *                     Signals that the temporary file can't be removed.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (!closed) {
+			closed = true;
+			discard();
+		}
+	}
+
+	/**
+	 * Closes the channels and removes the temporary file.
+	 */
+	private void discard() throws IOException {
+		if (existing != null) {
+			existing.close();
+		}
+		if (channel != null) {
+			channel.close();
+			Files.deleteIfExists(temporary);
+		}
+	}
+}
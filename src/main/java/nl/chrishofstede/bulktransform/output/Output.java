@@ -0,0 +1,21 @@
+package nl.chrishofstede.bulktransform.output;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Stream writing one output of a transformation. The output only becomes
+ * visible when it is committed; closing it without a commit discards it.
+ */
+public abstract class Output extends OutputStream {
+
+	/**
+	 * Makes the output visible.
+	 *
+	 * @return True if the output has been stored, false if an identical output
+	 *         was already there.
+	 * @throws IOException
+	 *                     Signals that the output can't be stored.
+	 */
+	public abstract boolean commit() throws IOException;
+}
@@ -0,0 +1,158 @@
+package nl.chrishofstede.bulktransform.output;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Layout of the output files in the output folder. Millions of files in one
+ * folder make listing and even opening files slow on many file systems, so the
+ * output files can be spread over subfolders:
+ * <ul>
+ * <li>flat: all files in the output folder, the default;</li>
+ * <li>hash:f[:l]: l levels of f subfolders, selected by a stable hash of the
+ * file name;</li>
+ * <li>prefix:n[:l]: l levels of subfolders named after the next n characters of
+ * the file name without its extension.</li>
+ * </ul>
+ */
+public class OutputLayout {
+
+	/** How the subfolders are chosen. */
+	private enum Kind {
+		FLAT, HASH, PREFIX
+	}
+
+	/** The layout with all files in the output folder. */
+	public static final OutputLayout FLAT = new OutputLayout(Kind.FLAT, 0, 0);
+
+	/** How the subfolders are chosen. */
+	private final Kind kind;
+
+	/** Number of subfolders per level, or number of characters per level. */
+	private final int width;
+
+	/** Number of levels of subfolders. */
+	private final int levels;
+
+	/** Subfolders which are known to exist. */
+	private final Set<File> created = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Constructor.
+	 */
+	private OutputLayout(Kind kind, int width, int levels) {
+		this.kind = kind;
+		this.width = width;
+		this.levels = levels;
+	}
+
+	/**
+	 * Parses a layout.
+	 *
+	 * @param layout
+	 *               flat, hash:f[:l] or prefix:n[:l].
+	 * @return The layout.
+	 */
+	public static OutputLayout parse(String layout) {
+		final String[] parts = layout.trim().toLowerCase().split(":");
+		try {
+			if (parts.length == 1 && "flat".equals(parts[0])) {
+				return FLAT;
+			}
+			if (parts.length == 2 || parts.length == 3) {
+				final int width = Integer.parseInt(parts[1]);
+				final int levels = (parts.length == 3) ? Integer.parseInt(parts[2]) : 1;
+				if ("hash".equals(parts[0]) && width > 1 && levels > 0) {
+					return new OutputLayout(Kind.HASH, width, levels);
+				}
+				if ("prefix".equals(parts[0]) && width > 0 && levels > 0) {
+					return new OutputLayout(Kind.PREFIX, width, levels);
+				}
+			}
+		} catch (final NumberFormatException e) {
+
+			// Reported below
+		}
+		throw new IllegalArgumentException("layout must be flat, hash:f[:l] or prefix:n[:l]: " + layout);
+	}
+
+	/**
+	 * Indicates if all files are placed in the output folder.
+	 *
+	 * @return True for the flat layout.
+	 */
+	public boolean isFlat() {
+		return kind == Kind.FLAT;
+	}
+
+	/**
+	 * Gets the path of an output file relative to the output folder.
+	 *
+	 * @param name
+	 *             Name of the output file.
+	 * @return Relative path, with / as separator.
+	 */
+	public String getRelativePath(String name) {
+		final StringBuilder path = new StringBuilder();
+		if (kind == Kind.HASH) {
+
+			// Each level takes the next digits of the hash in base f
+			final CRC32 crc = new CRC32();
+			crc.update(name.getBytes(StandardCharsets.UTF_8));
+			long hash = crc.getValue();
+			final int digits = Integer.toHexString(width - 1).length();
+			for (int level = 0; level < levels; level++) {
+				final String bucket = Long.toHexString(hash % width);
+				for (int i = bucket.length(); i < digits; i++) {
+					path.append('0');
+				}
+				path.append(bucket).append('/');
+				hash /= width;
+			}
+		} else if (kind == Kind.PREFIX) {
+
+			// Characters unsafe in a folder name become an underscore, short names are padded
+			final int dot = name.lastIndexOf('.');
+			final String base = (dot > 0) ? name.substring(0, dot) : name;
+			int position = 0;
+			for (int level = 0; level < levels; level++) {
+				for (int i = 0; i < width; i++, position++) {
+					final char c = (position < base.length()) ? Character.toLowerCase(base.charAt(position)) : '_';
+					path.append((c >= 'a' && c <= 'z' || c >= '0' && c <= '9') ? c : '_');
+				}
+				path.append('/');
+			}
+		}
+		return path.append(name).toString();
+	}
+
+	/**
+	 * Resolves an output file and creates its subfolders.
+	 *
+	 * @param outDirectory
+	 *                     Output folder.
+	 * @param name
+	 *                     Name of the output file.
+	 * @return The output file.
+	 * @throws IOException
+	 *                     Signals that a subfolder can't be created.
+	 */
+	public File resolve(File outDirectory, String name) throws IOException {
+		if (kind == Kind.FLAT) {
+			return new File(outDirectory, name);
+		}
+		final File file = new File(outDirectory, getRelativePath(name));
+		final File parent = file.getParentFile();
+		if (!created.contains(parent)) {
+			if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+				throw new IOException("Couldn't create output folder: " + parent.getAbsolutePath());
+			}
+			created.add(parent);
+		}
+		return file;
+	}
+}
@@ -0,0 +1,303 @@
+package nl.chrishofstede.bulktransform.output;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Writes the output files of a run. An output file is written through a large
+ * buffer, which is reused by the thread, to a temporary file next to it, and is
+ * renamed into place at once when it is complete, so readers never see a
+ * partial output file. The durability of the output files is selectable: no
+ * sync, a sync of every file before it is renamed, or a group sync of the files
+ * renamed since the previous group sync, every number of files. Optionally an
+ * output file which is identical to the existing one doesn't replace it.
+ */
+public class OutputWriter implements Closeable {
+
+	/** When the output files are synced to disk. */
+	public enum Durability {
+
+		/** Left to the operating system. */
+		NONE,
+
+		/** Each file before it is renamed into place. */
+		FILE,
+
+		/** Every number of files, in one go. */
+		GROUP;
+
+		/**
+		 * Parses a durability name, ignoring case.
+		 *
+		 * @param name
+		 *             none, file or group.
+		 * @return The durability.
+		 */
+		public static Durability parse(String name) {
+			try {
+				return valueOf(name.trim().toUpperCase());
+			} catch (final IllegalArgumentException e) {
+				throw new IllegalArgumentException("durability must be none, file or group: " + name);
+			}
+		}
+	}
+
+	/** Default number of files synced at once with {@link Durability#GROUP}. */
+	public static final int DEFAULT_GROUP_SIZE = 256;
+
+	/** Size of the output buffer of each thread. */
+	static final int BUFFER_SIZE = 1024 * 1024;
+
+	/** Output buffer of each thread. */
+	private static final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>();
+
+	/** When the output files are synced. */
+	private final Durability durability;
+
+	/** Number of files synced at once. */
+	private final int groupSize;
+
+	/** Files renamed since the last group sync. */
+	private final List<Path> unsynced = new ArrayList<Path>();
+
+	/** Number of files synced. */
+	private long synced = 0;
+
+	/** Leave output files with the same content untouched. */
+	private volatile boolean skipUnchanged = false;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param durability
+	 *                   When the output files are synced.
+	 * @param groupSize
+	 *                   Number of files synced at once with
+	 *                   {@link Durability#GROUP}.
+	 */
+	public OutputWriter(Durability durability, int groupSize) {
+		if (durability == null || groupSize < 1) {
+			throw new IllegalArgumentException("durability is null or group size is less than 1");
+		}
+		this.durability = durability;
+		this.groupSize = groupSize;
+	}
+
+	/**
+	 * Creates an output file. It only replaces the target when it is committed.
+	 *
+	 * @param target
+	 *               Output file.
+	 * @return Stream writing the output file.
+	 * @throws IOException
+	 *                     Signals that the temporary file can't be created.
+	 */
+	public AtomicOutput create(File target) throws IOException {
+		ByteBuffer buffer = buffers.get();
+		if (buffer == null) {
+			buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			buffers.set(buffer);
+		}
+		buffer.clear();
+		return new AtomicOutput(this, target, buffer);
+	}
+
+	/**
+	 * Creates an output file with a buffer of its own, so it can be written by
+	 * several threads in turn, one at a time.
+	 *
+	 * @param target
+	 *               Output file.
+	 * @param buffer
+	 *               Buffer of the output file.
+	 * @return Stream writing the output file.
+	 * @throws IOException
+	 *                     Signals that the temporary file can't be created.
+	 */
+	AtomicOutput create(File target, ByteBuffer buffer) throws IOException {
+		buffer.clear();
+		return new AtomicOutput(this, target, buffer);
+	}
+
+	/**
+	 * Places a copy of an existing output file, as a hard link where the file
+	 * system allows it, or else as a copy. Like an output file that is written,
+	 * it replaces the target at once and is synced as required.
+	 *
+	 * @param source
+	 *               Existing output file.
+	 * @param target
+	 *               Output file.
+	 * @return True if the target is a hard link, false if it is a copy.
+	 * @throws IOException
+	 *                     Signals that the output file can't be linked or copied.
+	 */
+	public boolean link(File source, File target) throws IOException {
+		final Path temporary = AtomicOutput.getTemporary(target.toPath());
+		boolean linked;
+		try {
+			try {
+				Files.createLink(temporary, source.toPath());
+				linked = true;
+			} catch (final UnsupportedOperationException | IOException e) {
+
+				// Another file system, or no hard links on this one
+				Files.deleteIfExists(temporary);
+				Files.copy(source.toPath(), temporary);
+				if (isSyncEachFile()) {
+					try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+						channel.force(true);
+					}
+				}
+				linked = false;
+			}
+			AtomicOutput.moveIntoPlace(temporary, target.toPath());
+		} catch (final IOException e) {
+			Files.deleteIfExists(temporary);
+			throw e;
+		}
+		committed(target.toPath());
+		return linked;
+	}
+
+	/**
+	 * Sets if an output file with the same length and hash as the existing file
+	 * leaves the existing file untouched, keeping its modification time.
+	 *
+	 * @param skipUnchanged
+	 *                      True to skip unchanged output files.
+	 */
+	public void setSkipUnchanged(boolean skipUnchanged) {
+		this.skipUnchanged = skipUnchanged;
+	}
+
+	/**
+	 * Indicates if unchanged output files are skipped.
+	 *
+	 * @return True if unchanged output files are skipped.
+	 */
+	public boolean isSkipUnchanged() {
+		return skipUnchanged;
+	}
+
+	/**
+	 * Indicates if each file is synced before it is renamed.
+	 *
+	 * @return True for {@link Durability#FILE}.
+	 */
+	boolean isSyncEachFile() {
+		return durability == Durability.FILE;
+	}
+
+	/**
+	 * Notes an output file that has been renamed into place. With a group sync,
+	 * the files renamed so far are synced when the group is full.
+	 *
+	 * @param target
+	 *               Output file.
+	 * @throws IOException
+	 *                     Signals that the files can't be synced.
+	 */
+	void committed(Path target) throws IOException {
+		if (durability == Durability.FILE) {
+			synchronized (this) {
+				synced++;
+			}
+			syncDirectories(target.getParent());
+		} else if (durability == Durability.GROUP) {
+			List<Path> group = null;
+			synchronized (this) {
+				unsynced.add(target);
+				if (unsynced.size() >= groupSize) {
+					group = new ArrayList<Path>(unsynced);
+					unsynced.clear();
+				}
+			}
+			if (group != null) {
+				sync(group);
+			}
+		}
+	}
+
+	/**
+	 * Syncs a group of files and their folders.
+	 */
+	private void sync(List<Path> group) throws IOException {
+		final Set<Path> directories = new LinkedHashSet<Path>();
+		for (final Path path : group) {
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+				channel.force(true);
+			}
+			directories.add(path.getParent());
+		}
+		syncDirectories(directories.toArray(new Path[directories.size()]));
+		synchronized (this) {
+			synced += group.size();
+		}
+	}
+
+	/**
+	 * Syncs the entries of folders, so renames are durable. Not every platform
+	 * can open a folder, then it is left to the file system.
+	 */
+	private static void syncDirectories(Path... directories) {
+		for (final Path directory : directories) {
+			if (directory == null) {
+				continue;
+			}
+			try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+				channel.force(true);
+			} catch (final IOException e) {
+
+				// Folders can't be synced on this platform
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of output files synced to disk.
+	 *
+	 * @return Number of synced files.
+	 */
+	public synchronized long getSynced() {
+		return synced;
+	}
+
+	/**
+	 * Syncs the files of the last, incomplete group.
+	 *
+	 * @throws IOException
+	 *                     Signals that the files can't be synced.
+	 */
+	public void syncRemaining() throws IOException {
+		final List<Path> group;
+		synchronized (this) {
+			group = new ArrayList<Path>(unsynced);
+			unsynced.clear();
+		}
+		if (!group.isEmpty()) {
+			sync(group);
+		}
+	}
+
+	/**
+	 * Syncs the files of the last, incomplete group.
+	 *
+	 * @throws IOException
+	 *                     Signals that the files can't be synced.
+	 */
+	@Override
+	public void close() throws IOException {
+		syncRemaining();
+	}
+}
@@ -0,0 +1,384 @@
+package nl.chrishofstede.bulktransform.output;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Packs the outputs of a run into a few large segment files with an offset
+ * index, instead of one file per output, which costs far more in inodes and
+ * metadata than the data itself when the outputs are small.
+ *
+ * <p>
+ * Each output is collected in a buffer of its thread and appended to the
+ * current segment with a single write; a new segment is started when the
+ * current one is full. The index is a binary file with a header followed by
+ * one record per output: the segment number, the offset and the length of the
+ * output, and its name in UTF-8. A record is written after its output, with a
+ * single write before the output is committed, so a record that is present
+ * always points to complete data and a killed run loses no record of an output
+ * the journal has. The index is synced with each full segment and when the run
+ * ends. A resumed run cuts a record torn by a crash off the end of the index
+ * before it appends. Segments are read memory-mapped with
+ * {@link PackedReader}.
+ * </p>
+ */
+public class PackedOutput implements Closeable {
+
+	/** Magic number at the start of the index. */
+	static final int MAGIC = 0x42544958;
+
+	/** Version of the index format. */
+	static final int VERSION = 1;
+
+	/** Default file name of the index in the output folder. */
+	public static final String FILE_NAME = "bulktransform-packed.idx";
+
+	/** Extension of the index file. */
+	public static final String INDEX_EXTENSION = ".idx";
+
+	/** Extension of a segment file. */
+	static final String SEGMENT_EXTENSION = ".seg";
+
+	/** Default maximum size of a segment in bytes. */
+	public static final long DEFAULT_SEGMENT_SIZE = 1024L * 1024 * 1024;
+
+	/** Largest segment that can be memory-mapped at once. */
+	private static final long MAX_SEGMENT_SIZE = Integer.MAX_VALUE;
+
+	/** Initial size of the buffer of each thread. */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/** Largest buffer kept by a thread for the next output. */
+	private static final int MAX_RETAINED_BUFFER_SIZE = 16 * 1024 * 1024;
+
+	/** Output buffer of each thread. */
+	private static final ThreadLocal<ExposedBuffer> buffers = new ThreadLocal<ExposedBuffer>();
+
+	/** Index file, the segments are named after it. */
+	private final File indexFile;
+
+	/** Maximum size of a segment in bytes. */
+	private final long segmentSize;
+
+	/** Channel appending to the index. */
+	private final FileChannel index;
+
+	/** Number of the current segment. */
+	private int segment;
+
+	/** Channel writing the current segment, null before the first output. */
+	private FileChannel channel = null;
+
+	/** Size of the current segment. */
+	private long position = 0;
+
+	/** Number of outputs packed. */
+	private long count = 0;
+
+	/** Segment, offset and length of the outputs by name, null if not aliased. */
+	private Map<String, long[]> locations = null;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param indexFile
+	 *                    Index file; the segments are placed next to it and
+	 *                    named after it, with a number and the extension .seg.
+	 * @param segmentSize
+	 *                    Maximum size of a segment in bytes; a larger output gets
+	 *                    a segment of its own.
+	 * @param resume
+	 *                    True to add to the packed outputs of the previous run,
+	 *                    which is being resumed, false to start over.
+	 * @throws IOException
+	 *                     Signals that the index can't be created.
+	 */
+	public PackedOutput(File indexFile, long segmentSize, boolean resume) throws IOException {
+		if (indexFile == null || segmentSize < 1) {
+			throw new IllegalArgumentException("index file is null or segment size is less than 1");
+		}
+		this.indexFile = indexFile;
+		this.segmentSize = Math.min(segmentSize, MAX_SEGMENT_SIZE);
+
+		// Continue after the segments of the previous run, or remove them
+		int next = 0;
+		while (getSegmentFile(indexFile, next).exists()) {
+			if (!resume && !getSegmentFile(indexFile, next).delete()) {
+				throw new IOException("Couldn't remove segment: " + getSegmentFile(indexFile, next).getAbsolutePath());
+			}
+			next++;
+		}
+		segment = resume ? next : 0;
+
+		// Append after the last complete record of the previous run, or start over
+		final long complete = resume && indexFile.exists() ? getCompleteLength(indexFile) : 0;
+		index = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		index.truncate(complete);
+		index.position(complete);
+		if (complete == 0) {
+			final ByteBuffer header = ByteBuffer.allocate(8);
+			header.putInt(MAGIC).putInt(VERSION).flip();
+			write(header);
+		}
+	}
+
+	/**
+	 * Gets the length of the index up to the end of its last complete record.
+	 *
+	 * @param indexFile
+	 *                  Index file.
+	 * @return Length in bytes, 0 if even the header is torn.
+	 * @throws IOException
+	 *                     Signals that the file can't be read or isn't an index.
+	 */
+	static long getCompleteLength(File indexFile) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+			long complete = 0;
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+					throw new IOException("Not a packed output index: " + indexFile.getAbsolutePath());
+				}
+				complete = 8;
+				while (true) {
+					in.readInt();
+					in.readLong();
+					in.readInt();
+					final int nameLength = in.readUnsignedShort();
+					in.readFully(new byte[nameLength]);
+					complete += 18 + nameLength;
+				}
+			} catch (final EOFException e) {
+
+				// Torn last record or the end of the index
+			}
+			return complete;
+		}
+	}
+
+	/**
+	 * Gets the file of a segment.
+	 *
+	 * @param indexFile
+	 *                  Index file.
+	 * @param segment
+	 *                  Number of the segment.
+	 * @return The segment file.
+	 */
+	static File getSegmentFile(File indexFile, int segment) {
+		String name = indexFile.getName();
+		if (name.endsWith(INDEX_EXTENSION)) {
+			name = name.substring(0, name.length() - INDEX_EXTENSION.length());
+		}
+		return new File(indexFile.getAbsoluteFile().getParentFile(),
+				String.format("%s-%05d%s", name, segment, SEGMENT_EXTENSION));
+	}
+
+	/**
+	 * Creates an output, which is packed when it is committed.
+	 *
+	 * @param name
+	 *             Name of the output.
+	 * @return Stream writing the output.
+	 */
+	public Output create(String name) {
+		ExposedBuffer buffer = buffers.get();
+		if (buffer == null || buffer.array().length > MAX_RETAINED_BUFFER_SIZE) {
+
+			// An exceptionally large output doesn't keep its buffer
+			buffer = new ExposedBuffer(BUFFER_SIZE);
+			buffers.set(buffer);
+		}
+		buffer.reset();
+		return new Entry(name, buffer);
+	}
+
+	/**
+	 * Appends an output to the current segment and records it in the index.
+	 */
+	private synchronized void append(String name, ExposedBuffer buffer) throws IOException {
+		final int length = buffer.size();
+		if (channel == null || position > 0 && position + length > segmentSize) {
+			if (channel != null) {
+
+				// A full segment is synced once, rather than its outputs one by one, and the
+				// index records of its outputs with it
+				channel.force(true);
+				channel.close();
+				index.force(false);
+				segment++;
+			}
+			channel = FileChannel.open(getSegmentFile(indexFile, segment).toPath(), StandardOpenOption.CREATE_NEW,
+					StandardOpenOption.WRITE);
+			position = 0;
+		}
+
+		// The buffer is written as it is, without a copy
+		final ByteBuffer data = ByteBuffer.wrap(buffer.array(), 0, length);
+		while (data.hasRemaining()) {
+			channel.write(data);
+		}
+		record(name, segment, position, length);
+		position += length;
+		count++;
+	}
+
+	/**
+	 * Writes an index record at once.
+	 */
+	private void record(String name, int segment, long offset, int length) throws IOException {
+		final byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		final ByteBuffer record = ByteBuffer.allocate(18 + nameBytes.length);
+		record.putInt(segment).putLong(offset).putInt(length).putShort((short) nameBytes.length).put(nameBytes)
+				.flip();
+		write(record);
+		if (locations != null) {
+			locations.put(name, new long[] { segment, offset, length });
+		}
+	}
+
+	/**
+	 * Writes a buffer to the index.
+	 */
+	private void write(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			index.write(buffer);
+		}
+	}
+
+	/**
+	 * Sets if outputs can be aliased, which requires their locations to be kept.
+	 *
+	 * @param aliasing
+	 *                 True to allow aliases.
+	 */
+	public synchronized void setAliasing(boolean aliasing) {
+		locations = aliasing ? new HashMap<String, long[]>() : null;
+	}
+
+	/**
+	 * Records an output under another name, sharing the data of the output.
+	 *
+	 * @param name
+	 *                 Name of the alias.
+	 * @param original
+	 *                 Name of an output packed before in this run.
+	 * @return True if the alias has been recorded, false if the original isn't
+	 *         known.
+	 * @throws IOException
+	 *                     Signals that the index can't be written.
+	 */
+	public synchronized boolean alias(String name, String original) throws IOException {
+		final long[] location = (locations != null) ? locations.get(original) : null;
+		if (location == null) {
+			return false;
+		}
+		record(name, (int) location[0], location[1], (int) location[2]);
+		count++;
+		return true;
+	}
+
+	/**
+	 * Gets the number of outputs packed.
+	 *
+	 * @return Number of outputs.
+	 */
+	public synchronized long getCount() {
+		return count;
+	}
+
+	/**
+	 * Syncs and closes the current segment and the index.
+	 *
+	 * @throws IOException
+	 *                     Signals that the index can't be written.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			if (channel != null) {
+				channel.force(true);
+				channel.close();
+			}
+			index.force(false);
+		} finally {
+			index.close();
+		}
+	}
+
+	/**
+	 * Buffer of which the internal array can be written without a copy, which is
+	 * safe since the buffer is only reset for the next output of its thread.
+	 */
+	private static class ExposedBuffer extends ByteArrayOutputStream {
+		ExposedBuffer(int size) {
+			super(size);
+		}
+
+		byte[] array() {
+			return buf;
+		}
+	}
+
+	/**
+	 * Output collected in the buffer of the thread.
+	 */
+	private class Entry extends Output {
+
+		/** Name of the output. */
+		private final String name;
+
+		/** Buffer of the thread. */
+		private final ExposedBuffer buffer;
+
+		/** Committed or closed. */
+		private boolean closed = false;
+
+		Entry(String name, ExposedBuffer buffer) {
+			if (name.getBytes(StandardCharsets.UTF_8).length > Short.MAX_VALUE) {
+				throw new IllegalArgumentException("name is too long: " + name);
+			}
+			this.name = name;
+			this.buffer = buffer;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (closed) {
+				throw new IOException("Output is closed: " + name);
+			}
+			buffer.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (closed) {
+				throw new IOException("Output is closed: " + name);
+			}
+			buffer.write(b, off, len);
+		}
+
+		@Override
+		public boolean commit() throws IOException {
+			closed = true;
+			append(name, buffer);
+			return true;
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+	}
+}
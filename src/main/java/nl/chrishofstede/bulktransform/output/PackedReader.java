@@ -0,0 +1,238 @@
+package nl.chrishofstede.bulktransform.output;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads the outputs packed by {@link PackedOutput}. The index and the segments
+ * are memory-mapped, so an output is read straight from the page cache without
+ * a copy. An output name that occurs more than once, because a run was resumed,
+ * refers to its last output. A record torn at the end of the index, because the
+ * run was killed, is ignored; a resumed run cuts it off before it appends.
+ */
+public class PackedReader implements Closeable {
+
+	/** Location of an output in a segment. */
+	private static class Location {
+		final int segment;
+		final long offset;
+		final int length;
+
+		Location(int segment, long offset, int length) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	/** Locations of the outputs by name, in the order they were packed. */
+	private final Map<String, Location> locations = new LinkedHashMap<String, Location>();
+
+	/** Mapped segments by number. */
+	private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param indexFile
+	 *                  Index file written by {@link PackedOutput}.
+	 * @throws IOException
+	 *                     Signals that the index or a segment can't be read.
+	 */
+	public PackedReader(File indexFile) throws IOException {
+		final ByteBuffer index = map(indexFile);
+		if (index.remaining() < 8 || index.getInt() != PackedOutput.MAGIC) {
+			throw new IOException("Not a packed output index: " + indexFile.getAbsolutePath());
+		}
+		if (index.getInt() != PackedOutput.VERSION) {
+			throw new IOException("Unsupported packed output index version: " + indexFile.getAbsolutePath());
+		}
+		try {
+			while (index.hasRemaining()) {
+				final int segment = index.getInt();
+				final long offset = index.getLong();
+				final int length = index.getInt();
+				final byte[] name = new byte[index.getShort() & 0xffff];
+				index.get(name);
+				locations.put(new String(name, StandardCharsets.UTF_8), new Location(segment, offset, length));
+			}
+		} catch (final BufferUnderflowException e) {
+
+			// Torn last record
+		}
+
+		// Map the segments the records refer to
+		int count = 0;
+		for (final Location location : locations.values()) {
+			count = Math.max(count, location.segment + 1);
+		}
+		for (int segment = 0; segment < count; segment++) {
+			final File segmentFile = PackedOutput.getSegmentFile(indexFile, segment);
+			segments.add(segmentFile.exists() ? map(segmentFile) : null);
+		}
+	}
+
+	/**
+	 * Maps a file read-only.
+	 */
+	private static MappedByteBuffer map(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+	}
+
+	/**
+	 * Gets the names of the outputs.
+	 *
+	 * @return Names in the order they were packed.
+	 */
+	public Set<String> getNames() {
+		return Collections.unmodifiableSet(locations.keySet());
+	}
+
+	/**
+	 * Gets an output.
+	 *
+	 * @param name
+	 *             Name of the output.
+	 * @return Read-only buffer with the content of the output, or null if there
+	 *         is no output with the name.
+	 * @throws IOException
+	 *                     Signals that the segment of the output is missing or
+	 *                     truncated.
+	 */
+	public ByteBuffer get(String name) throws IOException {
+		final Location location = locations.get(name);
+		if (location == null) {
+			return null;
+		}
+		final MappedByteBuffer segment = segments.get(location.segment);
+		if (segment == null || location.offset + location.length > segment.capacity()) {
+			throw new IOException("Segment " + location.segment + " is missing or truncated for: " + name);
+		}
+		final ByteBuffer content = segment.duplicate();
+		content.position((int) location.offset);
+		content.limit((int) location.offset + location.length);
+		return content.slice();
+	}
+
+	/**
+	 * Opens an output as a stream.
+	 *
+	 * @param name
+	 *             Name of the output.
+	 * @return Stream reading the output, or null if there is no output with the
+	 *         name.
+	 * @throws IOException
+	 *                     Signals that the segment of the output is missing or
+	 *                     truncated.
+	 */
+	public InputStream open(String name) throws IOException {
+		final ByteBuffer content = get(name);
+		if (content == null) {
+			return null;
+		}
+		return new InputStream() {
+			@Override
+			public int read() {
+				return content.hasRemaining() ? content.get() & 0xff : -1;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) {
+				if (!content.hasRemaining()) {
+					return -1;
+				}
+				final int chunk = Math.min(len, content.remaining());
+				content.get(b, off, chunk);
+				return chunk;
+			}
+
+			@Override
+			public int available() {
+				return content.remaining();
+			}
+		};
+	}
+
+	/**
+	 * Unpacks all outputs into a folder as separate files.
+	 *
+	 * @param outDirectory
+	 *                     Folder the output files are written to.
+	 * @param layout
+	 *                     Layout of the output files in the folder.
+	 * @param writer
+	 *                     Writer of the output files.
+	 * @return Number of files written.
+	 * @throws IOException
+	 *                     Signals that an output can't be read or written.
+	 */
+	public long export(File outDirectory, OutputLayout layout, OutputWriter writer) throws IOException {
+		long count = 0;
+		final byte[] chunk = new byte[64 * 1024];
+		for (final String name : locations.keySet()) {
+			final ByteBuffer content = get(name);
+			try (Output output = writer.create(layout.resolve(outDirectory, name))) {
+				while (content.hasRemaining()) {
+					final int length = Math.min(chunk.length, content.remaining());
+					content.get(chunk, 0, length);
+					output.write(chunk, 0, length);
+				}
+				output.commit();
+			}
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Copies an output to a stream.
+	 *
+	 * @param name
+	 *             Name of the output.
+	 * @param out
+	 *             Stream the output is written to.
+	 * @return True if the output exists.
+	 * @throws IOException
+	 *                     Signals that the output can't be read or written.
+	 */
+	public boolean copy(String name, OutputStream out) throws IOException {
+		try (InputStream in = open(name)) {
+			if (in == null) {
+				return false;
+			}
+			final byte[] chunk = new byte[64 * 1024];
+			int length;
+			while ((length = in.read(chunk)) > 0) {
+				out.write(chunk, 0, length);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Releases the mapped files. The buffers returned before must not be used
+	 * afterwards.
+	 */
+	@Override
+	public void close() {
+		locations.clear();
+		segments.clear();
+	}
+}
@@ -0,0 +1,112 @@
+package nl.chrishofstede.bulktransform.output;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+/**
+ * Filter of a stylesheet being compiled, which turns the elements of the Xalan
+ * redirect extension into result elements, so a stylesheet written for the
+ * extension has its files split off by a {@link ResultSplitter} and written by
+ * the writers of the run.
+ *
+ * <p>
+ * A <code>redirect:write</code> element becomes a
+ * <code>&lt;r:result href="path"&gt;</code> element with the same content: the
+ * file attribute, an attribute value template, is the path, or else the select
+ * attribute is the expression of the path. The <code>redirect:open</code> and
+ * <code>redirect:close</code> elements are dropped, since every result is a
+ * file of its own. Appending to a file isn't supported. Like any result, the
+ * path is relative to the output folder, not to the main output.
+ * </p>
+ */
+public class RedirectFilter extends XMLFilterImpl {
+
+	/** Namespaces the redirect extension is declared with. */
+	private static final Set<String> NAMESPACES = new HashSet<String>(Arrays.asList(
+			"http://xml.apache.org/xalan/redirect", "org.apache.xalan.xslt.extensions.Redirect",
+			"org.apache.xalan.lib.Redirect", "xalan://org.apache.xalan.lib.Redirect"));
+
+	/** Prefix of the result elements, which no stylesheet is expected to use. */
+	private static final String PREFIX = "bulktransform-result";
+
+	/** Depth in a dropped element, 0 outside. */
+	private int dropped = 0;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param parent
+	 *               Namespace aware reader of the stylesheet.
+	 */
+	public RedirectFilter(XMLReader parent) {
+		super(parent);
+	}
+
+	@Override
+	public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+		if (dropped > 0) {
+			dropped++;
+		} else if (!NAMESPACES.contains(uri)) {
+			super.startElement(uri, localName, qName, atts);
+		} else if ("write".equals(localName)) {
+			if ("true".equals(atts.getValue("", "append")) || "yes".equals(atts.getValue("", "append"))) {
+				throw new SAXException("Appending with redirect:write isn't supported with secondary results");
+			}
+			final String file = atts.getValue("", "file");
+			final String select = atts.getValue("", "select");
+			if (file == null && select == null) {
+				throw new SAXException("redirect:write without a file or select attribute");
+			}
+			final AttributesImpl result = new AttributesImpl();
+			result.addAttribute("", ResultSplitter.HREF, ResultSplitter.HREF, "CDATA",
+					(file != null) ? file : "{" + select + "}");
+			super.startPrefixMapping(PREFIX, ResultSplitter.NAMESPACE);
+			super.startElement(ResultSplitter.NAMESPACE, ResultSplitter.RESULT, PREFIX + ":" + ResultSplitter.RESULT,
+					result);
+		} else {
+
+			// redirect:open and redirect:close
+			dropped = 1;
+		}
+	}
+
+	@Override
+	public void endElement(String uri, String localName, String qName) throws SAXException {
+		if (dropped > 0) {
+			dropped--;
+		} else if (NAMESPACES.contains(uri) && "write".equals(localName)) {
+			super.endElement(ResultSplitter.NAMESPACE, ResultSplitter.RESULT, PREFIX + ":" + ResultSplitter.RESULT);
+			super.endPrefixMapping(PREFIX);
+		} else {
+			super.endElement(uri, localName, qName);
+		}
+	}
+
+	@Override
+	public void characters(char[] ch, int start, int length) throws SAXException {
+		if (dropped == 0) {
+			super.characters(ch, start, length);
+		}
+	}
+
+	@Override
+	public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+		if (dropped == 0) {
+			super.ignorableWhitespace(ch, start, length);
+		}
+	}
+
+	@Override
+	public void processingInstruction(String target, String data) throws SAXException {
+		if (dropped == 0) {
+			super.processingInstruction(target, data);
+		}
+	}
+}
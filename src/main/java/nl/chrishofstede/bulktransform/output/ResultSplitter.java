@@ -0,0 +1,349 @@
+package nl.chrishofstede.bulktransform.output;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import javax.xml.transform.sax.TransformerHandler;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.NamespaceSupport;
+
+/**
+ * Splits the secondary result documents off the result of a transformation.
+ * A stylesheet writes a secondary result as a
+ * <code>&lt;r:result href="path"&gt;</code> element in the
+ * {@value #NAMESPACE} namespace; its content is serialized on its own and
+ * streamed to the asynchronous writers while it is produced, but only committed
+ * once the transformation has succeeded and the main result is committed;
+ * everything else goes to the main result. The path is relative to the output
+ * folder. Result elements may be nested. The namespaces in scope are declared again on the
+ * root of a secondary result, except the result namespace itself.
+ */
+public class ResultSplitter implements ContentHandler, LexicalHandler {
+
+	/** Namespace of the result elements. */
+	public static final String NAMESPACE = "urn:bulktransform:result";
+
+	/** Local name of the result element. */
+	public static final String RESULT = "result";
+
+	/** Attribute with the path of a secondary result. */
+	public static final String HREF = "href";
+
+	/** Creator of the serializers of the results. */
+	public interface SerializerFactory {
+
+		/**
+		 * Creates a serializer of a result, with the output properties of the
+		 * stylesheet.
+		 *
+		 * @param out
+		 *            Stream the result is written to.
+		 * @return Handler serializing the events it receives.
+		 * @throws Exception
+		 *                   Signals that the serializer can't be created.
+		 */
+		TransformerHandler newSerializer(OutputStream out) throws Exception;
+	}
+
+	/** A secondary result being serialized. */
+	private static class Secondary {
+		private final File target;
+		private final AsyncOutputWriter.PendingOutput content;
+		private TransformerHandler serializer;
+		private final List<String> prefixes = new ArrayList<String>();
+
+		private Secondary(File target, AsyncOutputWriter.PendingOutput content) {
+			this.target = target;
+			this.content = content;
+		}
+	}
+
+	/** Serializer of the main result. */
+	private final TransformerHandler main;
+
+	/** Folder the paths of the secondary results are relative to. */
+	private final File directory;
+
+	/** Creator of the serializers of the secondary results. */
+	private final SerializerFactory serializers;
+
+	/** Writers of the secondary results. */
+	private final AsyncOutputWriter writer;
+
+	/** Secondary results being serialized, the innermost first. */
+	private final Deque<Secondary> open = new ArrayDeque<Secondary>();
+
+	/** Namespaces in scope. */
+	private final NamespaceSupport namespaces = new NamespaceSupport();
+
+	/** Namespace declarations of the next element, as prefix and URI pairs. */
+	private final List<String> declared = new ArrayList<String>();
+
+	/** Number of namespace declarations of result elements whose end is still to come. */
+	private int swallowed = 0;
+
+	/** Secondary results complete, in the order they ended. */
+	private final List<Secondary> complete = new ArrayList<Secondary>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param main
+	 *                    Serializer of the main result.
+	 * @param directory
+	 *                    Folder the paths of the secondary results are relative
+	 *                    to.
+	 * @param serializers
+	 *                    Creator of the serializers of the secondary results.
+	 * @param writer
+	 *                    Writers of the secondary results.
+	 */
+	public ResultSplitter(TransformerHandler main, File directory, SerializerFactory serializers,
+			AsyncOutputWriter writer) {
+		this.main = main;
+		this.directory = directory;
+		this.serializers = serializers;
+		this.writer = writer;
+	}
+
+	/**
+	 * Gets the number of complete secondary results.
+	 *
+	 * @return Number of secondary results.
+	 */
+	public int getCount() {
+		return complete.size();
+	}
+
+	/**
+	 * Commits the complete secondary results, once the main result is
+	 * committed. The writers rename each result into place when it is written.
+	 *
+	 * @return The commits, in the order the results ended, which fail with an
+	 *         {@link IOException} if the result can't be written.
+	 * @throws IOException
+	 *                     Signals that the thread was interrupted while waiting
+	 *                     for the writers to catch up.
+	 */
+	public List<CompletableFuture<Void>> commit() throws IOException {
+		final List<CompletableFuture<Void>> commits = new ArrayList<CompletableFuture<Void>>(complete.size());
+		for (final Secondary secondary : complete) {
+			commits.add(secondary.content.commit());
+		}
+		complete.clear();
+		return commits;
+	}
+
+	/**
+	 * Discards the secondary results, complete or not, when the transformation
+	 * has failed or the main result isn't committed.
+	 *
+	 * @throws IOException
+	 *                     Signals that the thread was interrupted while waiting
+	 *                     for the writers to catch up.
+	 */
+	public void discard() throws IOException {
+		for (final Secondary secondary : complete) {
+			secondary.content.discard();
+		}
+		complete.clear();
+		while (!open.isEmpty()) {
+			open.pop().content.discard();
+		}
+	}
+
+	/**
+	 * Gets the handler of the events outside the result elements.
+	 */
+	private TransformerHandler target() {
+		return open.isEmpty() ? main : open.peek().serializer;
+	}
+
+	/**
+	 * Resolves the path of a secondary result in the output folder.
+	 */
+	private File resolve(String href) throws SAXException {
+		final File target = new File(directory, href).toPath().normalize().toFile();
+		if (new File(href).isAbsolute() || !target.toPath().startsWith(directory.toPath().normalize())) {
+			throw new SAXException("Result outside the output folder: " + href);
+		}
+		return target;
+	}
+
+	@Override
+	public void setDocumentLocator(Locator locator) {
+		main.setDocumentLocator(locator);
+	}
+
+	@Override
+	public void startDocument() throws SAXException {
+		main.startDocument();
+	}
+
+	@Override
+	public void endDocument() throws SAXException {
+		if (!open.isEmpty()) {
+			throw new SAXException("Result element not closed: " + open.peek().target);
+		}
+		main.endDocument();
+	}
+
+	@Override
+	public void startPrefixMapping(String prefix, String uri) {
+		declared.add(prefix);
+		declared.add(uri);
+	}
+
+	@Override
+	public void endPrefixMapping(String prefix) throws SAXException {
+		if (swallowed > 0) {
+			swallowed--;
+		} else {
+			target().endPrefixMapping(prefix);
+		}
+	}
+
+	@Override
+	public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+		namespaces.pushContext();
+		for (int i = 0; i < declared.size(); i += 2) {
+			namespaces.declarePrefix(declared.get(i), declared.get(i + 1));
+		}
+		if (NAMESPACE.equals(uri) && RESULT.equals(localName)) {
+			final String href = atts.getValue("", HREF);
+			if (href == null || href.isEmpty()) {
+				throw new SAXException("Result element without " + HREF);
+			}
+			final File target = resolve(href);
+			final Secondary secondary = new Secondary(target, writer.open(target));
+			try {
+				secondary.serializer = serializers.newSerializer(secondary.content);
+			} catch (final Exception e) {
+				try {
+					secondary.content.discard();
+				} catch (final IOException discardFailure) {
+					e.addSuppressed(discardFailure);
+				}
+				throw new SAXException(e);
+			}
+			secondary.serializer.startDocument();
+
+			// The namespaces in scope, the declarations of the result element included
+			final Enumeration<?> prefixes = namespaces.getPrefixes();
+			while (prefixes.hasMoreElements()) {
+				startInScope(secondary, (String) prefixes.nextElement());
+			}
+			startInScope(secondary, "");
+			swallowed += declared.size() / 2;
+			open.push(secondary);
+		} else {
+			final TransformerHandler target = target();
+			for (int i = 0; i < declared.size(); i += 2) {
+				target.startPrefixMapping(declared.get(i), declared.get(i + 1));
+			}
+			target.startElement(uri, localName, qName, atts);
+		}
+		declared.clear();
+	}
+
+	/**
+	 * Declares a namespace in scope on the root of a secondary result.
+	 */
+	private void startInScope(Secondary secondary, String prefix) throws SAXException {
+		final String uri = namespaces.getURI(prefix);
+		if (uri != null && !uri.isEmpty() && !NAMESPACE.equals(uri) && !"xml".equals(prefix)) {
+			secondary.serializer.startPrefixMapping(prefix, uri);
+			secondary.prefixes.add(prefix);
+		}
+	}
+
+	@Override
+	public void endElement(String uri, String localName, String qName) throws SAXException {
+		namespaces.popContext();
+		if (NAMESPACE.equals(uri) && RESULT.equals(localName)) {
+			final Secondary secondary = open.pop();
+			for (final String prefix : secondary.prefixes) {
+				secondary.serializer.endPrefixMapping(prefix);
+			}
+			secondary.serializer.endDocument();
+			secondary.serializer = null;
+			complete.add(secondary);
+			try {
+
+				// The rest of the result goes to the writers, it is committed with the main result
+				secondary.content.close();
+			} catch (final IOException e) {
+				throw new SAXException(e);
+			}
+		} else {
+			target().endElement(uri, localName, qName);
+		}
+	}
+
+	@Override
+	public void characters(char[] ch, int start, int length) throws SAXException {
+		target().characters(ch, start, length);
+	}
+
+	@Override
+	public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+		target().ignorableWhitespace(ch, start, length);
+	}
+
+	@Override
+	public void processingInstruction(String target, String data) throws SAXException {
+		target().processingInstruction(target, data);
+	}
+
+	@Override
+	public void skippedEntity(String name) throws SAXException {
+		target().skippedEntity(name);
+	}
+
+	@Override
+	public void comment(char[] ch, int start, int length) throws SAXException {
+		target().comment(ch, start, length);
+	}
+
+	@Override
+	public void startCDATA() throws SAXException {
+		target().startCDATA();
+	}
+
+	@Override
+	public void endCDATA() throws SAXException {
+		target().endCDATA();
+	}
+
+	@Override
+	public void startDTD(String name, String publicId, String systemId) throws SAXException {
+		main.startDTD(name, publicId, systemId);
+	}
+
+	@Override
+	public void endDTD() throws SAXException {
+		main.endDTD();
+	}
+
+	@Override
+	public void startEntity(String name) throws SAXException {
+		target().startEntity(name);
+	}
+
+	@Override
+	public void endEntity(String name) throws SAXException {
+		target().endEntity(name);
+	}
+}
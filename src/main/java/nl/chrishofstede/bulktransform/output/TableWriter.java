@@ -0,0 +1,153 @@
+package nl.chrishofstede.bulktransform.output;
+
+import java.io.BufferedWriter;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes rows of values as comma or tab separated text in UTF-8, shared by
+ * all threads of a run. Every row is written at once, so the rows of
+ * different threads don't interleave.
+ */
+public class TableWriter implements Flushable {
+
+	/** Format of the table. */
+	public enum Format {
+
+		/** Comma separated, values quoted as in RFC 4180 when needed. */
+		CSV(','),
+
+		/** Tab separated, tabs and line breaks in values replaced by spaces. */
+		TSV('\t');
+
+		private final char separator;
+
+		Format(char separator) {
+			this.separator = separator;
+		}
+
+		/**
+		 * Gets the file name extension of the format.
+		 *
+		 * @return Extension, including the dot.
+		 */
+		public String getExtension() {
+			return "." + name().toLowerCase();
+		}
+
+		/**
+		 * Parses a format name, in any case.
+		 *
+		 * @param name
+		 *             csv or tsv.
+		 * @return The format.
+		 * @throws IllegalArgumentException
+		 *                                  Signals an unknown format.
+		 */
+		public static Format parse(String name) {
+			for (final Format format : values()) {
+				if (format.name().equalsIgnoreCase(name.trim())) {
+					return format;
+				}
+			}
+			throw new IllegalArgumentException("Unknown table format: " + name);
+		}
+	}
+
+	/** Writer of the table. */
+	private final Writer writer;
+
+	/** Format of the table. */
+	private final Format format;
+
+	/** Number of rows written, the header excluded. */
+	private long rows = 0;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param out
+	 *               Stream the table is written to, which isn't closed by this
+	 *               writer.
+	 * @param format
+	 *               Format of the table.
+	 * @param header
+	 *               Names of the columns.
+	 * @throws IOException
+	 *                     Signals that the header can't be written.
+	 */
+	public TableWriter(OutputStream out, Format format, String... header) throws IOException {
+		this.writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 65536);
+		this.format = format;
+		write(header);
+	}
+
+	/**
+	 * Writes a row.
+	 *
+	 * @param values
+	 *               Values of the columns.
+	 * @throws IOException
+	 *                     Signals that the row can't be written.
+	 */
+	public synchronized void writeRow(String... values) throws IOException {
+		write(values);
+		rows++;
+	}
+
+	/**
+	 * Writes a line of values.
+	 */
+	private void write(String[] values) throws IOException {
+		final StringBuilder line = new StringBuilder(128);
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0) {
+				line.append(format.separator);
+			}
+			append(line, values[i] == null ? "" : values[i]);
+		}
+		line.append("\r\n");
+		writer.write(line.toString());
+	}
+
+	/**
+	 * Appends a value in the format of the table.
+	 */
+	private void append(StringBuilder line, String value) {
+		if (format == Format.TSV) {
+			for (int i = 0; i < value.length(); i++) {
+				final char c = value.charAt(i);
+				line.append((c == '\t' || c == '\r' || c == '\n') ? ' ' : c);
+			}
+		} else if (value.indexOf(',') >= 0 || value.indexOf('"') >= 0 || value.indexOf('\r') >= 0
+				|| value.indexOf('\n') >= 0) {
+			line.append('"').append(value.replace("\"", "\"\"")).append('"');
+		} else {
+			line.append(value);
+		}
+	}
+
+	/**
+	 * Writes the buffered rows to the stream.
+	 *
+	 * @throws IOException
+	 *                     Signals that the rows can't be written.
+	 */
+	@Override
+	public synchronized void flush() throws IOException {
+		writer.flush();
+	}
+
+	/**
+	 * Gets the number of rows written, the header excluded.
+	 *
+	 * @return Number of rows.
+	 */
+	public synchronized long getRows() {
+		return rows;
+	}
+}
@@ -0,0 +1,320 @@
+package nl.chrishofstede.bulktransform.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.commons.io.IOUtils;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.EntityResolver2;
+
+/**
+ * Entity resolver backed by one or more OASIS XML catalogs. The external DTDs
+ * and entities are read once and kept in memory, so each resource is loaded
+ * only once per run. Resources which aren't local files and aren't mapped by
+ * the catalog are never fetched, so parsing never blocks on a remote lookup: a
+ * remote external DTD resolves to an empty one, and a remote entity fails the
+ * document, since its content would be missing from the result. A relative
+ * system identifier without a base URI is left to the parser.
+ *
+ * <p>
+ * The supported catalog entries are <code>public</code>, <code>system</code>,
+ * <code>rewriteSystem</code>, <code>systemSuffix</code> and
+ * <code>nextCatalog</code>.
+ * </p>
+ */
+public class EntityCatalog implements EntityResolver2 {
+
+	/** Name of the external DTD subset passed to the resolver. */
+	private static final String DTD = "[dtd]";
+
+	/** Mapped URIs by public identifier. */
+	private final Map<String, String> publicEntries = new HashMap<String, String>();
+
+	/** Mapped URIs by system identifier. */
+	private final Map<String, String> systemEntries = new HashMap<String, String>();
+
+	/** Rewrite prefixes by system identifier start string. */
+	private final Map<String, String> rewriteSystemEntries = new LinkedHashMap<String, String>();
+
+	/** Mapped URIs by system identifier suffix. */
+	private final Map<String, String> systemSuffixEntries = new LinkedHashMap<String, String>();
+
+	/** Content of the resolved resources by URI. */
+	private final ConcurrentHashMap<String, byte[]> resources = new ConcurrentHashMap<String, byte[]>();
+
+	/** Remote resources which have been refused. */
+	private final Set<String> refused = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param catalogs
+	 *                 XML catalog files.
+	 * @throws Exception
+	 *                   Signals that a non user recoverable error has occurred.
+	 */
+	public EntityCatalog(File[] catalogs) throws Exception {
+		if (catalogs == null) {
+			throw new IllegalArgumentException("catalogs is null");
+		}
+		for (final File catalog : catalogs) {
+			load(catalog);
+		}
+	}
+
+	/**
+	 * Loads the entries of a catalog file.
+	 *
+	 * @param catalog
+	 *                XML catalog file.
+	 * @throws Exception
+	 *                   Signals that a non user recoverable error has occurred.
+	 */
+	private void load(File catalog) throws Exception {
+
+		// The catalog itself is parsed without this resolver
+		final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance(
+				"org.apache.xerces.jaxp.DocumentBuilderFactoryImpl", null);
+		factory.setNamespaceAware(true);
+		final Document document = factory.newDocumentBuilder().parse(catalog);
+		loadEntries(document.getDocumentElement(), catalog.getAbsoluteFile().toURI());
+	}
+
+	/**
+	 * Loads the catalog entries which are children of an element. This function
+	 * is called recursively for groups.
+	 *
+	 * @param parent
+	 *               Catalog or group element.
+	 * @param base
+	 *               URI of the catalog file.
+	 * @throws Exception
+	 *                   Signals that a non user recoverable error has occurred.
+	 */
+	private void loadEntries(Element parent, URI base) throws Exception {
+		Node node = parent.getFirstChild();
+		while (node != null) {
+			if (node.getNodeType() == Node.ELEMENT_NODE) {
+				final Element entry = (Element) node;
+				final String name = entry.getLocalName();
+				if ("public".equals(name)) {
+					publicEntries.put(entry.getAttribute("publicId"), resolve(base, entry.getAttribute("uri")));
+				} else if ("system".equals(name)) {
+					systemEntries.put(entry.getAttribute("systemId"), resolve(base, entry.getAttribute("uri")));
+				} else if ("rewriteSystem".equals(name)) {
+					rewriteSystemEntries.put(entry.getAttribute("systemIdStartString"),
+							resolve(base, entry.getAttribute("rewritePrefix")));
+				} else if ("systemSuffix".equals(name)) {
+					systemSuffixEntries.put(entry.getAttribute("systemIdSuffix"),
+							resolve(base, entry.getAttribute("uri")));
+				} else if ("nextCatalog".equals(name)) {
+					load(new File(URI.create(resolve(base, entry.getAttribute("catalog")))));
+				} else if ("group".equals(name)) {
+					loadEntries(entry, base);
+				}
+			}
+			node = node.getNextSibling();
+		}
+	}
+
+	/**
+	 * Allows applications to provide an external subset for documents that don't
+	 * explicitly define one.
+	 *
+	 * @return Always null, documents without a DOCTYPE don't get one.
+	 */
+	@Override
+	public InputSource getExternalSubset(String name, String baseURI) throws SAXException, IOException {
+		return null;
+	}
+
+	/**
+	 * Allows applications to map references to external entities into input
+	 * sources.
+	 *
+	 * @param publicId
+	 *                 The public identifier of the external entity being
+	 *                 referenced, or null if none was supplied.
+	 * @param systemId
+	 *                 The system identifier of the external entity being
+	 *                 referenced.
+	 * @return An InputSource object describing the new input source.
+	 */
+	@Override
+	public InputSource resolveEntity(String publicId, String systemId) throws SAXException, IOException {
+		return resolveEntity(null, publicId, null, systemId);
+	}
+
+	/**
+	 * Allows applications to map references to external entities into input
+	 * sources.
+	 *
+	 * @param name
+	 *                 Identifies the external entity being resolved.
+	 * @param publicId
+	 *                 The public identifier of the external entity being
+	 *                 referenced, or null if none was supplied.
+	 * @param baseURI
+	 *                 The URI with respect to which relative system IDs are
+	 *                 interpreted.
+	 * @param systemId
+	 *                 The system identifier of the external entity being
+	 *                 referenced, as written in the document.
+	 * @return An InputSource object describing the new input source, or null to
+	 *         let the parser resolve a relative system identifier.
+	 * @throws SAXException
+	 *                      Signals a remote entity which isn't in the catalog.
+	 */
+	@Override
+	public InputSource resolveEntity(String name, String publicId, String baseURI, String systemId)
+			throws SAXException, IOException {
+
+		// Look up the identifiers in the catalog, otherwise use the system identifier
+		String uri = lookup(publicId, systemId);
+		if (uri == null) {
+			if (systemId == null) {
+				return null;
+			}
+			try {
+				final URI resolved = (baseURI != null) ? new URI(baseURI).resolve(new URI(systemId))
+						: new URI(systemId);
+				if (!resolved.isAbsolute()) {
+
+					// Nothing to resolve it against, the parser knows the document
+					return null;
+				}
+				uri = resolved.toString();
+			} catch (final URISyntaxException e) {
+				uri = systemId;
+			}
+			final String mapped = lookup(null, uri);
+			if (mapped != null) {
+				uri = mapped;
+			}
+		}
+
+		final InputSource inputSource;
+		if (uri.startsWith("file:")) {
+
+			// Load the local resource once
+			byte[] content = resources.get(uri);
+			if (content == null) {
+				try (InputStream input = new URI(uri).toURL().openStream()) {
+					content = IOUtils.toByteArray(input);
+				} catch (final URISyntaxException e) {
+					throw new IOException(e);
+				}
+				final byte[] previous = resources.putIfAbsent(uri, content);
+				if (previous != null) {
+					content = previous;
+				}
+			}
+			inputSource = new InputSource(new ByteArrayInputStream(content));
+		} else {
+
+			// Never go to the network, a DTD without its declarations still parses
+			final boolean added = refused.add(uri);
+			if (name != null && !DTD.equals(name)) {
+				throw new SAXException("Remote entity not in catalog: " + uri);
+			}
+			if (added) {
+				System.err.println("Warning: remote DTD not in catalog, ignored: " + uri);
+			}
+			inputSource = new InputSource(new StringReader(""));
+		}
+		inputSource.setPublicId(publicId);
+		inputSource.setSystemId(uri);
+		return inputSource;
+	}
+
+	/**
+	 * Looks up the identifiers in the catalog.
+	 *
+	 * @param publicId
+	 *                 Public identifier or null.
+	 * @param systemId
+	 *                 System identifier or null.
+	 * @return The mapped URI or null if the identifiers aren't in the catalog.
+	 */
+	private String lookup(String publicId, String systemId) {
+		if (systemId != null) {
+			final String uri = systemEntries.get(systemId);
+			if (uri != null) {
+				return uri;
+			}
+
+			// The longest matching start string wins
+			String start = null;
+			for (final String candidate : rewriteSystemEntries.keySet()) {
+				if (systemId.startsWith(candidate) && (start == null || candidate.length() > start.length())) {
+					start = candidate;
+				}
+			}
+			if (start != null) {
+				return rewriteSystemEntries.get(start) + systemId.substring(start.length());
+			}
+
+			// The longest matching suffix wins
+			String suffix = null;
+			for (final String candidate : systemSuffixEntries.keySet()) {
+				if (systemId.endsWith(candidate) && (suffix == null || candidate.length() > suffix.length())) {
+					suffix = candidate;
+				}
+			}
+			if (suffix != null) {
+				return systemSuffixEntries.get(suffix);
+			}
+		}
+		if (publicId != null) {
+			return publicEntries.get(publicId);
+		}
+		return null;
+	}
+
+	/**
+	 * Resolves a URI of a catalog entry against the location of the catalog.
+	 *
+	 * @param base
+	 *             URI of the catalog file.
+	 * @param uri
+	 *             URI of the catalog entry.
+	 * @return The absolute URI.
+	 */
+	private static String resolve(URI base, String uri) {
+		return base.resolve(uri).toString();
+	}
+
+	/**
+	 * Gets the number of resources loaded in memory.
+	 *
+	 * @return Number of resources.
+	 */
+	public int getLoadedCount() {
+		return resources.size();
+	}
+
+	/**
+	 * Gets the number of remote resources which have been refused.
+	 *
+	 * @return Number of resources.
+	 */
+	public int getRefusedCount() {
+		return refused.size();
+	}
+}
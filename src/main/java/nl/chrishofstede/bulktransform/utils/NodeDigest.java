@@ -0,0 +1,504 @@
+package nl.chrishofstede.bulktransform.utils;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Computes a stable fingerprint of a node tree: the hash of its canonical form,
+ * after the rules of Canonical XML 1.0, without ever building the serialized
+ * tree. The canonical form is encoded to UTF-8 into a small buffer which is
+ * passed to the hash function whenever it is full, so a very large document is
+ * fingerprinted with constant extra memory. The tree is walked without
+ * recursion, so deep trees don't overflow the stack.
+ *
+ * <p>
+ * Like {@link NodeWriter}, each node type is handled on its own, but with the
+ * canonical rules:
+ * </p>
+ * <ul>
+ * <li>the document type is left out and entity references are expanded;</li>
+ * <li>CDATA sections are written as escaped text;</li>
+ * <li>empty elements get a start and an end tag;</li>
+ * <li>attributes are sorted by namespace URI and local name, after the
+ * namespace declarations sorted by prefix;</li>
+ * <li>a namespace declaration is only written where it changes the namespace
+ * in scope, and missing declarations of a tree built in memory are
+ * added;</li>
+ * <li>comments are left out, unless asked for.</li>
+ * </ul>
+ */
+public class NodeDigest {
+
+	/** Namespace of the namespace declarations. */
+	private static final String XMLNS_NAMESPACE = "http://www.w3.org/2000/xmlns/";
+
+	/** Namespace of the xml prefix, which is never declared. */
+	private static final String XML_NAMESPACE = "http://www.w3.org/XML/1998/namespace";
+
+	/** Size of the encoding buffer. */
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	/** Order of the namespace declarations, by prefix; the default one first. */
+	private static final Comparator<String[]> DECLARATION_ORDER = (a, b) -> a[0].compareTo(b[0]);
+
+	/** Order of the attributes, by namespace URI and local name. */
+	private static final Comparator<Attr> ATTRIBUTE_ORDER = (a, b) -> {
+		final int order = namespaceOf(a).compareTo(namespaceOf(b));
+		return (order != 0) ? order : localNameOf(a).compareTo(localNameOf(b));
+	};
+
+	/** Hash function receiving the canonical form. */
+	private final MessageDigest digest;
+
+	/** Include the comments. */
+	private final boolean withComments;
+
+	/** Encoding buffer. */
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+
+	/** Number of bytes in the buffer. */
+	private int length = 0;
+
+	/** Prefixes of the namespace declarations written, innermost last. */
+	private final List<String> prefixes = new ArrayList<String>();
+
+	/** Namespace URIs of the namespace declarations written. */
+	private final List<String> uris = new ArrayList<String>();
+
+	/** Depth of the elements of the namespace declarations written. */
+	private final List<Integer> depths = new ArrayList<Integer>();
+
+	/**
+	 * Constructor.
+	 */
+	private NodeDigest(MessageDigest digest, boolean withComments) {
+		this.digest = digest;
+		this.withComments = withComments;
+	}
+
+	/**
+	 * Computes the fingerprint of a node tree, without comments.
+	 *
+	 * @param node
+	 *                  Root of the node tree, usually a document.
+	 * @param algorithm
+	 *                  Name of the hash function, such as SHA-256.
+	 * @return The hash of the canonical form.
+	 * @throws NoSuchAlgorithmException
+	 *                                  Signals that the hash function isn't
+	 *                                  available.
+	 */
+	public static byte[] digest(Node node, String algorithm) throws NoSuchAlgorithmException {
+		final MessageDigest digest = MessageDigest.getInstance(algorithm);
+		update(digest, node, false);
+		return digest.digest();
+	}
+
+	/**
+	 * Passes the canonical form of a node tree to a hash function.
+	 *
+	 * @param digest
+	 *                     Hash function.
+	 * @param node
+	 *                     Root of the node tree.
+	 * @param withComments
+	 *                     True to include the comments.
+	 */
+	public static void update(MessageDigest digest, Node node, boolean withComments) {
+		if (node != null) {
+			final NodeDigest canonicalizer = new NodeDigest(digest, withComments);
+			canonicalizer.walk(node);
+			canonicalizer.flush();
+		}
+	}
+
+	/**
+	 * Walks the node tree in document order, using the parent and sibling links
+	 * instead of the call stack.
+	 */
+	private void walk(Node root) {
+		Node node = root;
+		int depth = 0;
+		while (true) {
+			if (enter(node, depth) && node.getFirstChild() != null) {
+				node = node.getFirstChild();
+				depth++;
+				continue;
+			}
+
+			// Leave the node, and its ancestors as long as they have no next sibling
+			while (true) {
+				leave(node, depth);
+				if (node == root) {
+					return;
+				}
+				final Node next = node.getNextSibling();
+				if (next != null) {
+					node = next;
+					break;
+				}
+				node = node.getParentNode();
+				depth--;
+			}
+		}
+	}
+
+	/**
+	 * Writes the start of a node.
+	 *
+	 * @return True if the children of the node are part of the canonical form.
+	 */
+	private boolean enter(Node node, int depth) {
+		switch (node.getNodeType()) {
+
+			// Document and expanded entity reference
+			case Node.DOCUMENT_NODE:
+			case Node.DOCUMENT_FRAGMENT_NODE:
+			case Node.ENTITY_REFERENCE_NODE:
+				return true;
+
+			// Element
+			case Node.ELEMENT_NODE:
+				write('<');
+				write(node.getNodeName());
+				writeAttributes(node, depth);
+				write('>');
+				return true;
+
+			// Text and CDATA section
+			case Node.TEXT_NODE:
+			case Node.CDATA_SECTION_NODE:
+				writeEscaped(node.getNodeValue(), false);
+				return false;
+
+			// Processing instruction
+			case Node.PROCESSING_INSTRUCTION_NODE:
+				beforeTopLevel(node);
+				write("<?");
+				write(node.getNodeName());
+				final String data = node.getNodeValue();
+				if (data != null && data.length() > 0) {
+					write(' ');
+					write(data);
+				}
+				write("?>");
+				afterTopLevel(node);
+				return false;
+
+			// Comment
+			case Node.COMMENT_NODE:
+				if (withComments) {
+					beforeTopLevel(node);
+					write("<!--");
+					write(node.getNodeValue());
+					write("-->");
+					afterTopLevel(node);
+				}
+				return false;
+
+			// Document type and others
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Writes the end of a node.
+	 */
+	private void leave(Node node, int depth) {
+		if (node.getNodeType() == Node.ELEMENT_NODE) {
+			write("</");
+			write(node.getNodeName());
+			write('>');
+
+			// Namespace declarations of the element go out of scope
+			int last = depths.size() - 1;
+			while (last >= 0 && depths.get(last) == depth) {
+				prefixes.remove(last);
+				uris.remove(last);
+				depths.remove(last);
+				last--;
+			}
+		}
+	}
+
+	/**
+	 * Writes a line break before a node after the document element.
+	 */
+	private void beforeTopLevel(Node node) {
+		if (isTopLevel(node) && isAfterDocumentElement(node)) {
+			write('\n');
+		}
+	}
+
+	/**
+	 * Writes a line break after a node before the document element.
+	 */
+	private void afterTopLevel(Node node) {
+		if (isTopLevel(node) && !isAfterDocumentElement(node)) {
+			write('\n');
+		}
+	}
+
+	/**
+	 * Indicates if a node is a child of the document.
+	 */
+	private static boolean isTopLevel(Node node) {
+		final Node parent = node.getParentNode();
+		return parent != null && parent.getNodeType() == Node.DOCUMENT_NODE;
+	}
+
+	/**
+	 * Indicates if a child of the document comes after the document element.
+	 */
+	private static boolean isAfterDocumentElement(Node node) {
+		for (Node sibling = node.getPreviousSibling(); sibling != null; sibling = sibling.getPreviousSibling()) {
+			if (sibling.getNodeType() == Node.ELEMENT_NODE) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Writes the namespace declarations and the attributes of an element in
+	 * canonical order.
+	 */
+	private void writeAttributes(Node element, int depth) {
+		final List<String[]> declarations = new ArrayList<String[]>();
+		final List<Attr> attributes = new ArrayList<Attr>();
+		final NamedNodeMap map = element.getAttributes();
+		final int count = (map != null) ? map.getLength() : 0;
+		for (int i = 0; i < count; i++) {
+			final Attr attribute = (Attr) map.item(i);
+			if (XMLNS_NAMESPACE.equals(attribute.getNamespaceURI())) {
+				final String prefix = "xmlns".equals(attribute.getNodeName()) ? "" : attribute.getLocalName();
+				declare(declarations, prefix, attribute.getNodeValue());
+			} else {
+				attributes.add(attribute);
+			}
+		}
+
+		// Declarations missing in a tree built in memory
+		declare(declarations, prefixOf(element), element.getNamespaceURI());
+		for (final Attr attribute : attributes) {
+			if (attribute.getNamespaceURI() != null) {
+				declare(declarations, prefixOf(attribute), attribute.getNamespaceURI());
+			}
+		}
+
+		// Only the declarations that change the namespace in scope
+		declarations.sort(DECLARATION_ORDER);
+		for (final String[] declaration : declarations) {
+			if (!declaration[1].equals(getRendered(declaration[0]))) {
+				write(declaration[0].isEmpty() ? " xmlns" : " xmlns:");
+				write(declaration[0]);
+				write("=\"");
+				writeEscaped(declaration[1], true);
+				write('"');
+				prefixes.add(declaration[0]);
+				uris.add(declaration[1]);
+				depths.add(depth);
+			}
+		}
+
+		final Attr[] sorted = attributes.toArray(new Attr[attributes.size()]);
+		Arrays.sort(sorted, ATTRIBUTE_ORDER);
+		for (final Attr attribute : sorted) {
+			write(' ');
+			write(attribute.getNodeName());
+			write("=\"");
+			writeEscaped(attribute.getNodeValue(), true);
+			write('"');
+		}
+	}
+
+	/**
+	 * Adds a namespace declaration, unless the prefix is declared already or is
+	 * the xml prefix.
+	 */
+	private static void declare(List<String[]> declarations, String prefix, String uri) {
+		if ("xml".equals(prefix) || XML_NAMESPACE.equals(uri)) {
+			return;
+		}
+		for (final String[] declaration : declarations) {
+			if (declaration[0].equals(prefix)) {
+				return;
+			}
+		}
+		declarations.add(new String[] { prefix, (uri != null) ? uri : "" });
+	}
+
+	/**
+	 * Gets the namespace URI of a prefix as written in scope; the default
+	 * namespace is empty at first.
+	 */
+	private String getRendered(String prefix) {
+		for (int i = prefixes.size() - 1; i >= 0; i--) {
+			if (prefixes.get(i).equals(prefix)) {
+				return uris.get(i);
+			}
+		}
+		return prefix.isEmpty() ? "" : null;
+	}
+
+	/**
+	 * Gets the prefix of a node, empty if it has none.
+	 */
+	private static String prefixOf(Node node) {
+		final String prefix = node.getPrefix();
+		return (prefix != null) ? prefix : "";
+	}
+
+	/**
+	 * Gets the namespace URI of an attribute, empty if it has none.
+	 */
+	private static String namespaceOf(Attr attribute) {
+		final String uri = attribute.getNamespaceURI();
+		return (uri != null) ? uri : "";
+	}
+
+	/**
+	 * Gets the local name of an attribute, or its name in a tree built without
+	 * namespaces.
+	 */
+	private static String localNameOf(Attr attribute) {
+		final String localName = attribute.getLocalName();
+		return (localName != null) ? localName : attribute.getNodeName();
+	}
+
+	/**
+	 * Writes text or an attribute value, escaped after the canonical rules.
+	 */
+	private void writeEscaped(String value, boolean isAttValue) {
+		if (value == null) {
+			return;
+		}
+		final int len = value.length();
+		for (int i = 0; i < len; i++) {
+			final char c = value.charAt(i);
+			switch (c) {
+				case '&':
+					write("&amp;");
+					break;
+				case '<':
+					write("&lt;");
+					break;
+				case '>':
+					if (isAttValue) {
+						write(c);
+					} else {
+						write("&gt;");
+					}
+					break;
+				case '"':
+					if (isAttValue) {
+						write("&quot;");
+					} else {
+						write(c);
+					}
+					break;
+				case '\t':
+					if (isAttValue) {
+						write("&#x9;");
+					} else {
+						write(c);
+					}
+					break;
+				case '\n':
+					if (isAttValue) {
+						write("&#xA;");
+					} else {
+						write(c);
+					}
+					break;
+				case '\r':
+					write("&#xD;");
+					break;
+				default:
+					if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(value.charAt(i + 1))) {
+						writeCodePoint(Character.toCodePoint(c, value.charAt(++i)));
+					} else {
+						write(c);
+					}
+			}
+		}
+	}
+
+	/**
+	 * Writes a string as it is.
+	 */
+	private void write(String value) {
+		if (value == null) {
+			return;
+		}
+		final int len = value.length();
+		for (int i = 0; i < len; i++) {
+			final char c = value.charAt(i);
+			if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(value.charAt(i + 1))) {
+				writeCodePoint(Character.toCodePoint(c, value.charAt(++i)));
+			} else {
+				write(c);
+			}
+		}
+	}
+
+	/**
+	 * Writes a character of the basic plane in UTF-8.
+	 */
+	private void write(char c) {
+		if (c < 0x80) {
+			put(c);
+		} else {
+			writeCodePoint(c);
+		}
+	}
+
+	/**
+	 * Writes a code point in UTF-8.
+	 */
+	private void writeCodePoint(int c) {
+		if (c < 0x80) {
+			put(c);
+		} else if (c < 0x800) {
+			put(0xc0 | (c >> 6));
+			put(0x80 | (c & 0x3f));
+		} else if (c < 0x10000) {
+			put(0xe0 | (c >> 12));
+			put(0x80 | ((c >> 6) & 0x3f));
+			put(0x80 | (c & 0x3f));
+		} else {
+			put(0xf0 | (c >> 18));
+			put(0x80 | ((c >> 12) & 0x3f));
+			put(0x80 | ((c >> 6) & 0x3f));
+			put(0x80 | (c & 0x3f));
+		}
+	}
+
+	/**
+	 * Adds a byte to the buffer, passing the buffer to the hash function when it
+	 * is full.
+	 */
+	private void put(int b) {
+		if (length == BUFFER_SIZE) {
+			flush();
+		}
+		buffer[length++] = (byte) b;
+	}
+
+	/**
+	 * Passes the buffer to the hash function.
+	 */
+	private void flush() {
+		digest.update(buffer, 0, length);
+		length = 0;
+	}
+}
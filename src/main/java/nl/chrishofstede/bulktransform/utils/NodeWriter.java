@@ -8,6 +8,8 @@ import org.w3c.dom.DocumentType;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 
+import nl.chrishofstede.bulktransform.compact.CompactDocument;
+
 public class NodeWriter {
 
 	/**
@@ -46,6 +48,118 @@ public class NodeWriter {
 		return writer.toString();
 	}
 
+	/**
+	 * Writes out the content of a compact document as a string, like the DOM it
+	 * was parsed from.
+	 * 
+	 * @param document
+	 *                 Compact document.
+	 * @return The string with the content of the document.
+	 */
+	public static String writeNode(CompactDocument document) {
+		return writeNode(document, 0);
+	}
+
+	/**
+	 * Writes out the content of a node tree of a compact document as a string.
+	 * 
+	 * @param document
+	 *                 Compact document.
+	 * @param node
+	 *                 Index of the root of the node tree.
+	 * @return The string with the content of the node tree.
+	 */
+	public static String writeNode(CompactDocument document, int node) {
+		final StringWriter writer = new StringWriter();
+		if (document != null && node != CompactDocument.NONE) {
+			write(writer, document, node);
+			writer.flush();
+		}
+		return writer.toString();
+	}
+
+	/**
+	 * Recursively writes out the content of the nodes of a compact document.
+	 * 
+	 * @param writer
+	 *                 The writer that receives the serialized node content.
+	 * @param document
+	 *                 Compact document.
+	 * @param node
+	 *                 Index of the current node.
+	 */
+	private static void write(StringWriter writer, CompactDocument document, int node) {
+		switch (document.getType(node)) {
+
+			// Document
+			case CompactDocument.DOCUMENT:
+				final int documentElement = document.getDocumentElement();
+				if (documentElement != CompactDocument.NONE) {
+					write(writer, document, documentElement);
+				}
+				break;
+
+			// Element
+			case CompactDocument.ELEMENT:
+
+				// Empty element?
+				final int firstChild = document.getFirstChild(node);
+
+				writer.write('<');
+				writer.write(document.getName(node));
+
+				// Add attributes if any, the namespace declarations among them
+				final int count = document.getAttributeCount(node);
+				for (int i = 0; i < count; i++) {
+					writer.write(' ');
+					writer.write(document.getAttributeName(node, i));
+					writer.write("=\"");
+					normalizeAndWrite(writer, document.getAttributeValue(node, i), true);
+					writer.write('"');
+				}
+				if (firstChild == CompactDocument.NONE) {
+					writer.write('/');
+				}
+				writer.write('>');
+
+				for (int child = firstChild; child != CompactDocument.NONE; child = document
+						.getNextSibling(child)) {
+					write(writer, document, child);
+				}
+
+				// Write end tag element
+				if (firstChild != CompactDocument.NONE) {
+					writer.write("</");
+					writer.write(document.getName(node));
+					writer.write('>');
+				}
+				break;
+
+			// Text
+			case CompactDocument.TEXT:
+				normalizeAndWrite(writer, document.getValue(node), false);
+				break;
+
+			// Processing instruction
+			case CompactDocument.PROCESSING_INSTRUCTION:
+				writer.write("<?");
+				writer.write(document.getName(node));
+				final String data = document.getValue(node);
+				if (data.length() > 0) {
+					writer.write(' ');
+					writer.write(data);
+				}
+				writer.write("?>");
+				break;
+
+			// Comment
+			case CompactDocument.COMMENT:
+				writer.write("<!--");
+				writer.write(document.getValue(node));
+				writer.write("-->");
+		}
+	}
+
 	/**
 	 * Recursively writes out the content of the nodes.
 	 * 
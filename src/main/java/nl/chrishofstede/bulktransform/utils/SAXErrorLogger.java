@@ -0,0 +1,148 @@
+package nl.chrishofstede.bulktransform.utils;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+public class SAXErrorLogger implements ErrorHandler {
+
+	// Writer to receive the log output
+	private final Writer writer;
+
+	// Error occurred
+	private boolean bError = false;
+
+	// Message of the first error, which the warnings don't precede
+	private String firstError = null;
+
+	// OS independent line feed
+	public static final String LF = System.getProperty("line.separator");
+
+	/**
+	 * Constructor SAXErrorLogger
+	 *
+	 * @param writer
+	 *               Writer to receive the log output
+	 */
+	public SAXErrorLogger(Writer writer) {
+		this.writer = writer;
+	}
+
+	/**
+	 * Receive notification of a warning. Warnings don't make the document invalid.
+	 *
+	 * @param exception
+	 *                  The warning information encapsulated in a SAX parse
+	 *                  exception.
+	 */
+	@Override
+	public void warning(SAXParseException exception) throws SAXException {
+		log("Warning: ", exception);
+	}
+
+	/**
+	 * Receive notification of a recoverable error, such as a validity error. The
+	 * parser continues, so all errors of the document are logged.
+	 *
+	 * @param exception
+	 *                  The error information encapsulated in a SAX parse
+	 *                  exception.
+	 */
+	@Override
+	public void error(SAXParseException exception) throws SAXException {
+		error("Error: ", exception);
+	}
+
+	/**
+	 * Receive notification of a non-recoverable error. The parser stops.
+	 *
+	 * @param exception
+	 *                  The error information encapsulated in a SAX parse
+	 *                  exception.
+	 * @throws SAXException
+	 *                      The exception is rethrown to stop the parser.
+	 */
+	@Override
+	public void fatalError(SAXParseException exception) throws SAXException {
+		error("Fatal: ", exception);
+
+		// Unrecoverable error
+		throw exception;
+	}
+
+	/**
+	 * Notes an error and writes it to the log.
+	 *
+	 * @param severity
+	 *                  Severity prefix of the message.
+	 * @param exception
+	 *                  The error information encapsulated in a SAX parse
+	 *                  exception.
+	 */
+	private void error(String severity, SAXParseException exception) {
+		bError = true;
+		if (firstError == null) {
+			firstError = severity + exception.getLocalizedMessage();
+		}
+		log(severity, exception);
+	}
+
+	/**
+	 * Writes the error message and its location to the log.
+	 *
+	 * @param severity
+	 *                  Severity prefix of the message.
+	 * @param exception
+	 *                  The error information encapsulated in a SAX parse
+	 *                  exception.
+	 */
+	private void log(String severity, SAXParseException exception) {
+		try {
+
+			// Log the error message
+			writer.write(severity + exception.getLocalizedMessage() + LF);
+
+			// Retrieve information about the location
+			writer.write("Location: " + LF);
+			final int line = exception.getLineNumber();
+			if (line >= 0) {
+				writer.write("- Line  : " + line + LF);
+			}
+			final int column = exception.getColumnNumber();
+			if (column >= 0) {
+				writer.write("- Column: " + column + LF);
+			}
+			final String uri = exception.getSystemId();
+			if (uri != null) {
+				writer.write("- URI   : " + uri + LF);
+			}
+			writer.write(LF);
+		} catch (final IOException io) {
+
+			// This should better not happen
+			System.err.println(io.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Returns <code>true</code> if the document is valid.
+	 *
+	 * @return True if the document is valid.
+	 */
+	public boolean isValid() {
+		return !bError;
+	}
+
+	/**
+	 * Returns the message of the first error or fatal error, as in the log but
+	 * without its location. Warnings are skipped.
+	 *
+	 * @return The message, or null if the document is valid.
+	 */
+	public String getFirstError() {
+		return firstError;
+	}
+}
@@ -35,4 +35,19 @@ public class AppTest
     {
         assertTrue( true );
     }
+
+    /**
+     * A one-off run without an output folder leaves no run files behind
+     */
+    public void testKeepsRunFiles()
+    {
+        Settings settings = new Settings();
+        settings.setSchedule( Scheduler.Order.SIZE );
+        assertFalse( App.isKeepingRunFiles( settings ) );
+        settings.setSchedule( Scheduler.Order.HISTORY );
+        assertTrue( App.isKeepingRunFiles( settings ) );
+        settings.setSchedule( Scheduler.Order.SIZE );
+        settings.setOut( "out" );
+        assertTrue( App.isKeepingRunFiles( settings ) );
+    }
 }
@@ -0,0 +1,81 @@
+package nl.chrishofstede.bulktransform;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Arrays;
+
+import javax.xml.transform.sax.SAXSource;
+
+import org.xml.sax.InputSource;
+
+import nl.chrishofstede.bulktransform.utils.SAXErrorLogger;
+
+/**
+ * Unit test for the collection of input files read as one document.
+ */
+public class CollectionReaderTest extends TemporaryFolderTestCase {
+
+    private Stylesheet stylesheet;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        stylesheet = new Stylesheet(writeFile("a.xsl",
+                "<xsl:stylesheet version=\"1.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">"
+                        + "<xsl:output omit-xml-declaration=\"yes\"/>"
+                        + "<xsl:template match=\"/collection\"><n><xsl:value-of select=\"count(*)\"/></n>"
+                        + "<xsl:copy-of select=\"node()\"/></xsl:template></xsl:stylesheet>"));
+    }
+
+    private String transform(CollectionReader reader) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        stylesheet.transformSourceToStream(new SAXSource(reader, new InputSource("collection.xml")), null, out,
+                null);
+        return out.toString("UTF-8");
+    }
+
+    public void testConcatenatesDocuments() throws Exception {
+        final File a = writeFile("a.xml", "<?xml version=\"1.0\"?><!--a--><a id=\"1\">x</a>");
+        final File b = writeFile("b.xml", "<!DOCTYPE b [<!ENTITY e \"y\">]><p:b xmlns:p=\"urn:p\">&e;</p:b>");
+        final CollectionReader reader = new CollectionReader(Arrays.asList(a, b), false, null);
+        assertEquals("<n>2</n><!--a--><a id=\"1\">x</a><p:b xmlns:p=\"urn:p\">y</p:b>", transform(reader));
+        assertTrue(reader.getFailed().isEmpty());
+    }
+
+    public void testLeavesOutMalformedDocuments() throws Exception {
+        final File a = writeFile("a.xml", "<a/>");
+        final File bad = writeFile("bad.xml", "<bad>");
+        final File c = writeFile("c.xml", "<c/>");
+        final EventCache eventCache = new EventCache(new File(directory, "cache"));
+        final CollectionReader reader = new CollectionReader(Arrays.asList(a, bad, c), false, eventCache);
+        assertEquals("<n>2</n><a/><c/>", transform(reader));
+        assertEquals(1, reader.getFailed().size());
+        assertTrue(reader.getFailed().containsKey(bad));
+        assertEquals(2, eventCache.getMisses());
+    }
+
+    public void testLeavesOutInvalidDocuments() throws Exception {
+        final File schema = writeFile("a.xsd", "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\">"
+                + "<xs:element name=\"a\" type=\"xs:int\"/></xs:schema>");
+        final File valid = writeFile("valid.xml", "<a>1</a>");
+        final File invalid = writeFile("invalid.xml", "<a>one</a>");
+        DOMBuilder.setSchema(DOMBuilder.compileSchema(schema));
+        try {
+            final CollectionReader reader = new CollectionReader(Arrays.asList(valid, invalid), true, null);
+            assertEquals("<n>1</n><a>1</a>", transform(reader));
+            assertEquals(1, reader.getInvalid().size());
+
+            // The manifest gets the first error, without its location
+            final String message = reader.getInvalid().get(invalid);
+            assertTrue(message, message.startsWith("Error: cvc-datatype-valid"));
+            assertEquals(-1, message.indexOf(SAXErrorLogger.LF));
+        } finally {
+            DOMBuilder.setSchema(null);
+        }
+    }
+
+    public void testName() {
+        assertEquals("collection-a.xml", CollectionReader.getName(new File("in", "a.xml")));
+        assertEquals("collection-b.1.xml", CollectionReader.getName(new File("b.1.xml")));
+    }
+}
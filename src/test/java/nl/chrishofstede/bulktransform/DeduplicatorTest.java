@@ -0,0 +1,67 @@
+package nl.chrishofstede.bulktransform;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import nl.chrishofstede.bulktransform.utils.Parameters;
+
+/**
+ * Unit test for the deduplication of identical input files.
+ */
+public class DeduplicatorTest extends TemporaryFolderTestCase {
+
+    private File stylesheet;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        stylesheet = writeFile("t.xsl", "<xsl:stylesheet/>");
+    }
+
+    public void testHashCoversContentAndParameters() throws Exception {
+        final File a = writeFile("a.xml", "<a/>");
+        final File copy = writeFile("copy.xml", "<a/>");
+        final File b = writeFile("b.xml", "<b/>");
+        final Deduplicator deduplicator = new Deduplicator(new File[] { stylesheet }, new Parameters());
+        assertEquals(deduplicator.hash(a), deduplicator.hash(copy));
+        assertFalse(deduplicator.hash(a).equals(deduplicator.hash(b)));
+
+        // Other parameters give other outputs
+        final Parameters parameters = new Parameters();
+        parameters.setParameter("lang", "nl");
+        assertFalse(deduplicator.hash(a)
+                .equals(new Deduplicator(new File[] { stylesheet }, parameters).hash(a)));
+    }
+
+    public void testDuplicateWaitsForOriginal() throws Exception {
+        final File a = writeFile("a.xml", "<a/>");
+        final Deduplicator deduplicator = new Deduplicator(new File[] { stylesheet }, new Parameters());
+        final String hash = deduplicator.hash(a);
+        assertNull(deduplicator.claim(hash));
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<Deduplicator.Original> duplicate = executor.submit(() -> deduplicator.claim(hash));
+            Thread.sleep(50);
+            assertFalse(duplicate.isDone());
+            deduplicator.done(hash, new Deduplicator.Original(a, 42));
+            assertEquals(a, duplicate.get().getInFile());
+            assertEquals(42, deduplicator.claim(hash).getDuration());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testFailedOriginalIsReplaced() throws Exception {
+        final File a = writeFile("a.xml", "<a/>");
+        final Deduplicator deduplicator = new Deduplicator(new File[] { stylesheet }, new Parameters());
+        final String hash = deduplicator.hash(a);
+        assertNull(deduplicator.claim(hash));
+        deduplicator.done(hash, null);
+
+        // The next file with the hash has to be transformed itself
+        assertNull(deduplicator.claim(hash));
+        assertEquals(1, deduplicator.size());
+    }
+}
@@ -0,0 +1,66 @@
+package nl.chrishofstede.bulktransform;
+
+import java.io.File;
+
+import javax.xml.transform.dom.DOMSource;
+
+import org.w3c.dom.Document;
+
+/**
+ * Unit test for the document() lookup cache.
+ */
+public class DocumentCacheTest extends TemporaryFolderTestCase {
+
+    private static Document resolve(DocumentCache cache, String href, File base) throws Exception {
+        return (Document) ((DOMSource) cache.resolve(href, base.toURI().toString())).getNode();
+    }
+
+    public void testCachedDocumentIsShared() throws Exception {
+        writeFile("codes.xml", "<codes/>");
+        final File base = new File(directory, "main.xsl");
+        final DocumentCache cache = new DocumentCache(1024);
+
+        final Document first = resolve(cache, "codes.xml", base);
+        final Document second = resolve(cache, "codes.xml", base);
+        assertSame(first, second);
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+    }
+
+    public void testModifiedDocumentIsParsedAgain() throws Exception {
+        final File codes = writeFile("codes.xml", "<codes/>");
+        final File base = new File(directory, "main.xsl");
+        final DocumentCache cache = new DocumentCache(1024);
+
+        resolve(cache, "codes.xml", base);
+        writeFile("codes.xml", "<changed/>");
+        codes.setLastModified(codes.lastModified() + 2000);
+        assertEquals("changed", resolve(cache, "codes.xml", base).getDocumentElement().getNodeName());
+        assertEquals(2, cache.getMisses());
+    }
+
+    public void testLeastRecentlyUsedDocumentIsEvicted() throws Exception {
+        writeFile("a.xml", "<aaaaaaaaaa/>");
+        writeFile("b.xml", "<bbbbbbbbbb/>");
+        writeFile("c.xml", "<cccccccccc/>");
+        final File base = new File(directory, "main.xsl");
+        final DocumentCache cache = new DocumentCache(30);
+
+        resolve(cache, "a.xml", base);
+        resolve(cache, "b.xml", base);
+        resolve(cache, "a.xml", base);
+        resolve(cache, "c.xml", base);
+        assertEquals(26, cache.getSize());
+
+        // b.xml was evicted, a.xml is still cached
+        resolve(cache, "a.xml", base);
+        assertEquals(3, cache.getMisses());
+        resolve(cache, "b.xml", base);
+        assertEquals(4, cache.getMisses());
+    }
+
+    public void testRemoteHrefIsLeftToProcessor() throws Exception {
+        final DocumentCache cache = new DocumentCache(1024);
+        assertNull(cache.resolve("http://example.org/codes.xml", null));
+    }
+}
@@ -0,0 +1,145 @@
+package nl.chrishofstede.bulktransform;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.w3c.dom.Node;
+
+import nl.chrishofstede.bulktransform.compact.CompactDocument;
+import nl.chrishofstede.bulktransform.utils.Parameters;
+
+/**
+ * Compares the Xerces DOM and the compact document tree: the heap taken by a
+ * parsed document, the peak heap while it is transformed, which includes what
+ * Xalan adds to read the tree, and the throughput of parsing and of parsing
+ * and transforming. Not a unit test, run it by hand with the test classpath:
+ *
+ * <pre>
+ * java -cp target/classes:target/test-classes:&lt;dependencies&gt; \
+ *     nl.chrishofstede.bulktransform.DocumentModelBenchmark input.xml [stylesheet.xsl] [rounds]
+ * </pre>
+ */
+public class DocumentModelBenchmark {
+
+    /** Number of copies of the document held when measuring the heap. */
+    private static final int COPIES = 8;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("usage: DocumentModelBenchmark input.xml [stylesheet.xsl] [rounds]");
+            return;
+        }
+        final File input = new File(args[0]);
+        final Stylesheet stylesheet = (args.length > 1) ? new Stylesheet(new File(args[1])) : null;
+        final int rounds = (args.length > 2) ? Integer.parseInt(args[2]) : 10;
+        final double megabytes = input.length() / (1024.0 * 1024.0);
+        System.out.printf("Input: %s, %.1f MB%n", input.getName(), megabytes);
+
+        for (final boolean compact : new boolean[] { false, true }) {
+            final String model = compact ? "compact" : "dom";
+
+            // Heap per document, with several copies held to average out the noise
+            final Object[] held = new Object[COPIES];
+            final long before = usedMemory();
+            for (int i = 0; i < COPIES; i++) {
+                held[i] = parse(input, compact);
+            }
+            final long heap = (usedMemory() - before) / COPIES;
+            System.out.printf("%-8s heap: %.1f MB per document, %.1fx the file%n", model,
+                    heap / (1024.0 * 1024.0), heap / (double) input.length());
+            Arrays.fill(held, null);
+
+            // Peak heap while a parsed document is transformed, what the memory budget has to hold
+            if (stylesheet != null) {
+                final long peak = peakMemory(input, compact, stylesheet);
+                System.out.printf("%-8s transform peak: %.1f MB per document, %.1fx the file%n", model,
+                        peak / (1024.0 * 1024.0), peak / (double) input.length());
+            }
+
+            // Throughput, after a warm-up round
+            parse(input, compact);
+            long start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                parse(input, compact);
+            }
+            System.out.printf("%-8s parse: %.1f MB/s%n", model, megabytes * rounds / seconds(start));
+            if (stylesheet != null) {
+                transform(input, compact, stylesheet);
+                start = System.nanoTime();
+                for (int i = 0; i < rounds; i++) {
+                    transform(input, compact, stylesheet);
+                }
+                System.out.printf("%-8s parse and transform: %.1f MB/s%n", model,
+                        megabytes * rounds / seconds(start));
+            }
+        }
+    }
+
+    private static Object parse(File input, boolean compact) throws Exception {
+        return compact ? DOMBuilder.parseCompactDocumentAtPath(input, null) : DOMBuilder.parseDocumentAtPath(input);
+    }
+
+    private static void transform(File input, boolean compact, Stylesheet stylesheet) throws Exception {
+        final Parameters parameters = new Parameters();
+        if (compact) {
+            final CompactDocument document = DOMBuilder.parseCompactDocumentAtPath(input, null);
+            stylesheet.transformSourceToStream(document.newSource(), parameters, NullOutputStream.INSTANCE, null);
+        } else {
+            stylesheet.transformNodeToStream(DOMBuilder.parseDocumentAtPath(input), parameters,
+                    NullOutputStream.INSTANCE, null);
+        }
+    }
+
+    /**
+     * Measures the live heap while a document is transformed, above the heap
+     * used before, when the transformation writes its first output and the
+     * trees it reads are built.
+     */
+    private static long peakMemory(File input, boolean compact, Stylesheet stylesheet) throws Exception {
+        final long before = usedMemory();
+        final long[] peak = { 0 };
+        final OutputStream probe = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (peak[0] == 0) {
+                    try {
+                        peak[0] = usedMemory() - before;
+                    } catch (final InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+            }
+        };
+        final Parameters parameters = new Parameters();
+        final Object document = parse(input, compact);
+        if (compact) {
+            stylesheet.transformSourceToStream(((CompactDocument) document).newSource(), parameters, probe, null);
+        } else {
+            stylesheet.transformNodeToStream((Node) document, parameters, probe, null);
+        }
+
+        // The document stays reachable until it is measured
+        return (document != null) ? peak[0] : 0;
+    }
+
+    private static long usedMemory() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        final Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static double seconds(long start) {
+        return (System.nanoTime() - start) / 1e9;
+    }
+}
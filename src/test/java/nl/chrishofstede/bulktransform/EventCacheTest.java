@@ -0,0 +1,115 @@
+package nl.chrishofstede.bulktransform;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+import javax.xml.transform.sax.SAXSource;
+
+import org.apache.commons.io.FileUtils;
+
+import nl.chrishofstede.bulktransform.compact.CompactBuilder;
+import nl.chrishofstede.bulktransform.compact.CompactDocument;
+import nl.chrishofstede.bulktransform.utils.NodeWriter;
+
+/**
+ * Unit test for the cache of the parser events.
+ */
+public class EventCacheTest extends TemporaryFolderTestCase {
+
+    private static final String SAMPLE = "<!DOCTYPE doc [<!ENTITY e \"entity\"><!ATTLIST doc id ID #IMPLIED>]>"
+            + "<!--c--><doc xmlns=\"urn:d\" xmlns:p=\"urn:p\" id=\"d1\" p:a=\"x&amp;y\"><item>one &e;</item>"
+            + "<?pi data?><p:item xmlns=\"\">café € 😀</p:item><empty/></doc>";
+
+    /**
+     * Builds a compact document from the replayed events.
+     */
+    private static CompactDocument replay(SAXSource source) throws Exception {
+        final CompactBuilder builder = new CompactBuilder(source.getInputSource().getSystemId());
+        source.getXMLReader().setContentHandler(builder);
+        source.getXMLReader().setProperty(CompactBuilder.LEXICAL_HANDLER, builder);
+        source.getXMLReader().parse(source.getInputSource());
+        return builder.getDocument();
+    }
+
+    public void testReplaysLikeParser() throws Exception {
+        final File input = writeFile("in.xml", SAMPLE);
+        final EventCache cache = new EventCache(new File(directory, "cache"));
+        final String parsed = NodeWriter.writeNode(DOMBuilder.parseCompactDocumentAtPath(input, null));
+        assertEquals(parsed, NodeWriter.writeNode(replay(cache.newSource(input))));
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        // The second time from the cache, under another name as well
+        final File copy = writeFile("copy.xml", SAMPLE);
+        assertEquals(parsed, NodeWriter.writeNode(replay(cache.newSource(copy))));
+        assertEquals(1, cache.getHits());
+        assertEquals(cache.getEntry(input), cache.getEntry(copy));
+        assertTrue(cache.getEntry(input).isFile());
+    }
+
+    public void testLongText() throws Exception {
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < 300000; i++) {
+            text.append(i % 7 == 0 ? "é中😀" : "abc").append(i);
+        }
+        final File input = writeFile("long.xml", "<doc a=\"" + text + "\">" + text + "</doc>");
+        final EventCache cache = new EventCache(new File(directory, "cache"));
+        replay(cache.newSource(input));
+        final CompactDocument document = replay(cache.newSource(input));
+        final int root = document.getDocumentElement();
+        assertEquals(text.toString(), document.getAttribute(root, "", "a"));
+        assertEquals(text.toString(), document.getStringValue(root));
+    }
+
+    public void testTransformsLikeDocument() throws Exception {
+        final File xsl = writeFile("a.xsl",
+                "<xsl:stylesheet version=\"1.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">"
+                        + "<xsl:output omit-xml-declaration=\"yes\"/><xsl:template match=\"/\">"
+                        + "<xsl:copy-of select=\"node()\"/><n><xsl:value-of select=\"count(id('d1'))\"/></n>"
+                        + "</xsl:template></xsl:stylesheet>");
+        final Stylesheet stylesheet = new Stylesheet(xsl);
+        final File input = writeFile("in.xml", SAMPLE);
+        final EventCache cache = new EventCache(new File(directory, "cache"));
+
+        final ByteArrayOutputStream fromDocument = new ByteArrayOutputStream();
+        stylesheet.transformNodeToStream(DOMBuilder.parseDocumentAtPath(input), null, fromDocument, null);
+        for (int i = 0; i < 2; i++) {
+            final ByteArrayOutputStream fromCache = new ByteArrayOutputStream();
+            stylesheet.transformSourceToStream(cache.newSource(input), null, fromCache, null);
+            assertEquals(fromDocument.toString("UTF-8"), fromCache.toString("UTF-8"));
+        }
+        assertEquals(1, cache.getHits());
+    }
+
+    public void testMalformedInputIsNotCached() throws Exception {
+        final File input = writeFile("bad.xml", "<doc><item></doc>");
+        final EventCache cache = new EventCache(new File(directory, "cache"));
+        try {
+            cache.newSource(input);
+            fail("parsed a malformed document");
+        } catch (final Exception e) {
+
+            // Expected
+        }
+        assertFalse(cache.getEntry(input).exists());
+        assertEquals(0, cache.getEntry(input).getParentFile().list().length);
+    }
+
+    public void testExternalEntityIsNotCached() throws Exception {
+        final File dtd = writeFile("doc.dtd", "<!ENTITY e \"first\">");
+        final File input = writeFile("in.xml", "<!DOCTYPE doc SYSTEM \"doc.dtd\"><doc>&e;</doc>");
+        final EventCache cache = new EventCache(new File(directory, "cache"));
+        CompactDocument document = replay(cache.newSource(input));
+        assertEquals("first", document.getStringValue(document.getDocumentElement()));
+        assertFalse(cache.getEntry(input).exists());
+        assertTrue(EventCache.getMarker(cache.getEntry(input)).isFile());
+
+        // A changed DTD is read again, the input file itself didn't change
+        FileUtils.writeStringToFile(dtd, "<!ENTITY e \"second\">", StandardCharsets.UTF_8);
+        document = replay(cache.newSource(input));
+        assertEquals("second", document.getStringValue(document.getDocumentElement()));
+        assertEquals(0, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+}
@@ -0,0 +1,34 @@
+package nl.chrishofstede.bulktransform;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Unit test for the values extracted from the input files with XPath.
+ */
+public class ExtractorTest extends TemporaryFolderTestCase {
+
+    public void testExtractsStringValues() throws Exception {
+        final Extractor extractor = new Extractor(writeFile("columns.txt", "# order columns\n"
+                + "xmlns:o urn:o\n"
+                + "id      /o:order/@id\n"
+                + "lines   count(//o:line)\n"
+                + "status  /o:order/o:status\n"
+                + "missing /o:order/o:none\n"));
+        assertEquals(Arrays.asList("id", "lines", "status", "missing"), Arrays.asList(extractor.getNames()));
+        final File order = writeFile("order.xml", "<order xmlns=\"urn:o\" id=\"7\"><line/><line/>"
+                + "<status>open<!--c--> now</status></order>");
+        assertEquals(Arrays.asList("7", "2", "open now", ""),
+                Arrays.asList(extractor.extract(DOMBuilder.newSAXSourceAtPath(order, null))));
+    }
+
+    public void testRejectsColumnWithoutExpression() throws Exception {
+        try {
+            new Extractor(writeFile("columns.txt", "id\n"));
+            fail("accepted a column without expression");
+        } catch (final IOException e) {
+            assertTrue(e.getMessage().startsWith("No expression on line 1"));
+        }
+    }
+}
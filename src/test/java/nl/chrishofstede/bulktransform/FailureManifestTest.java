@@ -0,0 +1,49 @@
+package nl.chrishofstede.bulktransform;
+
+import java.io.File;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the failure manifest.
+ */
+public class FailureManifestTest extends TestCase {
+
+    public void testEscapeRoundTrip() {
+        final String value = "line 1\nline 2\ttab \\ backslash\r";
+        final String escaped = FailureManifest.escape(value);
+        assertEquals(-1, escaped.indexOf('\t'));
+        assertEquals(-1, escaped.indexOf('\n'));
+        assertEquals(value, FailureManifest.unescape(escaped));
+    }
+
+    public void testReadRecordedFailures() throws Exception {
+        final File file = File.createTempFile("failures", ".tsv");
+        try {
+            final File first = new File("in\\tricky\tname.xml").getAbsoluteFile();
+            final File second = new File("other.xml").getAbsoluteFile();
+            try (FailureManifest manifest = new FailureManifest(file)) {
+                manifest.add(first, "org.xml.sax.SAXParseException: broken\nsecond line");
+                manifest.add(second, null);
+                assertEquals(2, manifest.getCount());
+            }
+
+            final List<File> inputs = FailureManifest.read(file);
+            assertEquals(2, inputs.size());
+            assertEquals(first, inputs.get(0));
+            assertEquals(second, inputs.get(1));
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testPreviousManifestIsRemoved() throws Exception {
+        final File file = File.createTempFile("failures", ".tsv");
+        try (FailureManifest manifest = new FailureManifest(file)) {
+            assertFalse(file.exists());
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package nl.chrishofstede.bulktransform;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.transform.dom.DOMSource;
+
+/**
+ * Unit test for the map-reduce of the input files into one result.
+ */
+public class MapReduceTest extends TemporaryFolderTestCase {
+
+    private Stylesheet mapper;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mapper = writeStylesheet("map.xsl",
+                "<xsl:template match=\"/doc\"><sum n=\"1\"><xsl:value-of select=\"@v\"/></sum></xsl:template>");
+    }
+
+    private Stylesheet writeStylesheet(String name, String templates) throws Exception {
+        final File file = writeFile(name,
+                "<xsl:stylesheet version=\"1.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">"
+                        + "<xsl:output omit-xml-declaration=\"yes\"/>" + templates + "</xsl:stylesheet>");
+        return new Stylesheet(file);
+    }
+
+    private byte[] map(MapReduce mapReduce, int v) throws Exception {
+        return mapReduce.map(mapper, new DOMSource(DOMBuilder.parseString("<doc v=\"" + v + "\"/>")));
+    }
+
+    public void testReducesInParallel() throws Exception {
+        final MapReduce mapReduce = new MapReduce(writeStylesheet("reduce.xsl",
+                "<xsl:template match=\"/collection\"><sum n=\"{sum(sum/@n)}\"><xsl:value-of select=\"sum(sum)\"/></sum></xsl:template>"),
+                null, 3);
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        final List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int i = 1; i <= 100; i++) {
+            final int v = i;
+            futures.add(executor.submit(() -> {
+                mapReduce.add(map(mapReduce, v));
+                return null;
+            }));
+        }
+        for (final Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        final ByteArrayOutputStream result = new ByteArrayOutputStream();
+        assertTrue(mapReduce.finish(result));
+        assertEquals("<sum n=\"100\">5050</sum>", result.toString("UTF-8"));
+
+        // Each reduction merges at most 3 partial results into 1
+        assertTrue(mapReduce.getReductions() >= 50);
+        assertEquals(100 + mapReduce.getReductions() - 1, mapReduce.getReduced());
+    }
+
+    public void testNothingToReduce() throws Exception {
+        final MapReduce mapReduce = new MapReduce(
+                writeStylesheet("reduce.xsl", "<xsl:template match=\"/\"><none/></xsl:template>"), null, 2);
+        assertFalse(mapReduce.finish(new ByteArrayOutputStream()));
+    }
+
+    public void testFailedReductionFailsResult() throws Exception {
+        final MapReduce mapReduce = new MapReduce(writeStylesheet("reduce.xsl",
+                "<xsl:template match=\"/\"><xsl:message terminate=\"yes\">broken</xsl:message></xsl:template>"),
+                null, 2);
+        mapReduce.add(map(mapReduce, 1));
+        try {
+            mapReduce.add(map(mapReduce, 2));
+            fail("reduced with a failing stylesheet");
+        } catch (final Exception e) {
+
+            // Expected
+        }
+        mapReduce.add(map(mapReduce, 3));
+        try {
+            mapReduce.finish(new ByteArrayOutputStream());
+            fail("finished after a failed reduction");
+        } catch (final Exception e) {
+            assertTrue(e.getMessage().startsWith("Partial results lost"));
+        }
+    }
+}
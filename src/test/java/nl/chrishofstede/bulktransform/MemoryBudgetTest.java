@@ -0,0 +1,53 @@
+package nl.chrishofstede.bulktransform;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the admission control of the parsed documents.
+ */
+public class MemoryBudgetTest extends TestCase {
+
+    public void testLargeCostWaitsForRelease() throws Exception {
+        final MemoryBudget budget = new MemoryBudget(100);
+        budget.acquire(60);
+        final CountDownLatch admitted = new CountDownLatch(1);
+        final Thread large = new Thread(() -> {
+            try {
+                budget.acquire(50);
+                admitted.countDown();
+            } catch (InterruptedException e) {
+                // Test fails on the latch
+            }
+        });
+        large.start();
+        assertFalse(admitted.await(200, TimeUnit.MILLISECONDS));
+        budget.release(60);
+        assertTrue(admitted.await(5, TimeUnit.SECONDS));
+        assertEquals(60, budget.getPeak());
+        assertEquals(1, budget.getDelayed());
+    }
+
+    public void testOversizedCostIsAdmittedAlone() throws Exception {
+        final MemoryBudget budget = new MemoryBudget(100);
+        assertFalse(budget.fits(500));
+        budget.acquire(500);
+        budget.release(500);
+        budget.acquire(10);
+        budget.release(10);
+        assertEquals(0, budget.getDelayed());
+    }
+
+    public void testObservationRefinesInflation() throws Exception {
+        final MemoryBudget budget = new MemoryBudget(1L << 40);
+        final long length = 10 * 1024 * 1024;
+        final long cost = budget.estimate(length);
+        budget.acquire(cost);
+        budget.observe(length, cost, 4 * length);
+        budget.release(cost);
+        assertTrue(budget.getInflation() < MemoryBudget.DEFAULT_INFLATION);
+        assertTrue(budget.getInflation() > 4);
+    }
+}
@@ -0,0 +1,51 @@
+package nl.chrishofstede.bulktransform;
+
+import java.io.File;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the index of the output files.
+ */
+public class OutputIndexTest extends TestCase {
+
+    public void testRecordIsReadableBeforeClose() throws Exception {
+        final File file = File.createTempFile("index", ".tsv");
+        try {
+            final File first = new File("in\\tricky\tname.xml").getAbsoluteFile();
+            try (OutputIndex index = new OutputIndex(file, false)) {
+                index.add(first, "a/first.xml");
+
+                // A killed run leaves every recorded line behind
+                final Map<String, String> outputs = OutputIndex.read(file);
+                assertEquals(1, outputs.size());
+                assertEquals("a/first.xml", outputs.get(first.getAbsolutePath()));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testResumeAppends() throws Exception {
+        final File file = File.createTempFile("index", ".tsv");
+        try {
+            final File first = new File("first.xml").getAbsoluteFile();
+            final File second = new File("second.xml").getAbsoluteFile();
+            try (OutputIndex index = new OutputIndex(file, false)) {
+                index.add(first, "first.xml");
+            }
+            try (OutputIndex index = new OutputIndex(file, true)) {
+                index.add(second, "second.xml");
+                index.add(first, "again/first.xml");
+            }
+
+            final Map<String, String> outputs = OutputIndex.read(file);
+            assertEquals(2, outputs.size());
+            assertEquals("again/first.xml", outputs.get(first.getAbsolutePath()));
+            assertEquals("second.xml", outputs.get(second.getAbsolutePath()));
+        } finally {
+            file.delete();
+        }
+    }
+}
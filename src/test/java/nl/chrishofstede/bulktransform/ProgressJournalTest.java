@@ -0,0 +1,87 @@
+package nl.chrishofstede.bulktransform;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import nl.chrishofstede.bulktransform.output.AtomicOutput;
+import nl.chrishofstede.bulktransform.output.OutputWriter;
+
+/**
+ * Unit test for the progress journal.
+ */
+public class ProgressJournalTest extends TestCase {
+
+    public void testTornRecordIsIgnored() throws Exception {
+        final File file = File.createTempFile("journal", ".log");
+        try {
+            final File done = new File("done.xml").getAbsoluteFile();
+            final File failed = new File("failed.xml").getAbsoluteFile();
+            final File resumed = new File("resumed.xml").getAbsoluteFile();
+            try (ProgressJournal journal = new ProgressJournal(file, false)) {
+                journal.add(done, ProgressJournal.DONE);
+                journal.add(failed, ProgressJournal.FAILED);
+            }
+
+            // Simulate a crash in the middle of a record
+            try (OutputStream out = new FileOutputStream(file, true)) {
+                out.write("0badf00d\tD\t/torn".getBytes(StandardCharsets.UTF_8));
+            }
+            try (ProgressJournal journal = new ProgressJournal(file, true)) {
+                journal.add(resumed, ProgressJournal.DONE);
+            }
+
+            final Map<String, Character> completed = ProgressJournal.read(file);
+            assertEquals(3, completed.size());
+            assertEquals(Character.valueOf(ProgressJournal.DONE), completed.get(done.getAbsolutePath()));
+            assertEquals(Character.valueOf(ProgressJournal.FAILED), completed.get(failed.getAbsolutePath()));
+            assertEquals(Character.valueOf(ProgressJournal.DONE), completed.get(resumed.getAbsolutePath()));
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testRecordWaitsForGroupSync() throws Exception {
+        final File file = File.createTempFile("journal", ".log");
+        final File target = File.createTempFile("output", ".xml");
+        try {
+            final OutputWriter outputWriter = new OutputWriter(OutputWriter.Durability.GROUP, 100);
+            try (ProgressJournal journal = new ProgressJournal(file, false)) {
+                journal.setOutputWriter(outputWriter);
+                try (AtomicOutput output = outputWriter.create(target)) {
+                    output.write('x');
+                    output.commit();
+                }
+                journal.add(new File("a.xml"), ProgressJournal.DONE);
+
+                // Neither the output nor the record is durable yet
+                assertEquals(0, outputWriter.getSynced());
+                assertEquals(0, file.length());
+
+                // The output file is synced before the record is written
+                journal.sync();
+                assertEquals(1, outputWriter.getSynced());
+                assertEquals(1, ProgressJournal.read(file).size());
+            }
+        } finally {
+            file.delete();
+            target.delete();
+        }
+    }
+
+    public void testNewRunTruncatesJournal() throws Exception {
+        final File file = File.createTempFile("journal", ".log");
+        try {
+            try (ProgressJournal journal = new ProgressJournal(file, false)) {
+                journal.add(new File("a.xml"), ProgressJournal.DONE);
+            }
+            new ProgressJournal(file, false).close();
+            assertTrue(ProgressJournal.read(file).isEmpty());
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package nl.chrishofstede.bulktransform;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.xml.namespace.QName;
+
+/**
+ * Unit test for the routing of the input files to their stylesheets.
+ */
+public class RouterTest extends TemporaryFolderTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        for (final String name : new String[] { "a.xsl", "b.xsl", "c.xsl", "d.xsl" }) {
+            writeFile(name, "<xsl:stylesheet version=\"1.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\"/>");
+        }
+    }
+
+    private Router newRouter(String table) throws Exception {
+        return new Router(writeFile("routes.txt", table), new StylesheetRegistry(1024 * 1024, null));
+    }
+
+    public void testFirstMatchingRuleWins() throws Exception {
+        final Router router = newRouter("# comment\n\n"
+                + "file:legacy-*.xml d.xsl\n"
+                + "{urn:o}*\ta.xsl\n"
+                + "{}order b.xsl\n"
+                + "inv b.xsl, c.xsl\n");
+        assertEquals(new File(directory, "d.xsl"), router.match(writeFile("legacy-1.xml", "<order/>"))[0]);
+        assertEquals(new File(directory, "a.xsl"), router.match(writeFile("o1.xml", "<order xmlns=\"urn:o\"/>"))[0]);
+        assertEquals(new File(directory, "b.xsl"), router.match(writeFile("o2.xml", "<order/>"))[0]);
+        final File[] chain = router.match(writeFile("i.xml", "<p:inv xmlns:p=\"urn:i\"/>"));
+        assertEquals(2, chain.length);
+        assertEquals(new File(directory, "c.xsl"), chain[1]);
+        assertNull(router.match(writeFile("z.xml", "<other/>")));
+    }
+
+    public void testPeeksRootBehindDoctype() throws Exception {
+        final File file = writeFile("d.xml", "<?xml version=\"1.0\"?><!--c--><!DOCTYPE inv SYSTEM \"missing.dtd\">"
+                + "<inv xmlns=\"urn:i\">&undeclared;</inv>");
+        assertEquals(new QName("urn:i", "inv"), Router.peekRoot(file));
+    }
+
+    public void testRejectsMissingStylesheet() throws Exception {
+        try {
+            newRouter("inv missing.xsl\n");
+            fail("accepted a missing stylesheet");
+        } catch (final IOException e) {
+            assertTrue(e.getMessage().startsWith("Stylesheet on line 1"));
+        }
+    }
+}
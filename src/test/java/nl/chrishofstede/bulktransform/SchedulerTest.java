@@ -0,0 +1,45 @@
+package nl.chrishofstede.bulktransform;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Unit test for the order of the input files.
+ */
+public class SchedulerTest extends TemporaryFolderTestCase {
+
+    public void testLargestFirst() throws Exception {
+        final File small = write("small.xml", 10);
+        final File large = write("large.xml", 1000);
+        final File medium = write("medium.xml", 100);
+        final List<File> files = Arrays.asList(small, large, medium);
+        assertEquals(Arrays.asList(large, medium, small),
+                Scheduler.order(files, Scheduler.Order.SIZE, null));
+        assertEquals(files, Scheduler.order(files, Scheduler.Order.LISTING, null));
+    }
+
+    public void testHistoryBeforeSize() throws Exception {
+        final File slow = write("slow.xml", 10);
+        final File large = write("large.xml", 1000);
+        final File unknown = write("unknown.xml", 100);
+
+        // The small file took long, the large one was quick
+        final DurationHistory history = new DurationHistory();
+        history.record(slow, 5000);
+        history.record(large, 100);
+        final File historyFile = new File(directory, DurationHistory.FILE_NAME);
+        history.write(historyFile);
+        final DurationHistory previous = DurationHistory.read(historyFile);
+        assertEquals(2, previous.size());
+        assertEquals(Arrays.asList(slow, unknown, large),
+                Scheduler.order(Arrays.asList(large, unknown, slow), Scheduler.Order.HISTORY, previous));
+    }
+
+    private File write(String name, int length) throws Exception {
+        final File file = new File(directory, name);
+        Files.write(file.toPath(), new byte[length]);
+        return file;
+    }
+}
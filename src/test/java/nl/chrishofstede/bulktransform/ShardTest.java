@@ -0,0 +1,61 @@
+package nl.chrishofstede.bulktransform;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the sharding of the input files.
+ */
+public class ShardTest extends TestCase {
+
+    public void testShardsAreDisjointAndComplete() {
+        final File base = new File("base").getAbsoluteFile();
+        final List<File> files = new ArrayList<File>();
+        for (int i = 0; i < 1000; i++) {
+            files.add(new File(base, "in/file" + i + ".xml"));
+        }
+
+        final Set<File> seen = new HashSet<File>();
+        for (int index = 1; index <= 8; index++) {
+            final List<File> selected = new Shard(index, 8).select(files, base);
+            assertTrue(selected.size() > 0);
+            for (final File file : selected) {
+                assertTrue(seen.add(file));
+            }
+        }
+        assertEquals(files.size(), seen.size());
+    }
+
+    public void testSliceIsIndependentOfBaseFolder() {
+        final File first = new File("first").getAbsoluteFile();
+        final File second = new File("second").getAbsoluteFile();
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Shard.slice(new File(first, "in/file" + i + ".xml"), first, 8),
+                    Shard.slice(new File(second, "in/file" + i + ".xml"), second, 8));
+        }
+    }
+
+    public void testParse() {
+        final Shard shard = Shard.parse("3/8");
+        assertEquals(3, shard.getIndex());
+        assertEquals(8, shard.getCount());
+        assertEquals("3/8", shard.toString());
+        try {
+            Shard.parse("0/8");
+            fail("shard 0 doesn't exist");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        try {
+            Shard.parse("x/8");
+            fail("shard x doesn't exist");
+        } catch (IllegalArgumentException e) {
+            assertEquals("shard must be i/n: x/8", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package nl.chrishofstede.bulktransform;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Unit test for the registry of compiled stylesheets.
+ */
+public class StylesheetRegistryTest extends TemporaryFolderTestCase {
+
+    private File[] writeStylesheet(String name) throws Exception {
+        final File file = writeFile(name,
+                "<xsl:stylesheet version=\"1.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">"
+                        + "<xsl:template match=\"/\"><" + name.replace(".xsl", "") + "/></xsl:template>"
+                        + "</xsl:stylesheet>");
+        return new File[] { file };
+    }
+
+    public void testCompilesOnceUnderRace() throws Exception {
+        final StylesheetRegistry registry = new StylesheetRegistry(1024 * 1024, null);
+        final File[] stylesheets = writeStylesheet("a.xsl");
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        final List<Future<Stylesheet>> futures = new ArrayList<Future<Stylesheet>>();
+        for (int i = 0; i < 32; i++) {
+            futures.add(executor.submit((Callable<Stylesheet>) () -> registry.get(stylesheets)));
+        }
+        final Stylesheet first = futures.get(0).get();
+        for (final Future<Stylesheet> future : futures) {
+            assertSame(first, future.get());
+        }
+        executor.shutdown();
+        assertEquals(1, registry.getCompilations());
+        assertEquals(31, registry.getHits());
+    }
+
+    public void testEvictsLeastRecentlyUsed() throws Exception {
+        final File[] a = writeStylesheet("a.xsl");
+        final File[] b = writeStylesheet("b.xsl");
+        final File[] c = writeStylesheet("c.xsl");
+
+        // Room for two of the stylesheets
+        final StylesheetRegistry registry = new StylesheetRegistry(
+                (a[0].length() + b[0].length()) * StylesheetRegistry.EXPANSION, null);
+        final Stylesheet compiledA = registry.get(a);
+        registry.get(b);
+        assertSame(compiledA, registry.get(a));
+        registry.get(c);
+        assertEquals(1, registry.getEvictions());
+        assertSame(compiledA, registry.get(a));
+        registry.get(b);
+        assertEquals(4, registry.getCompilations());
+        assertTrue(registry.getSize() <= (a[0].length() + b[0].length()) * StylesheetRegistry.EXPANSION);
+    }
+
+    public void testFailedCompilationIsDropped() throws Exception {
+        final File[] a = writeStylesheet("a.xsl");
+        final File[] broken = new File[] { writeFile("broken.xsl",
+                "<xsl:stylesheet version=\"1.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">"
+                        + "<xsl:template match=\"/\"><xsl:value-of select=\"((\"/></xsl:template>"
+                        + "</xsl:stylesheet>") };
+        final StylesheetRegistry registry = new StylesheetRegistry(a[0].length() * StylesheetRegistry.EXPANSION, null);
+        final Stylesheet compiledA = registry.get(a);
+        for (int i = 0; i < 2; i++) {
+            try {
+                registry.get(broken);
+                fail("broken stylesheet compiled");
+            } catch (final Exception e) {
+                // Expected
+            }
+        }
+
+        // The failure takes no room and is tried again, the working stylesheet stays
+        assertEquals(a[0].length() * StylesheetRegistry.EXPANSION, registry.getSize());
+        assertEquals(3, registry.getCompilations());
+        assertEquals(0, registry.getEvictions());
+        assertSame(compiledA, registry.get(a));
+    }
+}
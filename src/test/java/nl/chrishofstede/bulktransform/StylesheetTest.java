@@ -0,0 +1,94 @@
+package nl.chrishofstede.bulktransform;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.io.FileUtils;
+import org.w3c.dom.Document;
+
+import nl.chrishofstede.bulktransform.output.ResultSplitter;
+import nl.chrishofstede.bulktransform.utils.Parameters;
+
+/**
+ * Unit test for the stylesheet.
+ */
+public class StylesheetTest extends TemporaryFolderTestCase {
+
+    private File writeStylesheet(String name, String templates) throws IOException {
+        return writeFile(name,
+                "<xsl:stylesheet version=\"1.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">"
+                        + "<xsl:output omit-xml-declaration=\"yes\"/>" + templates + "</xsl:stylesheet>");
+    }
+
+    public void testSingleStylesheet() throws Exception {
+        final Stylesheet stylesheet = new Stylesheet(
+                writeStylesheet("a.xsl", "<xsl:template match=\"/doc\"><a><xsl:value-of select=\"@id\"/></a></xsl:template>"));
+        final Document document = DOMBuilder.parseString("<doc id=\"1\"/>");
+        assertEquals("<a>1</a>", stylesheet.transformNodeToString(document, null));
+    }
+
+    public void testChainedStylesheets() throws Exception {
+        final File a = writeStylesheet("a.xsl", "<xsl:param name=\"p\"/>"
+                + "<xsl:template match=\"/doc\"><a p=\"{$p}\"><xsl:copy-of select=\"item\"/></a></xsl:template>");
+        final File b = writeStylesheet("b.xsl", "<xsl:param name=\"p\"/>"
+                + "<xsl:template match=\"/a\"><b p=\"{@p}{$p}\" n=\"{count(item)}\"/></xsl:template>");
+        final File c = writeStylesheet("c.xsl",
+                "<xsl:template match=\"/b\"><c><xsl:copy-of select=\"@*\"/><xsl:comment>done</xsl:comment></c></xsl:template>");
+        final Stylesheet stylesheet = new Stylesheet(new File[] { a, b, c });
+
+        final Parameters parameters = new Parameters();
+        parameters.setParameter("p", "x");
+        final Document document = DOMBuilder.parseString("<doc><item/><item/></doc>");
+        assertEquals("<c n=\"2\" p=\"xx\"><!--done--></c>", stylesheet.transformNodeToString(document, parameters));
+    }
+
+    public void testRedirectBecomesResult() throws Exception {
+        writeFile("inc.xsl", "<xsl:stylesheet version=\"1.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\""
+                + " xmlns:redirect=\"http://xml.apache.org/xalan/redirect\" extension-element-prefixes=\"redirect\">"
+                + "<xsl:template match=\"item\"><redirect:open file=\"{@id}.xml\"/>"
+                + "<redirect:write file=\"items/{@id}.xml\"><x/></redirect:write>"
+                + "<redirect:write select=\"concat(@id, '.txt')\"><y/></redirect:write>"
+                + "<redirect:close file=\"{@id}.xml\"/></xsl:template></xsl:stylesheet>");
+        final Stylesheet stylesheet = new Stylesheet(new File[] { writeStylesheet("a.xsl",
+                "<xsl:include href=\"inc.xsl\"/><xsl:template match=\"/doc\"><a><xsl:apply-templates/></a></xsl:template>") },
+                true);
+
+        // The included stylesheet is filtered as well
+        final String result = stylesheet.transformNodeToString(DOMBuilder.parseString("<doc><item id=\"i\"/></doc>"), null);
+        assertTrue(result, result.contains("=\"" + ResultSplitter.NAMESPACE + "\""));
+        assertTrue(result, result.contains(" href=\"items/i.xml\"><x/></"));
+        assertTrue(result, result.contains(" href=\"i.txt\"><y/></"));
+        assertFalse(result, result.contains("redirect"));
+    }
+
+    public void testStreamMatchesDocument() throws Exception {
+        final Stylesheet stylesheet = new Stylesheet(writeStylesheet("a.xsl",
+                "<xsl:template match=\"/doc\"><a n=\"{count(item)}\"><xsl:value-of select=\"item[2]\"/></a></xsl:template>"));
+        final File input = new File(directory, "in.xml");
+        FileUtils.writeStringToFile(input, "<doc><item>x</item><item>y</item></doc>", StandardCharsets.UTF_8);
+
+        final ByteArrayOutputStream fromDocument = new ByteArrayOutputStream();
+        stylesheet.transformNodeToStream(DOMBuilder.parseDocumentAtPath(input), null, fromDocument, null);
+        final ByteArrayOutputStream fromStream = new ByteArrayOutputStream();
+        stylesheet.transformSourceToStream(DOMBuilder.newSAXSourceAtPath(input, null), null, fromStream, null);
+        assertEquals("<a n=\"2\">y</a>", fromStream.toString("UTF-8"));
+        assertEquals(fromDocument.toString("UTF-8"), fromStream.toString("UTF-8"));
+    }
+
+    public void testCompactMatchesDocument() throws Exception {
+        final Stylesheet stylesheet = new Stylesheet(writeStylesheet("a.xsl",
+                "<xsl:template match=\"/\"><xsl:copy-of select=\"node()\"/><n><xsl:value-of select=\"count(//*)\"/></n></xsl:template>"));
+        final File input = new File(directory, "in.xml");
+        FileUtils.writeStringToFile(input, "<!--c--><doc xmlns=\"urn:d\" xmlns:p=\"urn:p\" p:a=\"1\"><item>x</item>"
+                + "<?pi y?><p:item xmlns=\"\">z</p:item></doc>", StandardCharsets.UTF_8);
+
+        final ByteArrayOutputStream fromDocument = new ByteArrayOutputStream();
+        stylesheet.transformNodeToStream(DOMBuilder.parseDocumentAtPath(input), null, fromDocument, null);
+        final ByteArrayOutputStream fromCompact = new ByteArrayOutputStream();
+        stylesheet.transformSourceToStream(DOMBuilder.parseCompactDocumentAtPath(input, null).newSource(), null,
+                fromCompact, null);
+        assertEquals(fromDocument.toString("UTF-8"), fromCompact.toString("UTF-8"));
+    }
+}
@@ -0,0 +1,48 @@
+package nl.chrishofstede.bulktransform;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import junit.framework.TestCase;
+
+/**
+ * Test case working in a temporary folder of its own, which is created before
+ * each test and deleted with its content afterwards.
+ */
+public abstract class TemporaryFolderTestCase extends TestCase {
+
+    /** Temporary folder of the current test. */
+    protected File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = Files.createTempDirectory(getClass().getSimpleName()).toFile();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    /**
+     * Writes a file in UTF-8 in the temporary folder, creating its parent
+     * folders.
+     *
+     * @param name
+     *                Path of the file relative to the temporary folder.
+     * @param content
+     *                Content of the file.
+     * @return The file.
+     * @throws IOException
+     *                     Signals that the file can't be written.
+     */
+    protected File writeFile(String name, String content) throws IOException {
+        final File file = new File(directory, name);
+        FileUtils.writeStringToFile(file, content, StandardCharsets.UTF_8);
+        return file;
+    }
+}
@@ -0,0 +1,65 @@
+package nl.chrishofstede.bulktransform;
+
+import java.io.File;
+import java.io.StringReader;
+
+import javax.xml.stream.XMLInputFactory;
+
+/**
+ * Unit test for the streaming prefilter of the input files.
+ */
+public class WhereFilterTest extends TemporaryFolderTestCase {
+
+    private static final String ORDER = "<!DOCTYPE order [<!ENTITY s \"open\">]>"
+            + "<order xmlns=\"urn:o\" type=\"b2b\"><lines><line sku=\"a\"/><line sku=\"b\"><note>x<![CDATA[y]]></note></line></lines>"
+            + "<status>&s;</status></order>";
+
+    private static boolean matches(String expression, String xml) throws Exception {
+        return new WhereFilter(expression)
+                .matches(XMLInputFactory.newInstance().createXMLStreamReader(new StringReader(xml)));
+    }
+
+    public void testRootElement() throws Exception {
+        assertTrue(matches("order", ORDER));
+        assertTrue(matches("{urn:o}*", ORDER));
+        assertFalse(matches("{}order", ORDER));
+        assertFalse(matches("invoice", ORDER));
+    }
+
+    public void testPaths() throws Exception {
+        assertTrue(matches("/order/lines/line", ORDER));
+        assertFalse(matches("/order/line", ORDER));
+        assertTrue(matches("//note", ORDER));
+        assertTrue(matches("/order//line/@sku = 'b'", ORDER));
+        assertFalse(matches("/order//line/@sku = 'c'", ORDER));
+        assertTrue(matches("/*/@type != 'b2c'", ORDER));
+        assertTrue(matches("/order/status='open'", ORDER));
+        assertTrue(matches("//line = \"xy\"", ORDER));
+        assertFalse(matches("/order/status = 'closed'", ORDER));
+    }
+
+    public void testStopsAtAnswer() throws Exception {
+
+        // The malformed rest of the document isn't read
+        assertTrue(matches("/order/@type='b2b'", "<order type=\"b2b\"><broken></order>"));
+        assertFalse(matches("invoice", "<order><broken></order>"));
+    }
+
+    public void testUnreadableFilePasses() throws Exception {
+        final File file = writeFile("bad.xml", "<order><status>x</order>");
+        assertTrue(new WhereFilter("/order/status = 'open'").matches(file));
+    }
+
+    public void testRejectsUnsupportedExpressions() {
+        for (final String expression : new String[] { "/order[1]/x", "/order/@a/b", "//@a", "/order = open",
+                "/{urn:o" }) {
+            try {
+                new WhereFilter(expression);
+                fail("accepted " + expression);
+            } catch (final IllegalArgumentException e) {
+
+                // Expected
+            }
+        }
+    }
+}
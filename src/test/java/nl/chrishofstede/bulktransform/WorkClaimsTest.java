@@ -0,0 +1,81 @@
+package nl.chrishofstede.bulktransform;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Unit test for the claims of the input files in a shared work folder.
+ */
+public class WorkClaimsTest extends TemporaryFolderTestCase {
+
+    public void testClaimIsExclusiveUntilDone() throws Exception {
+        final File base = new File("in").getAbsoluteFile();
+        final File input = new File(base, "a.xml");
+        try (WorkClaims first = new WorkClaims(directory, base, "first", WorkClaims.DEFAULT_LEASE);
+                WorkClaims second = new WorkClaims(directory, base, "second", WorkClaims.DEFAULT_LEASE)) {
+            assertTrue(first.claim(input));
+            assertFalse(second.claim(input));
+            first.complete(input);
+            assertFalse(second.claim(input));
+            assertFalse(first.claim(input));
+        }
+    }
+
+    public void testFailedFileIsOnlyClaimedByRetry() throws Exception {
+        final File base = new File("in").getAbsoluteFile();
+        final File input = new File(base, "a.xml");
+        try (WorkClaims first = new WorkClaims(directory, base, "first", WorkClaims.DEFAULT_LEASE);
+                WorkClaims second = new WorkClaims(directory, base, "second", WorkClaims.DEFAULT_LEASE)) {
+            assertTrue(first.claim(input));
+            first.fail(input);
+            assertFalse(second.claim(input));
+
+            // A retry claims the failed file and completes it
+            first.setRetryFailed(true);
+            assertTrue(first.claim(input));
+            first.complete(input);
+            first.setRetryFailed(false);
+            assertFalse(first.claim(input));
+            assertTrue(FileUtils.listFiles(directory, new String[] { "failed" }, true).isEmpty());
+        }
+    }
+
+    public void testStaleClaimIsReclaimed() throws Exception {
+        final File base = new File("in").getAbsoluteFile();
+        final File input = new File(base, "a.xml");
+        final WorkClaims dead = new WorkClaims(directory, base, "dead", 1000);
+        assertTrue(dead.claim(input));
+
+        // The dead worker stops touching its claim
+        final File claim = FileUtils.listFiles(directory, new String[] { "claim" }, true).iterator().next();
+        assertTrue(claim.setLastModified(System.currentTimeMillis() - 5000));
+        try (WorkClaims alive = new WorkClaims(directory, base, "alive", 1000)) {
+            assertTrue(alive.claim(input));
+
+            // The dead worker comes back and releases the claim it has lost
+            dead.release(input);
+            assertTrue(claim.isFile());
+            assertEquals("alive " + WorkClaims.getWorkerId(), FileUtils.readFileToString(claim, "UTF-8"));
+            dead.close();
+            assertTrue(claim.isFile());
+        }
+        assertFalse(claim.exists());
+    }
+
+    public void testWorkerNameIsExclusive() throws Exception {
+        final File base = new File("in").getAbsoluteFile();
+        try (WorkClaims first = new WorkClaims(directory, base, "w1", WorkClaims.DEFAULT_LEASE)) {
+            try {
+                new WorkClaims(directory, base, "w1", WorkClaims.DEFAULT_LEASE);
+                fail("Name of a running worker taken");
+            } catch (final IOException e) {
+                // Expected
+            }
+        }
+
+        // The name is free again when the worker stops
+        new WorkClaims(directory, base, "w1", WorkClaims.DEFAULT_LEASE).close();
+    }
+}
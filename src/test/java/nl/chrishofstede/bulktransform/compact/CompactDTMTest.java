@@ -0,0 +1,107 @@
+package nl.chrishofstede.bulktransform.compact;
+
+import java.io.File;
+import java.io.StringWriter;
+
+import javax.xml.transform.Transformer;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.apache.xalan.processor.TransformerFactoryImpl;
+
+import nl.chrishofstede.bulktransform.DOMBuilder;
+import nl.chrishofstede.bulktransform.TemporaryFolderTestCase;
+
+/**
+ * Unit test for the document table model over the compact document tree.
+ */
+public class CompactDTMTest extends TemporaryFolderTestCase {
+
+    private static final String SAMPLE = "<!--c--><doc xmlns=\"urn:d\" xmlns:p=\"urn:p\" id=\"1\" p:a=\"x\" xml:lang=\"en\">"
+            + "<item n=\"1\">one</item><?pi data?><item n=\"2\"><sub>two</sub> and <sub>three</sub></item>"
+            + "<p:item xmlns=\"\" xmlns:q=\"urn:q\" q:b=\"y\"><deep><deeper>four</deeper></deep></p:item>"
+            + "<item xmlns:p=\"urn:other\" n=\"3\">five<!--six--></item></doc><?after?>";
+
+    private static final String AXES = "ancestor ancestor-or-self attribute child descendant descendant-or-self"
+            + " following following-sibling namespace parent preceding preceding-sibling self";
+
+    /**
+     * Transforms a document through the stream of its parser and in place, and
+     * checks that the outputs are the same.
+     */
+    private String assertSameOutput(String templates, String xml) throws Exception {
+        final File stylesheet = writeFile("a.xsl", "<xsl:stylesheet version=\"1.0\""
+                + " xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\" xmlns:d=\"urn:d\" xmlns:p=\"urn:p\">"
+                + "<xsl:output omit-xml-declaration=\"yes\"/>" + templates + "</xsl:stylesheet>");
+        final File input = writeFile("in.xml", xml);
+        final Transformer transformer = new TransformerFactoryImpl().newTransformer(new StreamSource(stylesheet));
+        assertTrue(CompactDTM.canTransform(transformer));
+
+        final StringWriter fromStream = new StringWriter();
+        transformer.transform(new StreamSource(input), new StreamResult(fromStream));
+        final StringWriter inPlace = new StringWriter();
+        CompactDTM.transform(transformer, DOMBuilder.parseCompactDocumentAtPath(input, null), new StreamResult(inPlace));
+        assertEquals(fromStream.toString(), inPlace.toString());
+        return inPlace.toString();
+    }
+
+    public void testAxes() throws Exception {
+        final StringBuilder templates = new StringBuilder(
+                "<xsl:template match=\"/\"><xsl:for-each select=\"//node() | //@* | //namespace::*\"><c>");
+        for (final String axis : AXES.split(" ")) {
+            templates.append("<a><xsl:for-each select=\"").append(axis).append("::node()\"><xsl:value-of select=\"name()\"/>"
+                    + "=<xsl:value-of select=\"substring(., 1, 8)\"/>,</xsl:for-each></a>");
+            templates.append("<t><xsl:for-each select=\"").append(axis)
+                    .append("::d:item | ").append(axis).append("::p:item\"><xsl:value-of select=\"position()\"/></xsl:for-each>")
+                    .append("<xsl:value-of select=\"count(").append(axis).append("::text())\"/></t>");
+        }
+        templates.append("</c></xsl:for-each></xsl:template>");
+        final String output = assertSameOutput(templates.toString(), SAMPLE);
+        assertTrue(output, output.contains("<a>xml=http://w,=urn:d,p=urn:p,</a>"));
+    }
+
+    public void testNamesAndCopies() throws Exception {
+        final String output = assertSameOutput("<xsl:template match=\"/\"><xsl:copy-of select=\"node()\"/>"
+                + "<xsl:for-each select=\"//* | //@* | //processing-instruction()\"><n l=\"{local-name()}\""
+                + " u=\"{namespace-uri()}\" q=\"{name()}\" e=\"{lang('en')}\"><xsl:value-of select=\".\"/></n></xsl:for-each>"
+                + "<v><xsl:value-of select=\"/\"/></v><xsl:apply-templates select=\"//d:item\"/></xsl:template>"
+                + "<xsl:template match=\"d:item\"><xsl:copy><xsl:copy-of select=\"@*\"/>"
+                + "<xsl:value-of select=\"normalize-space()\"/></xsl:copy></xsl:template>", SAMPLE);
+        assertTrue(output, output.startsWith("<!--c--><doc "));
+    }
+
+    public void testKeysAndNumbers() throws Exception {
+        assertSameOutput("<xsl:key name=\"n\" match=\"d:item\" use=\"@n\"/>"
+                + "<xsl:template match=\"/\"><xsl:for-each select=\"//d:sub | //deeper\"><i>"
+                + "<xsl:number level=\"any\" count=\"*\"/>/<xsl:number level=\"multiple\" count=\"*\"/>/"
+                + "<xsl:value-of select=\"key('n', '2')/@n\"/>/"
+                + "<xsl:value-of select=\"generate-id(ancestor::*[last()]) = generate-id(/*)\"/>/"
+                + "<xsl:value-of select=\"count(preceding::*[1]/ancestor::*)\"/>/"
+                + "<xsl:value-of select=\"sum(//@n)\"/></i></xsl:for-each>"
+                + "<xsl:for-each select=\"//*\"><xsl:sort select=\"string-length(.)\" data-type=\"number\"/>"
+                + "<xsl:value-of select=\"name()\"/>,</xsl:for-each></xsl:template>", SAMPLE);
+    }
+
+    public void testLargeDocument() throws Exception {
+
+        // More nodes than one document identifier numbers
+        final StringBuilder xml = new StringBuilder("<doc>");
+        for (int i = 0; i < 40000; i++) {
+            xml.append("<item n=\"").append(i).append("\">").append(i).append("</item>");
+        }
+        xml.append("</doc>");
+        final String output = assertSameOutput("<xsl:template match=\"/\"><r><xsl:value-of select=\"count(//*)\"/>/"
+                + "<xsl:value-of select=\"sum(//@n)\"/>/<xsl:value-of select=\"/doc/item[@n = 39999]/@n\"/>/"
+                + "<xsl:value-of select=\"count(/doc/item[@n = 39999]/preceding-sibling::*)\"/>/"
+                + "<xsl:value-of select=\"count(/doc/item[@n = 39999]/preceding::text())\"/>/"
+                + "<xsl:value-of select=\"name(/doc/item[@n = 39999]/..)\"/></r></xsl:template>", xml.toString());
+        assertEquals("<r xmlns:p=\"urn:p\" xmlns:d=\"urn:d\">40001/799980000/39999/39999/39999/doc</r>", output);
+    }
+
+    public void testStripSpaceIsNotReadInPlace() throws Exception {
+        final Transformer transformer = new TransformerFactoryImpl().newTransformer(new StreamSource(writeFile("a.xsl",
+                "<xsl:stylesheet version=\"1.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">"
+                        + "<xsl:strip-space elements=\"*\"/></xsl:stylesheet>")));
+        assertFalse(CompactDTM.canTransform(transformer));
+    }
+}
@@ -0,0 +1,75 @@
+package nl.chrishofstede.bulktransform.compact;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import junit.framework.TestCase;
+import nl.chrishofstede.bulktransform.DOMBuilder;
+import nl.chrishofstede.bulktransform.utils.NodeWriter;
+
+/**
+ * Unit test for the compact document tree.
+ */
+public class CompactDocumentTest extends TestCase {
+
+    private static final String SAMPLE = "<?xml version=\"1.0\"?>"
+            + "<!DOCTYPE doc [<!-- in the DTD --><!ENTITY e \"entity\">]>"
+            + "<!-- before --><doc xmlns=\"urn:d\" xmlns:p=\"urn:p\" id=\"1\" p:x=\"a&amp;b\">"
+            + "<item>one &e; <![CDATA[<two>]]></item><?pi data?><empty/>"
+            + "<p:item xmlns=\"\">three</p:item></doc>";
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        file = Files.createTempFile("compact", ".xml").toFile();
+        FileUtils.writeStringToFile(file, SAMPLE, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+    }
+
+    public void testWritesLikeDocument() throws Exception {
+
+        // The DOM sorts the attributes by name and keeps CDATA sections
+        FileUtils.writeStringToFile(file, "<!DOCTYPE doc [<!ENTITY e \"entity\">]><doc a=\"1\" b=\"x&amp;&lt;\">"
+                + "<item>one &e;</item><?pi data?><!--note--><empty/><p:item xmlns:p=\"urn:p\">two</p:item></doc>",
+                StandardCharsets.UTF_8);
+        final CompactDocument document = DOMBuilder.parseCompactDocumentAtPath(file, null);
+        assertEquals(NodeWriter.writeNode(DOMBuilder.parseExpandedDocumentAtPath(file)),
+                NodeWriter.writeNode(document));
+        assertEquals("<p:item xmlns:p=\"urn:p\">two</p:item>",
+                NodeWriter.writeNode(document, document.getSubtreeEnd(document.getDocumentElement()) - 2));
+    }
+
+    public void testNavigation() throws Exception {
+        final CompactDocument document = DOMBuilder.parseCompactDocumentAtPath(file, null);
+        final int root = document.getDocumentElement();
+        assertEquals("doc", document.getName(root));
+        assertEquals("urn:d", document.getNamespaceURI(root));
+        assertEquals("a&b", document.getAttribute(root, "urn:p", "x"));
+        assertEquals("1", document.getAttribute(root, "", "id"));
+        assertEquals("one entity <two>three", document.getStringValue(root));
+
+        // Adjacent text and CDATA are one text node
+        final int item = document.getFirstChild(root);
+        final int text = document.getFirstChild(item);
+        assertEquals(CompactDocument.TEXT, document.getType(text));
+        assertEquals(CompactDocument.NONE, document.getNextSibling(text));
+        final int pi = document.getNextSibling(item);
+        assertEquals("pi", document.getName(pi));
+        assertEquals("data", document.getValue(pi));
+        final int empty = document.getNextSibling(pi);
+        assertEquals(CompactDocument.NONE, document.getFirstChild(empty));
+        assertEquals(document.getNodeCount(), document.getSubtreeEnd(root));
+
+        // The comment in the DTD isn't kept
+        assertEquals(CompactDocument.COMMENT, document.getType(document.getFirstChild(0)));
+        assertEquals(" before ", document.getValue(document.getFirstChild(0)));
+    }
+}
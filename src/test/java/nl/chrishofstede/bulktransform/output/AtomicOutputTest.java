@@ -0,0 +1,115 @@
+package nl.chrishofstede.bulktransform.output;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+
+import nl.chrishofstede.bulktransform.TemporaryFolderTestCase;
+
+/**
+ * Unit test for the atomic output files.
+ */
+public class AtomicOutputTest extends TemporaryFolderTestCase {
+
+    public void testCommitReplacesTarget() throws Exception {
+        final File target = new File(directory, "out.xml");
+        FileUtils.writeStringToFile(target, "old", StandardCharsets.UTF_8);
+
+        // Larger than the buffer, so it is written in several blocks
+        final byte[] content = new byte[OutputWriter.BUFFER_SIZE * 2 + 3];
+        content[content.length - 1] = 'x';
+        try (OutputWriter writer = new OutputWriter(OutputWriter.Durability.FILE, 1);
+                AtomicOutput output = writer.create(target)) {
+            output.write(content);
+            assertEquals("old", FileUtils.readFileToString(target, StandardCharsets.UTF_8));
+            output.commit();
+            assertEquals(1, writer.getSynced());
+        }
+        assertTrue(Arrays.equals(content, FileUtils.readFileToByteArray(target)));
+        assertEquals(1, directory.list().length);
+    }
+
+    public void testCloseWithoutCommitKeepsTarget() throws Exception {
+        final File target = new File(directory, "out.xml");
+        FileUtils.writeStringToFile(target, "old", StandardCharsets.UTF_8);
+        try (OutputWriter writer = new OutputWriter(OutputWriter.Durability.NONE, 1);
+                AtomicOutput output = writer.create(target)) {
+            output.write("new".getBytes(StandardCharsets.UTF_8));
+        }
+        assertEquals("old", FileUtils.readFileToString(target, StandardCharsets.UTF_8));
+        assertEquals(1, directory.list().length);
+    }
+
+    public void testGroupSync() throws Exception {
+        final OutputWriter writer = new OutputWriter(OutputWriter.Durability.GROUP, 2);
+        for (int i = 0; i < 3; i++) {
+            try (AtomicOutput output = writer.create(new File(directory, i + ".xml"))) {
+                output.write(i);
+                output.commit();
+            }
+        }
+        assertEquals(2, writer.getSynced());
+        writer.close();
+        assertEquals(3, writer.getSynced());
+    }
+
+    public void testUnchangedOutputKeepsTarget() throws Exception {
+        final File target = new File(directory, "out.xml");
+        FileUtils.writeStringToFile(target, "same", StandardCharsets.UTF_8);
+        assertTrue(target.setLastModified(1000000000000L));
+        final OutputWriter writer = new OutputWriter(OutputWriter.Durability.NONE, 1);
+        writer.setSkipUnchanged(true);
+        try (AtomicOutput output = writer.create(target)) {
+            output.write("same".getBytes(StandardCharsets.UTF_8));
+            assertFalse(output.commit());
+        }
+        assertEquals(1000000000000L, target.lastModified());
+        try (AtomicOutput output = writer.create(target)) {
+            output.write("diff".getBytes(StandardCharsets.UTF_8));
+            assertTrue(output.commit());
+        }
+        assertEquals("diff", FileUtils.readFileToString(target, StandardCharsets.UTF_8));
+        assertEquals(1, directory.list().length);
+    }
+
+    public void testUnchangedOutputWritesNoTemporaryFile() throws Exception {
+        final File target = new File(directory, "out.xml");
+
+        // Larger than the buffer, so it is compared in several blocks
+        final byte[] content = new byte[OutputWriter.BUFFER_SIZE * 2 + 3];
+        Arrays.fill(content, (byte) 'a');
+        FileUtils.writeByteArrayToFile(target, content);
+        final OutputWriter writer = new OutputWriter(OutputWriter.Durability.NONE, 1);
+        writer.setSkipUnchanged(true);
+        try (AtomicOutput output = writer.create(target)) {
+            output.write(content);
+            assertEquals(1, directory.list().length);
+            assertFalse(output.commit());
+        }
+
+        // A difference in a later block keeps the same part before it
+        content[OutputWriter.BUFFER_SIZE + 5] = 'b';
+        try (AtomicOutput output = writer.create(target)) {
+            output.write(content);
+            assertEquals(2, directory.list().length);
+            assertTrue(output.commit());
+        }
+        assertTrue(Arrays.equals(content, FileUtils.readFileToByteArray(target)));
+
+        // The same start of a longer or shorter existing file is a change
+        final byte[] shorter = Arrays.copyOf(content, content.length - 1);
+        try (AtomicOutput output = writer.create(target)) {
+            output.write(shorter);
+            assertTrue(output.commit());
+        }
+        assertTrue(Arrays.equals(shorter, FileUtils.readFileToByteArray(target)));
+        try (AtomicOutput output = writer.create(target)) {
+            output.write(content);
+            assertTrue(output.commit());
+        }
+        assertTrue(Arrays.equals(content, FileUtils.readFileToByteArray(target)));
+        assertEquals(1, directory.list().length);
+    }
+}
@@ -0,0 +1,35 @@
+package nl.chrishofstede.bulktransform.output;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the layout of the output folder.
+ */
+public class OutputLayoutTest extends TestCase {
+
+    public void testFlat() {
+        assertEquals("a.xml", OutputLayout.parse("flat").getRelativePath("a.xml"));
+    }
+
+    public void testHashIsStableAndBounded() {
+        final OutputLayout layout = OutputLayout.parse("hash:256:2");
+        final String path = layout.getRelativePath("record-123.xml");
+        assertEquals(path, layout.getRelativePath("record-123.xml"));
+        assertTrue(path, path.matches("[0-9a-f]{2}/[0-9a-f]{2}/record-123\\.xml"));
+        assertTrue(OutputLayout.parse("hash:1000").getRelativePath("x.xml").matches("[0-9a-f]{3}/x\\.xml"));
+    }
+
+    public void testPrefix() {
+        assertEquals("in/vo/Invoice.xml", OutputLayout.parse("prefix:2:2").getRelativePath("Invoice.xml"));
+        assertEquals("a__/a.xml", OutputLayout.parse("prefix:3").getRelativePath("a.xml"));
+    }
+
+    public void testInvalidLayout() {
+        try {
+            OutputLayout.parse("hash:1");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package nl.chrishofstede.bulktransform.output;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+
+import nl.chrishofstede.bulktransform.TemporaryFolderTestCase;
+
+/**
+ * Unit test for the packed outputs.
+ */
+public class PackedOutputTest extends TemporaryFolderTestCase {
+
+    private File indexFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        indexFile = new File(directory, PackedOutput.FILE_NAME);
+    }
+
+    private static void pack(PackedOutput packed, String name, String content) throws Exception {
+        try (Output output = packed.create(name)) {
+            output.write(content.getBytes(StandardCharsets.UTF_8));
+            output.commit();
+        }
+    }
+
+    private static String read(PackedReader reader, String name) throws Exception {
+        final ByteBuffer content = reader.get(name);
+        final byte[] bytes = new byte[content.remaining()];
+        content.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public void testRoundTripOverSegments() throws Exception {
+        try (PackedOutput packed = new PackedOutput(indexFile, 8, false)) {
+            pack(packed, "a.xml", "<a/>");
+            pack(packed, "b.xml", "<b/>");
+            pack(packed, "c.xml", "<c>larger than a segment</c>");
+
+            // Not committed, so not packed
+            try (Output output = packed.create("d.xml")) {
+                output.write('d');
+            }
+            assertEquals(3, packed.getCount());
+        }
+        assertTrue(PackedOutput.getSegmentFile(indexFile, 1).exists());
+        try (PackedReader reader = new PackedReader(indexFile)) {
+            assertEquals(Arrays.asList("a.xml", "b.xml", "c.xml"), Arrays.asList(reader.getNames().toArray()));
+            assertEquals("<a/>", read(reader, "a.xml"));
+            assertEquals("<b/>", read(reader, "b.xml"));
+            assertEquals("<c>larger than a segment</c>", read(reader, "c.xml"));
+            assertNull(reader.get("d.xml"));
+        }
+    }
+
+    public void testResumeAndTornRecord() throws Exception {
+        try (PackedOutput packed = new PackedOutput(indexFile, 1024, false)) {
+            pack(packed, "a.xml", "first");
+        }
+        try (PackedOutput packed = new PackedOutput(indexFile, 1024, true)) {
+            pack(packed, "a.xml", "second");
+            pack(packed, "b.xml", "torn");
+        }
+
+        // Cut the last record in half, as if the run was killed
+        try (RandomAccessFile index = new RandomAccessFile(indexFile, "rw")) {
+            index.setLength(index.length() - 4);
+        }
+        try (PackedReader reader = new PackedReader(indexFile)) {
+            assertEquals(1, reader.getNames().size());
+            assertEquals("second", read(reader, "a.xml"));
+        }
+    }
+
+    public void testResumeAfterTornRecord() throws Exception {
+        try (PackedOutput packed = new PackedOutput(indexFile, 1024, false)) {
+            pack(packed, "a.xml", "first");
+            pack(packed, "b.xml", "torn");
+        }
+        try (RandomAccessFile index = new RandomAccessFile(indexFile, "rw")) {
+            index.setLength(index.length() - 4);
+        }
+
+        // The torn record is cut off, so the records appended after it are read
+        try (PackedOutput packed = new PackedOutput(indexFile, 1024, true)) {
+            pack(packed, "b.xml", "second");
+            pack(packed, "c.xml", "third");
+        }
+        try (PackedReader reader = new PackedReader(indexFile)) {
+            assertEquals(Arrays.asList("a.xml", "b.xml", "c.xml"), Arrays.asList(reader.getNames().toArray()));
+            assertEquals("second", read(reader, "b.xml"));
+            assertEquals("third", read(reader, "c.xml"));
+        }
+    }
+
+    public void testRecordIsWrittenOnCommit() throws Exception {
+        try (PackedOutput packed = new PackedOutput(indexFile, 1024, false)) {
+            pack(packed, "a.xml", "<a/>");
+
+            // Readable before the index is closed, as after a kill
+            try (PackedReader reader = new PackedReader(indexFile)) {
+                assertEquals("<a/>", read(reader, "a.xml"));
+            }
+        }
+    }
+
+    public void testExport() throws Exception {
+        try (PackedOutput packed = new PackedOutput(indexFile, 1024, false)) {
+            pack(packed, "a.xml", "<a/>");
+            pack(packed, "b.xml", "<b/>");
+        }
+        final File out = new File(directory, "out");
+        final OutputLayout layout = OutputLayout.parse("prefix:1");
+        try (PackedReader reader = new PackedReader(indexFile);
+                OutputWriter writer = new OutputWriter(OutputWriter.Durability.NONE, 1)) {
+            assertEquals(2, reader.export(out, layout, writer));
+        }
+        assertEquals("<a/>", FileUtils.readFileToString(new File(out, "a/a.xml"), StandardCharsets.UTF_8));
+        assertEquals("<b/>", FileUtils.readFileToString(new File(out, "b/b.xml"), StandardCharsets.UTF_8));
+    }
+}
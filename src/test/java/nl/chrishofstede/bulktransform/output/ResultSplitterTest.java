@@ -0,0 +1,145 @@
+package nl.chrishofstede.bulktransform.output;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
+import javax.xml.transform.stream.StreamResult;
+
+import org.apache.commons.io.FileUtils;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+import nl.chrishofstede.bulktransform.TemporaryFolderTestCase;
+
+/**
+ * Unit test for the secondary results split off the result of a
+ * transformation.
+ */
+public class ResultSplitterTest extends TemporaryFolderTestCase {
+
+    private static TransformerHandler newSerializer(OutputStream out) throws Exception {
+        final TransformerHandler serializer = ((SAXTransformerFactory) TransformerFactory.newInstance())
+                .newTransformerHandler();
+        serializer.getTransformer().setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+        serializer.setResult(new StreamResult(out));
+        return serializer;
+    }
+
+    private String split(String xml, AsyncOutputWriter writer) throws Exception {
+        final ByteArrayOutputStream main = new ByteArrayOutputStream();
+        final ResultSplitter splitter = new ResultSplitter(newSerializer(main), directory,
+                ResultSplitterTest::newSerializer, writer);
+        final SAXParserFactory factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        final XMLReader reader = factory.newSAXParser().getXMLReader();
+        reader.setContentHandler(splitter);
+        reader.setProperty("http://xml.org/sax/properties/lexical-handler", splitter);
+        reader.parse(new InputSource(new StringReader(xml)));
+
+        // Nothing is committed before the main result is
+        assertEquals(0, writer.getWritten() + writer.getFailed());
+        for (final Future<Void> commit : splitter.commit()) {
+            commit.get();
+        }
+        return main.toString("UTF-8");
+    }
+
+    private String read(String path) throws Exception {
+        return FileUtils.readFileToString(new File(directory, path), StandardCharsets.UTF_8);
+    }
+
+    public void testWritesSecondaryResults() throws Exception {
+        final String main;
+        final AsyncOutputWriter writer;
+        try (OutputWriter outputWriter = new OutputWriter(OutputWriter.Durability.NONE, 1)) {
+            writer = new AsyncOutputWriter(outputWriter, 2, 1024);
+            try {
+                main = split("<index xmlns:r=\"" + ResultSplitter.NAMESPACE + "\" xmlns:p=\"urn:p\">"
+                        + "<r:result href=\"a/1.xml\"><p:item>1<!--c--></p:item></r:result>"
+                        + "<ref/>"
+                        + "<r:result href=\"b.xml\"><outer><r:result href=\"a/2.xml\"><inner/></r:result></outer></r:result>"
+                        + "</index>", writer);
+            } finally {
+                writer.close();
+            }
+        }
+        assertEquals(3, writer.getWritten());
+        assertEquals(0, writer.getFailed());
+        assertEquals("<index xmlns:r=\"" + ResultSplitter.NAMESPACE + "\" xmlns:p=\"urn:p\"><ref/></index>", main);
+
+        // The namespaces in scope are declared on the root, except the result namespace
+        assertEquals("<p:item xmlns:p=\"urn:p\">1<!--c--></p:item>", read("a/1.xml"));
+        assertEquals("<outer xmlns:p=\"urn:p\"/>", read("b.xml"));
+        assertEquals("<inner xmlns:p=\"urn:p\"/>", read("a/2.xml"));
+    }
+
+    public void testRejectsResultsOutsideOutputFolder() throws Exception {
+        try (OutputWriter outputWriter = new OutputWriter(OutputWriter.Durability.NONE, 1);
+                AsyncOutputWriter writer = new AsyncOutputWriter(outputWriter, 1, 1024)) {
+            split("<r:result xmlns:r=\"" + ResultSplitter.NAMESPACE + "\" href=\"../escape.xml\"/>", writer);
+            fail("wrote a result outside the output folder");
+        } catch (final SAXException e) {
+            assertTrue(e.getMessage().startsWith("Result outside the output folder"));
+        }
+        assertFalse(new File(directory.getParentFile(), "escape.xml").exists());
+    }
+
+    public void testLargeResultIsStreamed() throws Exception {
+        final StringBuilder items = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            items.append("<item>").append(i).append("</item>");
+        }
+        try (OutputWriter outputWriter = new OutputWriter(OutputWriter.Durability.NONE, 1)) {
+
+            // Far less room than the result, the producer waits for the writers
+            final AsyncOutputWriter writer = new AsyncOutputWriter(outputWriter, 1, 1024);
+            try {
+                split("<r:result xmlns:r=\"" + ResultSplitter.NAMESPACE + "\" href=\"big.xml\"><items>" + items
+                        + "</items></r:result>", writer);
+            } finally {
+                writer.close();
+            }
+            assertEquals(1, writer.getWritten());
+        }
+        assertEquals("<items>" + items + "</items>", read("big.xml"));
+        assertEquals(1, directory.list().length);
+    }
+
+    public void testDiscardLeavesNothingBehind() throws Exception {
+        final File target = new File(directory, "a.xml");
+        FileUtils.writeStringToFile(target, "old", StandardCharsets.UTF_8);
+        try (OutputWriter outputWriter = new OutputWriter(OutputWriter.Durability.NONE, 1);
+                AsyncOutputWriter writer = new AsyncOutputWriter(outputWriter, 1, 1024)) {
+            final AsyncOutputWriter.PendingOutput output = writer.open(target);
+            output.write("new".getBytes(StandardCharsets.UTF_8));
+            output.discard();
+        }
+        assertEquals("old", read("a.xml"));
+        assertEquals(1, directory.list().length);
+    }
+
+    public void testFailedWriteFailsItsFuture() throws Exception {
+        assertTrue(new File(directory, "a").createNewFile());
+        try (OutputWriter outputWriter = new OutputWriter(OutputWriter.Durability.NONE, 1);
+                AsyncOutputWriter writer = new AsyncOutputWriter(outputWriter, 1, 1024)) {
+
+            // The folder of the result is a file
+            split("<r:result xmlns:r=\"" + ResultSplitter.NAMESPACE + "\" href=\"a/1.xml\"><x/></r:result>", writer);
+            fail("result written below a file");
+        } catch (final ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package nl.chrishofstede.bulktransform.output;
+
+import java.io.ByteArrayOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the comma and tab separated tables.
+ */
+public class TableWriterTest extends TestCase {
+
+    private static String write(TableWriter.Format format) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final TableWriter table = new TableWriter(out, format, "a", "b");
+        table.writeRow("x,y", "say \"hi\"");
+        table.writeRow("1\t2", null);
+        table.flush();
+        assertEquals(2, table.getRows());
+        return out.toString("UTF-8");
+    }
+
+    public void testCsvQuotesValues() throws Exception {
+        assertEquals("a,b\r\n\"x,y\",\"say \"\"hi\"\"\"\r\n1\t2,\r\n", write(TableWriter.Format.CSV));
+    }
+
+    public void testTsvReplacesSeparators() throws Exception {
+        assertEquals("a\tb\r\nx,y\tsay \"hi\"\r\n1 2\t\r\n", write(TableWriter.Format.TSV));
+    }
+
+    public void testParsesFormat() {
+        assertEquals(TableWriter.Format.TSV, TableWriter.Format.parse(" TSV "));
+        assertEquals(".csv", TableWriter.Format.CSV.getExtension());
+    }
+}
@@ -0,0 +1,122 @@
+package nl.chrishofstede.bulktransform.utils;
+
+import java.io.File;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import nl.chrishofstede.bulktransform.TemporaryFolderTestCase;
+
+/**
+ * Unit test for the entity resolver backed by XML catalogs.
+ */
+public class EntityCatalogTest extends TemporaryFolderTestCase {
+
+    private static final String CATALOG = "<catalog xmlns=\"urn:oasis:names:tc:entity:xmlns:xml:catalog\">";
+
+    /**
+     * Writes a DTD declaring the entity e.
+     */
+    private void writeDTD(String name, String value) throws Exception {
+        writeFile(name, "<!ENTITY e \"" + value + "\">");
+    }
+
+    /**
+     * Parses a document and returns the text of its root element.
+     */
+    private String parse(EntityCatalog catalog, String doctype) throws Exception {
+        final File input = writeFile("in.xml", doctype + "<doc>&e;</doc>");
+        final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance(
+                "org.apache.xerces.jaxp.DocumentBuilderFactoryImpl", null);
+        final DocumentBuilder builder = factory.newDocumentBuilder();
+        builder.setEntityResolver(catalog);
+        return builder.parse(input).getDocumentElement().getTextContent();
+    }
+
+    public void testSystem() throws Exception {
+        writeDTD("dtd/doc.dtd", "system");
+        final EntityCatalog catalog = new EntityCatalog(new File[] { writeFile("catalog.xml",
+                CATALOG + "<system systemId=\"http://example.com/doc.dtd\" uri=\"dtd/doc.dtd\"/></catalog>") });
+        assertEquals("system", parse(catalog, "<!DOCTYPE doc SYSTEM \"http://example.com/doc.dtd\">"));
+
+        // The DTD is read once
+        assertEquals("system", parse(catalog, "<!DOCTYPE doc SYSTEM \"http://example.com/doc.dtd\">"));
+        assertEquals(1, catalog.getLoadedCount());
+        assertEquals(0, catalog.getRefusedCount());
+    }
+
+    public void testPublic() throws Exception {
+        writeDTD("public.dtd", "public");
+        final EntityCatalog catalog = new EntityCatalog(new File[] { writeFile("catalog.xml",
+                CATALOG + "<public publicId=\"-//Test//DTD Doc//EN\" uri=\"public.dtd\"/></catalog>") });
+        assertEquals("public",
+                parse(catalog, "<!DOCTYPE doc PUBLIC \"-//Test//DTD Doc//EN\" \"http://example.com/other.dtd\">"));
+    }
+
+    public void testRewriteSystem() throws Exception {
+        writeDTD("local/doc.dtd", "rewritten");
+        final EntityCatalog catalog = new EntityCatalog(new File[] { writeFile("catalog.xml", CATALOG
+                + "<rewriteSystem systemIdStartString=\"http://example.com/\" rewritePrefix=\"elsewhere/\"/>"
+                + "<rewriteSystem systemIdStartString=\"http://example.com/dtds/\" rewritePrefix=\"local/\"/>"
+                + "</catalog>") });
+
+        // The longest start string wins
+        assertEquals("rewritten", parse(catalog, "<!DOCTYPE doc SYSTEM \"http://example.com/dtds/doc.dtd\">"));
+    }
+
+    public void testSystemSuffix() throws Exception {
+        writeDTD("suffix.dtd", "suffix");
+        final EntityCatalog catalog = new EntityCatalog(new File[] { writeFile("catalog.xml",
+                CATALOG + "<systemSuffix systemIdSuffix=\"/doc.dtd\" uri=\"suffix.dtd\"/></catalog>") });
+        assertEquals("suffix", parse(catalog, "<!DOCTYPE doc SYSTEM \"http://example.org/any/doc.dtd\">"));
+    }
+
+    public void testNextCatalog() throws Exception {
+        writeDTD("sub/next.dtd", "next");
+        writeFile("sub/next.xml",
+                CATALOG + "<system systemId=\"http://example.com/next.dtd\" uri=\"next.dtd\"/></catalog>");
+        final EntityCatalog catalog = new EntityCatalog(new File[] {
+                writeFile("catalog.xml", CATALOG + "<nextCatalog catalog=\"sub/next.xml\"/></catalog>") });
+
+        // The entries of the next catalog are relative to its own location
+        assertEquals("next", parse(catalog, "<!DOCTYPE doc SYSTEM \"http://example.com/next.dtd\">"));
+    }
+
+    public void testRemoteDTDIsEmpty() throws Exception {
+        final EntityCatalog catalog = new EntityCatalog(new File[] { writeFile("catalog.xml", CATALOG + "</catalog>") });
+        final File input = writeFile("in.xml", "<!DOCTYPE doc SYSTEM \"http://example.com/doc.dtd\"><doc>text</doc>");
+        final DocumentBuilder builder = DocumentBuilderFactory
+                .newInstance("org.apache.xerces.jaxp.DocumentBuilderFactoryImpl", null).newDocumentBuilder();
+        builder.setEntityResolver(catalog);
+        assertEquals("text", builder.parse(input).getDocumentElement().getTextContent());
+        assertEquals(1, catalog.getRefusedCount());
+        assertEquals(0, catalog.getLoadedCount());
+    }
+
+    public void testRemoteEntityIsRefused() throws Exception {
+        final EntityCatalog catalog = new EntityCatalog(new File[] { writeFile("catalog.xml", CATALOG + "</catalog>") });
+        try {
+            parse(catalog, "<!DOCTYPE doc [<!ENTITY e SYSTEM \"http://example.com/e.txt\">]>");
+            fail("remote entity resolved");
+        } catch (final SAXException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("Remote entity not in catalog"));
+        }
+        assertEquals(1, catalog.getRefusedCount());
+    }
+
+    public void testRelativeSystemId() throws Exception {
+        writeFile("e.txt", "relative");
+        final EntityCatalog catalog = new EntityCatalog(new File[] { writeFile("catalog.xml", CATALOG + "</catalog>") });
+        assertEquals("relative", parse(catalog, "<!DOCTYPE doc [<!ENTITY e SYSTEM \"e.txt\">]>"));
+        assertEquals(1, catalog.getLoadedCount());
+
+        // Without a base URI the parser resolves it, nothing is refused
+        assertNull(catalog.resolveEntity("e", null, null, "e.txt"));
+        final InputSource resolved = catalog.resolveEntity("e", null, directory.toURI().toString(), "e.txt");
+        assertEquals(new File(directory, "e.txt").toURI().toString(), resolved.getSystemId());
+        assertEquals(0, catalog.getRefusedCount());
+    }
+}
@@ -0,0 +1,89 @@
+package nl.chrishofstede.bulktransform.utils;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the canonical fingerprints of node trees.
+ */
+public class NodeDigestTest extends TestCase {
+
+    private static final String SAMPLE = "<?xml version=\"1.0\"?>\n"
+            + "<?pi before?>\n"
+            + "<!-- comment -->\n"
+            + "<r:root xmlns:r=\"urn:r\" xmlns=\"urn:d\" b='2' a=\"1\" r:z=\"&quot;&#9;tab\">\n"
+            + "  <child xmlns:r=\"urn:r\" xmlns:u=\"urn:unused\"/>\n"
+            + "  <plain xmlns=\"\">a &lt; b &amp; c &gt; d<![CDATA[ <cdata> ]]>é€😀</plain>\n"
+            + "</r:root>\n"
+            + "<?pi after?>";
+
+    /** The canonical form of the sample, after Canonical XML 1.0. */
+    private static final String CANONICAL = "<?pi before?>\n"
+            + "<r:root xmlns=\"urn:d\" xmlns:r=\"urn:r\" a=\"1\" b=\"2\" r:z=\"&quot;&#x9;tab\">\n"
+            + "  <child xmlns:u=\"urn:unused\"></child>\n"
+            + "  <plain xmlns=\"\">a &lt; b &amp; c &gt; d &lt;cdata&gt; é€😀</plain>\n"
+            + "</r:root>\n"
+            + "<?pi after?>";
+
+    /** The canonical form of the sample with comments. */
+    private static final String CANONICAL_WITH_COMMENTS = CANONICAL.replace("<?pi before?>\n",
+            "<?pi before?>\n<!-- comment -->\n");
+
+    private static Document parse(String xml) throws Exception {
+        final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        return factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static byte[] sha256(String canonical) throws Exception {
+        return MessageDigest.getInstance("SHA-256").digest(canonical.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] sha256(Node node) throws Exception {
+        return NodeDigest.digest(node, "SHA-256");
+    }
+
+    public void testMatchesCanonicalXml() throws Exception {
+        final Document document = parse(SAMPLE);
+        assertTrue(Arrays.equals(sha256(CANONICAL), NodeDigest.digest(document, "SHA-256")));
+        final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        NodeDigest.update(digest, document, true);
+        assertTrue(Arrays.equals(sha256(CANONICAL_WITH_COMMENTS), digest.digest()));
+    }
+
+    public void testSerializationDetailsDontMatter() throws Exception {
+        final byte[] first = sha256(parse("<a y='2' x=\"1\"><b/><c><![CDATA[<&>]]></c></a>"));
+        final byte[] second = sha256(parse("<a x='1'  y='2'><b></b><c>&lt;&amp;&gt;</c><!-- note --></a>"));
+        assertTrue(Arrays.equals(first, second));
+        assertFalse(Arrays.equals(first, sha256(parse("<a x='1' y='3'><b/><c>&lt;&amp;&gt;</c></a>"))));
+    }
+
+    public void testTreeBuiltInMemory() throws Exception {
+        final Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+        final Element root = document.createElementNS("urn:d", "root");
+        root.setAttributeNS("urn:r", "r:a", "1");
+        document.appendChild(root);
+        root.appendChild(document.createElementNS("urn:d", "child"));
+        assertTrue(Arrays.equals(sha256(parse("<root xmlns='urn:d' xmlns:r='urn:r' r:a='1'><child/></root>")),
+                sha256(document)));
+    }
+
+    public void testDeepTree() throws Exception {
+        final Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+        Node parent = document;
+        for (int i = 0; i < 20000; i++) {
+            parent = parent.appendChild(document.createElement("e"));
+        }
+        assertEquals(32, sha256(document).length);
+    }
+}
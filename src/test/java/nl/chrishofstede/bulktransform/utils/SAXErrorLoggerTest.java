@@ -0,0 +1,51 @@
+package nl.chrishofstede.bulktransform.utils;
+
+import java.io.StringWriter;
+
+import org.xml.sax.SAXParseException;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the logger of the parser errors.
+ */
+public class SAXErrorLoggerTest extends TestCase {
+
+    private static SAXParseException exception(String message, int line) {
+        return new SAXParseException(message, null, "file:/in/a.xml", line, 7);
+    }
+
+    public void testWarningKeepsDocumentValid() throws Exception {
+        final StringWriter log = new StringWriter();
+        final SAXErrorLogger logger = new SAXErrorLogger(log);
+        logger.warning(exception("just a warning", 1));
+        assertTrue(logger.isValid());
+        assertNull(logger.getFirstError());
+        assertTrue(log.toString().startsWith("Warning: just a warning" + SAXErrorLogger.LF));
+        assertTrue(log.toString().contains("- Line  : 1" + SAXErrorLogger.LF));
+    }
+
+    public void testFirstErrorSkipsWarnings() throws Exception {
+        final StringWriter log = new StringWriter();
+        final SAXErrorLogger logger = new SAXErrorLogger(log);
+        logger.warning(exception("just a warning", 1));
+        logger.error(exception("first error", 2));
+        logger.error(exception("second error", 3));
+        assertFalse(logger.isValid());
+        assertEquals("Error: first error", logger.getFirstError());
+        assertTrue(log.toString().contains("Error: second error"));
+    }
+
+    public void testFatalErrorStopsParser() throws Exception {
+        final SAXErrorLogger logger = new SAXErrorLogger(new StringWriter());
+        final SAXParseException fatal = exception("not well-formed", 4);
+        try {
+            logger.fatalError(fatal);
+            fail("fatal error not rethrown");
+        } catch (final SAXParseException e) {
+            assertSame(fatal, e);
+        }
+        assertFalse(logger.isValid());
+        assertEquals("Fatal: not well-formed", logger.getFirstError());
+    }
+}